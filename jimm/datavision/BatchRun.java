@@ -0,0 +1,554 @@
+package jimm.datavision;
+import jimm.datavision.layout.LayoutEngine;
+import jimm.datavision.source.DataSource;
+import jimm.datavision.source.charsep.CharSepSource;
+import jimm.datavision.source.charsep.DelimParser;
+import jimm.datavision.source.sql.Database;
+import jimm.util.I18N;
+import jimm.util.XMLWriter;
+import java.io.*;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.xml.parsers.SAXParserFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Runs a report many times, once for each set of parameter values in a
+ * parameter table. Each run gets its own layout engine from an {@link
+ * OutputFactory}.
+ * <p>
+ * The runs are spread over a fixed number of threads. Each thread has its
+ * own report, which it runs again and again; with one thread that report
+ * is the report itself, and with more, copies are built from a {@link
+ * ReportTemplate}. Because a thread's report doesn't change between runs,
+ * everything that doesn't depend on the parameter values is kept from one
+ * run to the next: the database connection, the prepared statements (see
+ * {@link Database#setReuseStatements}), and the formula templates and
+ * compiled scripts. Formatters and PDF fonts are shared by all reports.
+ * <p>
+ * Copies of a database report log in with their own connection if the
+ * report's database knows its password. If it doesn't, because it was
+ * handed a connection, the copies share that connection. Use one thread
+ * with JDBC drivers that don't allow that.
+ * <p>
+ * A parameter table may be XML or character-separated values (see {@link
+ * #readParameters}).
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class BatchRun {
+
+/** The name of the parameter table column that holds output names. */
+public static final String OUTPUT_COLUMN = "output";
+
+/**
+ * Creates the layout engine for each run.
+ */
+public interface OutputFactory {
+/**
+ * Returns a new layout engine for <var>run</var>. The report closes its
+ * output when the run is done.
+ *
+ * @param run a run
+ * @return a new layout engine
+ */
+LayoutEngine createLayoutEngine(Run run) throws IOException;
+}
+
+/**
+ * The parameter values of one run.
+ */
+public static class Run {
+protected int number;
+protected String outputName;
+/** Maps parameter ids to lists of values. */
+protected LinkedHashMap<Object, List<Object>> values;
+
+/**
+ * Constructor.
+ *
+ * @param number the run number, starting at 1
+ */
+public Run(int number) {
+    this.number = number;
+    values = new LinkedHashMap<Object, List<Object>>();
+}
+
+/**
+ * Returns the run number. Runs are numbered from 1 in the order they were
+ * added.
+ *
+ * @return the run number
+ */
+public int getNumber() { return number; }
+
+/**
+ * Returns the output name given by the parameter table; may be
+ * <code>null</code>.
+ *
+ * @return the output name or <code>null</code>
+ */
+public String getOutputName() { return outputName; }
+
+public void setOutputName(String name) { outputName = name; }
+
+/**
+ * Adds a value for a parameter. Range and list parameters take more than
+ * one value. Strings are converted to the parameter's type.
+ *
+ * @param parameterId a parameter id
+ * @param value a value
+ */
+public void addValue(Object parameterId, Object value) {
+    List<Object> list = values.get(parameterId);
+    if (list == null) {
+	list = new ArrayList<Object>();
+	values.put(parameterId, list);
+    }
+    list.add(value);
+}
+
+/**
+ * Returns the values of a parameter; may be <code>null</code> if this run
+ * doesn't change them.
+ *
+ * @param parameterId a parameter id
+ * @return a list of values or <code>null</code>
+ */
+public List<Object> getValues(Object parameterId) {
+    return values.get(parameterId);
+}
+
+/**
+ * Gives the parameters of <var>report</var> this run's values. Parameters
+ * that this run doesn't mention keep their values.
+ */
+void setParameters(Report report) {
+    for (Map.Entry<Object, List<Object>> entry : values.entrySet()) {
+	Parameter p = report.findParameter(entry.getKey());
+	p.removeValues();
+	for (Object value : entry.getValue())
+	    p.addValue(value);
+    }
+    report.parametersSetManually(true);
+}
+}
+
+/**
+ * Reads an XML parameter table. Each <code>parameters</code> element is a
+ * run.
+ */
+class XMLTableReader extends DefaultHandler {
+Run run;
+Parameter parameter;
+StringBuilder text = new StringBuilder();
+
+public void startElement(String namespaceURI, String localName,
+			 String qName, Attributes attributes)
+{
+    String tagName = localName;
+    if (tagName == null || tagName.length() == 0)
+        tagName = qName;
+    text.setLength(0);
+
+    if ("parameters".equals(tagName)) {
+	run = addRun();
+	run.setOutputName(attributes.getValue(OUTPUT_COLUMN));
+    }
+    else if ("parameter".equals(tagName) && run != null) {
+	String id = attributes.getValue("id");
+	parameter = report.findParameter(id);
+	if (parameter == null)
+	    ErrorHandler.error(I18N.get("ParameterReader.unknown_id") + ' '
+			       + id + ' '
+			       + I18N.get("ParameterReader.in_xml"));
+    }
+}
+
+public void endElement(String namespaceURI, String localName, String qName)
+{
+    String tagName = localName;
+    if (tagName == null || tagName.length() == 0)
+        tagName = qName;
+
+    if ("value".equals(tagName) && parameter != null)
+	run.addValue(parameter.getId(), text.toString());
+    else if ("parameter".equals(tagName))
+	parameter = null;
+    else if ("parameters".equals(tagName))
+	run = null;
+}
+
+public void characters(char ch[], int start, int length) {
+    text.append(ch, start, length);
+}
+}
+
+protected Report report;
+protected int threads;
+protected OutputFactory outputFactory;
+protected ArrayList<Run> runs;
+
+/**
+ * Constructor.
+ *
+ * @param report the report to run
+ * @param threads the number of threads; numbers less than one are treated
+ * as one
+ */
+public BatchRun(Report report, int threads) {
+    this.report = report;
+    this.threads = threads < 1 ? 1 : threads;
+    runs = new ArrayList<Run>();
+}
+
+public void setOutputFactory(OutputFactory factory) { outputFactory = factory; }
+
+/**
+ * Adds a run with no parameter values and returns it.
+ *
+ * @return a new run
+ */
+public Run addRun() {
+    Run run = new Run(runs.size() + 1);
+    runs.add(run);
+    return run;
+}
+
+/**
+ * Returns the runs.
+ *
+ * @return a list of runs
+ */
+public List<Run> runs() { return runs; }
+
+/**
+ * Reads a parameter table and adds a run for each of its rows. Files
+ * whose names end in ".xml" are read as XML; others are read as
+ * comma-separated values.
+ *
+ * @param f a parameter table file
+ * @see #readXML
+ * @see #readCSV
+ */
+public void readParameters(File f) throws Exception {
+    if (f.getName().toLowerCase().endsWith(".xml")) {
+	readXML(new FileInputStream(f));
+	return;
+    }
+    Reader in = new FileReader(f);
+    try {
+	readCSV(in, ',');
+    }
+    finally {
+	in.close();
+    }
+}
+
+/**
+ * Reads an XML parameter table. Each <code>parameters</code> element
+ * holds the values of one run, written just like the parameter XML files
+ * read by {@link ParameterReader}. A file may contain one
+ * <code>parameters</code> element or any number of them inside a
+ * <code>batch</code> element. The optional <code>output</code> attribute
+ * of a <code>parameters</code> element gives the output name of its run.
+ *
+ * @param in an input stream; it is closed
+ */
+public void readXML(InputStream in) throws Exception {
+    try {
+	SAXParserFactory.newInstance().newSAXParser()
+	    .parse(in, new XMLTableReader());
+    }
+    finally {
+	in.close();
+    }
+}
+
+/**
+ * Reads a character-separated parameter table. The first line holds the
+ * name or id of the parameter in each column. A parameter that takes
+ * more than one value (a range or a list) may have more than one column.
+ * A column named "output" gives the output name of each run. Empty values
+ * are ignored.
+ *
+ * @param in a reader; the caller must close it
+ * @param sepChar the separator character
+ */
+public void readCSV(Reader in, char sepChar) throws IOException {
+    DelimParser parser = new DelimParser(in, sepChar);
+    List<String> header = parser.parse();
+    if (header == null)
+	return;
+
+    Object[] ids = new Object[header.size()];
+    int outputColumn = -1;
+    for (int i = 0; i < ids.length; ++i) {
+	String name = header.get(i).trim();
+	Parameter p = findParameter(name);
+	if (p != null)
+	    ids[i] = p.getId();
+	else if (OUTPUT_COLUMN.equals(name))
+	    outputColumn = i;
+	else
+	    ErrorHandler.error(I18N.get("ParameterReader.unknown_id") + ' '
+			       + name);
+    }
+
+    List<String> row;
+    while ((row = parser.parse()) != null) {
+	Run run = addRun();
+	for (int i = 0; i < row.size() && i < ids.length; ++i) {
+	    String value = row.get(i);
+	    if (value.length() == 0)
+		continue;
+	    if (i == outputColumn)
+		run.setOutputName(value);
+	    else if (ids[i] != null)
+		run.addValue(ids[i], value);
+	}
+    }
+}
+
+/**
+ * Returns the output name of a run. If the parameter table gave the run
+ * an output name, that is returned. Otherwise <var>template</var> is
+ * returned with "{#}" replaced by the run number and "{<i>name</i>}"
+ * replaced by the value of the parameter with that name or id (the
+ * parameter's own value if the run doesn't give it one). Characters that
+ * can't be part of a file name are replaced by underscores.
+ *
+ * @param template an output name template
+ * @param run a run
+ * @return an output name
+ */
+public String outputName(String template, Run run) {
+    if (run.getOutputName() != null)
+	return run.getOutputName();
+
+    StringBuilder buf = new StringBuilder();
+    int pos = 0, start;
+    while ((start = template.indexOf('{', pos)) != -1) {
+	int end = template.indexOf('}', start + 1);
+	if (end == -1)
+	    break;
+	buf.append(template.substring(pos, start));
+	String key = template.substring(start + 1, end);
+	Parameter p = findParameter(key);
+
+	if ("#".equals(key))
+	    buf.append(run.getNumber());
+	else if (p == null)
+	    buf.append(template.substring(start, end + 1));
+	else {
+	    List<Object> values = run.getValues(p.getId());
+	    if (values == null)
+		values = p.values().isEmpty() ? p.defaultValues() : p.values();
+	    for (int i = 0; i < values.size(); ++i) {
+		if (i > 0) buf.append('-');
+		buf.append(fileNameSafe(String.valueOf(values.get(i))));
+	    }
+	}
+	pos = end + 1;
+    }
+    buf.append(template.substring(pos));
+    return buf.toString();
+}
+
+/**
+ * Returns the report's parameter with the given name or, if there is none
+ * and <var>nameOrId</var> is a number, with that id. Returns
+ * <code>null</code> if there is no such parameter.
+ */
+protected Parameter findParameter(String nameOrId) {
+    Parameter p = report.findParameterByName(nameOrId);
+    if (p != null || nameOrId.length() == 0)
+	return p;
+    for (int i = 0; i < nameOrId.length(); ++i)
+	if (!Character.isDigit(nameOrId.charAt(i)))
+	    return null;
+    return report.findParameter(nameOrId);
+}
+
+/**
+ * Replaces characters that can't be part of a file name with underscores.
+ */
+protected static String fileNameSafe(String str) {
+    StringBuilder buf = new StringBuilder(str);
+    for (int i = 0; i < buf.length(); ++i)
+	if ("/\\:*?\"<>|".indexOf(buf.charAt(i)) != -1)
+	    buf.setCharAt(i, '_');
+    return buf.toString();
+}
+
+/**
+ * Runs the report once for each run and returns the number of runs that
+ * failed. The errors have been reported.
+ *
+ * @return the number of failed runs
+ */
+public int run() {
+    int numThreads = Math.min(threads, runs.size());
+    if (numThreads == 0)
+	return 0;
+
+    List<Report> reports = new ArrayList<Report>();
+    reports.add(report);
+    try {
+	if (numThreads > 1) {
+	    reports.clear();
+	    ReportTemplate template = ReportTemplate.forXML(reportXML());
+	    for (int i = 0; i < numThreads; ++i)
+		reports.add(copyReport(template));
+	}
+    }
+    catch (Exception e) {
+	ErrorHandler.error(e);
+	closeCopies(reports);
+	return runs.size();
+    }
+
+    final BlockingQueue<Report> idle =
+	new LinkedBlockingQueue<Report>(reports);
+    for (Report r : reports) {
+	r.keepTemplates = true;
+	if (r.getDataSource() instanceof Database)
+	    ((Database)r.getDataSource()).setReuseStatements(true);
+    }
+
+    int failures = 0;
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+    try {
+	ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+	for (final Run run : runs) {
+	    results.add(pool.submit(new Callable<Boolean>() {
+		public Boolean call() throws Exception {
+		    Report r = idle.take();
+		    try {
+			return Boolean.valueOf(runOnce(r, run));
+		    }
+		    finally {
+			idle.put(r);
+		    }
+		}
+		}));
+	}
+	for (Future<Boolean> result : results) {
+	    try {
+		if (!result.get().booleanValue())
+		    ++failures;
+	    }
+	    catch (ExecutionException ee) {
+		ErrorHandler.error(ee.getCause());
+		++failures;
+	    }
+	}
+    }
+    catch (InterruptedException ie) {
+	failures = runs.size();
+    }
+    finally {
+	pool.shutdownNow();
+	for (Report r : reports) {
+	    r.keepTemplates = false;
+	    if (r.getDataSource() instanceof Database)
+		((Database)r.getDataSource()).setReuseStatements(false);
+	}
+	if (numThreads > 1)
+	    closeCopies(reports);
+    }
+    return failures;
+}
+
+/**
+ * Runs <var>r</var> with the parameter values of <var>run</var>.
+ *
+ * @return <code>false</code> if the run failed
+ */
+protected boolean runOnce(Report r, Run run) throws Exception {
+    run.setParameters(r);
+    DataSource dataSource = r.getDataSource();
+    if (dataSource.alreadyUsedSourceFile())
+	dataSource.reuseSourceFile();
+    r.setLayoutEngine(outputFactory.createLayoutEngine(run));
+    return r.runRows(null);
+}
+
+/**
+ * Returns the report as XML.
+ */
+protected byte[] reportXML() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    XMLWriter out =
+	new XMLWriter(new OutputStreamWriter(bytes, Report.XML_JAVA_ENCODING));
+    report.writeXML(out);
+    out.close();
+    return bytes.toByteArray();
+}
+
+/**
+ * Returns a copy of the report that has the same parameter values and
+ * reads from the same data source.
+ */
+protected Report copyReport(ReportTemplate template) throws Exception {
+    DataSource dataSource = report.getDataSource();
+    Report copy;
+    if (dataSource instanceof Database) {
+	Database db = (Database)dataSource;
+	if (db.getPassword() != null && db.getConnectionInfo().length() > 0) {
+	    copy = new Report();
+	    copy.setDatabaseSchema(template.getDatabaseSchema());
+	    copy.setDatabasePassword(db.getPassword());
+	    copy.read(template.getCompiledReport());
+	}
+	else
+	    copy = template.createReport(db.getConnection());
+	((Database)copy.getDataSource()).setFetchSize(db.getFetchSize());
+    }
+    else
+	copy = template.createReport();
+
+    if (dataSource instanceof CharSepSource) {
+	CharSepSource src = (CharSepSource)copy.getDataSource();
+	src.setSepChar(((CharSepSource)dataSource).getSepChar());
+	if (dataSource.getSourceFile() != null)
+	    src.setSourceFile(dataSource.getSourceFile());
+    }
+
+    for (Parameter p : report.parameters()) {
+	Parameter copyParam = copy.findParameter(p.getId());
+	copyParam.removeValues();
+	for (Object value : p.values())
+	    copyParam.addValue(value);
+    }
+    copy.setPrefetchRows(report.getPrefetchRows());
+    copy.setSubreportBatchSize(report.getSubreportBatchSize());
+    return copy;
+}
+
+/**
+ * Closes the connections that copies of a database report opened.
+ */
+protected void closeCopies(List<Report> copies) {
+    if (!(report.getDataSource() instanceof Database))
+	return;
+    Connection conn = ((Database)report.getDataSource()).getConnection();
+    for (Report copy : copies) {
+	Connection copyConn =
+	    ((Database)copy.getDataSource()).getConnection();
+	if (copyConn != conn) {
+	    try {
+		copyConn.close();
+	    }
+	    catch (SQLException sqle) {
+		ErrorHandler.error(sqle);
+	    }
+	}
+    }
+}
+
+}
@@ -0,0 +1,254 @@
+package jimm.datavision;
+import jimm.datavision.layout.LayoutEngine;
+import jimm.datavision.source.DataCursor;
+import jimm.datavision.source.DataSource;
+import jimm.datavision.source.PrefetchCursor;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Bursts a report: runs its query once and, each time the value of a
+ * group (or of a group outside it) changes, closes the output and starts
+ * a new one. Each burst gets its own layout engine from an {@link
+ * OutputFactory} and is laid out as if it were a whole report over its
+ * rows, so it has its own report header and footer, page numbers, row
+ * numbers, and report totals.
+ * <p>
+ * The rows are read once, in order, and are not held in memory. Formula
+ * templates and compiled scripts are built for the first burst and kept
+ * for the rest. Summary queries are not used.
+ * <p>
+ * Used by {@link Report#runReport}; see {@link Report#setBurstGroup}.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class BurstRun {
+
+/** The output name placeholder that is replaced by the group's value. */
+public static final String VALUE_PLACEHOLDER = "{value}";
+
+/**
+ * Creates the layout engine for each burst.
+ */
+public interface OutputFactory {
+/**
+ * Returns a new layout engine for a burst. The report closes its output
+ * when the burst is done.
+ *
+ * @param values the values of the groups, outermost first, up to and
+ * including the burst group
+ * @param number the burst number, starting at 1
+ * @return a new layout engine
+ */
+LayoutEngine createLayoutEngine(List<Object> values, int number)
+    throws IOException;
+}
+
+/**
+ * Returns the rows of one burst.
+ */
+class BurstCursor extends DataCursor {
+List<Object> key;
+boolean done;
+BurstCursor(List<Object> key) { this.key = key; }
+protected List<Object> readRowData() {
+    if (done)
+	return null;
+    List<Object> row = nextBurstRow(key);
+    done = row == null;
+    return row;
+}
+/** Skips the rows of this burst the report didn't read. */
+void skipRest() {
+    while (readRowData() != null)
+	;
+}
+}
+
+protected Report report;
+protected Group group;
+protected OutputFactory outputFactory;
+/** The data source columns of the key groups. */
+protected int[] keyColumns;
+protected int numColumns;
+protected DataCursor cursor;
+/** The first row of the next burst, already read. */
+protected List<Object> heldRow;
+protected List<Object> heldKey;
+
+/**
+ * Returns the output name of a burst. "{#}" in <var>template</var> is
+ * replaced by the burst number, "{value}" by the value of the burst group,
+ * and the name of each group's column (for example "{office.name}") by
+ * that group's value. Characters that can't be part of a file name are
+ * replaced by underscores.
+ *
+ * @param template an output name template
+ * @param report the report
+ * @param values the values handed to {@link
+ * OutputFactory#createLayoutEngine}
+ * @param number the burst number
+ * @return an output name
+ */
+public static String outputName(String template, Report report,
+				List<Object> values, int number)
+{
+    String name = template.replace("{#}", String.valueOf(number));
+    if (!values.isEmpty())
+	name = name.replace(VALUE_PLACEHOLDER,
+			    valueString(values.get(values.size() - 1)));
+    int i = 0;
+    for (Group g : report.groups()) {
+	if (i == values.size())
+	    break;
+	name = name.replace("{" + g.getSelectableName() + "}",
+			    valueString(values.get(i++)));
+    }
+    return name;
+}
+
+/**
+ * Returns the part of an output name that tells the bursts of
+ * <var>group</var> apart: the names of the groups outside it in braces
+ * followed by "{value}", separated by underscores. An inner group's
+ * value alone may repeat under each outer value.
+ *
+ * @param report the report
+ * @param group the burst group
+ * @return an output name placeholder
+ * @see #outputName
+ */
+public static String placeholder(Report report, Group group) {
+    StringBuilder buf = new StringBuilder();
+    for (Group g : report.groups()) {
+	if (g == group)
+	    break;
+	buf.append('{').append(g.getSelectableName()).append("}_");
+    }
+    return buf.append(VALUE_PLACEHOLDER).toString();
+}
+
+protected static String valueString(Object value) {
+    return BatchRun.fileNameSafe(String.valueOf(value));
+}
+
+/**
+ * Constructor.
+ *
+ * @param report the report to run
+ * @param group the group whose values start new bursts
+ * @param factory creates the layout engine for each burst
+ */
+public BurstRun(Report report, Group group, OutputFactory factory) {
+    this.report = report;
+    this.group = group;
+    outputFactory = factory;
+}
+
+/**
+ * Runs the report. Nothing is output if there are no rows.
+ *
+ * @return <code>false</code> if a burst was cancelled or failed
+ */
+public boolean run() {
+    boolean keepTemplates = report.keepTemplates;
+    boolean summaryQueries = report.summaryQueries;
+    boolean ok = true;
+    try {
+	++report.runGeneration;
+	report.keepTemplates = true;
+	// Every burst reads rows from the same query, so it can't summarize.
+	report.summaryQueries = false;
+	cursor = PrefetchCursor.wrap(report.openDataCursor(),
+				     report.getPrefetchRows());
+
+	// The query knows which columns it selects once it has been opened
+	DataSource dataSource = report.getDataSource();
+	ArrayList<Integer> columns = new ArrayList<Integer>();
+	for (Group g : report.groups()) {
+	    int index = dataSource.indexOfSelectable(g.getSelectable());
+	    columns.add(new Integer(index + 1));
+	    if (g == group)
+		break;
+	}
+	keyColumns = new int[columns.size()];
+	for (int i = 0; i < keyColumns.length; ++i)
+	    keyColumns[i] = columns.get(i).intValue();
+	numColumns = dataSource.getQuery().getNumSelectables();
+
+	int number = 0;
+	while (ok && readHeldRow()) {
+	    BurstCursor burst = new BurstCursor(heldKey);
+	    report.setLayoutEngine(outputFactory
+				   .createLayoutEngine(heldKey, ++number));
+	    ok = report.runRows(burst);
+	    burst.skipRest();
+	}
+    }
+    catch (SQLException sqle) {
+	ok = false;
+	ErrorHandler.error(report.getDataSource().getQuery().toString(), sqle);
+    }
+    catch (Exception e) {
+	ok = false;
+	ErrorHandler.error(e);
+    }
+    finally {
+	report.keepTemplates = keepTemplates;
+	report.summaryQueries = summaryQueries;
+	if (cursor != null) cursor.close();
+	cursor = null;
+	heldRow = heldKey = null;
+    }
+    return ok;
+}
+
+/**
+ * Makes sure the first row of the next burst has been read. Returns
+ * <code>false</code> if there are no more rows.
+ */
+protected boolean readHeldRow() {
+    if (heldRow != null)
+	return true;
+    if (!cursor.next())
+	return false;
+    heldRow = currentRow();
+    heldKey = currentKey();
+    return true;
+}
+
+/**
+ * Returns the next row of the burst whose key is <var>key</var>, or
+ * <code>null</code> if the next row starts a new burst or there are no
+ * more rows.
+ */
+protected List<Object> nextBurstRow(List<Object> key) {
+    if (!readHeldRow() || !heldKey.equals(key))
+	return null;
+    List<Object> row = heldRow;
+    heldRow = heldKey = null;
+    return row;
+}
+
+/**
+ * Returns a copy of the cursor's current row.
+ */
+protected List<Object> currentRow() {
+    ArrayList<Object> row = new ArrayList<Object>(numColumns);
+    for (int i = 1; i <= numColumns; ++i)
+	row.add(cursor.getObject(i));
+    return row;
+}
+
+/**
+ * Returns the values of the key groups in the cursor's current row.
+ */
+protected List<Object> currentKey() {
+    ArrayList<Object> key = new ArrayList<Object>(keyColumns.length);
+    for (int column : keyColumns)
+	key.add(cursor.getObject(column));
+    return key;
+}
+
+}
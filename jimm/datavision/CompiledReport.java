@@ -0,0 +1,504 @@
+package jimm.datavision;
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Stack;
+import jimm.util.I18N;
+import javax.xml.parsers.SAXParserFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * A compiled report is a report's XML in a binary form that can be read
+ * without an XML parser. The XML is parsed once, when the report is
+ * compiled; the elements, attributes, and text the parser found are
+ * stored as a list of events, with every distinct string stored only
+ * once. Reading a compiled report (see {@link Report#read(CompiledReport)})
+ * hands the same events to a {@link ReportReader}, so the report that is
+ * built is the same as one read from the XML.
+ * <p>
+ * Formulas from reports older than formula ids (DTD version 0.2) are
+ * converted when the report is compiled: each is given its id and the
+ * formula, parameter, and user column names in its text are replaced by
+ * "{@id}", "{?id}", and "{!id}". Reading a compiled report never has to
+ * convert them. Columns are still looked up in the report's data source
+ * when it is read, because they come from the database connection.
+ * <p>
+ * A compiled report may be written to a file with {@link #write} and read
+ * back with {@link #read(InputStream)}. It remembers the SHA-1 hash of the
+ * XML it was compiled from; see {@link #getHash}.
+ * <p>
+ * Compiled reports never change, so they may be shared by threads.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ * @see ReportTemplate
+ */
+public class CompiledReport {
+
+static final int MAGIC = 0x44565243; // "DVRC"
+static final int VERSION = 1;
+
+// Event codes
+static final int START = 0;
+static final int END = 1;
+static final int TEXT = 2;
+
+protected String hash;
+protected String[] strings;
+/**
+ * The events. A start element is <code>START</code>, the name's index,
+ * the number of attributes, and each attribute's name and value indices.
+ * An end element is <code>END</code> and the name's index. Text is
+ * <code>TEXT</code> and the text's index.
+ */
+protected int[] events;
+
+/** Records parser events. */
+static class Recorder extends DefaultHandler {
+HashMap<String, Integer> stringIndices = new HashMap<String, Integer>();
+ArrayList<String> strings = new ArrayList<String>();
+int[] events = new int[1024];
+int numEvents;
+StringBuilder text = new StringBuilder();
+
+public void startElement(String namespaceURI, String localName,
+			 String qName, Attributes attributes)
+{
+    // Text before a start tag is thrown away by the report reader, so
+    // we don't keep it.
+    text.setLength(0);
+    add(START);
+    add(index(localName == null || localName.length() == 0
+	      ? qName : localName));
+    add(attributes.getLength());
+    for (int i = 0; i < attributes.getLength(); ++i) {
+	add(index(attributes.getQName(i)));
+	add(index(attributes.getValue(i)));
+    }
+}
+
+public void endElement(String namespaceURI, String localName,
+		       String qName)
+{
+    if (text.length() > 0) {
+	add(TEXT);
+	add(index(text.toString()));
+	text.setLength(0);
+    }
+    add(END);
+    add(index(localName == null || localName.length() == 0
+	      ? qName : localName));
+}
+
+public void characters(char ch[], int start, int length) {
+    text.append(ch, start, length);
+}
+
+void add(int i) {
+    if (numEvents == events.length) {
+	int[] bigger = new int[events.length * 2];
+	System.arraycopy(events, 0, bigger, 0, numEvents);
+	events = bigger;
+    }
+    events[numEvents++] = i;
+}
+
+int index(String str) {
+    Integer i = stringIndices.get(str);
+    if (i == null) {
+	i = new Integer(strings.size());
+	stringIndices.put(str, i);
+	strings.add(str);
+    }
+    return i.intValue();
+}
+
+/**
+ * Gives formulas without ids their ids and converts their text, the way
+ * {@link ReportReader} does for old reports. Each report and subreport is
+ * a separate scope, represented by a scratch {@link Report} that only
+ * holds formulas, parameters, and user columns.
+ */
+void convertFormulas() throws SAXException {
+    if (!hasFormulaWithoutId())
+	return;
+
+    // Find every formula's id and the names in each scope.
+    HashMap<Integer, Formula> newFormulas = new HashMap<Integer, Formula>();
+    HashMap<String, Formula> newFormulasByName =
+	new HashMap<String, Formula>();
+    Stack<String> tags = new Stack<String>();
+    Stack<Report> scopes = new Stack<Report>();
+    double dtdVersion = ReportReader.DEFAULT_DTD_VERSION;
+    int i = 0;
+    while (i < numEvents) {
+	int pos = i;
+	switch (events[i++]) {
+	case START:
+	    String name = strings.get(events[i++]);
+	    int numAttributes = events[i++];
+	    HashMap<String, String> attrs = new HashMap<String, String>();
+	    for (int j = 0; j < numAttributes; ++j, i += 2)
+		attrs.put(strings.get(events[i]), strings.get(events[i + 1]));
+	    String parentTag = tags.empty() ? null : tags.peek();
+	    tags.push(name);
+
+	    if ("report".equals(name) && scopes.empty()) {
+		if (attrs.get("dtd-version") != null)
+		    dtdVersion = Double.parseDouble(attrs.get("dtd-version"));
+		scopes.push(new Report());
+	    }
+	    else if ("subreport".equals(name))
+		scopes.push(new Report());
+	    else if (scopes.empty())
+		break;
+	    else if ("parameter".equals(name))
+		scopes.peek().addParameter(
+		    new Parameter(new Long(attrs.get("id")), scopes.peek(),
+				  attrs.get("type"), attrs.get("name"),
+				  attrs.get("question"), attrs.get("arity")));
+	    else if ("usercol".equals(name))
+		scopes.peek().addUserColumn(
+		    new UserColumn(new Long(attrs.get("id")), scopes.peek(),
+				   attrs.get("name"), null));
+	    else if ("formula".equals(name)) {
+		String idString = attrs.get("id");
+		if (idString == null
+		    && dtdVersion >= ReportReader.DTD_VERSION_FORMULA_IDS)
+		    throw new SAXException(I18N.get("ReportReader.the_formula")
+					   + ' ' + attrs.get("name") + ' '
+					   + I18N.get("ReportReader.formula_missing_id_err"));
+		Formula f = new Formula(idString == null ? null
+					: new Long(idString),
+					scopes.peek(), attrs.get("name"), null);
+		if ("formulas".equals(parentTag))
+		    scopes.peek().addFormula(f);
+		if (idString == null) {
+		    newFormulas.put(new Integer(pos), f);
+		    newFormulasByName.put(f.getName(), f);
+		}
+	    }
+	    break;
+	case END:
+	    if ("subreport".equals(strings.get(events[i++])))
+		scopes.pop();
+	    tags.pop();
+	    break;
+	case TEXT:
+	    ++i;
+	    break;
+	}
+    }
+
+    // Copy the events and strings, adding the new ids and converting the
+    // text of the formulas that get them. Formula fields refer to those
+    // formulas by name, so they get the ids too. Strings only the old text
+    // used are left behind.
+    int[] oldEvents = events;
+    int numOldEvents = numEvents;
+    ArrayList<String> oldStrings = strings;
+    events = new int[numOldEvents + newFormulas.size() * 2];
+    numEvents = 0;
+    strings = new ArrayList<String>();
+    stringIndices.clear();
+    Formula converting = null;
+    i = 0;
+    while (i < numOldEvents) {
+	Formula f = newFormulas.get(new Integer(i));
+	int event = oldEvents[i++];
+	add(event);
+	switch (event) {
+	case START:
+	    String name = oldStrings.get(oldEvents[i++]);
+	    add(index(name));
+	    int numAttributes = oldEvents[i++];
+	    add(f == null ? numAttributes : numAttributes + 1);
+	    boolean formulaField = "field".equals(name)
+		&& hasAttribute(oldStrings, oldEvents, i, numAttributes,
+				"type", "formula");
+	    for (int j = 0; j < numAttributes; ++j) {
+		String attrName = oldStrings.get(oldEvents[i++]);
+		String value = oldStrings.get(oldEvents[i++]);
+		if (formulaField && "value".equals(attrName)
+		    && newFormulasByName.get(value) != null)
+		    value = newFormulasByName.get(value).getId().toString();
+		add(index(attrName));
+		add(index(value));
+	    }
+	    if (f != null) {
+		add(index("id"));
+		add(index(f.getId().toString()));
+	    }
+	    converting = f;
+	    break;
+	case END:
+	    add(index(oldStrings.get(oldEvents[i++])));
+	    converting = null;
+	    break;
+	case TEXT:
+	    String text = oldStrings.get(oldEvents[i++]);
+	    if (converting != null) {
+		try {
+		    text = Expression.displayToExpression(converting.report,
+							  text);
+		}
+		catch (IllegalArgumentException iae) {
+		    throw new SAXException(I18N.get("ReportReader.the_formula")
+					   + ' ' + converting.getName() + ' '
+					   + I18N.get("ReportReader.formula_unknown_name"));
+		}
+	    }
+	    add(index(text));
+	    break;
+	}
+    }
+}
+
+static boolean hasAttribute(ArrayList<String> strings, int[] events,
+			    int start, int numAttributes, String name,
+			    String value)
+{
+    for (int j = 0; j < numAttributes; ++j, start += 2)
+	if (name.equals(strings.get(events[start]))
+	    && value.equals(strings.get(events[start + 1])))
+	    return true;
+    return false;
+}
+
+boolean hasFormulaWithoutId() {
+    int formula = strings.indexOf("formula");
+    int id = strings.indexOf("id");
+    int i = 0;
+    while (i < numEvents) {
+	switch (events[i++]) {
+	case START:
+	    boolean isFormula = events[i++] == formula;
+	    int numAttributes = events[i++];
+	    boolean hasId = false;
+	    for (int j = 0; j < numAttributes; ++j, i += 2)
+		if (events[i] == id)
+		    hasId = true;
+	    if (isFormula && !hasId)
+		return true;
+	    break;
+	default:
+	    ++i;
+	    break;
+	}
+    }
+    return false;
+}
+}
+
+/**
+ * Compiles report XML.
+ *
+ * @param xml the report XML
+ * @return a compiled report
+ */
+public static CompiledReport compile(byte[] xml) throws Exception {
+    return compile(xml, null);
+}
+
+/**
+ * Compiles report XML.
+ *
+ * @param xml the report XML
+ * @param systemId the URI used to find files named by the XML (for
+ * example, a DTD) relative to it; may be <code>null</code>
+ * @return a compiled report
+ */
+public static CompiledReport compile(byte[] xml, String systemId)
+    throws Exception
+{
+    InputSource in = new InputSource(new ByteArrayInputStream(xml));
+    if (systemId != null)
+	in.setSystemId(systemId);
+    Recorder recorder = new Recorder();
+    SAXParserFactory.newInstance().newSAXParser().parse(in, recorder);
+    recorder.convertFormulas();
+
+    CompiledReport compiled = new CompiledReport();
+    compiled.hash = hash(xml);
+    compiled.strings =
+	recorder.strings.toArray(new String[recorder.strings.size()]);
+    compiled.events = new int[recorder.numEvents];
+    System.arraycopy(recorder.events, 0, compiled.events, 0,
+		     recorder.numEvents);
+    return compiled;
+}
+
+/**
+ * Compiles a report XML file.
+ *
+ * @param f a report XML file
+ * @return a compiled report
+ */
+public static CompiledReport compile(File f) throws Exception {
+    return compile(readBytes(new FileInputStream(f)), f.toURI().toString());
+}
+
+/**
+ * Reads a compiled report written by {@link #write}.
+ *
+ * @param in an input stream; it is not closed
+ * @return a compiled report
+ * @throws IOException if the stream doesn't hold a compiled report
+ */
+public static CompiledReport read(InputStream in) throws IOException {
+    DataInputStream data =
+	new DataInputStream(new BufferedInputStream(in));
+    if (data.readInt() != MAGIC)
+	throw new IOException("not a compiled report");
+    if (data.readInt() != VERSION)
+	throw new IOException("unknown compiled report version");
+
+    CompiledReport compiled = new CompiledReport();
+    compiled.hash = data.readUTF();
+    compiled.strings = new String[readInt(data)];
+    for (int i = 0; i < compiled.strings.length; ++i) {
+	byte[] bytes = new byte[readInt(data)];
+	data.readFully(bytes);
+	compiled.strings[i] = new String(bytes, "UTF-8");
+    }
+    compiled.events = new int[readInt(data)];
+    for (int i = 0; i < compiled.events.length; ++i)
+	compiled.events[i] = readInt(data);
+    return compiled;
+}
+
+/**
+ * Reads a non-negative number written by {@link #writeInt}.
+ */
+static int readInt(DataInputStream data) throws IOException {
+    int val = 0;
+    for (int shift = 0; ; shift += 7) {
+	int b = data.readUnsignedByte();
+	val |= (b & 0x7f) << shift;
+	if ((b & 0x80) == 0)
+	    return val;
+    }
+}
+
+/**
+ * Writes a non-negative number using seven bits of each byte, so small
+ * numbers (like most string indices) take only one byte.
+ */
+static void writeInt(DataOutputStream data, int val) throws IOException {
+    while (val >= 0x80) {
+	data.writeByte((val & 0x7f) | 0x80);
+	val >>>= 7;
+    }
+    data.writeByte(val);
+}
+
+/**
+ * Returns the SHA-1 hash of <var>xml</var> as a hex string.
+ *
+ * @param xml report XML
+ * @return a hash string
+ */
+public static String hash(byte[] xml) {
+    try {
+	byte[] digest = MessageDigest.getInstance("SHA-1").digest(xml);
+	StringBuilder buf = new StringBuilder();
+	for (byte b : digest) {
+	    buf.append(Character.forDigit((b >> 4) & 0xf, 16));
+	    buf.append(Character.forDigit(b & 0xf, 16));
+	}
+	return buf.toString();
+    }
+    catch (NoSuchAlgorithmException nsae) { // Every JVM has SHA-1
+	throw new RuntimeException(nsae);
+    }
+}
+
+/**
+ * Reads all of an input stream and closes it.
+ */
+static byte[] readBytes(InputStream in) throws IOException {
+    try {
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	byte[] buf = new byte[8192];
+	int len;
+	while ((len = in.read(buf)) > 0)
+	    bytes.write(buf, 0, len);
+	return bytes.toByteArray();
+    }
+    finally {
+	in.close();
+    }
+}
+
+protected CompiledReport() {}
+
+/**
+ * Returns the SHA-1 hash of the XML this report was compiled from.
+ *
+ * @return a hex string
+ */
+public String getHash() { return hash; }
+
+/**
+ * Writes this compiled report.
+ *
+ * @param out an output stream; it is flushed but not closed
+ */
+public void write(OutputStream out) throws IOException {
+    DataOutputStream data =
+	new DataOutputStream(new BufferedOutputStream(out));
+    data.writeInt(MAGIC);
+    data.writeInt(VERSION);
+    data.writeUTF(hash);
+    writeInt(data, strings.length);
+    for (String str : strings) {
+	byte[] bytes = str.getBytes("UTF-8");
+	writeInt(data, bytes.length);
+	data.write(bytes);
+    }
+    writeInt(data, events.length);
+    for (int event : events)
+	writeInt(data, event);
+    data.flush();
+}
+
+/**
+ * Hands the events to <var>handler</var> as if the XML were being parsed.
+ *
+ * @param handler a content handler, usually a {@link ReportReader}
+ */
+void replay(ContentHandler handler) throws SAXException {
+    AttributesImpl attributes = new AttributesImpl();
+    int i = 0;
+    while (i < events.length) {
+	switch (events[i++]) {
+	case START:
+	    String name = strings[events[i++]];
+	    int numAttributes = events[i++];
+	    attributes.clear();
+	    for (int j = 0; j < numAttributes; ++j) {
+		String attrName = strings[events[i++]];
+		attributes.addAttribute("", attrName, attrName, "CDATA",
+					strings[events[i++]]);
+	    }
+	    handler.startElement("", name, name, attributes);
+	    break;
+	case END:
+	    name = strings[events[i++]];
+	    handler.endElement("", name, name);
+	    break;
+	case TEXT:
+	    char[] text = strings[events[i++]].toCharArray();
+	    handler.characters(text, 0, text.length);
+	    break;
+	}
+    }
+}
+
+}
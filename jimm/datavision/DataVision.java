@@ -1,5 +1,6 @@
 package jimm.datavision;
 import jimm.datavision.source.charsep.CharSepSource;
+import jimm.datavision.source.sql.Database;
 import jimm.datavision.layout.*;
 import jimm.datavision.layout.swing.SwingLE;
 import jimm.datavision.layout.pdf.PDFLE;
@@ -10,6 +11,7 @@ import jimm.util.XMLWriter;
 import jimm.util.Getopts;
 import jimm.util.I18N;
 import java.io.*;
+import java.util.HashSet;
 import java.util.Locale;
 import java.util.prefs.Preferences;
 
@@ -34,6 +36,13 @@ String charSepFile;
 char sepChar;
 String reportDir;
 String outputDir;
+int fetchSize = -1;
+int prefetchRows;
+int subreportBatchSize;
+int subreportCacheSize = -1;
+String batchFile;
+int batchThreads = 1;
+String burstGroupName;
 
 /**
  * This main application method opens a design window for each report
@@ -45,7 +54,7 @@ String outputDir;
  */
 public static void main(String[] args) {
 
-  Getopts g = new Getopts("a:c:d:e:f:g:h:i:l:np:qr:s:wx:E:R:o:", args);
+  Getopts g = new Getopts("a:b:c:d:e:f:g:h:i:j:l:np:qr:s:wx:B:C:E:F:G:P:R:So:", args);
   if (g.error()) {		// Any bad command line argument?
 	  usage(null);		// If so, whine and exit
 	}
@@ -79,6 +88,7 @@ public static void main(String[] args) {
     }
 
     dv.paramXMLFile = g.option('r', null); // Parameter XML file name or null
+    dv.batchOptionsFromOptions(g);
     dv.reportDir = g.option('R', null); // Report Directory or null
     dv.outputDir = g.option('o', null); // Output Directory or null
 
@@ -142,6 +152,13 @@ void designReport(Getopts g, File reportXMLFile) throws FileNotFoundException {
 
     if (g.hasOption('q'))
 	report.setCaseSensitiveDatabaseNames(false);
+    if (g.hasOption('S'))
+	report.setSummaryQueries(false);
+
+    useFetchSize(report);
+    useSubreportCacheSize(report);
+    report.setPrefetchRows(prefetchRows);
+    report.setSubreportBatchSize(subreportBatchSize);
 }
 
 /**
@@ -194,11 +211,145 @@ void runReport(Getopts g, File reportXMLFile) throws Exception {
 
     if (g.hasOption('q'))
 	report.setCaseSensitiveDatabaseNames(false);
+    if (g.hasOption('S'))
+	report.setSummaryQueries(false);
+
+    useFetchSize(report);
+    useSubreportCacheSize(report);
+    report.setPrefetchRows(prefetchRows);
+    report.setSubreportBatchSize(subreportBatchSize);
+
+    if (batchFile != null) {
+	runBatch(g, reportXMLFile, report);
+	return;
+    }
+    if (burstGroupName != null) {
+	runBurst(g, reportXMLFile, report);
+	return;
+    }
 
     report.setLayoutEngine(createLayoutEngine(reportXMLFile, g));
     report.runReport();
 }
 
+/**
+ * Runs the report once for each row of the parameter table. Each run's
+ * output file name is made from the output file name given on the command
+ * line, which may contain "{#}" (the run number) and "{<i>param</i>}" (the
+ * value of a parameter). If the name contains neither, the run number is
+ * added before the extension.
+ *
+ * @see BatchRun#outputName
+ */
+void runBatch(final Getopts g, final File reportXMLFile, Report report)
+    throws Exception
+{
+    final BatchRun batch = new BatchRun(report, batchThreads);
+    batch.readParameters(new File(batchFile));
+
+    final String template = outputNameTemplate(reportXMLFile, "{#}");
+
+    batch.setOutputFactory(new BatchRun.OutputFactory() {
+	public LayoutEngine createLayoutEngine(BatchRun.Run run)
+	    throws IOException
+	{
+	    return DataVision.this.createLayoutEngine(reportXMLFile, g,
+					batch.outputName(template, run));
+	}
+	});
+    batch.run();
+}
+
+/**
+ * Bursts the report, writing each value of the burst group to its own
+ * file. Each file name is made from the output file name given on the
+ * command line, which may contain "{value}" (the group's value), the
+ * group's column name in braces, and "{#}" (the burst number). If the
+ * name contains none of these, the values of the burst group and of the
+ * groups outside it are added before the extension. A name that would be
+ * used a second time, for example because a group's column has the same
+ * value in two bursts, gets the burst number as well.
+ *
+ * @see BurstRun#outputName
+ */
+void runBurst(final Getopts g, final File reportXMLFile, final Report report)
+    throws Exception
+{
+    Group burstGroup = null;
+    for (Group group : report.groups())
+	if (burstGroupName.equals(group.getSelectableName()))
+	    burstGroup = group;
+    if (burstGroup == null) {
+	ErrorHandler.error(I18N.get("DataVision.burst_group") + ' '
+			   + burstGroupName);
+	return;
+    }
+
+    final String template =
+	outputNameTemplate(reportXMLFile,
+			   BurstRun.placeholder(report, burstGroup));
+    final String numberedTemplate = beforeExtension(template, "_{#}");
+    final HashSet<String> names = new HashSet<String>();
+    report.setBurstGroup(burstGroup, new BurstRun.OutputFactory() {
+	public LayoutEngine createLayoutEngine(java.util.List<Object> values,
+					       int number)
+	    throws IOException
+	{
+	    String name = BurstRun.outputName(template, report, values, number);
+	    if (!names.add(name))
+		name = BurstRun.outputName(numberedTemplate, report, values,
+					   number);
+	    return DataVision.this.createLayoutEngine(reportXMLFile, g, name);
+	}
+	});
+    report.runReport();
+}
+
+/**
+ * Returns the output file name given on the command line or, if there
+ * isn't one, the report file name without its extension. If the name
+ * contains no "{", <var>placeholder</var> is added before the extension.
+ */
+String outputNameTemplate(File reportXMLFile, String placeholder) {
+    String name = layoutEngineFileName;
+    if (name == null) {
+	name = reportXMLFile.getName();
+	int pos = name.lastIndexOf('.');
+	name = pos == -1 ? name : name.substring(0, pos);
+    }
+    if (name.indexOf('{') == -1)
+	name = beforeExtension(name, "_" + placeholder);
+    return name;
+}
+
+/**
+ * Returns <var>name</var> with <var>str</var> added before its extension,
+ * or at the end if it has none.
+ */
+static String beforeExtension(String name, String str) {
+    int pos = name.lastIndexOf('.');
+    return pos == -1 ? name + str
+	: name.substring(0, pos) + str + name.substring(pos);
+}
+
+/**
+ * If a fetch size was given on the command line, hands it to the report's
+ * database. Must come after the report is read.
+ */
+void useFetchSize(Report report) {
+    if (fetchSize >= 0 && report.getDataSource() instanceof Database)
+	((Database)report.getDataSource()).setFetchSize(fetchSize);
+}
+
+/**
+ * If a subreport cache size was given on the command line, hands it to
+ * each of the report's subreports. Must come after the report is read.
+ */
+void useSubreportCacheSize(Report report) {
+    if (subreportCacheSize >= 0)
+	for (Subreport sub : report.subreports())
+	    sub.setCacheSize(subreportCacheSize);
+}
 
 boolean hasLayoutEngine() { return layoutEngineChoice != '\0'; }
 char getLayoutEngineChoice() { return layoutEngineChoice; }
@@ -256,6 +407,17 @@ void layoutEngineChoiceFromOptions(Getopts g) {
 }
 
 LayoutEngine createLayoutEngine(File f, Getopts g) throws IOException
+{
+    return createLayoutEngine(f, g, layoutEngineFileName);
+}
+
+/**
+ * Creates the chosen layout engine, writing to <var>layoutEngineFileName</var>
+ * or, if it is <code>null</code>, to a file named after <var>f</var>.
+ */
+LayoutEngine createLayoutEngine(File f, Getopts g,
+				String layoutEngineFileName)
+    throws IOException
 {
     LayoutEngine le = null;
 
@@ -407,6 +569,70 @@ protected void dataSourceFromOptions(Getopts g) {
 	charSepFile = g.option('e');
 	sepChar = g.option('a', DEFAULT_CHARACTER_SEPARATOR).charAt(0);
     }
+
+    if (g.hasOption('F')) {
+	try {
+	    fetchSize = Integer.parseInt(g.option('F').trim());
+	}
+	catch (NumberFormatException nfe) {
+	    usage(I18N.get("DataVision.fetch_size"));
+	}
+	if (fetchSize < 0)
+	    usage(I18N.get("DataVision.fetch_size"));
+    }
+
+    if (g.hasOption('P')) {
+	try {
+	    prefetchRows = Integer.parseInt(g.option('P').trim());
+	}
+	catch (NumberFormatException nfe) {
+	    usage(I18N.get("DataVision.prefetch_rows"));
+	}
+    }
+
+    if (g.hasOption('B')) {
+	try {
+	    subreportBatchSize = Integer.parseInt(g.option('B').trim());
+	}
+	catch (NumberFormatException nfe) {
+	    usage(I18N.get("DataVision.subreport_batch"));
+	}
+    }
+
+    if (g.hasOption('C')) {
+	try {
+	    subreportCacheSize = Integer.parseInt(g.option('C').trim());
+	}
+	catch (NumberFormatException nfe) {
+	    usage(I18N.get("DataVision.subreport_cache"));
+	}
+	if (subreportCacheSize < 0)
+	    usage(I18N.get("DataVision.subreport_cache"));
+    }
+}
+
+/**
+ * Use the options related to batch runs and bursting.
+ */
+protected void batchOptionsFromOptions(Getopts g) {
+    batchFile = g.option('b', null);
+    if (batchFile != null && (!hasLayoutEngine() || usesGUI()))
+	usage(I18N.get("DataVision.batch_le"));
+
+    burstGroupName = g.option('G', null);
+    if (burstGroupName != null && (!hasLayoutEngine() || usesGUI()))
+	usage(I18N.get("DataVision.burst_le"));
+    if (burstGroupName != null && batchFile != null)
+	usage(I18N.get("DataVision.burst_batch"));
+
+    if (g.hasOption('j')) {
+	try {
+	    batchThreads = Integer.parseInt(g.option('j').trim());
+	}
+	catch (NumberFormatException nfe) {
+	    usage(I18N.get("DataVision.batch_threads"));
+	}
+    }
 }
 
 public String toString() {
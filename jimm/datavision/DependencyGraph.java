@@ -0,0 +1,100 @@
+package jimm.datavision;
+import java.util.*;
+
+/**
+ * A dependency graph knows which columns and user columns each formula's
+ * value depends upon, either directly or through the other formulas it
+ * uses. It is built when a report starts running so that, for each row, only
+ * those formulas whose inputs have changed need to be re-evaluated.
+ * Formulas that only use constants, parameters, and unchanging special
+ * values are evaluated once per run. Formulas that only use group columns
+ * are evaluated once per group.
+ * <p>
+ * Only formulas that are evaluated as {@link
+ * jimm.datavision.expr.NativeExpression}s are given inputs. Any other
+ * script may have side effects (for example, keeping a running total in a
+ * variable) or may use anything at all in the report, so it is re-evaluated
+ * for every row just like before. So is any formula that uses the row
+ * number, page number, group count, or report date, and any formula that
+ * uses one of those formulas.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class DependencyGraph {
+
+/** Maps formulas to their inputs; a <code>null</code> value means "always
+    re-evaluate". */
+protected HashMap<Formula, Set<Selectable>> inputs;
+protected HashSet<Formula> visiting;
+
+/**
+ * Constructor. Builds the graph for all of the given formulas.
+ *
+ * @param formulas a collection of formulas
+ */
+public DependencyGraph(Collection<Formula> formulas) {
+    inputs = new HashMap<Formula, Set<Selectable>>();
+    visiting = new HashSet<Formula>();
+    for (Formula f : formulas)
+	inputsOf(f);
+}
+
+/**
+ * Returns the columns and user columns whose values the formula
+ * <var>f</var> depends upon, or <code>null</code> if its value may change
+ * even when none of them does.
+ *
+ * @param f a formula
+ * @return a possibly empty set of selectables; may be <code>null</code>
+ */
+public Set<Selectable> inputsOf(Formula f) {
+    if (inputs.containsKey(f))
+	return inputs.get(f);
+    if (!visiting.add(f))	// Circular reference
+	return null;
+
+    Set<Selectable> set = null;
+    FormulaTemplate template = f.getTemplate();
+    if (f.isNative() && !template.usesChangingSpecialValues()) {
+	set = new LinkedHashSet<Selectable>(template.selectablesUsed());
+	for (Formula used : template.formulasUsed()) {
+	    Set<Selectable> usedInputs = inputsOf(used);
+	    if (usedInputs == null) {
+		set = null;
+		break;
+	    }
+	    set.addAll(usedInputs);
+	}
+    }
+
+    visiting.remove(f);
+    inputs.put(f, set);
+    return set;
+}
+
+/**
+ * Tells each formula in <var>formulas</var> what its inputs are.
+ *
+ * @param formulas a collection of formulas
+ * @see Formula#setInputs
+ */
+public void connect(Collection<Formula> formulas) {
+    for (Formula f : formulas) {
+	Set<Selectable> set = inputsOf(f);
+	f.setInputs(set == null ? null
+		    : set.toArray(new Selectable[set.size()]));
+    }
+}
+
+/**
+ * Tells each formula in <var>formulas</var> to forget its inputs, so it is
+ * always re-evaluated.
+ *
+ * @param formulas a collection of formulas
+ */
+public static void disconnect(Collection<Formula> formulas) {
+    for (Formula f : formulas)
+	f.setInputs(null);
+}
+
+}
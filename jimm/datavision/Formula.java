@@ -1,11 +1,11 @@
 package jimm.datavision;
 import jimm.datavision.field.Field;
 import jimm.datavision.field.SpecialField;
-import jimm.datavision.source.Column;
-import jimm.util.StringUtils;
+import jimm.datavision.expr.NativeExpression;
+import jimm.datavision.expr.UnsupportedExpressionException;
 import jimm.util.XMLWriter;
-import jimm.util.Replacer;
 import jimm.util.I18N;
+import java.util.Observable;
 
 /**
  * A formula is a Bean Scripting Framework (BSF) script evaluated at runtime.
@@ -37,6 +37,16 @@ protected Object cachedEvalResult;
 protected boolean useCache;
 protected boolean shouldEvaluate;
 protected boolean showException;
+protected FormulaTemplate template;
+protected int templateGeneration;
+protected boolean compilable;
+protected NativeExpression nativeExpression;
+protected Object compiled;
+protected boolean compileAttempted;
+protected Selectable[] inputs;
+protected Object[] inputValues;
+/** Set by evaluate when the result depends only upon the inputs. */
+protected boolean pureResult;
 
 /**
  * Constructor.
@@ -96,9 +106,60 @@ public void useCache() { useCache = true; }
  */
 public void shouldEvaluate() { shouldEvaluate = true; }
 
+/**
+ * Tells this formula which columns and user columns its value depends upon,
+ * directly or through the formulas it uses. While a report is running, the
+ * report calls {@link #inputsChanged} to decide if a cached value is still
+ * good. If <var>newInputs</var> is <code>null</code>, the value may change
+ * at any time and the formula must always be re-evaluated.
+ *
+ * @param newInputs selectables; may be <code>null</code>
+ * @see DependencyGraph
+ */
+public void setInputs(Selectable[] newInputs) {
+    inputs = newInputs;
+    inputValues = null;
+}
+
+/**
+ * Returns <code>false</code> if the values of this formula's inputs are the
+ * same as they were the last time it was evaluated, meaning the cached value
+ * is still good. Only call this while the report is running.
+ *
+ * @return <code>true</code> if this formula should be re-evaluated
+ * @see #setInputs
+ */
+public boolean inputsChanged() {
+    if (inputs == null || inputValues == null)
+	return true;
+    for (int i = 0; i < inputs.length; ++i) {
+	Object val = report.columnValue(inputs[i]);
+	if (val == null ? inputValues[i] != null : !val.equals(inputValues[i]))
+	    return true;
+    }
+    return false;
+}
+
+/**
+ * Remembers the current values of this formula's inputs.
+ */
+protected void rememberInputValues() {
+    if (inputs == null)
+	return;
+    inputValues = new Object[inputs.length];
+    for (int i = 0; i < inputs.length; ++i)
+	inputValues[i] = report.columnValue(inputs[i]);
+}
+
 public void setExpression(String newExpression) {
     super.setExpression(newExpression);
     showException = true;
+    discardTemplate();
+}
+
+public void update(Observable o, Object arg) {
+    discardTemplate();
+    super.update(o, arg);
 }
 
 /**
@@ -140,8 +201,13 @@ public Object eval() {
  */
 public Object eval(Field formulaField) {
     if (!useCache || shouldEvaluate) {
+	pureResult = false;
 	cachedEvalResult = evaluate(formulaField);
 	shouldEvaluate = false;
+	if (pureResult)
+	    rememberInputValues();
+	else
+	    inputValues = null;
     }
     return cachedEvalResult;
 }
@@ -150,6 +216,11 @@ public Object eval(Field formulaField) {
  * Modifies the formula text so it is ready to evaluate, then gives it to the
  * report to evaluate and returns the result. {@link #eval} calls this method
  * and stores the return value into <var>cachedEvalResult</var>.
+ * <p>
+ * If this formula can be compiled (see {@link #prepareTemplate}), the
+ * current values of the things it refers to are passed to its native
+ * expression or compiled script instead. The text is only created and
+ * evaluated when some value can't be passed that way.
  *
  * @param formulaField the field that is using this formula, used to
  * evaluate any special fields in the formula; may be <code>null</code>
@@ -162,76 +233,38 @@ protected Object evaluate(final Field formulaField) {
     if (str == null || str.trim().length() == 0)
 	return null;
 
-    // Special values
-    str = StringUtils.replaceDelimited("#", "{%", "}", new Replacer() {
-	public Object replace(String str) {
-	    Object obj = SpecialField.value(formulaField, str, report);
-	    return obj == null ? "nil" : obj;
-	}},
-			   str);
-    if (str == null) return null;
-
-    // Formula values
-    str = StringUtils.replaceDelimited("#", "{@", "}", new Replacer() {
-	public Object replace(String str) {
-	    Formula f = report.findFormula(str);
-	    return f == null ? "nil" : f.eval(formulaField);
-	}},
-			   str);
-    if (str == null) return null;
-
-    // Parameter values
-    str = StringUtils.replaceDelimited("#", "{?", "}", new Replacer() {
-	public Object replace(String str) {
-	    Parameter p = report.findParameter(str);
-	    return p == null ? "nil" : p.getValue();
-	}},
-			   str);
-    if (str == null) return null;
-
-    // User column values
-    str = StringUtils.replaceDelimited("#", "{!", "}", new Replacer() {
-	public Object replace(String str) {
-	    UserColumn uc = report.findUserColumn(str);
-	    return uc == null ? "nil" : report.columnValue(uc);
-	}},
-			   str);
-    if (str == null) return null;
-
-    // Column values
-    str = StringUtils.replaceDelimited("#", "{", "}", new Replacer() {
-	public Object replace(String str) {
-	    Column col = report.findColumn(str);
-	    if (col == null)
-		return "{" + str + "}";
-
-	    Object val = null;
-	    switch (col.getType()) {
-	    case java.sql.Types.CHAR:
-	    case java.sql.Types.VARCHAR:
-	    case java.sql.Types.DATE:
-	    case java.sql.Types.TIME:
-	    case java.sql.Types.TIMESTAMP:
-		val = report.columnValue(col);
-		val = val == null ? "nil" : quoted(val);
-		break;
-	    default:
-		val = report.columnValue(col);
-		if (val == null)
-		    val = "nil";
-		break;
-	    }
-	    return val;
-	}},
-			   str);
-    if (str == null || str.trim().length() == 0) return null;
+    prepareTemplate();
+    Object[] values = template.values(formulaField);
+    if (values == null) {
+	pureResult = true;
+	return null;
+    }
+
+    Object[] args = compilable ? template.arguments(values) : null;
+    if (args != null && nativeExpression != null) {
+	try {
+	    Object result = nativeExpression.eval(args);
+	    pureResult = true;
+	    return result;
+	}
+	catch (UnsupportedExpressionException uee) {
+	    // Let the script engine handle it
+	}
+    }
 
     try {
+	if (args != null && compiledScript() != null)
+	    return report.getScripting().call(getLanguage(), compiled, args);
+
+	str = template.source(values);
+	if (str.trim().length() == 0) return null;
 	return report.eval(getLanguage(), str, getName());
     }
     catch (Exception e) {
 	if (showException) {
 	    showException = false;
+	    if (args != null)
+		str = template.source(values);
 	    // I don't pass e to error() so we avoid a stack trace, which
 	    // will be almost useless to the user or to me.
 	    ErrorHandler.error(I18N.get("Formula.script_error")
@@ -242,6 +275,87 @@ protected Object evaluate(final Field formulaField) {
     }
 }
 
+/**
+ * Builds the template for this formula's expression if we don't already
+ * have an up-to-date one. A template is rebuilt when the expression or
+ * language changes and each time the report is run.
+ * <p>
+ * If the scripting language allows compilation, we also try to turn the
+ * template into a {@link NativeExpression}, which DataVision evaluates
+ * itself. Formulas that aren't simple enough for that are compiled by the
+ * scripting language the first time they are needed.
+ */
+protected void prepareTemplate() {
+    if (template != null && templateGeneration == report.getRunGeneration())
+	return;
+
+    template = new FormulaTemplate(report, getExpression(), exceptAfter);
+    templateGeneration = report.getRunGeneration();
+    compilable = template.isCompilable()
+	&& report.getScripting().canCompile(getLanguage());
+    compiled = null;
+    compileAttempted = false;
+    nativeExpression = compilable
+	? NativeExpression.parse(template.compilableSource(),
+				 template.variableNames())
+	: null;
+}
+
+/**
+ * Returns this formula's template, building it if necessary.
+ *
+ * @return a template
+ */
+public FormulaTemplate getTemplate() {
+    prepareTemplate();
+    return template;
+}
+
+/**
+ * Returns <code>true</code> if this formula is simple enough to be
+ * evaluated as a {@link NativeExpression}. Such formulas have no side
+ * effects, so their values only change when the values they use change.
+ *
+ * @return <code>true</code> if this formula has a native expression
+ */
+public boolean isNative() {
+    prepareTemplate();
+    return nativeExpression != null;
+}
+
+/**
+ * Returns the compiled script, compiling it if we haven't tried to yet.
+ * If compilation fails, returns <code>null</code> and we quietly fall back
+ * to evaluating the text. Any error in the script will be reported when
+ * that text is evaluated.
+ *
+ * @return the compiled script or <code>null</code>
+ */
+protected Object compiledScript() {
+    if (!compileAttempted) {
+	compileAttempted = true;
+	try {
+	    compiled = report.getScripting()
+		.compile(getLanguage(), template.variableNames(),
+			 template.compilableSource(), getName());
+	}
+	catch (Exception e) {
+	    compiled = null;
+	}
+    }
+    return compiled;
+}
+
+/**
+ * Throws away this formula's template, native expression, and compiled
+ * script. They will be rebuilt the next time this formula is evaluated.
+ */
+public void discardTemplate() {
+    template = null;
+    nativeExpression = null;
+    compiled = null;
+}
+
 /**
  * Returns the scripting language this formula uses.
  *
@@ -257,6 +371,7 @@ public void setLanguage(String newLang) {
 
     if (!language.equals(newLang)) {
 	language = newLang;
+	discardTemplate();
 	setChanged();
 	notifyObservers();
     }
@@ -270,7 +385,7 @@ public void setLanguage(String newLang) {
  * @param obj any object
  * @return a double-quoted string representation of the object
  */
-protected String quoted(Object obj) {
+protected static String quoted(Object obj) {
     String val = obj.toString();
     StringBuilder buf = new StringBuilder("\"");
     int len = val.length();
@@ -0,0 +1,420 @@
+package jimm.datavision;
+import jimm.datavision.field.Field;
+import jimm.datavision.field.SpecialField;
+import jimm.datavision.source.Column;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * A formula template is an expression that has been broken up into literal
+ * text and references to columns, formulas, parameters, user columns, and
+ * special values. The expression is scanned and its references are looked
+ * up only once, when the template is created. After that, each row only
+ * requires fetching the current value of each reference.
+ * <p>
+ * A template can produce its evaluation string in two ways. {@link #source}
+ * returns the expression with every reference replaced by its value, exactly
+ * like the text substitution that formulas have always done.
+ * {@link #compilableSource} returns the expression with every reference
+ * replaced by a variable name. That text can be compiled once into a script
+ * function that takes the variables as arguments (see {@link
+ * Scripting#compile}); {@link #arguments} returns the values to pass it.
+ * <p>
+ * References inside Ruby string literals can't be turned into variables,
+ * because their values are pasted into the string's text. Templates that
+ * contain such references are not compilable.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class FormulaTemplate {
+
+/** Prefix of the variable names used by {@link #compilableSource}. */
+public static final String VARIABLE_PREFIX = "dv_ref_";
+
+protected static final int COLUMN = 0;
+protected static final int FORMULA = 1;
+protected static final int PARAMETER = 2;
+protected static final int USER_COLUMN = 3;
+protected static final int SPECIAL = 4;
+protected static final int NIL = 5;
+
+// ================================================================
+/**
+ * A reference to something whose value gets substituted into the
+ * expression.
+ */
+static class Reference {
+int type;
+String key;
+Object target;
+boolean quoted;
+int index;
+Reference(int type, String key, Object target) {
+    this.type = type;
+    this.key = key;
+    this.target = target;
+}
+}
+// ================================================================
+
+protected Report report;
+/** Literal strings and references, in order. */
+protected ArrayList<Object> parts;
+/** Distinct references; the position of each is its variable index. */
+protected ArrayList<Reference> references;
+protected boolean compilable;
+
+/**
+ * Constructor. Scans <var>expression</var> and looks up every reference
+ * within it.
+ *
+ * @param report the report containing the expression
+ * @param expression the expression string; may be <code>null</code>
+ * @param exceptAfter when looking for things inside "{}" braces, ignore
+ * braces immediately after this string; may be <code>null</code>
+ */
+public FormulaTemplate(Report report, String expression, String exceptAfter)
+{
+    this.report = report;
+    parts = new ArrayList<Object>();
+    references = new ArrayList<Reference>();
+    compilable = true;
+    if (expression != null)
+	parse(expression, exceptAfter);
+}
+
+/**
+ * Splits <var>str</var> into literal text and references. While doing so,
+ * keeps track of Ruby string literals and comments so we know which
+ * references are inside strings.
+ */
+protected void parse(String str, String exceptAfter) {
+    final int CODE = 0, SINGLE_QUOTED = 1, DOUBLE_QUOTED = 2, COMMENT = 3;
+    int state = CODE;
+    HashMap<String, Reference> seen = new HashMap<String, Reference>();
+    StringBuilder literal = new StringBuilder();
+    int len = str.length();
+
+    for (int i = 0; i < len; ++i) {
+	char c = str.charAt(i);
+	if (c == '{' && (exceptAfter == null
+			 || !str.startsWith(exceptAfter, i - exceptAfter.length())))
+	{
+	    int end = str.indexOf('}', i + 1);
+	    if (end == -1) {	// Didn't find end delimiter; stop right here
+		literal.append(str.substring(i));
+		break;
+	    }
+
+	    Reference ref = lookUp(str.substring(i + 1, end), seen);
+	    if (ref != null) {
+		if (literal.length() > 0) {
+		    parts.add(literal.toString());
+		    literal.setLength(0);
+		}
+		parts.add(ref);
+		if (state == SINGLE_QUOTED || state == DOUBLE_QUOTED)
+		    compilable = false;
+		i = end;
+		continue;
+	    }
+	    // Not a reference; fall through and keep the brace
+	}
+
+	literal.append(c);
+	switch (state) {
+	case CODE:
+	    if (c == '\'') state = SINGLE_QUOTED;
+	    else if (c == '"') state = DOUBLE_QUOTED;
+	    else if (c == '#') state = COMMENT;
+	    break;
+	case SINGLE_QUOTED:
+	case DOUBLE_QUOTED:
+	    if (c == '\\' && i + 1 < len)
+		literal.append(str.charAt(++i));
+	    else if ((c == '\'' && state == SINGLE_QUOTED)
+		     || (c == '"' && state == DOUBLE_QUOTED))
+		state = CODE;
+	    break;
+	case COMMENT:
+	    if (c == '\n') state = CODE;
+	    break;
+	}
+    }
+    if (literal.length() > 0)
+	parts.add(literal.toString());
+}
+
+/**
+ * Returns the reference described by the text between curly braces, or
+ * <code>null</code> if the text does not name a column, formula, parameter,
+ * user column, or special value. References that are seen more than once
+ * share the same variable.
+ */
+protected Reference lookUp(String str, Map<String, Reference> seen) {
+    Reference ref = seen.get(str);
+    if (ref != null)
+	return ref;
+
+    String id = str.length() > 0 ? str.substring(1) : str;
+    switch (str.length() > 0 ? str.charAt(0) : ' ') {
+    case '%':
+	ref = new Reference(SPECIAL, id, id);
+	break;
+    case '@':
+	ref = newReference(FORMULA, id, report.findFormula(id));
+	break;
+    case '?':
+	ref = newReference(PARAMETER, id, report.findParameter(id));
+	break;
+    case '!':
+	ref = newReference(USER_COLUMN, id, report.findUserColumn(id));
+	break;
+    default:
+	Column col = report.findColumn(str);
+	if (col == null)	// May be null if language uses braces
+	    return null;
+	ref = new Reference(COLUMN, str, col);
+	switch (col.getType()) {
+	case java.sql.Types.CHAR:
+	case java.sql.Types.VARCHAR:
+	case java.sql.Types.DATE:
+	case java.sql.Types.TIME:
+	case java.sql.Types.TIMESTAMP:
+	    ref.quoted = true;
+	    break;
+	}
+	break;
+    }
+
+    ref.index = references.size();
+    references.add(ref);
+    seen.put(str, ref);
+    return ref;
+}
+
+protected Reference newReference(int type, String key, Object target) {
+    return new Reference(target == null ? NIL : type, key, target);
+}
+
+/**
+ * Returns <code>true</code> if this template can be turned into a compiled
+ * script function; that is, if no reference appears inside a string literal.
+ *
+ * @return <code>true</code> if {@link #compilableSource} may be used
+ */
+public boolean isCompilable() { return compilable; }
+
+/**
+ * Returns the columns and user columns this template refers to.
+ *
+ * @return a possibly empty list of selectables
+ */
+public List<Selectable> selectablesUsed() {
+    ArrayList<Selectable> list = new ArrayList<Selectable>();
+    for (Reference ref : references)
+	if (ref.type == COLUMN || ref.type == USER_COLUMN)
+	    list.add((Selectable)ref.target);
+    return list;
+}
+
+/**
+ * Returns the column that each variable refers to, in variable order, or
+ * <code>null</code> if this template refers to anything other than columns.
+ * Data sources use this to find the values of a where clause's variables
+ * in their rows without asking the report.
+ *
+ * @return an array of columns or <code>null</code>
+ */
+public Column[] variableColumns() {
+    Column[] cols = new Column[references.size()];
+    for (Reference ref : references) {
+	if (ref.type != COLUMN)
+	    return null;
+	cols[ref.index] = (Column)ref.target;
+    }
+    return cols;
+}
+
+/**
+ * Returns the formulas this template refers to.
+ *
+ * @return a possibly empty list of formulas
+ */
+public List<Formula> formulasUsed() {
+    ArrayList<Formula> list = new ArrayList<Formula>();
+    for (Reference ref : references)
+	if (ref.type == FORMULA)
+	    list.add((Formula)ref.target);
+    return list;
+}
+
+/**
+ * Returns <code>true</code> if this template refers to a special value that
+ * can change while no column changes: the run date, the row number, the page
+ * number, or a group count. The report title, name, author, and description
+ * stay the same for the whole run.
+ *
+ * @return <code>true</code> if some special value may change from row to row
+ */
+public boolean usesChangingSpecialValues() {
+    for (Reference ref : references)
+	if (ref.type == SPECIAL
+	    && ("report.date".equals(ref.key) || "report.row".equals(ref.key)
+		|| "page.number".equals(ref.key)
+		|| "group.count".equals(ref.key)))
+	    return true;
+    return false;
+}
+
+/**
+ * Returns the names of the variables used by {@link #compilableSource}, in
+ * the order in which their values are returned by {@link #arguments}.
+ *
+ * @return a possibly empty list of variable names
+ */
+public List<String> variableNames() {
+    ArrayList<String> names = new ArrayList<String>();
+    for (Reference ref : references)
+	names.add(VARIABLE_PREFIX + ref.index);
+    return names;
+}
+
+/**
+ * Returns the expression with every reference replaced by a variable name.
+ *
+ * @return the expression text with variables instead of references
+ */
+public String compilableSource() {
+    StringBuilder buf = new StringBuilder();
+    for (Object part : parts) {
+	if (part instanceof Reference)
+	    buf.append(VARIABLE_PREFIX).append(((Reference)part).index);
+	else
+	    buf.append((String)part);
+    }
+    return buf.toString();
+}
+
+/**
+ * Returns the current value of each reference. If a formula, parameter, or
+ * user column has a <code>null</code> value, we return <code>null</code>.
+ * <code>null</code> column and special field values are returned as
+ * <code>null</code> elements of the array, meaning &quot;nil&quot;.
+ *
+ * @param formulaField the field that is using the formula, used to evaluate
+ * any special fields; may be <code>null</code>
+ * @return an array of values (one per variable), or <code>null</code>
+ */
+public Object[] values(Field formulaField) {
+    Object[] values = new Object[references.size()];
+    for (Reference ref : references) {
+	Object val = null;
+	switch (ref.type) {
+	case SPECIAL:
+	    val = SpecialField.value(formulaField, ref.key, report);
+	    break;
+	case FORMULA:
+	    if ((val = ((Formula)ref.target).eval(formulaField)) == null)
+		return null;
+	    break;
+	case PARAMETER:
+	    if ((val = ((Parameter)ref.target).getValue()) == null)
+		return null;
+	    break;
+	case USER_COLUMN:
+	    if ((val = report.columnValue((UserColumn)ref.target)) == null)
+		return null;
+	    break;
+	case COLUMN:
+	    val = report.columnValue((Column)ref.target);
+	    break;
+	case NIL:
+	    break;
+	}
+	values[ref.index] = val;
+    }
+    return values;
+}
+
+/**
+ * Returns the expression with every reference replaced by the text of its
+ * value. String and date column values are quoted; <code>null</code>
+ * values become &quot;nil&quot;.
+ *
+ * @param values the array returned by {@link #values}
+ * @return the evaluation string
+ */
+public String source(Object[] values) {
+    StringBuilder buf = new StringBuilder();
+    for (Object part : parts) {
+	if (part instanceof Reference) {
+	    Reference ref = (Reference)part;
+	    Object val = values[ref.index];
+	    if (val == null)
+		buf.append("nil");
+	    else if (ref.quoted)
+		buf.append(Formula.quoted(val));
+	    else
+		buf.append(val.toString());
+	}
+	else
+	    buf.append((String)part);
+    }
+    return buf.toString();
+}
+
+/**
+ * Returns the values to pass to the compiled version of this template, or
+ * <code>null</code> if some value can't be passed as an argument. That
+ * happens when the text substitution of a value is itself script code
+ * instead of a literal, for example a string parameter value that isn't
+ * inside quotes. In that case the caller must evaluate {@link #source}
+ * instead so the results stay the same.
+ *
+ * @param values the array returned by {@link #values}
+ * @return an array of arguments, or <code>null</code>
+ */
+public Object[] arguments(Object[] values) {
+    Object[] args = new Object[values.length];
+    for (Reference ref : references) {
+	Object val = values[ref.index];
+	if (val == null)
+	    continue;
+	if (ref.quoted)
+	    val = val.toString();
+	else if ((val = literalValue(val)) == null)
+	    return null;
+	args[ref.index] = val;
+    }
+    return args;
+}
+
+/**
+ * Returns the value that a script would see if the text of <var>val</var>
+ * was pasted into it, or <code>null</code> if that text isn't a number or
+ * boolean literal.
+ */
+protected Object literalValue(Object val) {
+    if (val instanceof Integer || val instanceof Long || val instanceof Double
+	|| val instanceof Short || val instanceof Byte || val instanceof Float
+	|| val instanceof Boolean)
+	return val;
+
+    if (val instanceof BigDecimal || val instanceof BigInteger) {
+	String str = val.toString();
+	try {
+	    if (str.indexOf('.') >= 0 || str.indexOf('E') >= 0)
+		return Double.valueOf(str);
+	    return Long.valueOf(str);
+	}
+	catch (NumberFormatException e) {
+	    return null;
+	}
+    }
+
+    return null;
+}
+
+}
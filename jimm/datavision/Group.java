@@ -26,6 +26,7 @@ protected SectionArea footers;
 protected Selectable selectable;
 protected int sortOrder;
 protected Object value;		// Current row value
+protected boolean hasValue;	// False until the first value is set
 protected boolean newValue;
 protected boolean firstValue;
 protected int recordCount;
@@ -138,17 +139,23 @@ public Object getValue() { return value; }
 /**
  * Sets the group value that is returned by <code>getValue</code>. This
  * method should only be called by the report while it is running.
+ * <p>
+ * Every row with a <code>null</code> value starts a new group, except in
+ * summary runs (see {@link Report#setSummaryQueries}), where consecutive
+ * <code>null</code> values are one group because that is what the
+ * database's "group by" returns.
  *
  * @param report the report from which we retrieve our selectable's value
  */
 public void setValue(Report report) {
     Object val = selectable.getValue(report);
-    if (value == null) {
+    if (!hasValue || (value == null && !report.summarizing)) {
 	value = val;
+	hasValue = true;
 	firstValue = true;
 	newValue = true;
     }
-    else if (value.equals(val)) {
+    else if (value == null ? val == null : value.equals(val)) {
 	newValue = false;
 	firstValue = false;
     }
@@ -160,10 +167,20 @@ public void setValue(Report report) {
 }
 
 public void updateCounter() {
+    updateCounter(1);
+}
+
+/**
+ * Adds <var>rows</var> records to the count. Used when each row from the
+ * data source summarizes many records.
+ *
+ * @param rows the number of records in the current row
+ */
+public void updateCounter(int rows) {
     if (newValue)
-	recordCount = 1;
+	recordCount = rows;
     else
-	++recordCount;
+	recordCount += rows;
 }
 
 /**
@@ -230,6 +247,7 @@ public boolean contains(Section s) {
  */
 public void reset() {
     value = null;
+    hasValue = false;
     newValue = firstValue = true;
     recordCount = 1;
 }
@@ -38,9 +38,13 @@ public static final int ARITY_RANGE = 1;
 public static final int ARITY_LIST_SINGLE = 2;
 public static final int ARITY_LIST_MULTIPLE = 3;
 
-protected static SimpleDateFormat formatter =
-    new SimpleDateFormat("yyyy-MM-dd");
-protected static ParsePosition parsePosition = new ParsePosition(0);
+/** Date formats aren't thread-safe, so each thread gets its own. */
+protected static final ThreadLocal<SimpleDateFormat> formatter =
+    new ThreadLocal<SimpleDateFormat>() {
+	protected SimpleDateFormat initialValue() {
+	    return new SimpleDateFormat("yyyy-MM-dd");
+	}
+    };
 
 protected Long id;
 protected Report report;
@@ -600,8 +604,7 @@ protected Object convertType(Object val) {
 	    if (str.length() == 0)
 		return new Date();
 	    else {
-		parsePosition.setIndex(0);
-		return formatter.parse(str, parsePosition);
+		return formatter.get().parse(str, new ParsePosition(0));
 	    }
 	}
     default:			// Should never happen
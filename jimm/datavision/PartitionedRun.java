@@ -0,0 +1,379 @@
+package jimm.datavision;
+import jimm.datavision.field.AggregateField;
+import jimm.datavision.field.Field;
+import jimm.datavision.field.SpecialField;
+import jimm.datavision.layout.LayoutEngine;
+import jimm.datavision.source.DataCursor;
+import jimm.datavision.source.DataSource;
+import jimm.datavision.source.PrefetchCursor;
+import jimm.datavision.source.sql.Database;
+import jimm.util.I18N;
+import jimm.util.XMLWriter;
+import java.io.*;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs a report in parallel by splitting its rows wherever the outermost
+ * group's value changes. The report's thread reads the rows in order and
+ * hands each partition to a pool of threads. Each thread has its own copy
+ * of the report, built from a {@link ReportTemplate}, and lays out a
+ * partition with a layout engine created by the report's layout engine
+ * (see {@link LayoutEngine#newPartitionEngine}). The output of the
+ * partitions is handed to the report's layout engine in order.
+ * <p>
+ * Each partition starts on a new page. Row numbers continue from one
+ * partition to the next. If the report shows page numbers, each partition
+ * is laid out twice: once to count its pages and again, once the pages of
+ * the partitions before it have been counted, to output them. The
+ * aggregates in the report footer (see {@link Report#canPartition}) are
+ * computed by each partition and added together before the last
+ * partition outputs the footer.
+ * <p>
+ * Used by {@link Report#runReport}; see {@link Report#setPartitionThreads}.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class PartitionedRun {
+
+/**
+ * The number of partitions per thread that may be read before the report
+ * thread waits for the first one to be output.
+ */
+protected static final int PARTITIONS_PER_THREAD = 4;
+
+/** Thrown by a partition that failed. The error has been reported. */
+@SuppressWarnings("serial")
+static class PartitionFailed extends Exception {}
+
+/**
+ * Returns the rows of one partition. Row numbers continue from the rows
+ * of the partitions before it.
+ */
+static class PartitionCursor extends DataCursor {
+List<List<Object>> rows;
+int index;
+int rowsBefore;
+PartitionCursor(List<List<Object>> rows, int rowsBefore) {
+    this.rows = rows;
+    this.rowsBefore = rowsBefore;
+}
+protected List<Object> readRowData() {
+    return index < rows.size() ? rows.get(index++) : null;
+}
+public int getRow() { return super.getRow() + rowsBefore; }
+}
+
+protected Report report;
+protected int threads;
+protected boolean countPages;
+/** Copies of the report that aren't laying out a partition. */
+protected BlockingQueue<Report> copies;
+protected ArrayList<Partition> partitions;
+
+/**
+ * Constructor.
+ *
+ * @param report the report to run
+ * @param threads the number of threads
+ */
+public PartitionedRun(Report report, int threads) {
+    this.report = report;
+    this.threads = threads;
+}
+
+/**
+ * Runs the report. Returns <code>false</code> without reading any rows if
+ * the copies of the report can't be made, in which case the error is
+ * reported and the report should be run the usual way.
+ *
+ * @return <code>false</code> if the report wasn't run
+ */
+public boolean run() {
+    try {
+	ReportTemplate template = ReportTemplate.forXML(reportXML());
+	copies = new LinkedBlockingQueue<Report>();
+	for (int i = 0; i < threads; ++i)
+	    copies.add(copyReport(template));
+    }
+    catch (Exception e) {
+	ErrorHandler.error(I18N.get("PartitionedRun.copy_err"), e,
+			   I18N.get("PartitionedRun.copy_err_title"));
+	copies = null;
+	return false;
+    }
+    countPages = showsPageNumbers();
+
+    // The report's own aggregate fields hold the totals of the partitions
+    // that are done.
+    for (AggregateField af : reportAggregates(report))
+	af.initialize();
+
+    LayoutEngine engine = report.layoutEngine;
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    partitions = new ArrayList<Partition>();
+    LinkedList<Partition> waiting = new LinkedList<Partition>();
+    int numPages = 0;
+    DataCursor cursor = null;
+    try {
+	++report.runGeneration;
+	cursor = PrefetchCursor.wrap(report.openDataCursor(),
+				     report.getPrefetchRows());
+	report.rset = cursor;
+	Selectable selectable = report.groups.get(0).getSelectable();
+	int numColumns = report.getDataSource().getQuery().getNumSelectables();
+	engine.startPartitions();
+
+	ArrayList<List<Object>> rows = new ArrayList<List<Object>>();
+	Object key = null;
+	int numRows = 0;
+	while (engine.wantsMoreData() && cursor.next()) {
+	    Object value = selectable.getValue(report);
+	    if (!rows.isEmpty()
+		&& !(key == null ? value == null : key.equals(value)))
+	    {
+		waiting.add(submit(pool, rows, numRows - rows.size(), false));
+		rows = new ArrayList<List<Object>>();
+
+		// Output the partitions that are done. Wait for the first one
+		// if too many are being held.
+		while (!waiting.isEmpty()
+		       && (waiting.getFirst().future.isDone()
+			   || waiting.size() > threads * PARTITIONS_PER_THREAD))
+		    numPages += output(engine, waiting.removeFirst());
+	    }
+	    key = value;
+
+	    ArrayList<Object> row = new ArrayList<Object>(numColumns);
+	    for (int i = 1; i <= numColumns; ++i)
+		row.add(cursor.getObject(i));
+	    rows.add(row);
+	    ++numRows;
+	}
+	waiting.add(submit(pool, rows, numRows - rows.size(), true));
+
+	while (!waiting.isEmpty())
+	    numPages += output(engine, waiting.removeFirst());
+	engine.endPartitions(numPages);
+    }
+    catch (ExecutionException ee) {
+	engine.cancel();
+	if (!(ee.getCause() instanceof PartitionFailed))
+	    ErrorHandler.error(ee.getCause());
+    }
+    catch (SQLException sqle) {
+	engine.cancel();
+	ErrorHandler.error(report.getDataSource().getQuery().toString(), sqle);
+    }
+    catch (Exception e) {
+	engine.cancel();
+	ErrorHandler.error(e);
+    }
+    finally {
+	pool.shutdownNow();
+	if (cursor != null) cursor.close();
+	partitions = null;
+	copies = null;
+    }
+    return true;
+}
+
+/**
+ * Returns the report as XML.
+ */
+protected byte[] reportXML() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    XMLWriter out =
+	new XMLWriter(new OutputStreamWriter(bytes, Report.XML_JAVA_ENCODING));
+    report.writeXML(out);
+    out.close();
+    return bytes.toByteArray();
+}
+
+/**
+ * Returns a copy of the report that has the same parameter values. Copies
+ * of database reports use the report's connection.
+ */
+protected Report copyReport(ReportTemplate template) throws Exception {
+    DataSource dataSource = report.getDataSource();
+    Report copy = dataSource instanceof Database
+	? template.createReport(((Database)dataSource).getConnection())
+	: template.createReport();
+    for (Parameter p : report.parameters()) {
+	Parameter copyParam = copy.findParameter(p.getId());
+	copyParam.removeValues();
+	for (Object value : p.values())
+	    copyParam.addValue(value);
+    }
+    return copy;
+}
+
+/**
+ * Returns <code>true</code> if some field or formula shows the page
+ * number.
+ */
+protected boolean showsPageNumbers() {
+    final boolean[] shows = { false };
+    report.withFieldsDo(new FieldWalker() {
+	public void step(Field f) {
+	    if (f instanceof SpecialField
+		&& "page.number".equals(((SpecialField)f).getSpecialName()))
+		shows[0] = true;
+	}
+	});
+    for (Formula f : report.formulas())
+	if (f.getExpression() != null
+	    && f.getExpression().indexOf("{%page.number}") >= 0)
+	    shows[0] = true;
+    return shows[0];
+}
+
+/**
+ * Returns the aggregate fields of a report that aren't in any group.
+ */
+protected static List<AggregateField> reportAggregates(Report r) {
+    final ArrayList<AggregateField> list = new ArrayList<AggregateField>();
+    r.withFieldsDo(new FieldWalker() {
+	public void step(Field f) {
+	    if (f instanceof AggregateField
+		&& ((AggregateField)f).getGroup() == null)
+		list.add((AggregateField)f);
+	}
+	});
+    return list;
+}
+
+/**
+ * Starts laying out a partition.
+ */
+protected Partition submit(ExecutorService pool, List<List<Object>> rows,
+			   int rowsBefore, boolean last)
+{
+    Partition p = new Partition(rows, rowsBefore, last);
+    p.future = pool.submit(p);
+    partitions.add(p);
+    return p;
+}
+
+/**
+ * Hands a partition's output to the layout engine and returns its number
+ * of pages.
+ */
+protected int output(LayoutEngine engine, Partition p) throws Exception {
+    engine.outputPartition(p.future.get());
+    return p.numPages;
+}
+
+/**
+ * Adds the totals of the report footer aggregates of <var>from</var> to
+ * those of <var>to</var>.
+ */
+protected synchronized void mergeAggregates(Report from, Report to) {
+    for (AggregateField af : reportAggregates(to))
+	af.merge((AggregateField)from.findField(af.getId()));
+}
+
+/**
+ * One partition's rows and the state shared with the partitions around
+ * it. Partitions only wait for partitions before them, which have already
+ * been started, so the pool never runs out of threads.
+ */
+class Partition implements Callable<String> {
+List<List<Object>> rows;
+int rowsBefore;
+boolean last;
+int index;
+Partition previous;
+Future<String> future;
+int numPages;
+/** The number of the last page of this and all previous partitions. */
+int lastPage;
+/** Counted down once <var>lastPage</var> is known. */
+CountDownLatch counted;
+/** Counted down once the aggregates have been added to the report's. */
+CountDownLatch merged;
+
+Partition(List<List<Object>> rows, int rowsBefore, boolean last) {
+    this.rows = rows;
+    this.rowsBefore = rowsBefore;
+    this.last = last;
+    index = partitions.size();
+    previous = index == 0 ? null : partitions.get(index - 1);
+    counted = new CountDownLatch(1);
+    merged = new CountDownLatch(1);
+}
+
+public String call() throws Exception {
+    Report copy = copies.take();
+    try {
+	int firstPage = index == 0 ? 1 : 2; // Not the first page
+	if (countPages) {
+	    int pages = 1;
+	    if (!last)
+		pages = layOut(copy, firstPage, new StringWriter(), false)
+		    .pageNumber() - firstPage + 1;
+	    if (previous != null)
+		previous.counted.await();
+	    firstPage = (previous == null ? 0 : previous.lastPage) + 1;
+	    lastPage = firstPage + pages - 1;
+	    counted.countDown();
+	}
+
+	StringWriter out = new StringWriter();
+	numPages = layOut(copy, firstPage, out, true).pageNumber()
+	    - firstPage + 1;
+	if (!last)
+	    mergeAggregates(copy, report);
+	return out.toString();
+    }
+    finally {
+	rows = null;
+	counted.countDown();
+	merged.countDown();
+	copies.put(copy);
+    }
+}
+
+/**
+ * Runs the report copy over the rows of this partition and returns the
+ * layout engine that was used.
+ */
+LayoutEngine layOut(Report copy, int firstPage, Writer out, boolean output)
+    throws PartitionFailed
+{
+    LayoutEngine engine =
+	report.layoutEngine.newPartitionEngine(new PrintWriter(out));
+    engine.setPartition(firstPage, last);
+    copy.setLayoutEngine(engine);
+    copy.partition = output ? this : null;
+    try {
+	if (!copy.runRows(new PartitionCursor(rows, rowsBefore)))
+	    throw new PartitionFailed();
+    }
+    finally {
+	copy.partition = null;
+    }
+    return engine;
+}
+
+/**
+ * Called by the report copy before its layout engine outputs the report
+ * footer. The last partition waits for all the others and adds their
+ * aggregate totals to its own.
+ */
+void beforeEnd(Report copy) {
+    if (!last)
+	return;
+    try {
+	for (Partition p = previous; p != null; p = p.previous)
+	    p.merged.await();
+    }
+    catch (InterruptedException ie) { // The run has been cancelled
+	throw new UserCancellationException();
+    }
+    mergeAggregates(report, copy);
+}
+}
+
+}
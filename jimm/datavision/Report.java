@@ -3,6 +3,7 @@ import jimm.datavision.field.*;
 import jimm.datavision.layout.LayoutEngine;
 import jimm.datavision.source.*;
 import jimm.datavision.source.sql.Database;
+import jimm.datavision.source.sql.DatabaseSchema;
 import jimm.datavision.gui.sql.DbPasswordDialog;
 import jimm.datavision.gui.Designer;
 import jimm.datavision.gui.StatusDialog;
@@ -67,7 +68,28 @@ protected boolean paramsSetManually;
 protected ParameterReader paramReader;
 /** Flag for Database data sources. */
 protected boolean caseSensitiveDatabaseNames;
+protected DatabaseSchema databaseSchema;
+protected int prefetchRows;
+protected int subreportBatchSize;
+protected File snapshotFile;
+protected int partitionThreads;
+/** Set while this report is laying out one partition of a parallel run. */
+protected PartitionedRun.Partition partition;
+protected Group burstGroup;
+protected BurstRun.OutputFactory burstOutput;
+protected boolean summaryQueries;
+/** <code>true</code> while running with a summary query. */
+protected boolean summarizing;
+/** The summary selectables of the aggregate fields, in the same order. */
+protected ArrayList<Selectable> summarySelectables;
 protected Scripting scripting;
+protected int runGeneration;
+/**
+ * When <code>true</code>, formula templates and compiled scripts are kept
+ * from one run to the next. Set by {@link BatchRun}, which runs a report
+ * that doesn't change many times.
+ */
+protected boolean keepTemplates;
 /**
  * This field holds default format, border, and bounds values for all fields.
  * For all format ivars, if the value of the ivar is null then the value is
@@ -85,6 +107,7 @@ public Report() {
     parametersHaveValues = false;
     paramsSetManually = false;
     caseSensitiveDatabaseNames = true;
+    summaryQueries = true;
     paperFormat = PaperFormat.getDefault();
     scripting = new Scripting(this);
 
@@ -343,6 +366,181 @@ public void setCaseSensitiveDatabaseNames(boolean val) {
     caseSensitiveDatabaseNames = val;
 }
 
+/**
+ * Returns the schema from which this report's database takes the tables
+ * and columns other reports have already read; may be <code>null</code>.
+ *
+ * @return a database schema or <code>null</code>
+ */
+public DatabaseSchema getDatabaseSchema() { return databaseSchema; }
+
+/**
+ * Sets the schema from which this report's database takes the tables and
+ * columns other reports have already read, and to which it adds the ones
+ * it reads. Must be called before the database is created, that is,
+ * before reading the report or calling {@link #setDatabaseConnection}.
+ *
+ * @param schema a database schema; may be <code>null</code>
+ * @see jimm.datavision.ReportTemplate
+ */
+public void setDatabaseSchema(DatabaseSchema schema) {
+    databaseSchema = schema;
+}
+
+/**
+ * Returns the number of rows read ahead in a background thread while the
+ * report is running. Zero, the default, means rows are read by the report
+ * thread as they are needed.
+ *
+ * @return the number of rows to read ahead
+ * @see jimm.datavision.source.PrefetchCursor
+ */
+public int getPrefetchRows() { return prefetchRows; }
+
+/**
+ * Sets the number of rows read ahead in a background thread while the
+ * report is running, so reading data overlaps with layout and output.
+ * Data sources that can't read in the background ignore this.
+ *
+ * @param rows the number of rows to read ahead; zero or less turns off
+ * reading ahead
+ * @see jimm.datavision.source.PrefetchCursor
+ */
+public void setPrefetchRows(int rows) {
+    prefetchRows = rows < 0 ? 0 : rows;
+}
+
+/**
+ * Returns the file in which the data source's rows are kept between runs;
+ * may be <code>null</code>.
+ *
+ * @return the snapshot file; may be <code>null</code>
+ * @see #setSnapshotFile
+ */
+public File getSnapshotFile() { return snapshotFile; }
+
+/**
+ * Sets the file in which the data source's rows are kept between runs.
+ * The first run writes the rows it reads to the file. Later runs read the
+ * rows from the file instead of running the query, as long as the query
+ * and the parameter values are the same; otherwise the query is run and
+ * the file is written again. Changes to the data itself aren't noticed,
+ * so delete the file (or set this to <code>null</code>) to see them.
+ *
+ * @param file a snapshot file; <code>null</code> turns off snapshots
+ * @see jimm.datavision.source.Snapshot
+ */
+public void setSnapshotFile(File file) { snapshotFile = file; }
+
+/**
+ * Returns the number of report rows whose subreport rows are fetched with
+ * a single query. Zero, the default, means each subreport runs its query
+ * once for each report row.
+ *
+ * @return the subreport batch size
+ * @see Subreport#getValue
+ */
+public int getSubreportBatchSize() { return subreportBatchSize; }
+
+/**
+ * Sets the number of report rows whose subreport rows are fetched with a
+ * single query. Subreports read that many rows ahead, collect their join
+ * column values, and run one query for all of them. Subreports whose joins
+ * aren't all equalities or whose where clauses use formulas, user columns,
+ * or special values still run one query per row.
+ *
+ * @param rows the number of report rows per subreport query; one or less
+ * turns off batching
+ * @see Subreport#getValue
+ */
+public void setSubreportBatchSize(int rows) {
+    subreportBatchSize = rows <= 1 ? 0 : rows;
+}
+
+/**
+ * Returns the number of threads used to lay out the report's outermost
+ * groups in parallel. Zero, the default, means the report is run by a
+ * single thread.
+ *
+ * @return the number of threads
+ * @see #setPartitionThreads
+ */
+public int getPartitionThreads() { return partitionThreads; }
+
+/**
+ * Sets the number of threads used to lay out the report's outermost
+ * groups in parallel. The rows are read in order and split wherever the
+ * outermost group's value changes. Each piece (a partition) is laid out by
+ * its own copy of the report in one of the threads, and the layout
+ * engine's output is the partitions' output in order. Each outermost group
+ * starts a new page; page and row numbers are counted across the whole
+ * report, and the report footer's aggregates cover every row.
+ * <p>
+ * Reports that can't be split this way are run by a single thread; see
+ * {@link #canPartition}.
+ *
+ * @param threads the number of threads; one or less turns off parallel
+ * runs
+ * @see PartitionedRun
+ */
+public void setPartitionThreads(int threads) {
+    partitionThreads = threads <= 1 ? 0 : threads;
+}
+
+/**
+ * Returns the group whose values burst the report into separate outputs;
+ * may be <code>null</code>.
+ *
+ * @return a group or <code>null</code>
+ * @see #setBurstGroup
+ */
+public Group getBurstGroup() { return burstGroup; }
+
+/**
+ * Tells this report to burst its output: each time the value of
+ * <var>group</var> or of a group outside it changes, the current output is
+ * closed and a new layout engine is asked for. The query is only run
+ * once. Each burst has its own report header and footer and its own page
+ * numbers. The report's own layout engine isn't used.
+ *
+ * @param group the group whose values start new outputs; <code>null</code>
+ * turns off bursting
+ * @param factory creates the layout engine for each burst
+ * @see BurstRun
+ */
+public void setBurstGroup(Group group, BurstRun.OutputFactory factory) {
+    burstGroup = group;
+    burstOutput = group == null ? null : factory;
+}
+
+/**
+ * Returns <code>true</code> if this report may use summary queries. The
+ * default is <code>true</code>.
+ *
+ * @return <code>true</code> if summary queries may be used
+ * @see #setSummaryQueries
+ */
+public boolean summaryQueries() { return summaryQueries; }
+
+/**
+ * Tells this report whether it may use summary queries. When every detail
+ * section is hidden and the rest of the report only shows group values
+ * and sum, count, min, max, and average aggregates of columns, the data
+ * source (if it can; see {@link Query#canSummarize}) is asked for one row
+ * for each combination of group values instead of every row. Each row
+ * holds the partial aggregate values for the rows it summarizes.
+ * <p>
+ * The output is the same as when every row is read, except that rows whose
+ * group value is <code>null</code> are summarized into one group instead
+ * of each starting a group of its own. This may be turned off in the report
+ * XML with the report element's "summary-queries" attribute or with the
+ * <code>-S</code> command line option.
+ *
+ * @param val if <code>false</code>, always read every row
+ * @see #canSummarize
+ */
+public void setSummaryQueries(boolean val) { summaryQueries = val; }
+
 /**
  * Tells this report to reload all references to column objects. Called
  * by a database when it resets its connection.
@@ -350,6 +548,7 @@ public void setCaseSensitiveDatabaseNames(boolean val) {
  * @see Database#reset
  */
 public void reloadColumns() {
+    ++runGeneration;		// Formula templates refer to old columns
     for (Group g : groups())
 	g.reloadSelectable(dataSource);
     withFieldsDo(new FieldWalker() {
@@ -1316,21 +1515,44 @@ public void runReport() {
 	return;
     }
 
+    if (burstGroup != null) {
+	new BurstRun(this, burstGroup, burstOutput).run();
+	return;
+    }
+    if (partitionThreads > 1 && canPartition()
+	&& new PartitionedRun(this, partitionThreads).run())
+	return;
+    runRows(null);
+}
+
+/**
+ * Runs the report over the rows of <var>cursor</var> or, if it is
+ * <code>null</code>, over the rows of the data source. Parameters must
+ * already have values.
+ *
+ * @param cursor a data cursor; may be <code>null</code>
+ * @return <code>false</code> if the run was cancelled or failed
+ */
+protected boolean runRows(DataCursor cursor) {
     // Pre-report initialization
+    if (!keepTemplates)
+	++runGeneration;
     for (Group g : groups)
 	g.reset();
     collectAggregateFields();
+    startSummarizing();
     if (startFormula != null)
 	startFormula.eval();
     for (Formula f : formulas())
 	f.useCache();
+    new DependencyGraph(formulas()).connect(formulas());
     resetCachedValues();
 
     rset = null;
     StatusDialog statusDialog = null;
 
     try {
-	if (ErrorHandler.usingGUI()) {
+	if (ErrorHandler.usingGUI() && cursor == null) {
 	    statusDialog = new StatusDialog(getDesignFrame(),
 					    I18N.get("Report.status_title"),
 					    true,
@@ -1338,9 +1560,12 @@ public void runReport() {
 	}
 
 	if (!layoutEngine.wantsMoreData())
-	    return;
+	    return false;
 
-	rset = dataSource.execute();
+	rset = cursor != null ? cursor
+	    : PrefetchCursor.wrap(openDataCursor(), prefetchRows);
+	if (subreportBatchSize > 0 && !subreports.isEmpty())
+	    rset.setReadAhead(subreportBatchSize);
 
 	boolean layoutStarted = false;
 	while (layoutEngine.wantsMoreData() && rset.next()) {
@@ -1365,8 +1590,11 @@ public void runReport() {
 	}
 	else {			// Output group footers and end of report
 	    layoutEngine.groupFooters(true);
+	    if (partition != null)
+		partition.beforeEnd(this);
 	    layoutEngine.end();
 	}
+	return true;
     }
     catch (UserCancellationException uce) {
 	layoutEngine.cancel();
@@ -1384,15 +1612,55 @@ public void runReport() {
 	if (rset != null) rset.close();
 
 	aggregateFields = null;
+	stopSummarizing();
 	for (Group g : groups)
 	    g.reset();
+	DependencyGraph.disconnect(formulas());
 	resetCachedValues();
 
 	if (statusDialog != null)
 	    statusDialog.dispose();
     }
+    return false;
+}
+
+/**
+ * Returns the cursor that reads the report's rows. If there is a current
+ * snapshot, reads the rows from it. Else runs the data source's query and,
+ * if there is a snapshot file, records the rows in it.
+ *
+ * @return a data cursor
+ * @see #setSnapshotFile
+ */
+protected DataCursor openDataCursor() throws Exception {
+    if (snapshotFile == null)
+	return dataSource.execute();
+
+    ArrayList<String> values = new ArrayList<String>();
+    for (Parameter p : parameters())
+	values.add(p.getName() + '=' + p.getValue());
+    Snapshot snapshot =
+	new Snapshot(snapshotFile, dataSource.getQueryText(), values);
+    try {
+	DataCursor cursor = snapshot.open();
+	if (cursor != null)
+	    return cursor;
+    }
+    catch (IOException ioe) {	// Unreadable; write a new one
+    }
+    return snapshot.record(dataSource.execute());
 }
 
+/**
+ * Returns a number that changes each time this report is run and each time
+ * its columns are reloaded. Formulas use it to know when to rebuild their
+ * templates.
+ *
+ * @return the current run generation
+ * @see Formula#prepareTemplate
+ */
+public int getRunGeneration() { return runGeneration; }
+
 /**
  * Returns the <code>Frame</code> associated with the design window for
  * this report; may be <code>null</code>.
@@ -1409,7 +1677,7 @@ protected Frame getDesignFrame() {
  * method of the result set has already been called.
  */
 protected void processResultRow() throws java.sql.SQLException {
-    resetCachedValues();
+    resetChangedValues();
     updateGroups();
 
     // To output footers, bring back the previous row of data
@@ -1417,7 +1685,7 @@ protected void processResultRow() throws java.sql.SQLException {
 	rset.previous();
 	layoutEngine.groupFooters(false);
 	rset.next();
-	resetCachedValues();
+	resetChangedValues();
     }
 
     updateGroupCounters();
@@ -1434,8 +1702,26 @@ protected void processResultRow() throws java.sql.SQLException {
 protected void resetCachedValues() {
     for (Formula f : formulas.values())
 	f.shouldEvaluate();
-    for (Subreport s : subreports.values())
+    for (Subreport s : subreports.values()) {
         s.clearCache();
+        s.clearCachedValues();
+    }
+}
+
+/**
+ * Tells each formula whose inputs have changed since it was last evaluated
+ * that it should re-evaluate, and clears the cached value of each subreport
+ * whose parent column values have changed.
+ *
+ * @see DependencyGraph
+ */
+protected void resetChangedValues() {
+    for (Formula f : formulas.values())
+	if (f.inputsChanged())
+	    f.shouldEvaluate();
+    for (Subreport s : subreports.values())
+	if (s.parentValuesChanged())
+	    s.clearCache();
 }
 
 /**
@@ -1461,6 +1747,19 @@ public Object columnValue(Selectable selectable) {
     return rset.getObject(dataSource.indexOfSelectable(selectable) + 1);
 }
 
+/**
+ * Returns the current value of the specified selectable as a
+ * <code>double</code>. <code>null</code> values are returned as 0. Numeric
+ * values are not boxed when the data source reads typed rows. Only defined
+ * when running a report.
+ *
+ * @return the value of the column as a double
+ * @throws NumberFormatException if the value isn't a number
+ */
+public double columnDoubleValue(Selectable selectable) {
+    return rset.getDouble(dataSource.indexOfSelectable(selectable) + 1);
+}
+
 /**
  * Returns the current page number. Asks the layout engine. Only defined
  * when running a report.
@@ -1561,10 +1860,174 @@ public AbstractList<AggregateField> getAggregateFieldsFor(final Field field) {
  * Updates each aggregate field.
  */
 protected void updateAggregates() {
+    if (summarizing) {
+	int rows = summaryRowCount();
+	int i = 0;
+	for (AggregateField af : aggregateFields)
+	    af.updateAggregate(columnDoubleValue(summarySelectables.get(i++)),
+			       rows);
+	return;
+    }
+
     for (AggregateField af : aggregateFields)
 	af.updateAggregate();
 }
 
+/**
+ * Returns <code>true</code> if this report can be run using a summary
+ * query: summary queries are allowed, the query can summarize, there are
+ * groups but no subreports, every detail section is hidden, and every
+ * aggregate and every section outside the details can be computed from
+ * summary rows. See {@link #canSummarize(Section)} and {@link
+ * #canSummarize(AggregateField)}.
+ *
+ * @return <code>true</code> if a summary query may be used
+ * @see #setSummaryQueries
+ */
+protected boolean canSummarize() {
+    if (!summaryQueries || !hasGroups() || !subreports.isEmpty()
+	|| !dataSource.getQuery().canSummarize())
+	return false;
+
+    for (Section s : details.sections())
+	if (!s.isHidden())
+	    return false;
+    for (AggregateField af : aggregateFields)
+	if (!canSummarize(af))
+	    return false;
+
+    final boolean[] canSummarize = { true };
+    withSectionsDo(new SectionWalker() {
+	public void step(Section s) {
+	    if (!s.isDetail() && !canSummarize(s))
+		canSummarize[0] = false;
+	}
+	});
+    return canSummarize[0];
+}
+
+/**
+ * Returns <code>true</code> if this report can be run in parallel by
+ * splitting its rows wherever the outermost group's value changes: there
+ * are groups but no subreports, the layout engine can lay out partitions
+ * (see {@link LayoutEngine#newPartitionEngine}), a summary query can't be
+ * used instead, and all aggregates that aren't in a group are in the
+ * report footer, so they are only needed once every row has been read.
+ *
+ * @return <code>true</code> if the report can be run in parallel
+ * @see #setPartitionThreads
+ */
+protected boolean canPartition() {
+    if (!hasGroups() || !subreports.isEmpty() || layoutEngine == null
+	|| layoutEngine.newPartitionEngine(new PrintWriter(new StringWriter()))
+	   == null)
+	return false;
+
+    collectAggregateFields();
+    try {
+	if (canSummarize())
+	    return false;
+	for (AggregateField af : aggregateFields)
+	    if (af.getGroup() == null
+		&& af.getSection().getArea().getArea()
+		   != SectionArea.REPORT_FOOTER)
+		return false;
+	return true;
+    }
+    finally {
+	aggregateFields = null;
+    }
+}
+
+/**
+ * Returns <code>true</code> if the section can be output using summary
+ * rows. Its suppression proc can't have a formula. It may only contain text,
+ * image, and parameter fields, columns and user columns used by groups,
+ * aggregates, and special fields other than the row number. Group counts
+ * are only allowed inside groups.
+ *
+ * @param s a section that isn't a detail section
+ * @return <code>true</code> if the section can be output
+ */
+protected boolean canSummarize(Section s) {
+    if (s.getSuppressionProc().hasFormula())
+	return false;
+
+    for (Field f : s.fields()) {
+	if (f instanceof ColumnField) {
+	    if (!isUsedBySomeGroup(((ColumnField)f).getColumn()))
+		return false;
+	}
+	else if (f instanceof UserColumnField) {
+	    if (!isUsedBySomeGroup(((UserColumnField)f).getUserColumn()))
+		return false;
+	}
+	else if (f instanceof SpecialField) {
+	    String name = ((SpecialField)f).getSpecialName();
+	    if ("report.row".equals(name)
+		|| ("group.count".equals(name) && findGroup(s) == null))
+		return false;
+	}
+	else if (!(f instanceof AggregateField || f instanceof TextField
+		   || f instanceof ImageField || f instanceof ParameterField))
+	    return false;
+    }
+    return true;
+}
+
+/**
+ * Returns <code>true</code> if the aggregate can be computed from summary
+ * rows: it must aggregate a column using a function that has a query
+ * function (see {@link AggregateField#getQueryFunction}). Only counts may
+ * aggregate non-numeric columns.
+ *
+ * @param af an aggregate field
+ * @return <code>true</code> if the aggregate can be computed
+ */
+protected boolean canSummarize(AggregateField af) {
+    String function = af.getQueryFunction();
+    if (function == null || !(af.getField() instanceof ColumnField))
+	return false;
+    return "count".equals(function)
+	|| ((ColumnField)af.getField()).getColumn().isNumeric();
+}
+
+/**
+ * Decides if this run will use a summary query and, if so, tells the query
+ * and finds the selectables that hold the partial aggregate values.
+ */
+protected void startSummarizing() {
+    summarizing = canSummarize();
+    if (!summarizing)
+	return;
+
+    Query query = dataSource.getQuery();
+    query.setSummarizing(true);
+    summarySelectables = new ArrayList<Selectable>();
+    for (AggregateField af : aggregateFields)
+	summarySelectables.add(query.summarySelectable(af));
+    summarySelectables.add(query.rowCountSelectable());
+}
+
+/**
+ * Turns summary queries off again at the end of a run.
+ */
+protected void stopSummarizing() {
+    if (summarizing)
+	dataSource.getQuery().setSummarizing(false);
+    summarizing = false;
+    summarySelectables = null;
+}
+
+/**
+ * Returns the number of rows summarized by the current summary row. The
+ * row count's selectable is the last summary selectable.
+ */
+protected int summaryRowCount() {
+    return (int)columnDoubleValue(summarySelectables
+				  .get(summarySelectables.size() - 1));
+}
+
 /**
  * Updates each group's value based on the current value of the column
  * each group uses.
@@ -1578,8 +2041,9 @@ protected void updateGroups() {
  * Lets each group update its line counter.
  */
 protected void updateGroupCounters() {
+    int rows = summarizing ? summaryRowCount() : 1;
     for (Group g : groups)
-	g.updateCounter();
+	g.updateCounter(rows);
 }
 
 /**
@@ -1623,6 +2087,17 @@ public void read(org.xml.sax.InputSource in) throws Exception {
     new ReportReader(this).read(in);
 }
 
+/**
+ * Builds the contents of this report from a compiled report. Uses a
+ * <code>ReportReader</code>.
+ *
+ * @param compiled a compiled report
+ * @see CompiledReport
+ */
+public void read(CompiledReport compiled) throws Exception {
+    new ReportReader(this).read(compiled);
+}
+
 /**
  * Writes the contents of this report as an XML file.
  *
@@ -1671,6 +2146,8 @@ protected void writeReport(XMLWriter out) {
     out.attr("name", name);
     out.attr("title", title);
     out.attr("author", author);
+    if (!summaryQueries)
+	out.attr("summary-queries", "false");
 
     writeDescription(out);
     scripting.writeXML(out);
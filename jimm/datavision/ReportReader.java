@@ -3,6 +3,7 @@ import jimm.datavision.field.*;
 import jimm.datavision.source.*;
 import jimm.datavision.source.sql.*;
 import jimm.datavision.source.charsep.CharSepSource;
+import jimm.datavision.source.charsep.CharSepTable;
 import jimm.datavision.source.ncsql.NCDatabase;
 import jimm.util.I18N;
 import java.io.*;
@@ -75,6 +76,7 @@ protected HashMap<String, FormulaConversion> formulasToConvert;
 protected int nextSectionLocation;
 protected boolean missingColumnSeen;
 protected boolean inSubreportJoins;
+protected CharSepTable charSepTable;
 
 /**
  * Constructor.
@@ -100,6 +102,19 @@ public void read(InputSource in) throws Exception {
     postParse();
 }
 
+/**
+ * Builds the innards of the report from a compiled report, without
+ * parsing any XML. Old formulas were already converted when the report
+ * was compiled.
+ *
+ * @param compiled a compiled report
+ */
+public void read(CompiledReport compiled) throws Exception {
+    removeReportSections();
+    compiled.replay(this);
+    postParse();
+}
+
 /**
  * Reads an XML file and builds the innards of the report.
  *
@@ -182,6 +197,8 @@ public void startElement(final String namespaceURI, final String localName,
     else if ("database".equals(tagName)) database(attributes);
     else if ("query".equals(tagName)) query(attributes);
     else if ("charsep".equals(tagName)) charSepSource(attributes);
+    else if ("table".equals(tagName) && "charsep".equals(parentTag))
+	charSepTable(attributes);
     else if ("nc-database".equals(tagName)) ncDatabaseSource(attributes);
     else if ("column".equals(tagName)) column(attributes);
     else if ("subreport-joins".equals(tagName)) inSubreportJoins = true;
@@ -247,6 +264,8 @@ public void endElement(final String namespaceURI, final String localName,
 	subreport = null;
     else if ("subreport-joins".equals(tagName))
 	inSubreportJoins = false;
+    else if ("table".equals(tagName))
+	charSepTable = null;
     else if ("default".equals(tagName) && parameter != null)
 	parameter.addDefaultValue(textData);
     else if ("formula".equals(tagName)) {
@@ -298,11 +317,15 @@ protected void report(Attributes attributes) {
     getReport().setName(attributes.getValue("name"));
     getReport().setTitle(attributes.getValue("title"));
     getReport().setAuthor(attributes.getValue("author"));
+    if ("false".equals(attributes.getValue("summary-queries")))
+	getReport().setSummaryQueries(false);
 }
 
 protected void defaultLanguage(Attributes attributes) {
     String lang = rubyLanguageNameHack(attributes.getValue("default-language"));
     getReport().getScripting().setDefaultLanguage(lang);
+    if ("false".equals(attributes.getValue("compile-formulas")))
+	getReport().getScripting().setCompileFormulas(false);
 }
 
 protected void language(Attributes attributes) {
@@ -326,8 +349,10 @@ protected String rubyLanguageNameHack(String lang) {
  * @see Report#setDatabaseConnection
  */
 protected void database(Attributes attributes) {
-    if (getReport().hasDataSource())
+    if (getReport().hasDataSource()) {
+	fetchSize(attributes);
 	return;
+    }
 
     try {
 	Database db = new Database(attributes.getValue("driverClassName"),
@@ -336,6 +361,7 @@ protected void database(Attributes attributes) {
 				   attributes.getValue("name"),
 				   attributes.getValue("username"));
 	getReport().setDataSource(db);
+	fetchSize(attributes);
     }
     catch (UserCancellationException iae) {
 	// Thrown by dataSource when user cancelled password dialog.
@@ -348,6 +374,17 @@ protected void database(Attributes attributes) {
     }
 }
 
+/**
+ * Sets the database's fetch size if the database tag has one.
+ */
+protected void fetchSize(Attributes attributes) {
+    String str = attributes.getValue("fetch-size");
+    if (str != null && str.trim().length() > 0
+	&& getReport().getDataSource() instanceof Database)
+	((Database)getReport().getDataSource())
+	    .setFetchSize(Integer.parseInt(str.trim()));
+}
+
 /**
  * Reads the query. Nothing to do, since the data source already has an
  * empty query.
@@ -370,6 +407,23 @@ protected void charSepSource(Attributes attributes) {
     getReport().setDataSource(charSepSource);
 }
 
+/**
+ * Reads and creates a table whose file is joined with a CharSepSource's
+ * file. The columns that follow belong to the table.
+ */
+protected void charSepTable(Attributes attributes) {
+    if (!(getReport().getDataSource() instanceof CharSepSource))
+	return;
+
+    CharSepSource source = (CharSepSource)getReport().getDataSource();
+    charSepTable = new CharSepTable(source, attributes.getValue("name"),
+				    attributes.getValue("file"));
+    String charString = attributes.getValue("sep-char");
+    if (charString != null)
+	charSepTable.setSepChar(charString.charAt(0));
+    source.addTable(charSepTable);
+}
+
 /**
  * Reads and creates an NCDatabase data source.
  */
@@ -384,7 +438,10 @@ protected void column(Attributes attributes) {
     Column col = new Column(name, name, type);
     col.setDateParseFormat(attributes.getValue("date-format"));
 
-    getReport().getDataSource().addColumn(col);
+    if (charSepTable != null)
+	charSepTable.addColumn(col);
+    else
+	getReport().getDataSource().addColumn(col);
 }
 
 protected void join(Attributes attributes) {
@@ -426,6 +483,9 @@ protected void sort(Attributes attributes) {
 protected void subreport(Attributes attributes) {
     subreport = new Subreport(report, new Long(attributes.getValue("id")));
     // The subreport adds itself to the parent report.
+    String str = attributes.getValue("cache-size");
+    if (str != null && str.trim().length() > 0)
+	subreport.setCacheSize(Integer.parseInt(str.trim()));
 
     removeReportSections();	// Acts on subreport
 
@@ -632,8 +692,14 @@ protected void field(Attributes attributes) {
 
     field =
 	Field.create(new Long(id), getReport(), section, type, value, visible);
-    if (field instanceof AggregateField && group != null)
-	((AggregateField)field).setGroup(group);
+    if (field instanceof AggregateField) {
+	AggregateField aggr = (AggregateField)field;
+	if (group != null)
+	    aggr.setGroup(group);
+	String sketchSize = attributes.getValue("sketch-size");
+	if (sketchSize != null && sketchSize.trim().length() > 0)
+	    aggr.setSketchSize(Integer.parseInt(sketchSize.trim()));
+    }
 
     section.addField(field);
 }
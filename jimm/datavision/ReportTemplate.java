@@ -0,0 +1,186 @@
+package jimm.datavision;
+import jimm.datavision.source.sql.DatabaseSchema;
+import jimm.util.LRUCache;
+import java.io.*;
+import java.sql.Connection;
+
+/**
+ * A report template is a report definition that may be shared by many
+ * threads and used to run the report many times. It doesn't separate a
+ * run's state from the report model: each run gets a {@link Report} of its
+ * own, built from the template, and that report holds the state of the run
+ * (the current row, group values, aggregate totals, cached formula
+ * values), so two runs may not share one. What runs share is the template,
+ * which never changes, and the JVM-wide state used while reading and
+ * running reports, which is thread-safe. Any number of threads may call
+ * {@link #createReport} at the same time and run the reports they get back
+ * concurrently.
+ * <p>
+ * The template keeps the report's XML in memory and compiles it into a
+ * {@link CompiledReport} the first time a report is created, so creating
+ * reports doesn't touch the file system or parse any XML. Each report
+ * needs its own data source; use {@link #createReport(Connection)} to give
+ * a database report a connection from a pool instead of having it log in.
+ * The reports share a {@link DatabaseSchema}, so the tables and columns
+ * one report reads from the database's metadata aren't read again by the
+ * next report that connects to the same database as the same user.
+ * <p>
+ * {@link #forXML} and {@link #forFile} return templates from a cache
+ * keyed by the hash of the XML, so a report is only compiled again when
+ * its XML changes.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class ReportTemplate {
+
+public static final int DEFAULT_CACHE_SIZE = 64;
+
+protected static LRUCache<String, ReportTemplate> cache =
+    new LRUCache<String, ReportTemplate>(DEFAULT_CACHE_SIZE);
+
+protected byte[] xml;
+protected String systemId;
+protected CompiledReport compiled;
+protected DatabaseSchema schema = new DatabaseSchema();
+
+/**
+ * Returns the template for report XML, compiling it only if the cache
+ * doesn't have a template for the same XML.
+ *
+ * @param xml report XML
+ * @return a report template
+ */
+public static ReportTemplate forXML(byte[] xml) throws Exception {
+    String hash = CompiledReport.hash(xml);
+    synchronized (cache) {
+	ReportTemplate template = cache.get(hash);
+	if (template != null)
+	    return template;
+    }
+
+    ReportTemplate template = new ReportTemplate(xml);
+    template.getCompiledReport();
+    synchronized (cache) {
+	cache.put(hash, template);
+    }
+    return template;
+}
+
+/**
+ * Returns the template for a report XML file, compiling it only if the
+ * cache doesn't have a template for the same XML. The file is read each
+ * time, so changes to it are seen.
+ *
+ * @param f a report XML file
+ * @return a report template
+ */
+public static ReportTemplate forFile(File f) throws Exception {
+    return forXML(CompiledReport.readBytes(new FileInputStream(f)));
+}
+
+/**
+ * Returns the template cache, which may be used to change its size or
+ * look at its hit and miss counts. Synchronize on it when using it.
+ *
+ * @return the template cache
+ */
+public static LRUCache<String, ReportTemplate> getCache() { return cache; }
+
+/**
+ * Constructor. Reads the report XML file.
+ *
+ * @param f a report XML file
+ */
+public ReportTemplate(File f) throws IOException {
+    this(new FileInputStream(f), f.toURI().toString());
+}
+
+/**
+ * Constructor. Reads the report XML from <var>in</var> and closes it.
+ *
+ * @param in an input stream
+ * @param systemId the URI used to find files named by the XML (for
+ * example, a DTD) relative to it; may be <code>null</code>
+ */
+public ReportTemplate(InputStream in, String systemId) throws IOException {
+    xml = CompiledReport.readBytes(in);
+    this.systemId = systemId;
+}
+
+/**
+ * Constructor.
+ *
+ * @param xml the report XML; it is copied
+ */
+public ReportTemplate(byte[] xml) {
+    this.xml = xml.clone();
+}
+
+/**
+ * Constructor. A template created from a compiled report has no XML.
+ *
+ * @param compiled a compiled report
+ */
+public ReportTemplate(CompiledReport compiled) {
+    this.compiled = compiled;
+}
+
+/**
+ * Returns a copy of the report's XML, or <code>null</code> if this
+ * template was created from a compiled report.
+ *
+ * @return the XML bytes
+ */
+public byte[] getXML() { return xml == null ? null : xml.clone(); }
+
+/**
+ * Returns the database schema shared by the reports this template
+ * creates. Call its <code>clear</code> method after changing the
+ * database's tables.
+ *
+ * @return the database schema
+ */
+public DatabaseSchema getDatabaseSchema() { return schema; }
+
+/**
+ * Returns the compiled report, compiling the XML the first time.
+ *
+ * @return the compiled report
+ */
+public synchronized CompiledReport getCompiledReport() throws Exception {
+    if (compiled == null)
+	compiled = CompiledReport.compile(xml, systemId);
+    return compiled;
+}
+
+/**
+ * Returns a new report built from this template. Its state is not shared
+ * with any other report.
+ *
+ * @return a new report
+ */
+public Report createReport() throws Exception {
+    Report report = new Report();
+    report.setDatabaseSchema(schema);
+    report.read(getCompiledReport());
+    return report;
+}
+
+/**
+ * Returns a new report built from this template that uses
+ * <var>conn</var> as its database connection. The connection isn't closed
+ * when the report is done with it.
+ *
+ * @param conn a database connection
+ * @return a new report
+ * @see Report#setDatabaseConnection
+ */
+public Report createReport(Connection conn) throws Exception {
+    Report report = new Report();
+    report.setDatabaseSchema(schema);
+    report.setDatabaseConnection(conn);
+    report.read(getCompiledReport());
+    return report;
+}
+
+}
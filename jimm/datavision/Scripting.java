@@ -1,7 +1,10 @@
 package jimm.datavision;
 import jimm.util.XMLWriter;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import org.apache.bsf.BSFManager;
+import org.apache.bsf.BSFEngine;
 import org.apache.bsf.BSFException;
 
 /**
@@ -15,14 +18,20 @@ protected static final String DEFAULT_LANGUAGE = "Ruby";
 protected static final String DEFAULT_CLASS =
     "org.jruby.javasupport.bsf.JRubyEngine";
 
+/** Finds Ruby local variable assignments like "x = 1" and "x += 1". */
+protected static final Pattern LOCAL_ASSIGNMENT = Pattern.compile(
+    "(?<![.@$:\\w])([a-z_]\\w*)\\s*(?:\\*\\*|<<|>>|\\|\\||&&|[-+*/%|&^])?=(?![=~>])");
+
 protected Report report;
 protected String defaultLanguage;
 protected Map<String, String> languages;
 protected Map<String, BSFManager> managers;
+protected boolean compileFormulas;
 
 public Scripting(Report report) {
     this.report = report;
     defaultLanguage = DEFAULT_LANGUAGE;
+    compileFormulas = true;
     languages = new HashMap<String, String>();
     languages.put(DEFAULT_LANGUAGE, DEFAULT_CLASS);
     managers = new HashMap<String, BSFManager>();
@@ -57,6 +66,26 @@ public void setDefaultLanguage(String language) {
     defaultLanguage = language;
 }
 
+/**
+ * Returns <code>true</code> if formulas are compiled once per report run
+ * when their language allows it. The default is <code>true</code>.
+ */
+public boolean getCompileFormulas() { return compileFormulas; }
+
+/** Turns formula compilation on or off. */
+public void setCompileFormulas(boolean compile) { compileFormulas = compile; }
+
+/**
+ * Returns <code>true</code> if formulas written in <var>language</var> may
+ * be compiled by {@link #compile}. Only the JRuby engine is supported.
+ *
+ * @param language a language name
+ * @return <code>true</code> if formulas in that language may be compiled
+ */
+public boolean canCompile(String language) {
+    return compileFormulas && DEFAULT_CLASS.equals(languages.get(language));
+}
+
 /**
  * Returns true if we can load class <var>klass</var>.
  */
@@ -87,6 +116,86 @@ public Object eval(String language, String evalString, String name)
     return getBsfManager(language).eval(language, name, 1, 1, evalString);
 }
 
+/**
+ * Compiles <var>body</var> into a script function that takes the named
+ * arguments and returns the compiled function. The function is called by
+ * handing it to {@link #call}.
+ * <p>
+ * Variables that are created inside a Ruby function disappear when it
+ * returns, but variables created by evaluating text are seen by every other
+ * formula. To keep that behavior, this method returns <code>null</code>
+ * instead of compiling when <var>body</var> assigns to a local variable that
+ * doesn't exist yet. The caller should evaluate the text instead.
+ *
+ * @param language the language to use; see {@link #canCompile}
+ * @param argNames the names of the function's arguments
+ * @param body the function body
+ * @param name a name (for example, a formula name) to display with error
+ * messages
+ * @return the compiled function, or <code>null</code> if the body must be
+ * evaluated as text
+ */
+public Object compile(String language, List<String> argNames, String body,
+		      String name)
+    throws BSFException
+{
+    if (assignsNewLocals(language, body, name))
+	return null;
+
+    StringBuilder buf = new StringBuilder("lambda {");
+    if (!argNames.isEmpty()) {
+	buf.append(" |");
+	for (int i = 0; i < argNames.size(); ++i) {
+	    if (i > 0) buf.append(", ");
+	    buf.append(argNames.get(i));
+	}
+	buf.append('|');
+    }
+    // Put the body on its own lines so a trailing comment can't swallow
+    // the closing brace
+    buf.append('\n');
+    buf.append(body);
+    buf.append("\n}");
+    return getBsfManager(language).eval(language, name, 0, 1, buf.toString());
+}
+
+/**
+ * Returns <code>true</code> if <var>body</var> (probably) assigns to a local
+ * variable that isn't already defined at the top level. We err on the side
+ * of saying yes.
+ */
+protected boolean assignsNewLocals(String language, String body, String name)
+    throws BSFException
+{
+    Matcher m = LOCAL_ASSIGNMENT.matcher(body);
+    if (!m.find())
+	return false;
+
+    List<String> existing = Arrays.asList(eval(language,
+					       "local_variables.join(' ')",
+					       name).toString().split(" "));
+    do {
+	if (!existing.contains(m.group(1)))
+	    return true;
+    } while (m.find());
+    return false;
+}
+
+/**
+ * Calls a function returned by {@link #compile} and returns the results.
+ *
+ * @param language the language used to compile the function
+ * @param compiled the compiled function
+ * @param args the function's arguments
+ * @return the result
+ */
+public Object call(String language, Object compiled, Object[] args)
+    throws BSFException
+{
+    BSFEngine engine = getBsfManager(language).loadScriptingEngine(language);
+    return engine.call(compiled, "call", args);
+}
+
 /** Returns BSFManager for the default language. */
 public BSFManager getBsfManager() throws BSFException {
     return getBsfManager(defaultLanguage);
@@ -108,6 +217,8 @@ public BSFManager getBsfManager(String language) throws BSFException {
 public void writeXML(XMLWriter out) {
     out.startElement("bean-scripting-framework");
     out.attr("default-language", defaultLanguage);
+    if (!compileFormulas)
+	out.attr("compile-formulas", "false");
 
     for (String language: languages.keySet()) {
 	out.startElement("language");
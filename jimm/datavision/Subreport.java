@@ -1,10 +1,13 @@
 package jimm.datavision;
 import jimm.datavision.field.Field;
 import jimm.datavision.source.*;
+import jimm.datavision.source.sql.DatabaseSchema;
 import jimm.datavision.source.sql.SubreportQuery;
+import jimm.util.LRUCache;
 import jimm.util.StringUtils;
 import jimm.util.XMLWriter;
 import java.util.*;
+import java.math.BigDecimal;
 
 /**
  * A subreport is a report whose query is run every time the field
@@ -18,9 +21,18 @@ import java.util.*;
  */
 public class Subreport extends Report implements Identity {
 
+/** The number of values remembered by default; see {@link #setCacheSize}. */
+public static final int DEFAULT_CACHE_SIZE = 100;
+
 protected Report parentReport;
 protected Long id;
 protected String cachedValue;
+protected Object[] cachedParentValues;
+/** Maps batch keys to values; see {@link #batchValue}. */
+protected HashMap<List<Object>, String> batchValues;
+/** Maps parent column values to values; see {@link #setCacheSize}. */
+protected LRUCache<List<Object>, String> valueCache =
+    new LRUCache<List<Object>, String>(DEFAULT_CACHE_SIZE);
 
 public Subreport(Report parent, Long id) {
     if (id == null)		// Generate new value
@@ -35,6 +47,15 @@ public Object getId() { return id; }
 
 public Report getParentReport() { return parentReport; }
 
+/**
+ * Returns the parent report's database schema.
+ *
+ * @return a database schema or <code>null</code>
+ */
+public DatabaseSchema getDatabaseSchema() {
+    return parentReport.getDatabaseSchema();
+}
+
 public void addJoin(Join join) {
     ((SubreportQuery)getDataSource().getQuery()).addSubreportJoin(join);
 }
@@ -54,8 +75,99 @@ public Iterable<Column> parentColumns() {
     return ((SubreportQuery)getDataSource().getQuery()).parentColumns();
 }
 
+/**
+ * Returns a number that changes whenever this subreport's or its parent's
+ * run generation changes. Subreports aren't run on their own, so their
+ * formulas must rebuild their templates whenever the parent report is run.
+ *
+ * @return the current run generation
+ */
+public int getRunGeneration() {
+    return parentReport.getRunGeneration() + runGeneration;
+}
+
 public void clearCache() {
     cachedValue = null;
+    cachedParentValues = null;
+}
+
+/**
+ * Forgets the values fetched by the last batch query and the values
+ * remembered for earlier parent column values. Called when the parent
+ * report starts and stops running.
+ */
+public void clearCachedValues() {
+    batchValues = null;
+    valueCache.clear();
+}
+
+/**
+ * Returns the maximum number of values remembered for earlier parent column
+ * values.
+ *
+ * @return the cache size
+ */
+public int getCacheSize() { return valueCache.getMaxSize(); }
+
+/**
+ * Sets the maximum number of values remembered for earlier parent column
+ * values. When the parent report comes back to values it has already seen,
+ * the value is taken from this cache instead of running the query again.
+ * The least recently used values are forgotten first. Subreports whose
+ * where clauses use formulas, user columns, or special values never use
+ * the cache. The size is saved in the subreport's XML.
+ *
+ * @param size the maximum number of values; zero turns off the cache
+ */
+public void setCacheSize(int size) { valueCache.setMaxSize(size); }
+
+/**
+ * Returns the number of times a value was found in the cache.
+ *
+ * @return the number of cache hits
+ * @see #setCacheSize
+ */
+public long getCacheHits() { return valueCache.getHits(); }
+
+/**
+ * Returns the number of times a value was not found in the cache and the
+ * query had to be run.
+ *
+ * @return the number of cache misses
+ * @see #setCacheSize
+ */
+public long getCacheMisses() { return valueCache.getMisses(); }
+
+/**
+ * Returns <code>false</code> if our cached value was built using the same
+ * parent column values the parent report has now. Subreports whose where
+ * clauses use formulas, user columns, or special values always return
+ * <code>true</code>. Only call this while the parent report is running.
+ *
+ * @return <code>true</code> if the cached value should be cleared
+ */
+public boolean parentValuesChanged() {
+    return cachedParentValues == null
+	|| !Arrays.equals(cachedParentValues, parentValues());
+}
+
+/**
+ * Returns the current values of our parent columns, or <code>null</code>
+ * if our where clause uses anything besides those and parameters or the
+ * parent report isn't running.
+ */
+protected Object[] parentValues() {
+    String where = getDataSource().getQuery().getWhereClause();
+    if (parentReport.rset == null
+	|| where != null && (where.indexOf("{@") != -1
+			  || where.indexOf("{!") != -1
+			  || where.indexOf("{%") != -1))
+	return null;
+
+    ArrayList<Object> values = new ArrayList<Object>();
+    for (Column col : parentColumns())
+	values.add(parentReport.columnValue(col));
+    return values.toArray();
 }
 
 /**
@@ -71,20 +183,189 @@ public Object getValue() {
 
     rset = null;
     cachedValue = "";		// In case something happens
+    cachedParentValues = parentValues();
+
+    List<Object> key = null;
+    if (cachedParentValues != null && getCacheSize() > 0) {
+	key = Arrays.asList(cachedParentValues);
+	String val = valueCache.get(key);
+	if (val != null) {
+	    cachedValue = val;
+	    return cachedValue;
+	}
+    }
+
+    if (cachedParentValues != null
+	&& Arrays.asList(cachedParentValues).contains(null))
+	;			// A null never matches anything in SQL
+    else if (canBatch())
+	cachedValue = batchValue();
+    else {
+	try {
+	    rset = getDataSource().execute();
+	    if (rset != null)
+		cachedValue = StringUtils.join(makeRowStrings(), "\n");
+	}
+	catch (Exception e) {
+	    ErrorHandler.error(e.toString());
+	}
+	finally {
+	    if (rset != null)
+		rset.close();
+	}
+    }
+
+    if (key != null)
+	valueCache.put(key, cachedValue);
+    return cachedValue;
+}
+
+/**
+ * Returns <code>true</code> if our value may come from a batch query; see
+ * {@link Report#setSubreportBatchSize}. Only call this after
+ * <var>cachedParentValues</var> has been set.
+ */
+protected boolean canBatch() {
+    return parentReport.getSubreportBatchSize() > 0
+	&& cachedParentValues != null
+	&& batchable(cachedParentValues)
+	&& ((SubreportQuery)getDataSource().getQuery()).canBatch();
+}
+
+/**
+ * Returns <code>true</code> if the rows a batch query returns for
+ * <var>values</var> can be told apart by {@link #batchKey} exactly the
+ * way the database compares them. That is only true of numbers and
+ * dates. Strings may be padded or compared ignoring case by the database,
+ * and timestamps are handed to the query as dates (see
+ * <code>SubreportQuery.setParameter</code>), so they get a query of their
+ * own. <code>null</code>s are fine: they never match anything.
+ *
+ * @param values parent column values
+ * @return <code>true</code> if the values may be part of a batch query
+ */
+protected static boolean batchable(Object[] values) {
+    for (Object val : values) {
+	if (val == null || val instanceof java.sql.Date)
+	    continue;
+	if (!(val instanceof Number))
+	    return false;
+	double d = ((Number)val).doubleValue();
+	if (Double.isNaN(d) || Double.isInfinite(d))
+	    return false;
+    }
+    return true;
+}
+
+/**
+ * Returns our value for the parent report's current row from the values
+ * fetched by the last batch query, running a new batch query first if the
+ * current row's key wasn't part of the last one.
+ */
+protected String batchValue() {
+    List<Object> key = batchKey(cachedParentValues);
+    if (key == null)		// A null never equals anything in SQL
+	return "";
+
+    if (batchValues == null || !batchValues.containsKey(key))
+	runBatch(key);
+    String val = batchValues.get(key);
+    return val == null ? "" : val;
+}
+
+/**
+ * Runs one query that fetches the rows for the parent report's current row
+ * and the rows after it, up to the subreport batch size, and remembers the
+ * value for each distinct key. Keys without any rows get the empty string.
+ *
+ * @param currentKey the batch key of the parent report's current row
+ */
+protected void runBatch(List<Object> currentKey) {
+    // Collect the distinct keys of the rows ahead of the current one
+    LinkedHashMap<List<Object>, Object[]> keys =
+	new LinkedHashMap<List<Object>, Object[]>();
+    keys.put(currentKey, cachedParentValues);
+
+    ArrayList<Integer> indices = new ArrayList<Integer>();
+    for (Column col : parentColumns())
+	indices.add(parentReport.getDataSource().indexOfSelectable(col));
+    int batchSize = parentReport.getSubreportBatchSize();
+    for (List<Object> row : parentReport.rset.lookAhead(batchSize - 1)) {
+	Object[] values = new Object[indices.size()];
+	for (int i = 0; i < values.length; ++i)
+	    values[i] = row.get(indices.get(i));
+	List<Object> key = batchKey(values);
+	if (key != null && batchable(values) && !keys.containsKey(key))
+	    keys.put(key, values);
+    }
+
+    batchValues = new HashMap<List<Object>, String>();
+    HashMap<List<Object>, ArrayList<String>> rowStrings =
+	new HashMap<List<Object>, ArrayList<String>>();
+    for (List<Object> key : keys.keySet()) {
+	batchValues.put(key, "");
+	rowStrings.put(key, new ArrayList<String>());
+    }
+
+    SubreportQuery query = (SubreportQuery)getDataSource().getQuery();
+    List<Column> joinedColumns = query.joinedColumns();
+    query.setBatchKeys(new ArrayList<Object[]>(keys.values()));
+    rset = null;
     try {
 	rset = getDataSource().execute();
-	if (rset != null)
-	    cachedValue = StringUtils.join(makeRowStrings(), "\n");
+	if (rset == null)
+	    return;
+
+	Section detail = getFirstSectionByArea(SectionArea.DETAIL);
+	Object[] values = new Object[joinedColumns.size()];
+	while (rset.next()) {
+	    for (int i = 0; i < values.length; ++i)
+		values[i] = columnValue(joinedColumns.get(i));
+	    ArrayList<String> strings = rowStrings.get(batchKey(values));
+	    if (strings != null)
+		strings.add(rowString(detail));
+	}
+	for (Map.Entry<List<Object>, ArrayList<String>> entry :
+		 rowStrings.entrySet())
+	    batchValues.put(entry.getKey(),
+			    StringUtils.join(entry.getValue(), "\n"));
     }
     catch (Exception e) {
 	ErrorHandler.error(e.toString());
     }
     finally {
+	query.setBatchKeys(null);
 	if (rset != null)
 	    rset.close();
     }
+}
 
-    return cachedValue;
+/**
+ * Returns a key for a list of join column values that compares them the way
+ * the database would, or <code>null</code> if any of them is
+ * <code>null</code>. Numbers are compared by value no matter what their
+ * class, and dates and timestamps by their millisecond values. Only use
+ * this for values that are {@link #batchable}.
+ *
+ * @param values join column values
+ * @return a key for a hash map; may be <code>null</code>
+ */
+protected static List<Object> batchKey(Object[] values) {
+    ArrayList<Object> key = new ArrayList<Object>(values.length);
+    for (Object val : values) {
+	if (val == null)
+	    return null;
+	if (val instanceof Number) {
+	    try {
+		val = new BigDecimal(val.toString()).stripTrailingZeros();
+	    }
+	    catch (NumberFormatException nfe) {} // NaN or infinity
+	}
+	else if (val instanceof java.util.Date)
+	    val = new Long(((java.util.Date)val).getTime());
+	key.add(val);
+    }
+    return key;
 }
 
 /**
@@ -94,20 +375,29 @@ public Object getValue() {
 protected Collection<String> makeRowStrings() {
     ArrayList<String> rowStrings = new ArrayList<String>();
     Section detail = getFirstSectionByArea(SectionArea.DETAIL);
-    while (rset.next()) {
-	ArrayList<Object> values = new ArrayList<Object>();
-	for (Field f : detail.fields()) {
-	    String str = f.toString();
-	    values.add(str == null ? "" : str);
-	}
-	rowStrings.add(StringUtils.join(values, " "));
-    }
+    while (rset.next())
+	rowStrings.add(rowString(detail));
     return rowStrings;
 }
 
+/**
+ * Returns the values of the fields in <var>detail</var> for the current row,
+ * separated by spaces.
+ */
+protected String rowString(Section detail) {
+    ArrayList<Object> values = new ArrayList<Object>();
+    for (Field f : detail.fields()) {
+	String str = f.toString();
+	values.add(str == null ? "" : str);
+    }
+    return StringUtils.join(values, " ");
+}
+
 public void writeXML(XMLWriter out) {
     out.startElement("subreport");
     out.attr("id", id);
+    if (getCacheSize() != DEFAULT_CACHE_SIZE)
+	out.attr("cache-size", getCacheSize());
     getDataSource().getQuery().writeXML(out);
     ListWriter.writeList(out, formulas.values(), "formulas");
     ListWriter.writeList(out, usercols.values(), "usercols");
@@ -0,0 +1,460 @@
+package jimm.datavision.expr;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns the source code of a simple Ruby expression into a tree of {@link
+ * Node}s. Anything outside of the subset described in {@link
+ * NativeExpression} causes an {@link UnsupportedExpressionException}.
+ * <p>
+ * Operator precedence follows Ruby's, from lowest to highest:
+ * <code>and or</code>, <code>not</code>, <code>? :</code>,
+ * <code>||</code>, <code>&amp;&amp;</code>, <code>== !=</code>,
+ * <code>&lt; &lt;= &gt; &gt;=</code>, <code>+ -</code>,
+ * <code>* / %</code>, unary <code>! - +</code>, and method calls.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+class ExpressionParser {
+
+// ================================================================
+static class Token {
+static final int NUMBER = 0;
+static final int STRING = 1;
+static final int IDENT = 2;
+static final int OP = 3;
+static final int EOF = 4;
+
+int type;
+String text;
+Object value;
+int start, end;
+boolean newlineBefore;
+
+Token(int type, String text, Object value, int start, int end,
+      boolean newlineBefore)
+{
+    this.type = type;
+    this.text = text;
+    this.value = value;
+    this.start = start;
+    this.end = end;
+    this.newlineBefore = newlineBefore;
+}
+
+boolean is(String op) { return type == OP && text.equals(op); }
+boolean isWord(String word) { return type == IDENT && text.equals(word); }
+}
+// ================================================================
+
+/** Multi-character operators, longest first. */
+protected static final String[] OPERATORS = {
+    "<=>", "===", "**=", "&&=", "||=", "<<=", ">>=", "...",
+    "==", "!=", "<=", ">=", "&&", "||", "**", "<<", ">>", "=~", "!~", "::",
+    "..", "+=", "-=", "*=", "/=", "%=", "|=", "&=", "^="
+};
+
+protected String source;
+protected List<String> variableNames;
+protected ArrayList<Token> tokens;
+protected int pos;
+
+ExpressionParser(String source, List<String> variableNames) {
+    this.source = source;
+    this.variableNames = variableNames;
+}
+
+/**
+ * Parses the source and returns the root of the syntax tree.
+ *
+ * @throws UnsupportedExpressionException
+ */
+Node parse() {
+    tokenize();
+    pos = 0;
+    Node node = parseExpression();
+    if (peek().type != Token.EOF)
+	throw unsupported(peek());
+    return node;
+}
+
+// ================================================================
+// Tokenizing
+
+protected void tokenize() {
+    tokens = new ArrayList<Token>();
+    int len = source.length();
+    int i = 0;
+    boolean newline = false;
+
+    while (i < len) {
+	char c = source.charAt(i);
+	if (c == '\n') {
+	    newline = true;
+	    ++i;
+	}
+	else if (c == ' ' || c == '\t' || c == '\r' || c == '\f')
+	    ++i;
+	else if (c == '\\' && i + 1 < len && source.charAt(i + 1) == '\n')
+	    i += 2;		// Line continuation
+	else if (c == '#') {
+	    while (i < len && source.charAt(i) != '\n')
+		++i;
+	}
+	else {
+	    int start = i;
+	    Token t;
+	    if (Character.isDigit(c))
+		t = number(start);
+	    else if (c == '"' || c == '\'')
+		t = string(start, c);
+	    else if (c == '_' || Character.isLetter(c))
+		t = identifier(start);
+	    else
+		t = operator(start);
+	    t.newlineBefore = newline;
+	    tokens.add(t);
+	    newline = false;
+	    i = t.end;
+	}
+    }
+    tokens.add(new Token(Token.EOF, "", null, len, len, newline));
+}
+
+protected Token number(int start) {
+    int len = source.length();
+    int i = start;
+    if (source.charAt(i) == '0' && i + 1 < len
+	&& (Character.isLetterOrDigit(source.charAt(i + 1))
+	    || source.charAt(i + 1) == '_'))
+	throw new UnsupportedExpressionException("octal, hex, or binary");
+
+    StringBuilder digits = new StringBuilder();
+    i = digitsFrom(i, digits);
+    boolean isFloat = false;
+    if (i + 1 < len && source.charAt(i) == '.'
+	&& Character.isDigit(source.charAt(i + 1)))
+    {
+	isFloat = true;
+	digits.append('.');
+	i = digitsFrom(i + 1, digits);
+    }
+    if (i < len && (source.charAt(i) == 'e' || source.charAt(i) == 'E')) {
+	int j = i + 1;
+	StringBuilder exp = new StringBuilder("e");
+	if (j < len && (source.charAt(j) == '+' || source.charAt(j) == '-'))
+	    exp.append(source.charAt(j++));
+	if (j < len && Character.isDigit(source.charAt(j))) {
+	    isFloat = true;
+	    i = digitsFrom(j, exp);
+	    digits.append(exp);
+	}
+    }
+    if (i < len && (Character.isLetter(source.charAt(i))
+		    || source.charAt(i) == '_'))
+	throw new UnsupportedExpressionException("number suffix");
+
+    String text = digits.toString();
+    Object value;
+    try {
+	value = isFloat ? (Object)Double.valueOf(text)
+	    : (Object)Long.valueOf(text);
+    }
+    catch (NumberFormatException e) {
+	throw new UnsupportedExpressionException("Bignum literal");
+    }
+    return new Token(Token.NUMBER, text, value, start, i, false);
+}
+
+/**
+ * Appends the digits starting at <var>i</var> to <var>buf</var>, skipping
+ * Ruby's underscore separators, and returns the position after them.
+ */
+protected int digitsFrom(int i, StringBuilder buf) {
+    int len = source.length();
+    while (i < len) {
+	char c = source.charAt(i);
+	if (Character.isDigit(c))
+	    buf.append(c);
+	else if (!(c == '_' && i + 1 < len
+		   && Character.isDigit(source.charAt(i + 1))))
+	    break;
+	++i;
+    }
+    return i;
+}
+
+protected Token string(int start, char quote) {
+    int len = source.length();
+    StringBuilder buf = new StringBuilder();
+    for (int i = start + 1; i < len; ++i) {
+	char c = source.charAt(i);
+	if (c == quote)
+	    return new Token(Token.STRING, source.substring(start, i + 1),
+			     buf.toString(), start, i + 1, false);
+
+	if (c == '\\' && i + 1 < len) {
+	    char next = source.charAt(++i);
+	    if (quote == '\'') {
+		if (next != '\\' && next != '\'')
+		    buf.append(c);
+		buf.append(next);
+	    }
+	    else {
+		switch (next) {
+		case '\\': case '"': buf.append(next); break;
+		case 'n': buf.append('\n'); break;
+		case 't': buf.append('\t'); break;
+		case 'r': buf.append('\r'); break;
+		case 's': buf.append(' '); break;
+		default:
+		    throw new UnsupportedExpressionException("string escape");
+		}
+	    }
+	}
+	else if (quote == '"' && c == '#' && i + 1 < len
+		 && "{@$".indexOf(source.charAt(i + 1)) >= 0)
+	    throw new UnsupportedExpressionException("string interpolation");
+	else
+	    buf.append(c);
+    }
+    throw new UnsupportedExpressionException("unterminated string");
+}
+
+protected Token identifier(int start) {
+    int len = source.length();
+    int i = start;
+    while (i < len && (source.charAt(i) == '_'
+		       || Character.isLetterOrDigit(source.charAt(i))))
+	++i;
+    // Method names may end with '?' or '!'
+    Token prev = tokens.isEmpty() ? null : tokens.get(tokens.size() - 1);
+    if (prev != null && prev.is(".") && i < len
+	&& (source.charAt(i) == '?' || source.charAt(i) == '!')
+	&& !(i + 1 < len && source.charAt(i + 1) == '='))
+	++i;
+    return new Token(Token.IDENT, source.substring(start, i), null, start, i,
+		     false);
+}
+
+protected Token operator(int start) {
+    for (String op : OPERATORS)
+	if (source.startsWith(op, start))
+	    return new Token(Token.OP, op, null, start, start + op.length(),
+			     false);
+    return new Token(Token.OP, source.substring(start, start + 1), null,
+		     start, start + 1, false);
+}
+
+// ================================================================
+// Parsing
+
+protected Token peek() { return tokens.get(pos); }
+
+protected Token next() { return tokens.get(pos++); }
+
+/**
+ * Returns <code>true</code> if the next token is the binary or postfix
+ * operator <var>op</var>. In Ruby, a newline ends an expression, so an
+ * operator at the start of a line doesn't count.
+ */
+protected boolean atOperator(String op) {
+    Token t = peek();
+    return t.is(op) && !t.newlineBefore;
+}
+
+protected boolean atWord(String word) {
+    Token t = peek();
+    return t.isWord(word) && !t.newlineBefore;
+}
+
+protected void expect(String op) {
+    Token t = next();
+    if (!t.is(op))
+	throw unsupported(t);
+}
+
+protected UnsupportedExpressionException unsupported(Token t) {
+    return new UnsupportedExpressionException("unexpected \"" + t.text
+					      + "\" at " + t.start);
+}
+
+protected Node parseExpression() {
+    Node node = parseNot();
+    while (true) {
+	if (atWord("and")) {
+	    next();
+	    node = new Node.And(node, parseNot());
+	}
+	else if (atWord("or")) {
+	    next();
+	    node = new Node.Or(node, parseNot());
+	}
+	else
+	    return node;
+    }
+}
+
+protected Node parseNot() {
+    if (peek().isWord("not")) {
+	next();
+	return new Node.Not(parseNot());
+    }
+    return parseConditional();
+}
+
+protected Node parseConditional() {
+    Node test = parseOr();
+    if (!atOperator("?"))
+	return test;
+
+    // Ruby reads "?x" as a character literal and ":x" as a symbol, so we
+    // insist on spaces after the ternary operators.
+    Token question = next();
+    if (question.end >= source.length()
+	|| !Character.isWhitespace(source.charAt(question.end)))
+	throw unsupported(question);
+    Node ifTrue = parseConditional();
+    Token colon = peek();
+    expect(":");
+    if (colon.end >= source.length()
+	|| !Character.isWhitespace(source.charAt(colon.end)))
+	throw unsupported(colon);
+    Node ifFalse = parseConditional();
+    return new Node.Conditional(test, ifTrue, ifFalse);
+}
+
+protected Node parseOr() {
+    Node node = parseAnd();
+    while (atOperator("||")) {
+	next();
+	node = new Node.Or(node, parseAnd());
+    }
+    return node;
+}
+
+protected Node parseAnd() {
+    Node node = parseEquality();
+    while (atOperator("&&")) {
+	next();
+	node = new Node.And(node, parseEquality());
+    }
+    return node;
+}
+
+protected Node parseEquality() {
+    Node node = parseComparison();
+    int op;
+    if (atOperator("==")) op = Node.Binary.EQUAL;
+    else if (atOperator("!=")) op = Node.Binary.NOT_EQUAL;
+    else return node;
+    next();
+    node = new Node.Binary(op, node, parseComparison());
+    if (atOperator("==") || atOperator("!="))	// Not associative in Ruby
+	throw unsupported(peek());
+    return node;
+}
+
+protected Node parseComparison() {
+    Node node = parseAdditive();
+    while (true) {
+	int op;
+	if (atOperator("<")) op = Node.Binary.LESS;
+	else if (atOperator("<=")) op = Node.Binary.LESS_EQUAL;
+	else if (atOperator(">")) op = Node.Binary.GREATER;
+	else if (atOperator(">=")) op = Node.Binary.GREATER_EQUAL;
+	else return node;
+	next();
+	node = new Node.Binary(op, node, parseAdditive());
+    }
+}
+
+protected Node parseAdditive() {
+    Node node = parseMultiplicative();
+    while (true) {
+	int op;
+	if (atOperator("+")) op = Node.Binary.ADD;
+	else if (atOperator("-")) op = Node.Binary.SUBTRACT;
+	else return node;
+	next();
+	node = new Node.Binary(op, node, parseMultiplicative());
+    }
+}
+
+protected Node parseMultiplicative() {
+    Node node = parseUnary();
+    while (true) {
+	int op;
+	if (atOperator("*")) op = Node.Binary.MULTIPLY;
+	else if (atOperator("/")) op = Node.Binary.DIVIDE;
+	else if (atOperator("%")) op = Node.Binary.MODULO;
+	else return node;
+	next();
+	node = new Node.Binary(op, node, parseUnary());
+    }
+}
+
+protected Node parseUnary() {
+    Token t = peek();
+    if (t.is("!")) {
+	next();
+	return new Node.Not(parseUnary());
+    }
+    if (t.is("-") || t.is("+")) {
+	next();
+	Token num = peek();
+	// "-2.abs" is the method call on the literal -2, not -(2.abs)
+	if (num.type == Token.NUMBER && num.start == t.end) {
+	    next();
+	    Object value = num.value;
+	    if (t.is("-"))
+		value = (value instanceof Long)
+		    ? (Object)new Long(-((Long)value).longValue())
+		    : (Object)new Double(-((Double)value).doubleValue());
+	    return parsePostfix(new Node.Literal(value));
+	}
+	if (t.is("+"))		// Unary plus only makes sense on numbers
+	    throw unsupported(t);
+	return new Node.Negate(parseUnary());
+    }
+    return parsePostfix(parsePrimary());
+}
+
+protected Node parsePostfix(Node node) {
+    while (atOperator(".")) {
+	next();
+	Token name = next();
+	if (name.type != Token.IDENT || !Node.MethodCall.isKnown(name.text)
+	    || peek().is("(") || peek().is("{"))
+	    throw unsupported(name);
+	node = new Node.MethodCall(node, name.text);
+    }
+    return node;
+}
+
+protected Node parsePrimary() {
+    Token t = next();
+    switch (t.type) {
+    case Token.NUMBER:
+    case Token.STRING:
+	return new Node.Literal(t.value);
+    case Token.IDENT:
+	if (t.text.equals("nil")) return new Node.Literal(null);
+	if (t.text.equals("true")) return new Node.Literal(Boolean.TRUE);
+	if (t.text.equals("false")) return new Node.Literal(Boolean.FALSE);
+	int index = variableNames.indexOf(t.text);
+	if (index >= 0)
+	    return new Node.Variable(index);
+	break;
+    case Token.OP:
+	if (t.is("(")) {
+	    Node node = parseExpression();
+	    expect(")");
+	    return node;
+	}
+	break;
+    }
+    throw unsupported(t);
+}
+
+}
@@ -0,0 +1,168 @@
+package jimm.datavision.expr;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A native expression is a simple Ruby expression that DataVision evaluates
+ * itself instead of handing it to the Bean Scripting Framework. It is used
+ * for the most common kinds of formulas: arithmetic, comparisons, string
+ * concatenation, and <code>nil</code> checks of column, parameter, and
+ * formula values.
+ * <p>
+ * The subset of Ruby that is understood is:
+ * <ul>
+ * <li>Integer, float, string, <code>nil</code>, <code>true</code>, and
+ * <code>false</code> literals</li>
+ * <li>Variables (the names passed in to {@link #parse})</li>
+ * <li><code>+ - * / %</code>, <code>== != &lt; &lt;= &gt; &gt;=</code>,
+ * <code>! &amp;&amp; || not and or</code>, and <code>? :</code></li>
+ * <li>The methods <code>nil? zero? empty? to_s to_i to_f abs round floor
+ * ceil length size upcase downcase strip</code></li>
+ * <li>Parentheses and comments</li>
+ * </ul>
+ * <p>
+ * Results are the same as those returned by the JRuby engine: integers are
+ * returned as <code>Long</code>s, floats as <code>Double</code>s, and
+ * <code>nil</code> as <code>null</code>. When a value would make Ruby do
+ * something we don't (raise an exception, create a Bignum, or call a method
+ * on an unexpected type), {@link #eval} throws an {@link
+ * UnsupportedExpressionException} and the caller should let Ruby evaluate
+ * the expression instead.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class NativeExpression {
+
+protected String source;
+protected Node root;
+protected int numVariables;
+
+/**
+ * Parses <var>source</var> and returns a native expression, or
+ * <code>null</code> if the source uses anything outside of the subset of
+ * Ruby that we understand.
+ *
+ * @param source Ruby expression source code
+ * @param variableNames the names of the variables that may appear in the
+ * expression; the value of each is passed to {@link #eval} in the same order
+ * @return a new native expression or <code>null</code>
+ */
+public static NativeExpression parse(String source, List<String> variableNames)
+{
+    if (source == null)
+	return null;
+    try {
+	Node root = new ExpressionParser(source, variableNames).parse();
+	return new NativeExpression(source, root, variableNames.size());
+    }
+    catch (UnsupportedExpressionException e) {
+	return null;
+    }
+}
+
+protected NativeExpression(String source, Node root, int numVariables) {
+    this.source = source;
+    this.root = root;
+    this.numVariables = numVariables;
+}
+
+/**
+ * Evaluates this expression using the given variable values and returns
+ * the result.
+ *
+ * @param args the variable values, in the same order as the variable names
+ * given to {@link #parse}; each must be <code>null</code>, a
+ * <code>String</code>, a <code>Boolean</code>, or a <code>Number</code>
+ * @return a <code>Long</code>, <code>Double</code>, <code>String</code>,
+ * <code>Boolean</code>, or <code>null</code>
+ * @throws UnsupportedExpressionException if Ruby must evaluate this
+ * expression using these values
+ */
+public Object eval(Object[] args) {
+    Object[] vars = new Object[numVariables];
+    for (int i = 0; i < numVariables; ++i)
+	vars[i] = Node.normalize(args[i]);
+    return root.eval(vars);
+}
+
+/**
+ * Returns the ranges that variables must fall within for this expression
+ * to be true. Only comparisons of a variable with a number or string
+ * literal at the top level of the expression, or joined by "and" or
+ * "&amp;&amp;", are used. A comparison of a <code>nil</code> value is never
+ * true, so a variable with a range can't be <code>nil</code> either.
+ * <p>
+ * Data sources use the ranges to skip data that can't match.
+ *
+ * @return a possibly empty list of ranges whose indices are variable
+ * indices
+ */
+public List<Range> requiredRanges() {
+    List<Range> ranges = new ArrayList<Range>();
+    addRequiredRanges(root, ranges);
+    return ranges;
+}
+
+protected static void addRequiredRanges(Node node, List<Range> ranges) {
+    if (node instanceof Node.And) {
+	addRequiredRanges(((Node.And)node).left, ranges);
+	addRequiredRanges(((Node.And)node).right, ranges);
+	return;
+    }
+    if (!(node instanceof Node.Binary))
+	return;
+
+    Node.Binary b = (Node.Binary)node;
+    int op = b.op;
+    Node var = b.left, lit = b.right;
+    if (var instanceof Node.Literal) { // Flip "1 < x" into "x > 1"
+	var = b.right;
+	lit = b.left;
+	switch (op) {
+	case Node.Binary.LESS: op = Node.Binary.GREATER; break;
+	case Node.Binary.LESS_EQUAL: op = Node.Binary.GREATER_EQUAL; break;
+	case Node.Binary.GREATER: op = Node.Binary.LESS; break;
+	case Node.Binary.GREATER_EQUAL: op = Node.Binary.LESS_EQUAL; break;
+	}
+    }
+    if (!(var instanceof Node.Variable) || !(lit instanceof Node.Literal))
+	return;
+    Object value = ((Node.Literal)lit).value;
+    if (!(value instanceof Long || value instanceof Double
+	  || value instanceof String))
+	return;
+
+    int index = ((Node.Variable)var).index;
+    switch (op) {
+    case Node.Binary.EQUAL:
+	ranges.add(new Range(index, value, true, value, true));
+	break;
+    case Node.Binary.LESS:
+	ranges.add(new Range(index, null, false, value, false));
+	break;
+    case Node.Binary.LESS_EQUAL:
+	ranges.add(new Range(index, null, false, value, true));
+	break;
+    case Node.Binary.GREATER:
+	ranges.add(new Range(index, value, false, null, false));
+	break;
+    case Node.Binary.GREATER_EQUAL:
+	ranges.add(new Range(index, value, true, null, false));
+	break;
+    }
+}
+
+/**
+ * Returns Ruby's idea of truth: everything but <code>nil</code> and
+ * <code>false</code> is true.
+ *
+ * @param val a value returned by {@link #eval}
+ * @return <code>true</code> if Ruby would consider <var>val</var> true
+ */
+public static boolean isTrue(Object val) {
+    return Node.isTrue(val);
+}
+
+public String toString() { return source; }
+
+}
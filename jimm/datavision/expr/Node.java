@@ -0,0 +1,357 @@
+package jimm.datavision.expr;
+import java.util.Locale;
+
+/**
+ * A node in a native expression's syntax tree. The subclasses of this class
+ * know how to evaluate themselves using Ruby's rules for the types
+ * <code>Long</code> (Fixnum), <code>Double</code> (Float),
+ * <code>String</code>, <code>Boolean</code>, and <code>null</code> (nil).
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+abstract class Node {
+
+/**
+ * Evaluates this node.
+ *
+ * @param vars variable values, already normalized
+ * @return the result
+ * @throws UnsupportedExpressionException if Ruby would do something we
+ * don't
+ */
+abstract Object eval(Object[] vars);
+
+/**
+ * Returns <var>val</var> converted to one of the types we understand.
+ * Integer types become <code>Long</code>s and floats become
+ * <code>Double</code>s, just as they do when handed to JRuby.
+ */
+static Object normalize(Object val) {
+    if (val == null || val instanceof Long || val instanceof Double
+	|| val instanceof String || val instanceof Boolean)
+	return val;
+    if (val instanceof Integer || val instanceof Short || val instanceof Byte)
+	return new Long(((Number)val).longValue());
+    if (val instanceof Float)
+	return new Double(((Float)val).doubleValue());
+    throw unsupported("value of type " + val.getClass().getName());
+}
+
+/** Returns Ruby's idea of truth: everything but nil and false is true. */
+static boolean isTrue(Object val) {
+    return val != null && !Boolean.FALSE.equals(val);
+}
+
+static UnsupportedExpressionException unsupported(String what) {
+    return new UnsupportedExpressionException(what);
+}
+
+static boolean isAscii(String str) {
+    for (int i = 0; i < str.length(); ++i)
+	if (str.charAt(i) > 127)
+	    return false;
+    return true;
+}
+
+/** Returns <var>d</var> as a <code>Long</code> if it fits. */
+static Long toLong(double d) {
+    if (Double.isNaN(d) || d < Long.MIN_VALUE || d >= 0x1p63)
+	throw unsupported("float out of range");
+    return new Long((long)d);
+}
+
+// ================================================================
+static class Literal extends Node {
+Object value;
+Literal(Object value) { this.value = value; }
+Object eval(Object[] vars) { return value; }
+}
+
+// ================================================================
+static class Variable extends Node {
+int index;
+Variable(int index) { this.index = index; }
+Object eval(Object[] vars) { return vars[index]; }
+}
+
+// ================================================================
+static class Not extends Node {
+Node operand;
+Not(Node operand) { this.operand = operand; }
+Object eval(Object[] vars) {
+    return Boolean.valueOf(!isTrue(operand.eval(vars)));
+}
+}
+
+// ================================================================
+static class Negate extends Node {
+Node operand;
+Negate(Node operand) { this.operand = operand; }
+Object eval(Object[] vars) {
+    Object val = operand.eval(vars);
+    if (val instanceof Long) {
+	try {
+	    return new Long(Math.negateExact(((Long)val).longValue()));
+	}
+	catch (ArithmeticException e) {
+	    throw unsupported("Bignum");
+	}
+    }
+    if (val instanceof Double)
+	return new Double(-((Double)val).doubleValue());
+    throw unsupported("unary minus");
+}
+}
+
+// ================================================================
+static class And extends Node {
+Node left, right;
+And(Node left, Node right) { this.left = left; this.right = right; }
+Object eval(Object[] vars) {
+    Object val = left.eval(vars);
+    return isTrue(val) ? right.eval(vars) : val;
+}
+}
+
+// ================================================================
+static class Or extends Node {
+Node left, right;
+Or(Node left, Node right) { this.left = left; this.right = right; }
+Object eval(Object[] vars) {
+    Object val = left.eval(vars);
+    return isTrue(val) ? val : right.eval(vars);
+}
+}
+
+// ================================================================
+static class Conditional extends Node {
+Node test, ifTrue, ifFalse;
+Conditional(Node test, Node ifTrue, Node ifFalse) {
+    this.test = test;
+    this.ifTrue = ifTrue;
+    this.ifFalse = ifFalse;
+}
+Object eval(Object[] vars) {
+    return isTrue(test.eval(vars)) ? ifTrue.eval(vars) : ifFalse.eval(vars);
+}
+}
+
+// ================================================================
+static class Binary extends Node {
+
+static final int ADD = 0;
+static final int SUBTRACT = 1;
+static final int MULTIPLY = 2;
+static final int DIVIDE = 3;
+static final int MODULO = 4;
+static final int EQUAL = 5;
+static final int NOT_EQUAL = 6;
+static final int LESS = 7;
+static final int LESS_EQUAL = 8;
+static final int GREATER = 9;
+static final int GREATER_EQUAL = 10;
+
+int op;
+Node left, right;
+
+Binary(int op, Node left, Node right) {
+    this.op = op;
+    this.left = left;
+    this.right = right;
+}
+
+Object eval(Object[] vars) {
+    Object a = left.eval(vars);
+    Object b = right.eval(vars);
+
+    switch (op) {
+    case EQUAL:
+	return Boolean.valueOf(equal(a, b));
+    case NOT_EQUAL:
+	return Boolean.valueOf(!equal(a, b));
+    case LESS:
+	return Boolean.valueOf(compare(a, b) < 0);
+    case LESS_EQUAL:
+	return Boolean.valueOf(compare(a, b) <= 0);
+    case GREATER:
+	return Boolean.valueOf(compare(a, b) > 0);
+    case GREATER_EQUAL:
+	return Boolean.valueOf(compare(a, b) >= 0);
+    }
+
+    if (a instanceof Long && b instanceof Long)
+	return longArithmetic(((Long)a).longValue(), ((Long)b).longValue());
+    if (a instanceof Number && b instanceof Number)
+	return doubleArithmetic(((Number)a).doubleValue(),
+				((Number)b).doubleValue());
+    if (a instanceof String) {
+	if (op == ADD && b instanceof String)
+	    return (String)a + (String)b;
+	if (op == MULTIPLY && b instanceof Long) {
+	    long n = ((Long)b).longValue();
+	    if (n >= 0 && n < 1000000
+		&& n * ((String)a).length() < 1000000)
+	    {
+		StringBuilder buf = new StringBuilder();
+		for (long i = 0; i < n; ++i)
+		    buf.append((String)a);
+		return buf.toString();
+	    }
+	}
+    }
+    throw unsupported("operator on these types");
+}
+
+Long longArithmetic(long a, long b) {
+    try {
+	switch (op) {
+	case ADD: return new Long(Math.addExact(a, b));
+	case SUBTRACT: return new Long(Math.subtractExact(a, b));
+	case MULTIPLY: return new Long(Math.multiplyExact(a, b));
+	case DIVIDE:
+	    if (b == 0 || (a == Long.MIN_VALUE && b == -1))
+		break;
+	    return new Long(Math.floorDiv(a, b));
+	case MODULO:
+	    if (b == 0)
+		break;
+	    return new Long(Math.floorMod(a, b));
+	}
+    }
+    catch (ArithmeticException e) {}
+    throw unsupported("integer overflow or division by zero");
+}
+
+Double doubleArithmetic(double a, double b) {
+    switch (op) {
+    case ADD: return new Double(a + b);
+    case SUBTRACT: return new Double(a - b);
+    case MULTIPLY: return new Double(a * b);
+    case DIVIDE: return new Double(a / b);
+    default:			// MODULO; the result has the sign of b
+	double r = a % b;
+	if (r != 0 && (r < 0) != (b < 0))
+	    r += b;
+	return new Double(r);
+    }
+}
+
+static boolean equal(Object a, Object b) {
+    if (a == null || b == null)
+	return a == b;
+    if (a instanceof Long && b instanceof Long)
+	return ((Long)a).longValue() == ((Long)b).longValue();
+    if (a instanceof Number && b instanceof Number)
+	return ((Number)a).doubleValue() == ((Number)b).doubleValue();
+    return a.equals(b);
+}
+
+static int compare(Object a, Object b) {
+    if (a instanceof Long && b instanceof Long)
+	return ((Long)a).compareTo((Long)b);
+    if (a instanceof Number && b instanceof Number) {
+	double x = ((Number)a).doubleValue(), y = ((Number)b).doubleValue();
+	if (Double.isNaN(x) || Double.isNaN(y))
+	    throw unsupported("comparison with NaN");
+	return x < y ? -1 : (x > y ? 1 : 0);
+    }
+    if (a instanceof String && b instanceof String
+	&& isAscii((String)a) && isAscii((String)b))
+	return ((String)a).compareTo((String)b);
+    throw unsupported("comparison of these types");
+}
+}
+
+// ================================================================
+static class MethodCall extends Node {
+
+/** The methods we know how to call. */
+static final String[] METHODS = {
+    "nil?", "zero?", "empty?", "to_s", "to_i", "to_f", "abs", "round",
+    "floor", "ceil", "length", "size", "upcase", "downcase", "strip"
+};
+
+static boolean isKnown(String name) {
+    for (String m : METHODS)
+	if (m.equals(name))
+	    return true;
+    return false;
+}
+
+Node receiver;
+String name;
+
+MethodCall(Node receiver, String name) {
+    this.receiver = receiver;
+    this.name = name;
+}
+
+Object eval(Object[] vars) {
+    Object val = receiver.eval(vars);
+
+    if ("nil?".equals(name))
+	return Boolean.valueOf(val == null);
+
+    if (val == null) {
+	if ("to_s".equals(name)) return "";
+	if ("to_i".equals(name)) return new Long(0);
+	if ("to_f".equals(name)) return new Double(0);
+    }
+    else if (val instanceof Long) {
+	long l = ((Long)val).longValue();
+	if ("zero?".equals(name)) return Boolean.valueOf(l == 0);
+	if ("to_s".equals(name)) return Long.toString(l);
+	if ("to_f".equals(name)) return new Double(l);
+	if ("abs".equals(name) && l != Long.MIN_VALUE)
+	    return new Long(Math.abs(l));
+	if ("to_i".equals(name) || "round".equals(name)
+	    || "floor".equals(name) || "ceil".equals(name))
+	    return val;
+    }
+    else if (val instanceof Double) {
+	double d = ((Double)val).doubleValue();
+	if ("zero?".equals(name)) return Boolean.valueOf(d == 0);
+	if ("to_f".equals(name)) return val;
+	if ("abs".equals(name)) return new Double(Math.abs(d));
+	if ("to_i".equals(name))
+	    return toLong(d < 0 ? Math.ceil(d) : Math.floor(d));
+	if ("floor".equals(name)) return toLong(Math.floor(d));
+	if ("ceil".equals(name)) return toLong(Math.ceil(d));
+	if ("round".equals(name))	// Halves round away from zero
+	    return toLong(d < 0 ? -Math.floor(-d + 0.5) : Math.floor(d + 0.5));
+    }
+    else if (val instanceof String) {
+	String s = (String)val;
+	if ("to_s".equals(name)) return s;
+	if ("empty?".equals(name)) return Boolean.valueOf(s.length() == 0);
+	if (isAscii(s)) {
+	    if ("length".equals(name) || "size".equals(name))
+		return new Long(s.length());
+	    if ("upcase".equals(name)) return s.toUpperCase(Locale.ENGLISH);
+	    if ("downcase".equals(name)) return s.toLowerCase(Locale.ENGLISH);
+	    if ("strip".equals(name)) return strip(s);
+	}
+    }
+    else if (val instanceof Boolean) {
+	if ("to_s".equals(name)) return val.toString();
+    }
+    throw unsupported("method " + name);
+}
+
+/** Ruby's String#strip. */
+static String strip(String s) {
+    int start = 0, end = s.length();
+    while (start < end && isRubySpace(s.charAt(start)))
+	++start;
+    while (end > start
+	   && (isRubySpace(s.charAt(end - 1)) || s.charAt(end - 1) == 0))
+	--end;
+    return s.substring(start, end);
+}
+
+static boolean isRubySpace(char c) {
+    return c == ' ' || (c >= '\t' && c <= '\r');
+}
+}
+
+}
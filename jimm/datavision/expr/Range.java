@@ -0,0 +1,106 @@
+package jimm.datavision.expr;
+
+/**
+ * A range of values that one variable must fall within for an expression
+ * to be true. The bounds are <code>Long</code>s, <code>Double</code>s, or
+ * <code>String</code>s; a <code>null</code> bound means there is no bound
+ * on that side. See {@link NativeExpression#requiredRanges}.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class Range {
+
+protected int index;
+protected Object low;
+protected boolean lowInclusive;
+protected Object high;
+protected boolean highInclusive;
+
+/**
+ * Constructor.
+ *
+ * @param index the index of the variable or column the range applies to
+ * @param low the lowest value; <code>null</code> if unbounded
+ * @param lowInclusive <code>true</code> if <var>low</var> is in the range
+ * @param high the highest value; <code>null</code> if unbounded
+ * @param highInclusive <code>true</code> if <var>high</var> is in the range
+ */
+public Range(int index, Object low, boolean lowInclusive, Object high,
+	     boolean highInclusive)
+{
+    this.index = index;
+    this.low = low;
+    this.lowInclusive = lowInclusive;
+    this.high = high;
+    this.highInclusive = highInclusive;
+}
+
+/**
+ * Returns the index of the variable or column the range applies to.
+ *
+ * @return an index, starting at 0
+ */
+public int getIndex() { return index; }
+
+/**
+ * Returns a copy of this range that applies to a different index.
+ *
+ * @param newIndex an index
+ * @return a new range
+ */
+public Range withIndex(int newIndex) {
+    return new Range(newIndex, low, lowInclusive, high, highInclusive);
+}
+
+/**
+ * Returns <code>true</code> if some value between <var>min</var> and
+ * <var>max</var> (inclusive) might be within this range. Numbers are
+ * compared as <code>double</code>s and strings are compared with each
+ * other. If the bounds and the values aren't the same kind of thing, we
+ * can't tell, so we return <code>true</code>.
+ *
+ * @param min the smallest value; a <code>Number</code> or a
+ * <code>String</code>
+ * @param max the largest value; the same type as <var>min</var>
+ * @return <code>false</code> if no value between <var>min</var> and
+ * <var>max</var> can be within this range
+ */
+public boolean overlaps(Object min, Object max) {
+    if (low != null) {
+	int cmp = compare(max, low);
+	if (cmp == Integer.MIN_VALUE)
+	    return true;
+	if (cmp < 0 || (cmp == 0 && !lowInclusive))
+	    return false;
+    }
+    if (high != null) {
+	int cmp = compare(min, high);
+	if (cmp == Integer.MIN_VALUE)
+	    return true;
+	if (cmp > 0 || (cmp == 0 && !highInclusive))
+	    return false;
+    }
+    return true;
+}
+
+/**
+ * Compares <var>a</var> and <var>b</var>, returning
+ * <code>Integer.MIN_VALUE</code> if they can't be compared.
+ */
+protected static int compare(Object a, Object b) {
+    if (a instanceof Number && b instanceof Number)
+	return Double.compare(((Number)a).doubleValue(),
+			      ((Number)b).doubleValue());
+    if (a instanceof String && b instanceof String) {
+	int cmp = ((String)a).compareTo((String)b);
+	return cmp < 0 ? -1 : (cmp > 0 ? 1 : 0);
+    }
+    return Integer.MIN_VALUE;
+}
+
+public String toString() {
+    return (lowInclusive ? "[" : "(") + low + ", " + high
+	+ (highInclusive ? "]" : ")") + " at " + index;
+}
+
+}
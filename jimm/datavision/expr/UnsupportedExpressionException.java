@@ -0,0 +1,19 @@
+package jimm.datavision.expr;
+
+/**
+ * Thrown when an expression or one of its values is outside of what a
+ * {@link NativeExpression} can handle. The caller should hand the expression
+ * to the scripting language instead, which will either produce the same
+ * answer more slowly or report the error to the user.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class UnsupportedExpressionException extends RuntimeException {
+
+private static final long serialVersionUID = 1L;
+
+public UnsupportedExpressionException(String msg) {
+    super(msg);
+}
+
+}
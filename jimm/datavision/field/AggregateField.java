@@ -1,9 +1,52 @@
 package jimm.datavision.field;
 import jimm.datavision.*;
+import jimm.datavision.source.TypedRow;
+import jimm.util.HyperLogLog;
+import jimm.util.QuantileSketch;
+import jimm.util.XMLWriter;
 import java.util.*;
 
 interface AggregateFunction {
-public double aggregate(double[] values, int numValues);
+public Accumulator newAccumulator(int sketchSize);
+}
+
+/**
+ * An accumulator computes an aggregate value one value at a time, using a
+ * fixed amount of memory no matter how many values it sees.
+ */
+interface Accumulator {
+/** Adds a value. */
+public void add(double value);
+/** Returns the aggregate value of all the values added so far. */
+public double value();
+/** Forgets all the values added so far. */
+public void reset();
+/**
+ * Adds all the values added to <var>other</var>, which was created by the
+ * same function.
+ */
+public void merge(Accumulator other);
+}
+
+/**
+ * An accumulator that can combine aggregates computed elsewhere, for
+ * example by the database for each group.
+ */
+interface PartialAccumulator extends Accumulator {
+/**
+ * Adds the result of the query function (see {@link
+ * AggregateField#getQueryFunction}) over <var>count</var> values.
+ */
+public void addPartial(double value, int count);
+}
+
+/**
+ * An accumulator that wants the field's values themselves instead of
+ * their numeric values.
+ */
+interface ObjectAccumulator extends Accumulator {
+/** Adds a value, which may be <code>null</code>. */
+public void addObject(Object value);
 }
 
 /**
@@ -13,84 +56,321 @@ public double aggregate(double[] values, int numValues);
  * meaning that the aggregate value is reset whenever the group's value
  * changes. The value of an aggregate field holds the id of some other field
  * whose value we are aggregating.
+ * <p>
+ * Values are not stored. Instead, each aggregate function keeps a running
+ * total (count, sum, minimum, maximum, or mean and sum of squared
+ * differences) in an {@link Accumulator}, so both updating and reading an
+ * aggregate take constant time and memory.
+ * <p>
+ * The distinct count, median, and percentile functions need to remember
+ * more than that. They keep their values exactly until they have seen more
+ * than <var>sketchSize</var> of them, then switch to a sketch of a fixed
+ * size: a {@link HyperLogLog} for distinct counts and a {@link
+ * QuantileSketch} for medians and percentiles. Small groups get exact
+ * answers and large groups get close ones without using more memory. A
+ * sketch size of zero means always exact, no matter how much memory that
+ * takes.
  *
  * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
  */
 public class AggregateField extends Field {
 
-protected static final int START_VALUES_LENGTH = 100;
+/** The default number of values kept before switching to a sketch. */
+public static final int DEFAULT_SKETCH_SIZE = 512;
 
 /** Maps function names to {@link AggregateFunction} objects. */
 protected static HashMap<String, AggregateFunction> functions;
 /** A sorted array of the function names. */
 protected static Object[] functionNames;
+/**
+ * Maps the names of functions whose accumulators can combine partial
+ * results to the SQL aggregate function that computes those results.
+ */
+protected static HashMap<String, String> queryFunctions;
+
+// ================================================================
+static class Sum implements PartialAccumulator {
+double total;
+public void add(double value) { total += value; }
+public void addPartial(double value, int count) { total += value; }
+public double value() { return total; }
+public void reset() { total = 0; }
+public void merge(Accumulator other) { total += ((Sum)other).total; }
+}
+
+// ================================================================
+static class Min implements PartialAccumulator {
+double min = Double.MAX_VALUE;
+public void add(double value) { if (value < min) min = value; }
+public void addPartial(double value, int count) { add(value); }
+public double value() { return min; }
+public void reset() { min = Double.MAX_VALUE; }
+public void merge(Accumulator other) { add(((Min)other).min); }
+}
+
+// ================================================================
+static class Max implements PartialAccumulator {
+double max = Double.MIN_VALUE;
+public void add(double value) { if (value > max) max = value; }
+public void addPartial(double value, int count) { add(value); }
+public double value() { return max; }
+public void reset() { max = Double.MIN_VALUE; }
+public void merge(Accumulator other) { add(((Max)other).max); }
+}
+
+// ================================================================
+static class Count implements PartialAccumulator {
+int count;
+public void add(double value) { ++count; }
+public void addPartial(double value, int count) { this.count += count; }
+public double value() { return count; }
+public void reset() { count = 0; }
+public void merge(Accumulator other) { count += ((Count)other).count; }
+}
+
+// ================================================================
+static class Average implements PartialAccumulator {
+int count;
+double total;
+public void add(double value) { ++count; total += value; }
+public void addPartial(double value, int count) {
+    this.count += count;
+    total += value;
+}
+public double value() { return count == 0 ? 0 : total / count; }
+public void reset() { count = 0; total = 0; }
+public void merge(Accumulator other) {
+    count += ((Average)other).count;
+    total += ((Average)other).total;
+}
+}
+
+// ================================================================
+/**
+ * Computes the sample standard deviation using Welford's method, which
+ * updates the mean and the sum of squared differences from the mean with
+ * each new value. Two of these are merged using Chan's formula.
+ */
+static class StdDev implements Accumulator {
+int count;
+double mean;
+double sumOfSquares;
+public void add(double value) {
+    ++count;
+    double delta = value - mean;
+    mean += delta / count;
+    sumOfSquares += delta * (value - mean);
+}
+public double value() {
+    return count < 2 ? 0 : Math.sqrt(sumOfSquares / (count - 1));
+}
+public void reset() { count = 0; mean = 0; sumOfSquares = 0; }
+public void merge(Accumulator other) {
+    StdDev o = (StdDev)other;
+    if (o.count == 0)
+	return;
+    int total = count + o.count;
+    double delta = o.mean - mean;
+    sumOfSquares += o.sumOfSquares
+	+ delta * delta * ((double)count * o.count / total);
+    mean += delta * o.count / total;
+    count = total;
+}
+}
+
+// ================================================================
+/**
+ * Counts distinct non-<code>null</code> values. Numbers that are equal are
+ * the same value, no matter what their class; anything else is compared
+ * using its string representation.
+ */
+static class Distinct implements ObjectAccumulator {
+int sketchSize;
+HashSet<Object> exact;
+HyperLogLog sketch;
+Distinct(int sketchSize) {
+    this.sketchSize = sketchSize;
+    exact = new HashSet<Object>();
+}
+public void add(double value) { addObject(new Double(value)); }
+public void addObject(Object value) {
+    if (value == null)
+	return;
+    if (sketch != null) {
+	sketch.add(HyperLogLog.hash(value));
+	return;
+    }
+
+    exact.add(value instanceof Number
+	      ? (Object)new Double(((Number)value).doubleValue() + 0.0)
+	      : value.toString());
+    if (sketchSize > 0 && exact.size() > sketchSize)
+	useSketch();
+}
+void useSketch() {
+    sketch = new HyperLogLog(sketchSize);
+    for (Object obj : exact)
+	sketch.add(HyperLogLog.hash(obj));
+    exact = null;
+}
+public double value() {
+    return sketch != null ? sketch.estimate() : exact.size();
+}
+public void reset() {
+    exact = new HashSet<Object>();
+    sketch = null;
+}
+public void merge(Accumulator other) {
+    Distinct o = (Distinct)other;
+    if (o.sketch == null) {
+	for (Object obj : o.exact)
+	    addObject(obj);
+	return;
+    }
+    if (sketch == null)
+	useSketch();
+    sketch.merge(o.sketch);
+}
+}
+
+// ================================================================
+/**
+ * Computes a quantile. Exact answers interpolate between the two nearest
+ * values, so the median of an even number of values is the average of the
+ * middle two.
+ */
+static class Quantile implements Accumulator {
+double q;
+int sketchSize;
+double[] values;
+int numValues;
+boolean sorted;
+QuantileSketch sketch;
+Quantile(double q, int sketchSize) {
+    this.q = q;
+    this.sketchSize = sketchSize;
+    values = new double[16];
+}
+public void add(double value) {
+    if (sketch != null) {
+	sketch.add(value);
+	return;
+    }
+
+    if (numValues == values.length) {
+	double[] newValues = new double[values.length * 2];
+	System.arraycopy(values, 0, newValues, 0, numValues);
+	values = newValues;
+    }
+    values[numValues++] = value;
+    sorted = false;
+
+    if (sketchSize > 0 && numValues > sketchSize)
+	useSketch();
+}
+void useSketch() {
+    sketch = new QuantileSketch(sketchSize);
+    for (int i = 0; i < numValues; ++i)
+	sketch.add(values[i]);
+    values = null;
+}
+public double value() {
+    if (sketch != null)
+	return sketch.quantile(q);
+    if (numValues == 0)
+	return 0;
+    if (!sorted) {
+	Arrays.sort(values, 0, numValues);
+	sorted = true;
+    }
+    double pos = q * (numValues - 1);
+    int lo = (int)Math.floor(pos);
+    int hi = Math.min(lo + 1, numValues - 1);
+    return values[lo] + (pos - lo) * (values[hi] - values[lo]);
+}
+public void reset() {
+    if (values == null)
+	values = new double[16];
+    numValues = 0;
+    sketch = null;
+}
+public void merge(Accumulator other) {
+    Quantile o = (Quantile)other;
+    if (o.sketch == null) {
+	for (int i = 0; i < o.numValues; ++i)
+	    add(o.values[i]);
+	return;
+    }
+    if (sketch == null)
+	useSketch();
+    sketch.merge(o.sketch);
+}
+}
+
+/** Returns a function that computes the <var>q</var>'th quantile. */
+static AggregateFunction quantileFunction(final double q) {
+    return new AggregateFunction() {
+	public Accumulator newAccumulator(int sketchSize) {
+	    return new Quantile(q, sketchSize);
+	}
+	};
+}
+// ================================================================
 
 // Initialize map from function names to functions.
 static {
     functions = new HashMap<String, AggregateFunction>();
     functions.put("sum", new AggregateFunction() {
-	public double aggregate(double[] values, int numValues) {
-	    double total = 0;
-	    for (int i = 0; i < numValues; ++i) total += values[i];
-	    return total;
-	}
+	public Accumulator newAccumulator(int sketchSize) { return new Sum(); }
 	});
     functions.put("subtotal", functions.get("sum")); // Old name for "sum"
     functions.put("min", new AggregateFunction() {
-	public double aggregate(double[] values, int numValues) {
-	    double min = Double.MAX_VALUE;
-	    for (int i = 0; i < numValues; ++i)
-		if (values[i] < min) min = values[i];
-	    return min;
-	}
+	public Accumulator newAccumulator(int sketchSize) { return new Min(); }
 	});
     functions.put("max", new AggregateFunction() {
-	public double aggregate(double[] values, int numValues) {
-	    double max = Double.MIN_VALUE;
-	    for (int i = 0; i < numValues; ++i)
-		if (values[i] > max) max = values[i];
-	    return max;
-	}
+	public Accumulator newAccumulator(int sketchSize) { return new Max(); }
 	});
     functions.put("count", new AggregateFunction() {
-	public double aggregate(double[] values, int numValues) {
-	    return numValues;
-	}
+	public Accumulator newAccumulator(int sketchSize) { return new Count(); }
 	});
     functions.put("average", new AggregateFunction() {
-	public double aggregate(double[] values, int numValues) {
-	    if (numValues == 0)
-		return 0;
-	    double total = 0;
-	    for (int i = 0; i < numValues; ++i) total += values[i];
-	    return total / numValues;
-	}
+	public Accumulator newAccumulator(int sketchSize) { return new Average(); }
 	});
     functions.put("stddev", new AggregateFunction() {
-	public double aggregate(double[] values, int numValues) {
-	    if (numValues < 2)
-		return 0;
-	    double average = ((AggregateFunction)functions.get("average"))
-		.aggregate(values, numValues);
-	    double sumOfSquares = 0;
-	    for (int i = 0; i < numValues; ++i)
-		sumOfSquares += (values[i] - average) * (values[i] - average);
-	    return Math.sqrt(sumOfSquares / (numValues - 1));
+	public Accumulator newAccumulator(int sketchSize) { return new StdDev(); }
+	});
+    functions.put("distinct", new AggregateFunction() {
+	public Accumulator newAccumulator(int sketchSize) {
+	    return new Distinct(sketchSize);
 	}
 	});
+    functions.put("median", quantileFunction(0.5));
+    functions.put("p90", quantileFunction(0.9));
+    functions.put("p95", quantileFunction(0.95));
+    functions.put("p99", quantileFunction(0.99));
 
     // Create a sorted list of function names. Don't include "select", which
     // is the old name for "sum".
     TreeSet<String> withoutSelect = new TreeSet<String>(functions.keySet());
     withoutSelect.remove("select");
     functionNames = withoutSelect.toArray();
+
+    // Averages are combined from sums and counts. Every partial result
+    // comes with its count, so "count" doesn't need anything else.
+    queryFunctions = new HashMap<String, String>();
+    queryFunctions.put("sum", "sum");
+    queryFunctions.put("subtotal", "sum");
+    queryFunctions.put("min", "min");
+    queryFunctions.put("max", "max");
+    queryFunctions.put("average", "sum");
+    queryFunctions.put("count", "count");
 }
 
 protected Group group;		// Set by report creation; possibly null
 protected String functionName;
 protected AggregateFunction function;
-protected double[] values;	// Read-only
-protected int valuesIndex;
+protected Accumulator accumulator;
+protected int sketchSize = DEFAULT_SKETCH_SIZE;
 protected Field fieldToAggregate;
 
 /**
@@ -128,7 +408,6 @@ public AggregateField(Long id, Report report, Section section, Object value,
 		     boolean visible, String functionName)
 {
     super(id, report, section, value, visible);
-    values = null;
 
     setFunction(functionName);
 
@@ -151,6 +430,35 @@ public void setFunction(String newFunctionName) {
     {
 	functionName = newFunctionName;
 	function = (AggregateFunction)functions.get(functionName);
+	accumulator = null;
+	setChanged();
+	notifyObservers();
+    }
+}
+
+/**
+ * Returns the number of values the distinct count, median, and percentile
+ * functions keep before switching to a fixed-size sketch. Zero means they
+ * are always exact.
+ *
+ * @return the sketch size
+ */
+public int getSketchSize() { return sketchSize; }
+
+/**
+ * Sets the number of values the distinct count, median, and percentile
+ * functions keep before switching to a fixed-size sketch. Bigger sketches
+ * are more accurate. Zero means always exact.
+ *
+ * @param newSketchSize the new sketch size; negative numbers are treated
+ * as zero
+ */
+public void setSketchSize(int newSketchSize) {
+    if (newSketchSize < 0)
+	newSketchSize = 0;
+    if (sketchSize != newSketchSize) {
+	sketchSize = newSketchSize;
+	accumulator = null;
 	setChanged();
 	notifyObservers();
     }
@@ -161,7 +469,7 @@ public void setFunction(String newFunctionName) {
  * each run.
  */
 public void initialize() {
-    values = null;
+    accumulator = null;
 }
 
 public String dragString() {
@@ -225,7 +533,9 @@ public Long getFieldId() {
 public double getAggregateValue() {
     if (function == null)
 	return 0;
-    return function.aggregate(values, valuesIndex);
+    if (accumulator == null)
+	accumulator = function.newAccumulator(sketchSize);
+    return accumulator.value();
 }
 
 public String typeString() { return functionName; }
@@ -271,32 +581,74 @@ public boolean canBeAggregated() {
  * line of data is retrieved.
  */
 public void updateAggregate() {
+    if (function == null)
+	return;
+
+    // If we are aggregating within a group and this is a new value,
+    // reset the aggregate value. If we have not yet collected any
+    // values, create the accumulator.
+    if (accumulator == null)
+	accumulator = function.newAccumulator(sketchSize);
+    else if (group != null && group.isNewValue())
+	accumulator.reset();
+
     /*
      * Our value field holds the id of some other field. Get that field's
-     * value, then convert it to a double.
+     * value, then convert it to a double. Column values are read as doubles
+     * directly so they aren't boxed.
      */
-    Object obj = getField().getValue();
-    double value = 0;
-    if (obj != null) {
-	if (obj instanceof Number)
-	    value = ((Number)obj).doubleValue();
-	else
-	    value = Double.parseDouble(obj.toString());
-    }
+    if (accumulator instanceof ObjectAccumulator)
+	((ObjectAccumulator)accumulator).addObject(getField().getValue());
+    else if (getField() instanceof ColumnField)
+	accumulator.add(getReport().columnDoubleValue(((ColumnField)getField())
+						      .getColumn()));
+    else
+	accumulator.add(TypedRow.toDouble(getField().getValue()));
+}
 
-    // If we are aggregating within a group and this is a new value,
-    // reset the aggregate value. If we have not yet collected any
-    // values, allocate space.
-    if (values == null || (group != null && group.isNewValue())) {
-	values = new double[START_VALUES_LENGTH];
-	valuesIndex = 0;
-    }
-    else if (valuesIndex == values.length) { // Expand the values array
-	double[] newValues = new double[values.length * 2];
-	System.arraycopy(values, 0, newValues, 0, values.length);
-	values = newValues;
-    }
-    values[valuesIndex++] = value;
+/**
+ * Adds the values aggregated by <var>other</var> to this field's values.
+ * <var>other</var> is the same field in another copy of the report that
+ * has read different rows; see {@link Report#setPartitionThreads}.
+ *
+ * @param other an aggregate field using the same function
+ */
+public void merge(AggregateField other) {
+    if (function == null || other.accumulator == null)
+	return;
+    if (accumulator == null)
+	accumulator = function.newAccumulator(sketchSize);
+    accumulator.merge(other.accumulator);
+}
+
+/**
+ * Returns the name of the SQL aggregate function a query can use to compute
+ * this field's value for a group of rows, or <code>null</code> if this
+ * field can't be computed that way. The results for many groups, together
+ * with the number of rows in each, are combined by {@link
+ * #updateAggregate(double, int)}. The function is applied to the column's
+ * values with <code>null</code>s treated as zero, the same way {@link
+ * #updateAggregate()} treats them. "count" means the number of rows.
+ *
+ * @return a SQL aggregate function name; may be <code>null</code>
+ */
+public String getQueryFunction() { return queryFunctions.get(functionName); }
+
+/**
+ * Updates the aggregate value with the result of the query function (see
+ * {@link #getQueryFunction}) over <var>count</var> rows. Called by the
+ * report instead of {@link #updateAggregate()} when the data source
+ * returns one row for each group instead of the rows themselves.
+ *
+ * @param value the result of the query function
+ * @param count the number of rows that went into <var>value</var>
+ */
+public void updateAggregate(double value, int count) {
+    if (accumulator == null)
+	accumulator = function.newAccumulator(sketchSize);
+    else if (group != null && group.isNewValue())
+	accumulator.reset();
+    ((PartialAccumulator)accumulator).addPartial(value, count);
 }
 
 /**
@@ -306,4 +658,9 @@ public void updateAggregate() {
  */
 public Object getValue() { return new Double(getAggregateValue()); }
 
+protected void writeAdditionalAttributes(XMLWriter out) {
+    if (sketchSize != DEFAULT_SKETCH_SIZE)
+	out.attr("sketch-size", sketchSize);
+}
+
 }
@@ -5,6 +5,7 @@ import jimm.datavision.gui.SectionWidget;
 import jimm.util.I18N;
 import jimm.util.XMLWriter;
 import java.util.Observable;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The abstract superclass of visual report fields that display text labels,
@@ -25,7 +26,7 @@ public abstract class Field
 public static final double DEFAULT_WIDTH = 120;
 public static final double DEFAULT_HEIGHT = 16;
 
-static Long maxIdSeen = new Long(0);
+static AtomicLong maxIdSeen = new AtomicLong(0);
 
 protected Long id;
 protected Rectangle bounds;
@@ -116,10 +117,15 @@ protected Field(Long id, Report report, Section section, Object value,
 {
     super(report, section, visible);
 
+    // Reports may be read by more than one thread at a time
     if (id == null)		// Generate new value
-	id = new Long(maxIdSeen.longValue() + 1);
-    if (id.compareTo(maxIdSeen) == 1)
-	maxIdSeen = new Long(id.longValue());
+	id = new Long(maxIdSeen.incrementAndGet());
+    else {
+	long seen;
+	while ((seen = maxIdSeen.get()) < id.longValue()
+	       && !maxIdSeen.compareAndSet(seen, id.longValue()))
+	    ;
+    }
     this.id = id;
 
     format = Format.createEmptyFormat();
@@ -418,12 +424,20 @@ public void writeXML(XMLWriter out) {
     out.attr("value", value);
     if (!visible)
 	out.attr("visible", visible);
+    writeAdditionalAttributes(out);
 
     writeFieldGuts(out);
 
     out.endElement();
 }
 
+/**
+ * Writes additional attributes. Default behavior is to do nothing.
+ *
+ * @param out a writer that knows how to write XML
+ */
+protected void writeAdditionalAttributes(XMLWriter out) {}
+
 /**
  * Writes objects contained within this field (bounds, border, and format).
  *
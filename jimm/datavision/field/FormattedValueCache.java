@@ -17,8 +17,22 @@ import javax.swing.JLabel;
 class FormattedValueCache implements Observer {
 
 protected static final double LINE_SIZE_FUDGE_FACTOR = 1.2;
-protected static final HashMap<String, DecimalFormat> decimalFormatters = new HashMap<String, DecimalFormat>();
-protected static final HashMap<String, SimpleDateFormat> dateFormatters = new HashMap<String, SimpleDateFormat>();
+/**
+ * Formatters aren't thread-safe and reports may run in more than one thread
+ * at a time, so each thread has its own formatters.
+ */
+protected static final ThreadLocal<HashMap<String, DecimalFormat>>
+    decimalFormatters = new ThreadLocal<HashMap<String, DecimalFormat>>() {
+	protected HashMap<String, DecimalFormat> initialValue() {
+	    return new HashMap<String, DecimalFormat>();
+	}
+    };
+protected static final ThreadLocal<HashMap<String, SimpleDateFormat>>
+    dateFormatters = new ThreadLocal<HashMap<String, SimpleDateFormat>>() {
+	protected HashMap<String, SimpleDateFormat> initialValue() {
+	    return new HashMap<String, SimpleDateFormat>();
+	}
+    };
 protected static JLabel wrappingCalculationsLabel;
 
 protected Field field;
@@ -116,26 +130,26 @@ void calcValues() {
 }
 
 protected DecimalFormat getNumberFormatterFor(String formatString) {
-    DecimalFormat formatter =
-	(DecimalFormat)decimalFormatters.get(formatString);
+    HashMap<String, DecimalFormat> formatters = decimalFormatters.get();
+    DecimalFormat formatter = formatters.get(formatString);
     if (formatter == null) {
 	formatter = new DecimalFormat(formatString);
-	decimalFormatters.put(formatString, formatter);
+	formatters.put(formatString, formatter);
     }
     return formatter;
 }
 
 protected SimpleDateFormat getDateFormatterFor(String formatString) {
-    SimpleDateFormat formatter =
-	(SimpleDateFormat)dateFormatters.get(formatString);
+    HashMap<String, SimpleDateFormat> formatters = dateFormatters.get();
+    SimpleDateFormat formatter = formatters.get(formatString);
     if (formatter == null) {
 	formatter = new SimpleDateFormat(formatString);
-	dateFormatters.put(formatString, formatter);
+	formatters.put(formatString, formatter);
     }
     return formatter;
 }
 
-protected static JLabel getWrappingCalcsLabel() {
+protected static synchronized JLabel getWrappingCalcsLabel() {
     if (wrappingCalculationsLabel == null) // Lazy instantiation
 	wrappingCalculationsLabel = new JLabel();
     return wrappingCalculationsLabel;
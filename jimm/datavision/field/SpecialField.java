@@ -128,6 +128,13 @@ public String designLabel() { return "{" + value + "}"; }
 
 public String formulaString() { return "{%" + value + "}"; }
 
+/**
+ * Returns the name of the special value, for example "page.number".
+ *
+ * @return the special value name
+ */
+public String getSpecialName() { return (String)value; }
+
 /**
  * Returns the value of this field.
  *
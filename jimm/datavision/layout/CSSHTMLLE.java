@@ -25,6 +25,16 @@ public CSSHTMLLE(PrintWriter out) {
     super(out);
 }
 
+/**
+ * Returns a new layout engine like this one that writes to <var>out</var>.
+ *
+ * @param out output print writer
+ * @return a new layout engine
+ */
+public LayoutEngine newPartitionEngine(PrintWriter out) {
+    return new CSSHTMLLE(out);
+}
+
 protected void doStart() {
     out.println("<html>");
     out.println("<head>");
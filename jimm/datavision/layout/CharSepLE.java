@@ -26,6 +26,16 @@ public CharSepLE(PrintWriter out, char sepChar) {
     this.sepChar = sepChar;
 }
 
+/**
+ * Returns a new layout engine like this one that writes to <var>out</var>.
+ *
+ * @param out output print writer
+ * @return a new layout engine
+ */
+public LayoutEngine newPartitionEngine(PrintWriter out) {
+    return new CharSepLE(out, sepChar);
+}
+
 /**
  * This override handles output of a section.
  *
@@ -24,6 +24,16 @@ public HTMLLE(PrintWriter out) {
     super(out);
 }
 
+/**
+ * Returns a new layout engine like this one that writes to <var>out</var>.
+ *
+ * @param out output print writer
+ * @return a new layout engine
+ */
+public LayoutEngine newPartitionEngine(PrintWriter out) {
+    return new HTMLLE(out);
+}
+
 protected void doStart() {
     out.println("<html>");
     out.println("<head>");
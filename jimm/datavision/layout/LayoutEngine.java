@@ -37,6 +37,9 @@ protected double pageHeightUsed;
 protected Section currentSection;
 protected boolean wantsMoreData;
 protected int previousSectionArea;
+protected boolean partitioned;
+protected int firstPageNumber;
+protected boolean lastPartition;
 
 /**
  * Constructor.
@@ -85,6 +88,71 @@ public double pageHeight() { return pageHeight; }
  */
 public boolean wantsMoreData() { return wantsMoreData; }
 
+/**
+ * Returns a new layout engine like this one that writes to <var>out</var>,
+ * or <code>null</code> if this engine's output can't be put together from
+ * separately laid out pieces. Reports run in parallel (see {@link
+ * Report#setPartitionThreads}) use one of these for each partition and
+ * hand their output to {@link #outputPartition}. The default
+ * implementation returns <code>null</code>.
+ *
+ * @param out output print writer
+ * @return a new layout engine or <code>null</code>
+ */
+public LayoutEngine newPartitionEngine(PrintWriter out) { return null; }
+
+/**
+ * Makes this engine lay out one partition of a report instead of the whole
+ * report. A partition starts on a new page. It doesn't output the report
+ * start and end (see {@link #doStart} and {@link #doEnd}) and only the last
+ * one outputs the report footers. Only the first page of the report, page
+ * one, outputs the report headers.
+ *
+ * @param firstPageNumber the number of the partition's first page
+ * @param lastPartition <code>true</code> if this is the last partition
+ */
+public void setPartition(int firstPageNumber, boolean lastPartition) {
+    partitioned = true;
+    this.firstPageNumber = firstPageNumber;
+    this.lastPartition = lastPartition;
+}
+
+/**
+ * Called by the report at the beginning of a parallel run instead of
+ * {@link #start}.
+ */
+public void startPartitions() {
+    pageNumber = 0;
+    pageHeight = report.getPaperFormat().getHeight();
+    pageWidth = report.getPaperFormat().getWidth();
+    if (wantsMoreData)
+	doStart();
+}
+
+/**
+ * Called by the report during a parallel run with the output of each
+ * partition, in order.
+ *
+ * @param output the output of a partition's layout engine
+ */
+public void outputPartition(String output) {
+    if (wantsMoreData)
+	out.print(output);
+}
+
+/**
+ * Called by the report at the end of a parallel run instead of {@link
+ * #end}.
+ *
+ * @param numPages the number of pages in the report
+ */
+public void endPartitions(int numPages) {
+    pageNumber = numPages;
+    if (wantsMoreData)
+	doEnd();
+    closeOutput();
+}
+
 /**
  * Called by someone else running the report to cancel all the hard work
  * this layout engine has performed.
@@ -103,11 +171,12 @@ public void cancel() {
 public void start() {
     newPage = true;
     pageHeightUsed = 0;
-    pageNumber = 0;
+    pageNumber = partitioned ? firstPageNumber - 1 : 0;
     pageHeight = report.getPaperFormat().getHeight();
     pageWidth = report.getPaperFormat().getWidth();
     if (wantsMoreData) {
-	doStart();
+	if (!partitioned)
+	    doStart();
 	startPage();
     }
 }
@@ -123,10 +192,15 @@ protected void doStart() { }
  */
 public void end() {
     if (wantsMoreData) {
-	for (Section s : report.footers())
-	    outputSection(s, SECT_REPORT_FOOTER);
-	endPage(true);
-	doEnd();
+	if (partitioned && !lastPartition)
+	    endPage(false);
+	else {
+	    for (Section s : report.footers())
+		outputSection(s, SECT_REPORT_FOOTER);
+	    endPage(true);
+	}
+	if (!partitioned)
+	    doEnd();
     }
     closeOutput();
 }
@@ -251,7 +325,8 @@ protected void checkRemainingPageLength(boolean isLastRow,
     // this row.
     double detailHeight = includeDetail ? calcDetailHeight() : 0;
     double footerHeight = calcPageFooterHeight();
-    if (isLastRow) footerHeight += calcReportFooterHeight();
+    if (isLastRow && (!partitioned || lastPartition))
+	footerHeight += calcReportFooterHeight();
 
     if ((pageHeightUsed + footerHeight + detailHeight) > pageHeight())
 	endPage(isLastRow);
@@ -44,6 +44,14 @@ static{
 }
 ////////////////////////////////////////////////////////////////
 
+/**
+ * Base fonts shared by all PDF layout engines, so each font is only
+ * created (or found to be missing) once no matter how many documents use
+ * it. Names of fonts that can't be created map to Helvetica.
+ */
+protected static HashMap<String, BaseFont> sharedBaseFonts =
+    new HashMap<String, BaseFont>();
+
 public PDFLE(OutputStream out) {
     super(null);
     outStream = out;
@@ -67,9 +75,7 @@ protected void doStart() {
     PdfWriter writer = null;
     try {
 	writer = PdfWriter.getInstance(doc, outStream);
-	baseFonts.put("Helvetica", BaseFont.createFont("Helvetica",
-						       BaseFont.CP1252,
-						       BaseFont.NOT_EMBEDDED));
+	baseFonts.put("Helvetica", sharedBaseFont("Helvetica"));
     }
     catch (DocumentException e) {
 	ErrorHandler.error(e);
@@ -201,54 +207,67 @@ protected void translateToPDFCoords(jimm.datavision.Point p) {
 //
 protected BaseFont getFontForFormat(Format f) {
     String name = baseFontName(f.getFont());
-		BaseFont bf = (BaseFont)baseFonts.get(name);
-		//System.out.println(name);
-		//original code is difficult to handle CJK fonts, so I have to modify it
-		if(bf==null)
-		{
-			//start guessing
-			try{
-				bf = BaseFont.createFont(name, BaseFont.CP1252,
-				     BaseFont.NOT_EMBEDDED);
-	    	baseFonts.put(name, bf);
-	    	return bf;
-			}catch(Exception e1){
-				if(cjkFontEncodingMap.containsKey(name))
-				{
-					//guessing in CJK fonts
-					String [] encodings=(String[])(cjkFontEncodingMap.get(name));
-					for(int i=0;i<encodings.length;i++)
-					{
-						try{
-							bf = BaseFont.createFont(name, encodings[i],
-							     BaseFont.NOT_EMBEDDED);
-				    	baseFonts.put(name, bf);
-				    	return bf;
-						}catch(Exception eCJK){}
-					}
-					//if all in vain
-					return (BaseFont)baseFonts.get("Helvetica");
-				}
-				else{
-					//otherwise, we have no choice
-					return (BaseFont)baseFonts.get("Helvetica");
-				}
-			}
-		}
-		return bf;
-    /*BaseFont bf = (BaseFont)baseFonts.get(name);
+    BaseFont bf = baseFonts.get(name);
     if (bf == null) {
 	try {
-	    bf = BaseFont.createFont(name, BaseFont.CP1252,
-				     BaseFont.NOT_EMBEDDED);
-	    baseFonts.put(name, bf);
+	    bf = sharedBaseFont(name);
 	}
 	catch (Exception e) {	// DocumentException or IOException
 	    ErrorHandler.error(e);
-	    bf = (BaseFont)baseFonts.get("Helvetica");
+	    bf = baseFonts.get("Helvetica");
+	}
+	baseFonts.put(name, bf);
+    }
+    return bf;
+}
+
+/**
+ * Returns the shared base font with the given name, creating it if this
+ * is the first time it is asked for.
+ *
+ * @param name a font name
+ * @return a base font; Helvetica if the named font can't be created
+ */
+protected static BaseFont sharedBaseFont(String name)
+    throws DocumentException, java.io.IOException
+{
+    synchronized (sharedBaseFonts) {
+	BaseFont bf = sharedBaseFonts.get(name);
+	if (bf == null) {
+	    if ("Helvetica".equals(name))
+		bf = BaseFont.createFont(name, BaseFont.CP1252,
+					 BaseFont.NOT_EMBEDDED);
+	    else if ((bf = guessBaseFont(name)) == null)
+		bf = sharedBaseFont("Helvetica"); // We have no choice
+	    sharedBaseFonts.put(name, bf);
+	}
+	return bf;
+    }
+}
+
+/**
+ * Creates a base font, guessing at the encoding of CJK fonts. Returns
+ * <code>null</code> if all is in vain.
+ */
+protected static BaseFont guessBaseFont(String name) {
+    try {
+	return BaseFont.createFont(name, BaseFont.CP1252,
+				   BaseFont.NOT_EMBEDDED);
+    }
+    catch (Exception e) {
+    }
+    String[] encodings = cjkFontEncodingMap.get(name);
+    if (encodings != null) {
+	for (String encoding : encodings) {
+	    try {
+		return BaseFont.createFont(name, encoding,
+					   BaseFont.NOT_EMBEDDED);
+	    }
+	    catch (Exception eCJK) {
+	    }
 	}
     }
-    return bf;*/
+    return null;
 }
 
 protected String baseFontName(java.awt.Font font) {
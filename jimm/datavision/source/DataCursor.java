@@ -1,4 +1,6 @@
 package jimm.datavision.source;
+import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -7,7 +9,9 @@ import java.util.List;
  * a <code>ResultSet</code>.
  * <p>
  * The only method subclasses <em>must</em> implement is
- * <code>readRowData()</code>.
+ * <code>readRowData()</code>. It may return a {@link TypedRow}, which is
+ * allowed to be reused once it is no longer the previous, current, next, or
+ * last row, or one of the rows returned by {@link #lookAhead}.
  *
  * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
  */
@@ -19,18 +23,19 @@ protected List<Object> currRowData;
 protected List<Object> nextRowData;
 protected List<Object> lastRowData;
 protected int lastRowNumber;
+protected LinkedList<List<Object>> aheadRowData;
 
 public boolean isFirst() { return currRowNumber == 1; }
 public boolean isLast() {
     if (nextRowData != null)	// We already have next row cached
 	return false;
-    nextRowData = readRowData(); // Read next row
+    nextRowData = nextRow();	// Read next row
     return nextRowData == null;	// If it's null, we are at the last row
 }
 
 public boolean next() {
     if (nextRowData == null)	// If we have no cached data, read the next row
-	nextRowData = readRowData();
+	nextRowData = nextRow();
 
     if (nextRowData == null) {	// When no more data, curr row is the last row
 	lastRowData = currRowData;
@@ -49,6 +54,8 @@ public boolean previous() {
     if (currRowNumber <= 1)	// Not same as isFirst()
 	return false;
 
+    if (nextRowData != null)	// Don't lose the row we've already read
+	aheadRows().addFirst(nextRowData);
     nextRowData = currRowData;
     currRowData = prevRowData;
     prevRowData = null;
@@ -66,8 +73,83 @@ public boolean last() {
 
 public int getRow() { return currRowNumber; }
 
+/**
+ * Returns up to <var>n</var> of the rows that come after the current row
+ * without moving the cursor. The rows are read now and are returned again
+ * by {@link #next} later. Fewer than <var>n</var> rows are returned when
+ * there aren't that many rows left.
+ * <p>
+ * Cursors that reuse rows need to know how far ahead anybody will look;
+ * see {@link #setReadAhead}.
+ *
+ * @param n the maximum number of rows to return
+ * @return a possibly empty list of rows
+ */
+public List<List<Object>> lookAhead(int n) {
+    ArrayList<List<Object>> rows = new ArrayList<List<Object>>();
+    if (n <= 0)
+	return rows;
+    if (nextRowData == null)
+	nextRowData = nextRow();
+    if (nextRowData == null)
+	return rows;
+    rows.add(nextRowData);
+
+    LinkedList<List<Object>> ahead = aheadRows();
+    while (ahead.size() < n - 1) {
+	List<Object> row = readRowData();
+	if (row == null)
+	    break;
+	ahead.add(row);
+    }
+    for (List<Object> row : ahead) {
+	if (rows.size() == n)
+	    break;
+	rows.add(row);
+    }
+    return rows;
+}
+
+/**
+ * Returns the next row read by {@link #lookAhead} or, if there isn't one,
+ * reads the next row.
+ */
+protected List<Object> nextRow() {
+    if (aheadRowData != null && !aheadRowData.isEmpty())
+	return aheadRowData.removeFirst();
+    return readRowData();
+}
+
+protected LinkedList<List<Object>> aheadRows() {
+    if (aheadRowData == null)
+	aheadRowData = new LinkedList<List<Object>>();
+    return aheadRowData;
+}
+
 public void close() {}
 
+/**
+ * Returns <code>true</code> if {@link #readRowData} may be called from
+ * another thread while the report is running; see {@link PrefetchCursor}.
+ * Cursors that evaluate formulas while reading must return
+ * <code>false</code>, because formulas may only be evaluated by the report
+ * thread. The default implementation returns <code>false</code>.
+ *
+ * @return <code>true</code> if rows may be read in the background
+ */
+public boolean canReadAhead() { return false; }
+
+/**
+ * Tells this cursor that up to <var>rows</var> more rows may be read ahead
+ * before the report sees them. Cursors that reuse the rows they return
+ * need to keep that many more rows around. Called before any rows are
+ * read, possibly more than once; the numbers add up. The default
+ * implementation does nothing.
+ *
+ * @param rows the number of extra rows held by the reader
+ */
+public void setReadAhead(int rows) {}
+
 /**
  * Returns the object in the specified column. <var>index</var> starts
  * at 1.
@@ -85,6 +167,22 @@ public Object getObject(int index) {
     return currRowData == null ? null : currRowData.get(index - 1);
 }
 
+/**
+ * Returns the value in the specified column as a <code>double</code>.
+ * <var>index</var> starts at 1. If the row is a {@link TypedRow}, numeric
+ * values are returned without boxing. <code>null</code> values (and
+ * missing rows) return 0.
+ *
+ * @return the value in the <var>index</var>'th column as a double
+ * @throws NumberFormatException if the value isn't a number
+ * @see TypedRow#toDouble
+ */
+public double getDouble(int index) {
+    if (currRowData instanceof TypedRow)
+	return ((TypedRow)currRowData).getDouble(index - 1);
+    return TypedRow.toDouble(getObject(index));
+}
+
 protected abstract List<Object> readRowData();
 
 }
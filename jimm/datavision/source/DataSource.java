@@ -20,6 +20,7 @@ public abstract class DataSource implements Writeable {
 protected Report report;
 protected Query query;
 protected String metadataURL;
+protected long sortMemory = SortCursor.DEFAULT_MEMORY;
 
 public DataSource(Report r, Query q) {
     report = r;
@@ -132,12 +133,68 @@ public String getSourceFile() { return null; }
  */
 public void reuseSourceFile() throws FileNotFoundException { }
 
+/**
+ * Returns the number of bytes of rows a data source that sorts rows itself
+ * may hold in memory.
+ *
+ * @return the memory budget in bytes
+ * @see #setSortMemory
+ */
+public long getSortMemory() { return sortMemory; }
+
+/**
+ * Sets the number of bytes of rows a data source that sorts rows itself
+ * (see {@link SortCursor}) may hold in memory. When there are more, sorted
+ * runs of rows are written to temporary files and merged. Data sources
+ * whose rows are sorted by a database ignore this.
+ *
+ * @param bytes the memory budget in bytes
+ */
+public void setSortMemory(long bytes) { sortMemory = bytes < 1 ? 1 : bytes; }
+
 public Report getReport() { return report; }
 
 public Query getQuery() { return query; }
 
 public abstract DataCursor execute() throws Exception;
 
+/**
+ * Returns a string that describes the rows {@link #execute} returns: the
+ * data source, the columns used, the joins, the where clause, and the
+ * sort order. Two runs with the same query text and parameter values read
+ * the same rows. Used to decide whether a {@link Snapshot} is stale.
+ * <p>
+ * The default implementation returns the query's SQL if the data source
+ * generates SQL.
+ *
+ * @return the query text
+ */
+public String getQueryText() {
+    if (isSQLGenerated())
+	return query.toString();
+
+    query.findSelectablesUsed();
+    StringBuilder buf = new StringBuilder(getClass().getName());
+    if (getSourceFile() != null)
+	buf.append(" file ").append(getSourceFile());
+    buf.append(" select");
+    for (Selectable sel : query.selectables())
+	buf.append(' ').append(sel.getId());
+    for (Join join : query.joins())
+	buf.append(" join ").append(join);
+    if (query.getWhereClause() != null)
+	buf.append(" where ").append(query.getWhereClause());
+    buf.append(" order by");
+    for (Group g : report.groups())
+	buf.append(' ').append(g.getSelectable().getId())
+	    .append(g.getSortOrder() == Group.SORT_DESCENDING ? " desc" : "");
+    for (Selectable sel : query.sortedSelectables())
+	buf.append(' ').append(sel.getId())
+	    .append(query.sortOrderOf(sel) == Query.SORT_DESCENDING
+		    ? " desc" : "");
+    return buf.toString();
+}
+
 /**
  * Called from <code>ReportReader.column</code> to add a column to a
  * data source.
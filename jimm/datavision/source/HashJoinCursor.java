@@ -0,0 +1,403 @@
+package jimm.datavision.source;
+import jimm.datavision.ErrorHandler;
+import java.io.IOException;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * A hash join cursor joins the rows of two other data cursors, the way a
+ * database joins two tables. All of the build cursor's rows are read into
+ * a hash table keyed by the values of their join columns, then the probe
+ * cursor's rows are streamed through and look up their matching rows.
+ * Each joined row holds the probe row's values followed by the build
+ * row's values. Only probe rows with matches are returned (an inner join),
+ * and <code>null</code> never matches anything. With no join columns at
+ * all, every probe row is joined with every build row.
+ * <p>
+ * The build cursor should be the one with fewer rows. If its rows don't
+ * fit within the memory budget, both sides are split into partitions by
+ * their join values and written to {@link SpillFile}s, and the partitions
+ * are joined one at a time. In that case the rows come out in partition
+ * order, not in the order of the probe cursor's rows.
+ * <p>
+ * Joins that can't be hashed, like "&lt;" or "like", are given as
+ * {@link Condition}s that each joined row must satisfy.
+ * <p>
+ * A where clause filter may be given to the last cursor in a chain of
+ * joins, because only its rows have the values of every column.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class HashJoinCursor extends DataCursor {
+
+protected DataCursor probe;
+protected DataCursor build;
+protected int[] probeKeys;
+protected int[] buildKeys;
+protected List<Condition> conditions;
+protected RowFilter filter;
+protected long memory;
+protected int numPartitions;
+protected boolean built;
+protected HashMap<Object, List<List<Object>>> hashTable;
+protected SpillFile[] buildParts;
+protected SpillFile[] probeParts;
+protected int partition;
+protected List<Object> probeRow;
+protected List<List<Object>> matches;
+protected int matchIndex;
+
+/**
+ * Constructor.
+ *
+ * @param probe the cursor whose rows are streamed
+ * @param build the cursor whose rows are held in the hash table
+ * @param probeKeys the indices of the join values in <var>probe</var>'s
+ * rows
+ * @param buildKeys the indices of the matching join values in
+ * <var>build</var>'s rows
+ * @param conditions the joins that can't be hashed, checked against each
+ * joined row; may be empty
+ * @param filter a where clause filter for the joined rows; may be
+ * <code>null</code>
+ * @param memory the number of bytes of build rows to hold in memory
+ * @param numPartitions the number of partitions to use if the build rows
+ * don't fit in memory
+ */
+public HashJoinCursor(DataCursor probe, DataCursor build, int[] probeKeys,
+		      int[] buildKeys, List<Condition> conditions,
+		      RowFilter filter, long memory, int numPartitions)
+{
+    this.probe = probe;
+    this.build = build;
+    this.probeKeys = probeKeys;
+    this.buildKeys = buildKeys;
+    this.conditions = conditions;
+    this.filter = filter;
+    this.memory = memory;
+    this.numPartitions = numPartitions < 2 ? 2 : numPartitions;
+}
+
+/**
+ * Returns the next joined row that satisfies the conditions and that the
+ * where clause accepts. The first call reads all of the build cursor's
+ * rows.
+ */
+protected List<Object> readRowData() {
+    if (!built)
+	buildHashTable();
+
+    while (true) {
+	if (matches != null && matchIndex < matches.size()) {
+	    List<Object> buildRow = matches.get(matchIndex++);
+	    List<Object> row =
+		new ArrayList<Object>(probeRow.size() + buildRow.size());
+	    row.addAll(probeRow);
+	    row.addAll(buildRow);
+	    if (satisfiesConditions(row)
+		&& (filter == null || filter.accept(this, row)))
+		return row;
+	    continue;
+	}
+
+	probeRow = nextProbeRow();
+	if (probeRow == null)
+	    return null;
+	Object key = key(probeRow, probeKeys);
+	matches = key == null ? null : hashTable.get(key);
+	matchIndex = 0;
+    }
+}
+
+protected boolean satisfiesConditions(List<Object> row) {
+    for (Condition c : conditions)
+	if (!c.accept(row))
+	    return false;
+    return true;
+}
+
+/**
+ * Reads the build cursor's rows into the hash table. If they don't fit,
+ * splits them into partitions and does the same to the probe cursor's
+ * rows.
+ */
+protected void buildHashTable() {
+    built = true;
+    hashTable = new HashMap<Object, List<List<Object>>>();
+    try {
+	long bytes = 0;
+	List<Object> row;
+	while ((row = build.readRowData()) != null) {
+	    if (row instanceof TypedRow) // It may be reused
+		row = new ArrayList<Object>(row);
+	    if (buildParts != null) {
+		addToPartition(buildParts, row, buildKeys);
+		continue;
+	    }
+
+	    add(row);
+	    bytes += SpillFile.estimatedSize(row);
+	    if (bytes > memory)
+		startPartitioning();
+	}
+    }
+    catch (IOException ioe) {
+	ErrorHandler.error(ioe);
+    }
+    finally {
+	build.close();
+    }
+
+    if (buildParts != null)
+	partitionProbeRows();
+}
+
+/**
+ * Creates the partitions and moves the rows in the hash table into them.
+ */
+protected void startPartitioning() throws IOException {
+    SpillFile[] parts = new SpillFile[numPartitions];
+    for (int i = 0; i < parts.length; ++i)
+	parts[i] = new SpillFile();
+    buildParts = parts;
+
+    for (List<List<Object>> rows : hashTable.values())
+	for (List<Object> row : rows)
+	    addToPartition(buildParts, row, buildKeys);
+    hashTable.clear();
+}
+
+/**
+ * Writes all of the probe cursor's rows to the partitions and reads the
+ * first partition of build rows into the hash table.
+ */
+protected void partitionProbeRows() {
+    try {
+	SpillFile[] parts = new SpillFile[numPartitions];
+	for (int i = 0; i < parts.length; ++i)
+	    parts[i] = new SpillFile();
+	probeParts = parts;
+	List<Object> row;
+	while ((row = probe.readRowData()) != null)
+	    addToPartition(probeParts, row, probeKeys);
+    }
+    catch (IOException ioe) {
+	ErrorHandler.error(ioe);
+	if (probeParts == null)
+	    return;
+    }
+    partition = -1;
+    nextPartition();
+}
+
+/**
+ * Writes <var>row</var> to the partition its join values belong in.
+ * Rows whose join values include <code>null</code> can't match anything,
+ * so they are dropped.
+ */
+protected void addToPartition(SpillFile[] parts, List<Object> row,
+			      int[] keys)
+    throws IOException
+{
+    Object key = key(row, keys);
+    if (key != null)
+	parts[(key.hashCode() & 0x7fffffff) % parts.length].write(row);
+}
+
+/**
+ * Moves on to the next partition, reading its build rows into the hash
+ * table. Returns <code>false</code> if there are no more partitions.
+ */
+protected boolean nextPartition() {
+    hashTable.clear();
+    if (partition >= 0) {
+	buildParts[partition].delete();
+	probeParts[partition].delete();
+    }
+    if (++partition == buildParts.length)
+	return false;
+
+    try {
+	List<Object> row;
+	while ((row = buildParts[partition].read()) != null)
+	    add(row);
+    }
+    catch (IOException ioe) {
+	ErrorHandler.error(ioe);
+    }
+    return true;
+}
+
+/**
+ * Returns the next probe row, read from the probe cursor or from the
+ * current partition.
+ */
+protected List<Object> nextProbeRow() {
+    if (probeParts == null)
+	return probe.readRowData();
+
+    while (partition < probeParts.length) {
+	try {
+	    List<Object> row = probeParts[partition].read();
+	    if (row != null)
+		return row;
+	}
+	catch (IOException ioe) {
+	    ErrorHandler.error(ioe);
+	}
+	nextPartition();
+    }
+    return null;
+}
+
+/**
+ * Adds a build row to the hash table.
+ */
+protected void add(List<Object> row) {
+    Object key = key(row, buildKeys);
+    if (key == null)
+	return;
+    List<List<Object>> rows = hashTable.get(key);
+    if (rows == null)
+	hashTable.put(key, rows = new ArrayList<List<Object>>(1));
+    rows.add(row);
+}
+
+/**
+ * Returns the hash key made from the join values of <var>row</var>, or
+ * <code>null</code> if any of them is <code>null</code>. Whole numbers
+ * are turned into <code>Long</code>s so that, for example, an
+ * <code>Integer</code> 3 and a <code>Double</code> 3.0 match.
+ */
+protected static Object key(List<Object> row, int[] keys) {
+    if (keys.length == 1)
+	return keyValue(row, keys[0]);
+
+    ArrayList<Object> key = new ArrayList<Object>(keys.length);
+    for (int i : keys) {
+	Object val = keyValue(row, i);
+	if (val == null)
+	    return null;
+	key.add(val);
+    }
+    return key;
+}
+
+protected static Object keyValue(List<Object> row, int index) {
+    Object val = index < row.size() ? row.get(index) : null;
+    if (val instanceof Number) {
+	double d = ((Number)val).doubleValue();
+	if (d == Math.rint(d) && !Double.isInfinite(d))
+	    return new Long(((Number)val).longValue());
+	return new Double(d);
+    }
+    return val;
+}
+
+/**
+ * Returns <code>true</code> if both cursors can read ahead and there is
+ * no where clause to evaluate.
+ */
+public boolean canReadAhead() {
+    return filter == null && probe.canReadAhead() && build.canReadAhead();
+}
+
+public void close() {
+    if (buildParts != null) {
+	for (int i = 0; i < buildParts.length; ++i) {
+	    buildParts[i].delete();
+	    if (probeParts != null)
+		probeParts[i].delete();
+	}
+	buildParts = probeParts = null;
+    }
+    hashTable = null;
+    if (!built)
+	build.close();
+    probe.close();
+}
+
+// ================================================================
+/**
+ * A condition compares two values of a joined row using one of the
+ * relations in {@link Join#RELATIONS}. As in SQL, <code>null</code>
+ * satisfies no condition. "in" and "not in" compare one column with
+ * another, so they mean the same as "=" and "!=". "like" patterns use "%"
+ * and "_" as wildcards.
+ */
+public static class Condition {
+
+protected int left;
+protected String relation;
+protected int right;
+protected String likeSource;
+protected Pattern pattern;
+
+/**
+ * Constructor.
+ *
+ * @param left the index of the left-hand value in joined rows
+ * @param relation a relation from {@link Join#RELATIONS}
+ * @param right the index of the right-hand value in joined rows
+ */
+public Condition(int left, String relation, int right) {
+    this.left = left;
+    this.relation = relation;
+    this.right = right;
+}
+
+/**
+ * Returns <code>true</code> if <var>row</var>'s values satisfy this
+ * condition.
+ *
+ * @param row a joined row
+ * @return <code>true</code> if the row satisfies this condition
+ */
+public boolean accept(List<Object> row) {
+    Object a = row.get(left);
+    Object b = row.get(right);
+    if (a == null || b == null)
+	return false;
+
+    if (relation.endsWith("like"))
+	return likePattern(b.toString()).matcher(a.toString()).matches()
+	    != relation.startsWith("not");
+
+    int cmp = SortCursor.compareValues(a, b);
+    if ("=".equals(relation) || "in".equals(relation)) return cmp == 0;
+    if ("!=".equals(relation) || "not in".equals(relation)) return cmp != 0;
+    if ("<".equals(relation)) return cmp < 0;
+    if ("<=".equals(relation)) return cmp <= 0;
+    if (">".equals(relation)) return cmp > 0;
+    if (">=".equals(relation)) return cmp >= 0;
+    return false;
+}
+
+/**
+ * Returns the regular expression for a "like" pattern. The pattern is
+ * usually another row's value, so the last one is reused when it's the
+ * same.
+ */
+protected Pattern likePattern(String like) {
+    if (pattern != null && like.equals(likeSource))
+	return pattern;
+    StringBuilder buf = new StringBuilder();
+    int start = 0;
+    for (int i = 0; i < like.length(); ++i) {
+	char c = like.charAt(i);
+	if (c == '%' || c == '_') {
+	    if (i > start)
+		buf.append(Pattern.quote(like.substring(start, i)));
+	    buf.append(c == '%' ? ".*" : ".");
+	    start = i + 1;
+	}
+    }
+    if (start < like.length())
+	buf.append(Pattern.quote(like.substring(start)));
+    likeSource = like;
+    return pattern = Pattern.compile(buf.toString(), Pattern.DOTALL);
+}
+
+}
+
+}
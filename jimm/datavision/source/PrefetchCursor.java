@@ -0,0 +1,164 @@
+package jimm.datavision.source;
+import jimm.datavision.UserCancellationException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A prefetch cursor reads rows from another data cursor in a background
+ * thread so that reading the data (database round trips, file I/O) happens
+ * while the report thread is busy laying out and writing the rows already
+ * read. Rows are handed over through a bounded queue: when it is full the
+ * reading thread waits, so no more than <var>capacity</var> rows are ever
+ * read ahead.
+ * <p>
+ * If reading a row throws an exception, the exception is thrown by this
+ * cursor's {@link #readRowData} in the report thread, after all the rows
+ * that were read before it. Calling {@link #close} stops the reading thread
+ * and then closes the wrapped cursor.
+ * <p>
+ * Only wrap cursors whose {@link DataCursor#canReadAhead} method returns
+ * <code>true</code>. See {@link #wrap}.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class PrefetchCursor extends DataCursor implements Runnable {
+
+/** Put in the queue after the last row. */
+protected static final Object END = new Object();
+
+/** Put in the queue when reading a row throws an exception. */
+static class Failure {
+Throwable throwable;
+Failure(Throwable t) { throwable = t; }
+}
+
+protected DataCursor source;
+protected ArrayBlockingQueue<Object> queue;
+protected Thread producer;
+protected volatile boolean closed;
+protected boolean noMoreData;
+
+/**
+ * Returns <var>cursor</var> wrapped in a prefetch cursor if
+ * <var>capacity</var> is greater than zero and the cursor can read ahead;
+ * else returns <var>cursor</var>.
+ *
+ * @param cursor a data cursor
+ * @param capacity the maximum number of rows to read ahead
+ * @return a data cursor
+ */
+public static DataCursor wrap(DataCursor cursor, int capacity) {
+    if (capacity <= 0 || cursor == null || !cursor.canReadAhead())
+	return cursor;
+    return new PrefetchCursor(cursor, capacity);
+}
+
+/**
+ * Constructor. Starts the thread that reads rows from <var>source</var>.
+ *
+ * @param source the cursor to read from
+ * @param capacity the maximum number of rows to read ahead; must be
+ * greater than zero
+ */
+public PrefetchCursor(DataCursor source, int capacity) {
+    this.source = source;
+    queue = new ArrayBlockingQueue<Object>(capacity);
+
+    // The reading thread may hold one more row than the queue does.
+    source.setReadAhead(capacity + 1);
+
+    producer = new Thread(this, "DataVision prefetch");
+    producer.setDaemon(true);
+    producer.start();
+}
+
+/**
+ * Reads rows from the source cursor and puts them into the queue until
+ * there are no more rows, reading throws an exception, or this cursor is
+ * closed.
+ */
+public void run() {
+    Object item;
+    do {
+	try {
+	    List<Object> row = source.readRowData();
+	    item = row == null ? END : row;
+	}
+	catch (Throwable t) {
+	    item = new Failure(t);
+	}
+
+	try {
+	    queue.put(item);
+	}
+	catch (InterruptedException ie) {
+	    return;
+	}
+    } while (item instanceof List && !closed);
+}
+
+/**
+ * Returns the next row read by the background thread, waiting for it if
+ * necessary.
+ *
+ * @throws UserCancellationException if the report thread is interrupted
+ * while waiting
+ */
+protected List<Object> readRowData() {
+    if (noMoreData)
+	return null;
+
+    Object item;
+    try {
+	item = queue.take();
+    }
+    catch (InterruptedException ie) {
+	Thread.currentThread().interrupt();
+	throw new UserCancellationException();
+    }
+
+    if (item instanceof Failure) {
+	noMoreData = true;
+	Throwable t = ((Failure)item).throwable;
+	if (t instanceof RuntimeException)
+	    throw (RuntimeException)t;
+	if (t instanceof Error)
+	    throw (Error)t;
+	throw new RuntimeException(t);
+    }
+    if (item == END) {
+	noMoreData = true;
+	return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    List<Object> row = (List<Object>)item;
+    return row;
+}
+
+/**
+ * Stops the background thread and closes the source cursor. We don't
+ * interrupt the thread because some JDBC drivers close the connection when
+ * interrupted during I/O; instead, we empty the queue so the thread can
+ * finish putting the row it has, then wait for it to see that we're closed.
+ */
+public void close() {
+    closed = true;
+    noMoreData = true;
+    boolean interrupted = false;
+    while (producer.isAlive()) {
+	queue.clear();
+	try {
+	    producer.join(100);
+	}
+	catch (InterruptedException ie) {
+	    interrupted = true;
+	}
+    }
+    queue.clear();
+    source.close();
+    if (interrupted)
+	Thread.currentThread().interrupt();
+}
+
+}
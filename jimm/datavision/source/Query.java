@@ -21,6 +21,7 @@ protected String whereClause;
 protected ArrayList<Selectable> sortSelectables;
 protected ArrayList<Integer> sortOrders;
 protected ArrayList<Selectable> selectables; // Can't be a Set; we need selectable indices
+protected boolean summarizing;
 
 /**
  * Constructor.
@@ -304,6 +305,55 @@ public void findSelectablesUsed() {
  */
 public int getNumSelectables() { return selectables.size(); }
 
+/**
+ * Returns <code>true</code> if this query can return one row for each
+ * combination of group values instead of returning every row; see {@link
+ * #setSummarizing}. The default implementation returns <code>false</code>.
+ *
+ * @return <code>true</code> if this query can summarize
+ */
+public boolean canSummarize() { return false; }
+
+/**
+ * Returns <code>true</code> if this query returns one row for each
+ * combination of group values.
+ *
+ * @return <code>true</code> if this query is summarizing
+ */
+public boolean isSummarizing() { return summarizing; }
+
+/**
+ * Tells this query to return one row for each combination of group values
+ * instead of returning every row. Each row also holds the value of each
+ * aggregate field's query function (see {@link #summarySelectable}) and
+ * the number of rows it summarizes (see {@link #rowCountSelectable}). Only
+ * turn this on if {@link #canSummarize} returns <code>true</code>.
+ *
+ * @param val if <code>true</code>, summarize
+ * @see AggregateField#getQueryFunction
+ */
+public void setSummarizing(boolean val) { summarizing = val; }
+
+/**
+ * Returns the selectable that holds the value of <var>af</var>'s query
+ * function in summary rows. The default implementation returns
+ * <code>null</code>.
+ *
+ * @param af an aggregate field
+ * @return a selectable; may be <code>null</code>
+ * @see #setSummarizing
+ */
+public Selectable summarySelectable(AggregateField af) { return null; }
+
+/**
+ * Returns the selectable that holds the number of rows summarized by each
+ * summary row. The default implementation returns <code>null</code>.
+ *
+ * @return a selectable; may be <code>null</code>
+ * @see #setSummarizing
+ */
+public Selectable rowCountSelectable() { return null; }
+
 /**
  * Called from <code>DataSource.reloadColumns</code>, this method gives the
  * query source a chance to tell its ancillary objects (such as joins and
@@ -0,0 +1,406 @@
+package jimm.datavision.source;
+import jimm.datavision.ErrorHandler;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A result cache holds the rows returned by queries so that running the
+ * same query again can replay them instead of asking the database. Each
+ * cached result is stored under a key (for example, the SQL text and the
+ * values bound to its placeholders) and is used for as long as the caller
+ * says it may be: each lookup passes the maximum age it accepts.
+ * <p>
+ * Small results are kept in memory. Results bigger than the spill size are
+ * written to {@link Snapshot} files instead. When the cached rows use more
+ * than the memory budget, or the files more than the disk budget, the
+ * results that were used least recently are removed.
+ * <p>
+ * A result is only cached after all of its rows have been read. Cursors
+ * returned by a cache may be used after their result has been removed
+ * from it. All methods are thread-safe; reports running in different
+ * threads may share a cache. See {@link #getDefault}.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class ResultCache {
+
+public static final long DEFAULT_MEMORY = 64L * 1024 * 1024;
+public static final long DEFAULT_DISK = 1024L * 1024 * 1024;
+public static final long DEFAULT_SPILL_SIZE = 8L * 1024 * 1024;
+
+protected static ResultCache defaultCache = new ResultCache();
+
+/** A cached result: rows in memory or a snapshot file. */
+static class Entry {
+List<List<Object>> rows;
+File file;
+long bytes;
+long created;
+}
+
+/** Replays rows held in memory. */
+static class ListCursor extends DataCursor {
+List<List<Object>> rows;
+int index;
+ListCursor(List<List<Object>> rows) { this.rows = rows; }
+protected List<Object> readRowData() {
+    return index < rows.size() ? rows.get(index++) : null;
+}
+public boolean canReadAhead() { return true; }
+}
+
+protected LinkedHashMap<Object, Entry> entries;
+protected long memory;
+protected long disk;
+protected long spillSize;
+protected long memoryUsed;
+protected long diskUsed;
+protected long hits;
+protected long misses;
+protected long expirations;
+protected long evictions;
+
+/**
+ * Returns the cache shared by all reports that don't set their own.
+ *
+ * @return the default cache
+ */
+public static ResultCache getDefault() { return defaultCache; }
+
+/**
+ * Constructor. Uses the default memory and disk budgets and spill size.
+ */
+public ResultCache() {
+    entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+    memory = DEFAULT_MEMORY;
+    disk = DEFAULT_DISK;
+    spillSize = DEFAULT_SPILL_SIZE;
+}
+
+/**
+ * Returns a cursor that replays the rows cached under <var>key</var>, or
+ * <code>null</code> if there are none or they are older than
+ * <var>maxAge</var> milliseconds. Counts the lookup as a hit or a miss.
+ *
+ * @param key a key
+ * @param maxAge the maximum age of a usable result in milliseconds
+ * @return a data cursor or <code>null</code>
+ */
+public synchronized DataCursor get(Object key, long maxAge) {
+    Entry entry = entries.get(key);
+    if (entry != null
+	&& System.currentTimeMillis() - entry.created >= maxAge) {
+	++expirations;
+	remove(key);
+	entry = null;
+    }
+
+    if (entry != null) {
+	if (entry.rows != null) {
+	    ++hits;
+	    return new ListCursor(entry.rows);
+	}
+	try {
+	    DataCursor cursor = new SnapshotCursor(entry.file);
+	    ++hits;
+	    return cursor;
+	}
+	catch (IOException ioe) { // Somebody removed the file
+	    remove(key);
+	}
+    }
+    ++misses;
+    return null;
+}
+
+/**
+ * Returns a cursor that returns the rows of <var>source</var> and, once
+ * they have all been read, caches them under <var>key</var>.
+ *
+ * @param key a key
+ * @param source the cursor to read from
+ * @return a data cursor
+ */
+public DataCursor cache(Object key, DataCursor source) {
+    return new Recorder(key, source);
+}
+
+/**
+ * Adds an entry, replacing any entry with the same key, then removes the
+ * least recently used entries until the cache is within its budgets.
+ */
+protected synchronized void put(Object key, Entry entry) {
+    remove(key);
+    entries.put(key, entry);
+    if (entry.rows != null)
+	memoryUsed += entry.bytes;
+    else
+	diskUsed += entry.bytes;
+    trim();
+}
+
+/**
+ * Removes the least recently used entries until the cache is within its
+ * budgets.
+ */
+protected void trim() {
+    Iterator<Map.Entry<Object, Entry>> iter = entries.entrySet().iterator();
+    while ((memoryUsed > memory || diskUsed > disk) && iter.hasNext()) {
+	Entry entry = iter.next().getValue();
+	if (entry.rows != null ? memoryUsed <= memory : diskUsed <= disk)
+	    continue;
+	iter.remove();
+	forget(entry);
+	++evictions;
+    }
+}
+
+protected void remove(Object key) {
+    Entry entry = entries.remove(key);
+    if (entry != null)
+	forget(entry);
+}
+
+/** Subtracts an entry's size and deletes its file. */
+protected void forget(Entry entry) {
+    if (entry.rows != null)
+	memoryUsed -= entry.bytes;
+    else {
+	diskUsed -= entry.bytes;
+	entry.file.delete();
+    }
+}
+
+/**
+ * Removes all cached results.
+ */
+public synchronized void clear() {
+    for (Entry entry : entries.values())
+	forget(entry);
+    entries.clear();
+}
+
+/**
+ * Returns the number of bytes of rows that may be held in memory.
+ *
+ * @return the memory budget in bytes
+ */
+public synchronized long getMemory() { return memory; }
+
+/**
+ * Sets the number of bytes of rows that may be held in memory. The
+ * numbers are estimates.
+ *
+ * @param bytes the memory budget in bytes
+ */
+public synchronized void setMemory(long bytes) {
+    memory = bytes < 0 ? 0 : bytes;
+    trim();
+}
+
+/**
+ * Returns the number of bytes of snapshot files that may be kept.
+ *
+ * @return the disk budget in bytes
+ */
+public synchronized long getDisk() { return disk; }
+
+/**
+ * Sets the number of bytes of snapshot files that may be kept.
+ *
+ * @param bytes the disk budget in bytes
+ */
+public synchronized void setDisk(long bytes) {
+    disk = bytes < 0 ? 0 : bytes;
+    trim();
+}
+
+/**
+ * Returns the size above which a result is written to a file instead of
+ * being held in memory.
+ *
+ * @return the spill size in bytes
+ */
+public synchronized long getSpillSize() { return spillSize; }
+
+/**
+ * Sets the size above which a result is written to a file instead of
+ * being held in memory.
+ *
+ * @param bytes the spill size in bytes
+ */
+public synchronized void setSpillSize(long bytes) {
+    spillSize = bytes < 0 ? 0 : bytes;
+}
+
+/**
+ * Returns the number of cached results.
+ *
+ * @return the number of cached results
+ */
+public synchronized int size() { return entries.size(); }
+
+/**
+ * Returns the estimated number of bytes of rows held in memory.
+ *
+ * @return the memory used in bytes
+ */
+public synchronized long getMemoryUsed() { return memoryUsed; }
+
+/**
+ * Returns the number of bytes used by snapshot files.
+ *
+ * @return the disk space used in bytes
+ */
+public synchronized long getDiskUsed() { return diskUsed; }
+
+/**
+ * Returns the number of lookups that found a usable result.
+ *
+ * @return the number of hits
+ */
+public synchronized long getHits() { return hits; }
+
+/**
+ * Returns the number of lookups that didn't find a usable result,
+ * including those that found an expired one.
+ *
+ * @return the number of misses
+ */
+public synchronized long getMisses() { return misses; }
+
+/**
+ * Returns the number of results removed because they were too old.
+ *
+ * @return the number of expired results
+ */
+public synchronized long getExpirations() { return expirations; }
+
+/**
+ * Returns the number of results removed to stay within the budgets.
+ *
+ * @return the number of evicted results
+ */
+public synchronized long getEvictions() { return evictions; }
+
+/**
+ * Sets the hit, miss, expiration, and eviction counts back to zero.
+ */
+public synchronized void resetCounts() {
+    hits = misses = expirations = evictions = 0;
+}
+
+/**
+ * Returns the rows of another cursor and caches them after the last one
+ * has been read. Rows are collected in memory until they are bigger than
+ * the spill size, then written to a snapshot file. If the cursor is closed
+ * early, nothing is cached.
+ */
+class Recorder extends DataCursor {
+Object key;
+DataCursor source;
+ArrayList<List<Object>> rows;
+long bytes;
+SnapshotWriter writer;
+File file;
+boolean reading;
+long created;
+
+Recorder(Object key, DataCursor source) {
+    this.key = key;
+    this.source = source;
+    rows = new ArrayList<List<Object>>();
+    created = System.currentTimeMillis();
+}
+
+protected List<Object> readRowData() {
+    List<Object> row;
+    reading = true;
+    try {
+	row = source.readRowData();
+    }
+    finally {
+	reading = false;
+    }
+
+    if (rows == null && writer == null) // Closed or failed
+	return row;
+    try {
+	if (row == null)
+	    finish();
+	else
+	    add(row);
+    }
+    catch (IOException ioe) {
+	abandon();
+	ErrorHandler.error(ioe);
+    }
+    return row;
+}
+
+void add(List<Object> row) throws IOException {
+    if (writer != null) {
+	writer.add(row);
+	return;
+    }
+
+    rows.add(new ArrayList<Object>(row)); // Rows may be reused
+    bytes += SpillFile.estimatedSize(row);
+    if (bytes > getSpillSize()) {
+	file = File.createTempFile("datavision", ".cache");
+	file.deleteOnExit();
+	writer = new SnapshotWriter(new Snapshot(file, key.toString(),
+						 new ArrayList<String>()));
+	for (List<Object> r : rows)
+	    writer.add(r);
+	rows = null;
+    }
+}
+
+void finish() throws IOException {
+    Entry entry = new Entry();
+    entry.created = created;
+    if (writer != null) {
+	writer.finish();
+	writer = null;
+	entry.file = file;
+	entry.bytes = file.length();
+    }
+    else {
+	rows.trimToSize();
+	entry.rows = rows;
+	entry.bytes = bytes;
+	rows = null;
+    }
+    put(key, entry);
+}
+
+void abandon() {
+    if (writer != null) {
+	writer.abandon();
+	writer = null;
+	file.delete();
+    }
+    rows = null;
+}
+
+public Object getObject(int index) {
+    return reading ? source.getObject(index) : super.getObject(index);
+}
+
+public double getDouble(int index) {
+    return reading ? source.getDouble(index) : super.getDouble(index);
+}
+
+public boolean canReadAhead() { return source.canReadAhead(); }
+
+public void setReadAhead(int rows) { source.setReadAhead(rows); }
+
+public void close() {
+    abandon();
+    source.close();
+}
+}
+
+}
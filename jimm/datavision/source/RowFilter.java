@@ -0,0 +1,165 @@
+package jimm.datavision.source;
+import jimm.datavision.Formula;
+import jimm.datavision.FormulaTemplate;
+import jimm.datavision.expr.NativeExpression;
+import jimm.datavision.expr.Range;
+import jimm.datavision.expr.UnsupportedExpressionException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A row filter decides which rows satisfy a query's where clause for data
+ * sources that read rows themselves, like character-separated files and
+ * lists of objects.
+ * <p>
+ * If the where clause only refers to columns of the data source and is
+ * simple enough to be a {@link NativeExpression}, the filter is compiled:
+ * each column reference is turned into a row index once, when the filter
+ * is created, and {@link #test} evaluates the expression using only the
+ * values of those columns. A data cursor can then reject a row before it
+ * converts or copies any of the row's other values. Other where clauses,
+ * and values the native expression can't handle, are evaluated as a
+ * formula by {@link #accept}, the way they always have been.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class RowFilter {
+
+protected DataSource source;
+protected Formula formula;
+protected FormulaTemplate template;
+protected NativeExpression expression;
+protected int[] columnIndices;
+
+/**
+ * Returns a new filter for <var>query</var>'s where clause, or
+ * <code>null</code> if the query has no where clause.
+ *
+ * @param source a data source
+ * @param query the data source's query
+ * @return a new row filter or <code>null</code>
+ */
+public static RowFilter create(DataSource source, Query query) {
+    String script = query.getWhereClause();
+    if (script == null || script.length() == 0)
+	return null;
+    return new RowFilter(source, script);
+}
+
+/**
+ * Constructor. Compiles <var>script</var> if possible.
+ *
+ * @param source the data source whose rows are filtered
+ * @param script a where clause
+ */
+public RowFilter(DataSource source, String script) {
+    this.source = source;
+    formula = new Formula(null, source.getReport(), "", script);
+    template = formula.getTemplate();
+    if (!template.isCompilable())
+	return;
+
+    Column[] cols = template.variableColumns();
+    if (cols == null)
+	return;
+    int[] indices = new int[cols.length];
+    for (int i = 0; i < cols.length; ++i)
+	if ((indices[i] = source.indexOfSelectable(cols[i])) < 0)
+	    return;
+
+    expression = NativeExpression.parse(template.compilableSource(),
+					template.variableNames());
+    if (expression != null)
+	columnIndices = indices;
+}
+
+/**
+ * Returns <code>true</code> if this filter has been compiled, meaning
+ * {@link #test} may be called.
+ *
+ * @return <code>true</code> if this filter is compiled
+ */
+public boolean isCompiled() { return expression != null; }
+
+/**
+ * Returns the row index of each column the compiled filter uses, in the
+ * order in which {@link #test} wants their values. Only call this if the
+ * filter is compiled.
+ *
+ * @return an array of row indices
+ */
+public int[] getColumnIndices() { return columnIndices; }
+
+/**
+ * Returns the ranges that column values must fall within for a row to be
+ * accepted (see {@link NativeExpression#requiredRanges}). The index of
+ * each range is a row index. Returns an empty list if the filter isn't
+ * compiled.
+ *
+ * @return a possibly empty list of ranges
+ */
+public List<Range> columnRanges() {
+    List<Range> ranges = new ArrayList<Range>();
+    if (expression != null)
+	for (Range r : expression.requiredRanges())
+	    ranges.add(r.withIndex(columnIndices[r.getIndex()]));
+    return ranges;
+}
+
+/**
+ * Evaluates the compiled filter. Returns <code>Boolean.TRUE</code> or
+ * <code>Boolean.FALSE</code>, or <code>null</code> if the values can't be
+ * handled natively. In that case the caller must build the whole row and
+ * call {@link #accept}.
+ *
+ * @param values the values of the columns whose indices are returned by
+ * {@link #getColumnIndices}, in that order
+ * @return <code>Boolean.TRUE</code>, <code>Boolean.FALSE</code>, or
+ * <code>null</code>
+ */
+public Boolean test(Object[] values) {
+    Object[] args = template.arguments(values);
+    if (args == null)
+	return null;
+    try {
+	return Boolean.valueOf(NativeExpression.isTrue(expression.eval(args)));
+    }
+    catch (UnsupportedExpressionException uee) {
+	return null;
+    }
+}
+
+/**
+ * Returns <code>true</code> if <var>row</var> satisfies the where clause.
+ * If the filter isn't compiled or can't handle the row's values, the
+ * where clause formula is evaluated with <var>row</var> as
+ * <var>cursor</var>'s current row. Only the report thread may do that.
+ *
+ * @param cursor the cursor that read <var>row</var>
+ * @param row a row of data
+ * @return <code>true</code> if the row should be used
+ */
+public boolean accept(DataCursor cursor, List<Object> row) {
+    if (expression != null) {
+	Object[] values = new Object[columnIndices.length];
+	for (int i = 0; i < columnIndices.length; ++i)
+	    values[i] = columnIndices[i] < row.size()
+		? row.get(columnIndices[i]) : null;
+	Boolean result = test(values);
+	if (result != null)
+	    return result.booleanValue();
+    }
+
+    // The formula may make use of data in the new row, so make it the
+    // current row while we evaluate it.
+    List<Object> origCurrRowData = cursor.currRowData;
+    cursor.currRowData = row;
+    try {
+	return NativeExpression.isTrue(formula.eval());
+    }
+    finally {
+	cursor.currRowData = origCurrRowData;
+    }
+}
+
+}
@@ -0,0 +1,191 @@
+package jimm.datavision.source;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A snapshot is a local file holding the rows a data source returned, so a
+ * report can be run again without running its query again. The file
+ * records the query text and parameter values that produced the rows; a
+ * snapshot made by a different query or with different parameter values
+ * is stale and is never read.
+ * <p>
+ * The rows are stored in blocks of (by default) {@link #DEFAULT_BLOCK_ROWS}
+ * rows. Within a block, each column's values are stored together as a
+ * typed vector: a bitmap of the <code>null</code> values followed by the
+ * rest of the values as raw numbers, dates as milliseconds, and strings as
+ * indices into a dictionary of the block's distinct strings. Each block is
+ * compressed. Columns whose values aren't all of the same class are stored
+ * using Java serialization.
+ * <p>
+ * Use {@link #record} to write a snapshot while the rows are read from a
+ * data source and {@link #open} to read it back. Note that only the query
+ * and parameters are checked; a snapshot doesn't know when the data behind
+ * the query changes.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ * @see SnapshotRecorder
+ * @see SnapshotCursor
+ */
+public class Snapshot {
+
+public static final int DEFAULT_BLOCK_ROWS = 4096;
+
+static final int MAGIC = 0x44565350; // "DVSP"
+static final int VERSION = 1;
+
+// Column vector kinds
+static final byte NULLS = 0;
+static final byte BOOLEAN = 1;
+static final byte INTEGER = 2;
+static final byte LONG = 3;
+static final byte DOUBLE = 4;
+static final byte STRING = 5;
+static final byte BIG_DECIMAL = 6;
+static final byte DATE = 7;
+static final byte SQL_DATE = 8;
+static final byte SQL_TIME = 9;
+static final byte TIMESTAMP = 10;
+static final byte OBJECT = 11;
+
+protected File file;
+protected String queryText;
+protected List<String> parameterValues;
+protected int blockRows;
+
+/**
+ * Constructor.
+ *
+ * @param file the snapshot file
+ * @param queryText the text of the query whose rows are in the snapshot
+ * @param parameterValues the report's parameter values, as strings
+ */
+public Snapshot(File file, String queryText, List<String> parameterValues) {
+    this.file = file;
+    this.queryText = queryText == null ? "" : queryText;
+    this.parameterValues = parameterValues;
+    blockRows = DEFAULT_BLOCK_ROWS;
+}
+
+public File getFile() { return file; }
+
+public String getQueryText() { return queryText; }
+
+public List<String> getParameterValues() { return parameterValues; }
+
+/**
+ * Returns the number of rows written to each block.
+ *
+ * @return the number of rows per block
+ */
+public int getBlockRows() { return blockRows; }
+
+/**
+ * Sets the number of rows written to each block. Bigger blocks compress
+ * better but use more memory while reading and writing.
+ *
+ * @param rows the number of rows per block
+ */
+public void setBlockRows(int rows) { blockRows = rows < 1 ? 1 : rows; }
+
+/**
+ * Returns <code>true</code> if the snapshot file exists and was made by
+ * the same query with the same parameter values.
+ *
+ * @return <code>true</code> if the snapshot may be used
+ */
+public boolean isCurrent() {
+    try {
+	DataCursor cursor = open();
+	if (cursor == null)
+	    return false;
+	cursor.close();
+	return true;
+    }
+    catch (IOException ioe) {
+	return false;
+    }
+}
+
+/**
+ * Returns a cursor that reads the snapshot's rows, or <code>null</code> if
+ * the file doesn't exist or is stale.
+ *
+ * @return a data cursor or <code>null</code>
+ * @throws IOException if the file can't be read or isn't a snapshot
+ */
+public DataCursor open() throws IOException {
+    if (!file.exists())
+	return null;
+    SnapshotCursor cursor = new SnapshotCursor(file);
+    if (queryText.equals(cursor.getQueryText())
+	&& parameterValues.equals(cursor.getParameterValues()))
+	return cursor;
+    cursor.close();
+    return null;
+}
+
+/**
+ * Returns a cursor that returns the rows of <var>source</var> and writes
+ * them to this snapshot's file. The file is only replaced once every row
+ * has been read.
+ *
+ * @param source the cursor to read from
+ * @return a data cursor
+ */
+public DataCursor record(DataCursor source) {
+    return new SnapshotRecorder(source, this);
+}
+
+/**
+ * Writes the file header: the magic number, version, and the length of
+ * the rest of the header, which holds the query text and parameter
+ * values.
+ */
+void writeHeader(DataOutputStream out) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream header = new DataOutputStream(bytes);
+    writeString(header, queryText);
+    header.writeInt(parameterValues.size());
+    for (String val : parameterValues)
+	writeString(header, val);
+    header.close();
+
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(bytes.size());
+    bytes.writeTo(out);
+}
+
+/**
+ * Reads the parameter values from a header written by {@link #writeHeader}
+ * after the query text has been read.
+ */
+static List<String> readParameterValues(ByteBuffer buf) throws IOException {
+    int n = buf.getInt();
+    ArrayList<String> values = new ArrayList<String>(n);
+    for (int i = 0; i < n; ++i)
+	values.add(readString(buf));
+    return values;
+}
+
+/**
+ * Writes a string as its length in bytes followed by its UTF-8 bytes.
+ * Unlike <code>writeUTF</code>, the string may be of any length.
+ */
+static void writeString(DataOutputStream out, String str)
+    throws IOException
+{
+    byte[] bytes = str.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+}
+
+static String readString(ByteBuffer buf) throws IOException {
+    byte[] bytes = new byte[buf.getInt()];
+    buf.get(bytes);
+    return new String(bytes, "UTF-8");
+}
+
+}
@@ -0,0 +1,277 @@
+package jimm.datavision.source;
+import jimm.datavision.ErrorHandler;
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A snapshot cursor reads the rows written to a {@link Snapshot} file. The
+ * file is read through memory-mapped buffers one block at a time; each
+ * block's column vectors are uncompressed and turned back into values when
+ * the first of its rows is needed.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class SnapshotCursor extends DataCursor {
+
+protected RandomAccessFile file;
+protected FileChannel channel;
+protected long position;	// Start of the next block
+protected String queryText;
+protected List<String> parameterValues;
+protected Object[][] columns;	// One array of values per column
+protected int blockRows;
+protected int rowIndex;
+protected boolean noMoreData;
+
+/**
+ * Constructor. Reads the snapshot's header.
+ *
+ * @param snapshotFile a snapshot file
+ * @throws IOException if the file can't be read or isn't a snapshot
+ */
+public SnapshotCursor(File snapshotFile) throws IOException {
+    file = new RandomAccessFile(snapshotFile, "r");
+    channel = file.getChannel();
+    try {
+	readHeader();
+    }
+    catch (IOException ioe) {
+	close();
+	throw ioe;
+    }
+    catch (BufferUnderflowException bue) {
+	close();
+	throw new IOException(snapshotFile + " is truncated");
+    }
+}
+
+protected void readHeader() throws IOException {
+    ByteBuffer buf = map(0, 12);
+    if (buf.getInt() != Snapshot.MAGIC)
+	throw new IOException("not a snapshot file");
+    if (buf.getInt() != Snapshot.VERSION)
+	throw new IOException("unknown snapshot file version");
+    int length = buf.getInt();
+
+    buf = map(12, length);
+    queryText = Snapshot.readString(buf);
+    parameterValues = Snapshot.readParameterValues(buf);
+    position = 12 + length;
+}
+
+/**
+ * Returns the text of the query that produced the snapshot's rows.
+ *
+ * @return the query text
+ */
+public String getQueryText() { return queryText; }
+
+/**
+ * Returns the parameter values used when the snapshot was made.
+ *
+ * @return a list of parameter values as strings
+ */
+public List<String> getParameterValues() { return parameterValues; }
+
+/**
+ * Returns the next row, reading the next block if needed.
+ */
+protected List<Object> readRowData() {
+    try {
+	while (columns == null || rowIndex == blockRows) {
+	    if (noMoreData || !readBlock()) {
+		noMoreData = true;
+		return null;
+	    }
+	}
+    }
+    catch (IOException ioe) {
+	noMoreData = true;
+	ErrorHandler.error(ioe);
+	return null;
+    }
+    catch (BufferUnderflowException bue) {
+	noMoreData = true;
+	ErrorHandler.error("snapshot file is truncated");
+	return null;
+    }
+
+    ArrayList<Object> row = new ArrayList<Object>(columns.length);
+    for (Object[] values : columns)
+	row.add(values[rowIndex]);
+    ++rowIndex;
+    return row;
+}
+
+/**
+ * Maps, uncompresses, and decodes the next block. Returns
+ * <code>false</code> if there are no more blocks.
+ */
+protected boolean readBlock() throws IOException {
+    ByteBuffer buf = map(position, Math.min(16, channel.size() - position));
+    int numRows = buf.getInt();
+    if (numRows == 0)
+	return false;
+    int numColumns = buf.getInt();
+    byte[] raw = new byte[buf.getInt()];
+    int compressedLength = buf.getInt();
+
+    byte[] compressed = new byte[compressedLength];
+    map(position + 16, compressedLength).get(compressed);
+    position += 16 + compressedLength;
+
+    Inflater inflater = new Inflater();
+    try {
+	inflater.setInput(compressed);
+	if (inflater.inflate(raw) != raw.length)
+	    throw new IOException("snapshot block is corrupt");
+    }
+    catch (DataFormatException dfe) {
+	throw new IOException("snapshot block is corrupt: " + dfe.getMessage());
+    }
+    finally {
+	inflater.end();
+    }
+
+    ByteBuffer block = ByteBuffer.wrap(raw);
+    columns = new Object[numColumns][];
+    for (int i = 0; i < numColumns; ++i)
+	columns[i] = readColumn(block, numRows);
+    blockRows = numRows;
+    rowIndex = 0;
+    return true;
+}
+
+/**
+ * Reads one column vector written by {@link SnapshotWriter#writeColumn}.
+ */
+protected Object[] readColumn(ByteBuffer block, int n) throws IOException {
+    Object[] values = new Object[n];
+    byte kind = block.get();
+    if (kind == Snapshot.NULLS)
+	return values;
+
+    byte[] bitmap = new byte[(n + 7) / 8];
+    block.get(bitmap);
+
+    switch (kind) {
+    case Snapshot.STRING:
+	readStrings(block, bitmap, values);
+	return values;
+    case Snapshot.OBJECT:
+	byte[] bytes = new byte[block.getInt()];
+	block.get(bytes);
+	ObjectInputStream in =
+	    new ObjectInputStream(new ByteArrayInputStream(bytes));
+	try {
+	    for (int i = 0; i < n; ++i)
+		if (isSet(bitmap, i))
+		    values[i] = in.readObject();
+	}
+	catch (ClassNotFoundException cnfe) {
+	    throw new IOException(cnfe.toString());
+	}
+	finally {
+	    in.close();
+	}
+	return values;
+    }
+
+    for (int i = 0; i < n; ++i) {
+	if (!isSet(bitmap, i))
+	    continue;
+	switch (kind) {
+	case Snapshot.BOOLEAN:
+	    values[i] = Boolean.valueOf(block.get() != 0);
+	    break;
+	case Snapshot.INTEGER:
+	    values[i] = new Integer(block.getInt());
+	    break;
+	case Snapshot.LONG:
+	    values[i] = new Long(block.getLong());
+	    break;
+	case Snapshot.DOUBLE:
+	    values[i] = new Double(block.getDouble());
+	    break;
+	case Snapshot.BIG_DECIMAL:
+	    values[i] = new BigDecimal(Snapshot.readString(block));
+	    break;
+	case Snapshot.DATE:
+	    values[i] = new java.util.Date(block.getLong());
+	    break;
+	case Snapshot.SQL_DATE:
+	    values[i] = new java.sql.Date(block.getLong());
+	    break;
+	case Snapshot.SQL_TIME:
+	    values[i] = new java.sql.Time(block.getLong());
+	    break;
+	case Snapshot.TIMESTAMP:
+	    java.sql.Timestamp ts = new java.sql.Timestamp(block.getLong());
+	    ts.setNanos(block.getInt());
+	    values[i] = ts;
+	    break;
+	default:
+	    throw new IOException("unknown snapshot column kind " + kind);
+	}
+    }
+    return values;
+}
+
+/**
+ * Reads a column of strings written by {@link
+ * SnapshotWriter#writeStrings}. Equal strings in a block are the same
+ * object.
+ */
+protected void readStrings(ByteBuffer block, byte[] bitmap, Object[] values)
+    throws IOException
+{
+    String[] words = new String[block.getInt()];
+    for (int i = 0; i < words.length; ++i)
+	words[i] = Snapshot.readString(block);
+
+    int width = SnapshotWriter.codeWidth(words.length);
+    for (int i = 0; i < values.length; ++i) {
+	if (!isSet(bitmap, i))
+	    continue;
+	int code;
+	switch (width) {
+	case 1: code = block.get() & 0xff; break;
+	case 2: code = block.getShort() & 0xffff; break;
+	default: code = block.getInt(); break;
+	}
+	values[i] = words[code];
+    }
+}
+
+protected static boolean isSet(byte[] bitmap, int i) {
+    return (bitmap[i >> 3] & (1 << (i & 7))) != 0;
+}
+
+/**
+ * Maps <var>length</var> bytes of the file starting at <var>start</var>.
+ */
+protected ByteBuffer map(long start, long length) throws IOException {
+    if (start + length > channel.size())
+	throw new IOException("snapshot file is truncated");
+    return channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+}
+
+public boolean canReadAhead() { return true; }
+
+public void close() {
+    noMoreData = true;
+    columns = null;
+    if (file != null) {
+	try { file.close(); } catch (IOException ioe) {}
+	file = null;
+    }
+}
+
+}
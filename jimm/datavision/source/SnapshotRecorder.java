@@ -0,0 +1,100 @@
+package jimm.datavision.source;
+import jimm.datavision.ErrorHandler;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A snapshot recorder returns the rows of another data cursor unchanged
+ * and writes them to a {@link Snapshot} file as they go by, using a {@link
+ * SnapshotWriter}. The snapshot file is only replaced after the last row
+ * has been read. If the cursor is closed before that (for example, because
+ * the report was cancelled), the old snapshot file, if any, is left alone.
+ * <p>
+ * If the snapshot can't be written, the error is reported and the rows are
+ * still returned.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class SnapshotRecorder extends DataCursor {
+
+protected DataCursor source;
+protected SnapshotWriter writer;
+protected boolean reading;
+
+/**
+ * Constructor. Creates the temporary file and writes the snapshot header.
+ *
+ * @param source the cursor to read from
+ * @param snapshot the snapshot to write
+ */
+public SnapshotRecorder(DataCursor source, Snapshot snapshot) {
+    this.source = source;
+    try {
+	writer = new SnapshotWriter(snapshot);
+    }
+    catch (IOException ioe) {
+	ErrorHandler.error(ioe);
+    }
+}
+
+/**
+ * Returns the source cursor's next row after adding it to the snapshot.
+ * When there are no more rows, finishes the snapshot file.
+ */
+protected List<Object> readRowData() {
+    List<Object> row;
+    reading = true;
+    try {
+	row = source.readRowData();
+    }
+    finally {
+	reading = false;
+    }
+
+    if (writer != null) {
+	try {
+	    if (row == null) {
+		writer.finish();
+		writer = null;
+	    }
+	    else
+		writer.add(row);
+	}
+	catch (IOException ioe) {
+	    writer.abandon();
+	    writer = null;
+	    ErrorHandler.error(ioe);
+	}
+    }
+    return row;
+}
+
+/**
+ * Returns the source cursor's value while it is reading a row (its where
+ * clause may ask for column values), else the current row's value.
+ */
+public Object getObject(int index) {
+    return reading ? source.getObject(index) : super.getObject(index);
+}
+
+public double getDouble(int index) {
+    return reading ? source.getDouble(index) : super.getDouble(index);
+}
+
+public boolean canReadAhead() { return source.canReadAhead(); }
+
+public void setReadAhead(int rows) { source.setReadAhead(rows); }
+
+/**
+ * Closes the source cursor. If not all of the rows have been read, the
+ * snapshot is abandoned.
+ */
+public void close() {
+    if (writer != null) {
+	writer.abandon();
+	writer = null;
+    }
+    source.close();
+}
+
+}
@@ -0,0 +1,279 @@
+package jimm.datavision.source;
+import java.io.*;
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.zip.Deflater;
+
+/**
+ * A snapshot writer writes rows to a {@link Snapshot} file. The rows are
+ * written to a temporary file next to the snapshot file, which replaces
+ * the snapshot file when {@link #finish} is called. If {@link #abandon} is
+ * called instead, the temporary file is deleted and the old snapshot file,
+ * if any, is left alone.
+ * <p>
+ * Rows are collected into blocks. When a block is full, each column's
+ * values are written as a typed vector and the block is compressed. See
+ * {@link Snapshot} for the format.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class SnapshotWriter {
+
+protected Snapshot snapshot;
+protected File tempFile;
+protected DataOutputStream out;
+protected Object[][] columns;	// One array of values per column
+protected int numRows;
+
+/**
+ * Constructor. Creates the temporary file and writes the snapshot header.
+ *
+ * @param snapshot the snapshot to write
+ */
+public SnapshotWriter(Snapshot snapshot) throws IOException {
+    this.snapshot = snapshot;
+    File dir = snapshot.getFile().getAbsoluteFile().getParentFile();
+    tempFile = File.createTempFile("datavision", ".snapshot", dir);
+    try {
+	out = new DataOutputStream(new BufferedOutputStream(
+	    new FileOutputStream(tempFile)));
+	snapshot.writeHeader(out);
+    }
+    catch (IOException ioe) {
+	abandon();
+	throw ioe;
+    }
+}
+
+/**
+ * Adds a row, writing the current block when it is full. The values are
+ * copied, so the row may be reused.
+ *
+ * @param row a list of column values
+ */
+public void add(List<Object> row) throws IOException {
+    if (columns == null)
+	columns = new Object[row.size()][snapshot.getBlockRows()];
+    for (int i = 0; i < columns.length; ++i)
+	columns[i][numRows] = i < row.size() ? row.get(i) : null;
+    if (++numRows == snapshot.getBlockRows())
+	writeBlock();
+}
+
+/**
+ * Writes the last block and the end marker and replaces the snapshot file
+ * with the temporary file.
+ */
+public void finish() throws IOException {
+    if (numRows > 0)
+	writeBlock();
+    out.writeInt(0);
+    out.close();
+    out = null;
+
+    File file = snapshot.getFile();
+    if ((file.exists() && !file.delete()) || !tempFile.renameTo(file)) {
+	tempFile.delete();
+	throw new IOException("can't replace snapshot file " + file);
+    }
+}
+
+/**
+ * Stops writing the snapshot and deletes the temporary file. Does nothing
+ * if the snapshot has been finished.
+ */
+public void abandon() {
+    if (out != null) {
+	try { out.close(); } catch (IOException ioe) {}
+	out = null;
+    }
+    if (tempFile != null)
+	tempFile.delete();
+    columns = null;
+}
+
+/**
+ * Writes the rows in the current block. A block is its row count, column
+ * count, uncompressed length, and compressed length followed by the
+ * compressed column vectors.
+ */
+protected void writeBlock() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream block = new DataOutputStream(bytes);
+    for (Object[] values : columns)
+	writeColumn(block, values, numRows);
+    block.close();
+    byte[] raw = bytes.toByteArray();
+
+    Deflater deflater = new Deflater();
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try {
+	deflater.setInput(raw);
+	deflater.finish();
+	byte[] buf = new byte[8192];
+	while (!deflater.finished()) {
+	    int len = deflater.deflate(buf);
+	    compressed.write(buf, 0, len);
+	}
+    }
+    finally {
+	deflater.end();
+    }
+
+    out.writeInt(numRows);
+    out.writeInt(columns.length);
+    out.writeInt(raw.length);
+    out.writeInt(compressed.size());
+    compressed.writeTo(out);
+
+    for (Object[] values : columns)
+	Arrays.fill(values, 0, numRows, null);
+    numRows = 0;
+}
+
+/**
+ * Writes the first <var>n</var> values of one column: its kind, a bitmap
+ * with a bit set for each non-<code>null</code> value, and then the
+ * non-<code>null</code> values.
+ */
+protected void writeColumn(DataOutputStream block, Object[] values, int n)
+    throws IOException
+{
+    byte kind = kindOf(values, n);
+    block.writeByte(kind);
+    if (kind == Snapshot.NULLS)
+	return;
+
+    byte[] bitmap = new byte[(n + 7) / 8];
+    for (int i = 0; i < n; ++i)
+	if (values[i] != null)
+	    bitmap[i >> 3] |= 1 << (i & 7);
+    block.write(bitmap);
+
+    switch (kind) {
+    case Snapshot.STRING:
+	writeStrings(block, values, n);
+	return;
+    case Snapshot.OBJECT:
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	ObjectOutputStream objOut = new ObjectOutputStream(bytes);
+	for (int i = 0; i < n; ++i)
+	    if (values[i] != null)
+		objOut.writeObject(values[i]);
+	objOut.close();
+	block.writeInt(bytes.size());
+	bytes.writeTo(block);
+	return;
+    }
+
+    for (int i = 0; i < n; ++i) {
+	Object val = values[i];
+	if (val == null)
+	    continue;
+	switch (kind) {
+	case Snapshot.BOOLEAN:
+	    block.writeBoolean(((Boolean)val).booleanValue());
+	    break;
+	case Snapshot.INTEGER:
+	    block.writeInt(((Integer)val).intValue());
+	    break;
+	case Snapshot.LONG:
+	    block.writeLong(((Long)val).longValue());
+	    break;
+	case Snapshot.DOUBLE:
+	    block.writeDouble(((Double)val).doubleValue());
+	    break;
+	case Snapshot.BIG_DECIMAL:
+	    Snapshot.writeString(block, val.toString());
+	    break;
+	case Snapshot.TIMESTAMP:
+	    block.writeLong(((java.util.Date)val).getTime());
+	    block.writeInt(((java.sql.Timestamp)val).getNanos());
+	    break;
+	default:		// Dates
+	    block.writeLong(((java.util.Date)val).getTime());
+	    break;
+	}
+    }
+}
+
+/**
+ * Writes the non-<code>null</code> strings of one column as a dictionary
+ * of the distinct strings followed by each string's index into the
+ * dictionary. The indices use one, two, or four bytes depending upon the
+ * size of the dictionary.
+ */
+protected void writeStrings(DataOutputStream block, Object[] values, int n)
+    throws IOException
+{
+    HashMap<Object, Integer> dictionary = new HashMap<Object, Integer>();
+    int[] codes = new int[n];
+    for (int i = 0; i < n; ++i) {
+	if (values[i] == null)
+	    continue;
+	Integer code = dictionary.get(values[i]);
+	if (code == null) {
+	    code = new Integer(dictionary.size());
+	    dictionary.put(values[i], code);
+	}
+	codes[i] = code.intValue();
+    }
+
+    String[] words = new String[dictionary.size()];
+    for (Map.Entry<Object, Integer> entry : dictionary.entrySet())
+	words[entry.getValue().intValue()] = (String)entry.getKey();
+    block.writeInt(words.length);
+    for (String word : words)
+	Snapshot.writeString(block, word);
+
+    int width = codeWidth(words.length);
+    for (int i = 0; i < n; ++i) {
+	if (values[i] == null)
+	    continue;
+	switch (width) {
+	case 1: block.writeByte(codes[i]); break;
+	case 2: block.writeShort(codes[i]); break;
+	default: block.writeInt(codes[i]); break;
+	}
+    }
+}
+
+/**
+ * Returns the number of bytes used by each dictionary index when the
+ * dictionary holds <var>size</var> strings.
+ */
+static int codeWidth(int size) {
+    return size <= 0x100 ? 1 : (size <= 0x10000 ? 2 : 4);
+}
+
+/**
+ * Returns the kind of vector used to store the first <var>n</var> values.
+ * If the non-<code>null</code> values aren't all of the same class or it
+ * isn't one we know, returns <code>Snapshot.OBJECT</code>.
+ */
+static byte kindOf(Object[] values, int n) {
+    Class<?> c = null;
+    for (int i = 0; i < n; ++i) {
+	if (values[i] == null)
+	    continue;
+	if (c == null)
+	    c = values[i].getClass();
+	else if (values[i].getClass() != c)
+	    return Snapshot.OBJECT;
+    }
+
+    if (c == null) return Snapshot.NULLS;
+    if (c == Boolean.class) return Snapshot.BOOLEAN;
+    if (c == Integer.class) return Snapshot.INTEGER;
+    if (c == Long.class) return Snapshot.LONG;
+    if (c == Double.class) return Snapshot.DOUBLE;
+    if (c == String.class) return Snapshot.STRING;
+    if (c == BigDecimal.class) return Snapshot.BIG_DECIMAL;
+    if (c == java.util.Date.class) return Snapshot.DATE;
+    if (c == java.sql.Date.class) return Snapshot.SQL_DATE;
+    if (c == java.sql.Time.class) return Snapshot.SQL_TIME;
+    if (c == java.sql.Timestamp.class) return Snapshot.TIMESTAMP;
+    return Snapshot.OBJECT;
+}
+
+}
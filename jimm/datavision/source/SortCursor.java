@@ -0,0 +1,337 @@
+package jimm.datavision.source;
+import jimm.datavision.ErrorHandler;
+import jimm.datavision.Group;
+import jimm.datavision.Selectable;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A sort cursor returns the rows of another data cursor sorted by the
+ * report's groups and then by the query's sorts, the way a database's
+ * "order by" clause would. It is used by data sources that read rows
+ * themselves, like character-separated files and lists of objects.
+ * <p>
+ * All of the wrapped cursor's rows are read the first time a row is asked
+ * for. While the rows fit within the memory budget they are sorted in
+ * memory. When they don't, each budget's worth of rows is sorted and
+ * written to a temporary spill file, and the spill files are merged as the
+ * rows are read. Rows with equal sort values keep their original order.
+ * <p>
+ * Only columns can be sorted on. If a group or sort uses a formula, a user
+ * column, or anything else that isn't one of the data source's columns,
+ * the rows are sorted by the groups and sorts that come before it.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class SortCursor extends DataCursor {
+
+/** The default memory budget in bytes. */
+public static final long DEFAULT_MEMORY = 32L * 1024 * 1024;
+
+protected DataCursor source;
+protected int[] keys;
+protected boolean[] descending;
+protected long memory;
+protected boolean loading;
+protected boolean loaded;
+protected ArrayList<List<Object>> rows;
+protected int rowIndex;
+protected ArrayList<SpillFile> spillFiles;
+protected PriorityQueue<Run> runs;
+
+/**
+ * A sorted run of rows that is being merged. Runs are read from spill
+ * files, except for the last one, which is still in memory.
+ */
+protected class Run {
+int number;
+SpillFile file;
+Iterator<List<Object>> iter;
+List<Object> row;
+
+Run(int number, SpillFile file) {
+    this.number = number;
+    this.file = file;
+}
+
+Run(int number, List<List<Object>> rows) {
+    this.number = number;
+    iter = rows.iterator();
+}
+
+/** Reads the next row into <var>row</var> and returns it. */
+List<Object> advance() throws IOException {
+    if (iter != null)
+	return row = iter.hasNext() ? iter.next() : null;
+    return row = file.read();
+}
+}
+
+/**
+ * Returns <var>cursor</var> wrapped in a sort cursor if
+ * <var>source</var>'s report has groups or its query has sorts that can be
+ * sorted on; else returns <var>cursor</var>.
+ *
+ * @param cursor a data cursor
+ * @param source the data source that created the cursor
+ * @return a data cursor
+ */
+public static DataCursor wrap(DataCursor cursor, DataSource source) {
+    ArrayList<Integer> keyList = new ArrayList<Integer>();
+    ArrayList<Boolean> descList = new ArrayList<Boolean>();
+    boolean sortable = true;
+    for (Group g : source.getReport().groups()) {
+	if (!(sortable = addKey(source, g.getSelectable(), keyList)))
+	    break;
+	descList.add(Boolean.valueOf(g.getSortOrder()
+				     == Group.SORT_DESCENDING));
+    }
+    Query query = source.getQuery();
+    if (sortable) {
+	for (Selectable s : query.sortedSelectables()) {
+	    if (!addKey(source, s, keyList))
+		break;
+	    descList.add(Boolean.valueOf(query.sortOrderOf(s)
+					 == Query.SORT_DESCENDING));
+	}
+    }
+
+    if (keyList.isEmpty())
+	return cursor;
+
+    int[] keys = new int[keyList.size()];
+    boolean[] descending = new boolean[keys.length];
+    for (int i = 0; i < keys.length; ++i) {
+	keys[i] = keyList.get(i).intValue();
+	descending[i] = descList.get(i).booleanValue();
+    }
+    return new SortCursor(cursor, keys, descending, source.getSortMemory());
+}
+
+/**
+ * Adds the row index of <var>sel</var> to <var>keys</var> and returns
+ * <code>true</code>, or returns <code>false</code> if it isn't a column.
+ */
+protected static boolean addKey(DataSource source, Selectable sel,
+				List<Integer> keys)
+{
+    if (!(sel instanceof Column))
+	return false;
+    int index = source.indexOfSelectable(sel);
+    if (index < 0)
+	return false;
+    keys.add(new Integer(index));
+    return true;
+}
+
+/**
+ * Constructor.
+ *
+ * @param source the cursor whose rows are sorted
+ * @param keys the row indices of the values to sort by, most significant
+ * first
+ * @param descending for each key, <code>true</code> if it is sorted in
+ * descending order
+ * @param memory the number of bytes of rows to hold in memory before
+ * spilling sorted rows to disk
+ */
+public SortCursor(DataCursor source, int[] keys, boolean[] descending,
+		  long memory)
+{
+    this.source = source;
+    this.keys = keys;
+    this.descending = descending;
+    this.memory = memory;
+}
+
+/**
+ * Returns the next row in sorted order. The first call reads all of the
+ * wrapped cursor's rows.
+ */
+protected List<Object> readRowData() {
+    if (!loaded)
+	load();
+
+    if (runs == null) {
+	if (rows == null || rowIndex == rows.size())
+	    return null;
+	List<Object> row = rows.get(rowIndex);
+	rows.set(rowIndex++, null); // We won't need it again
+	return row;
+    }
+
+    Run run = runs.poll();
+    if (run == null)
+	return null;
+    List<Object> row = run.row;
+    try {
+	if (run.advance() != null)
+	    runs.add(run);
+    }
+    catch (IOException ioe) {
+	ErrorHandler.error(ioe);
+    }
+    return row;
+}
+
+/**
+ * Reads all of the wrapped cursor's rows, sorting them and spilling them
+ * to disk whenever they exceed the memory budget. If any were spilled, gets
+ * ready to merge the spill files and the rows that are still in memory.
+ */
+protected void load() {
+    loaded = true;
+    loading = true;
+    rows = new ArrayList<List<Object>>();
+    long bytes = 0;
+    try {
+	List<Object> row;
+	while ((row = source.readRowData()) != null) {
+	    if (row instanceof TypedRow) // It may be reused
+		row = new ArrayList<Object>(row);
+	    rows.add(row);
+	    bytes += SpillFile.estimatedSize(row);
+	    if (bytes > memory && spill()) {
+		rows = new ArrayList<List<Object>>();
+		bytes = 0;
+	    }
+	}
+    }
+    finally {
+	loading = false;
+    }
+
+    Collections.sort(rows, new RowComparator());
+    if (spillFiles == null || spillFiles.isEmpty())
+	return;
+
+    runs = new PriorityQueue<Run>(spillFiles.size(), new Comparator<Run>() {
+	RowComparator rowComparator = new RowComparator();
+	public int compare(Run a, Run b) {
+	    int cmp = rowComparator.compare(a.row, b.row);
+	    return cmp != 0 ? cmp : a.number - b.number;
+	}
+	});
+    try {
+	for (int i = 0; i <= spillFiles.size(); ++i) {
+	    Run run = i < spillFiles.size() ? new Run(i, spillFiles.get(i))
+		: new Run(i, rows);
+	    if (run.advance() != null)
+		runs.add(run);
+	}
+    }
+    catch (IOException ioe) {
+	ErrorHandler.error(ioe);
+    }
+    rows = null;
+}
+
+/**
+ * Sorts the rows in memory and writes them to a new spill file. Returns
+ * <code>false</code> if they couldn't be written, in which case we keep
+ * them in memory.
+ *
+ * @return <code>true</code> if the rows were written
+ */
+protected boolean spill() {
+    if (spillFiles == null)
+	spillFiles = new ArrayList<SpillFile>();
+    Collections.sort(rows, new RowComparator());
+
+    SpillFile file = null;
+    try {
+	file = new SpillFile();
+	for (List<Object> row : rows)
+	    file.write(row);
+	spillFiles.add(file);
+	return true;
+    }
+    catch (IOException ioe) {
+	ErrorHandler.error(ioe);
+	memory = Long.MAX_VALUE; // Don't try again
+	if (file != null)
+	    file.delete();
+	return false;
+    }
+}
+
+/**
+ * While the wrapped cursor's rows are being read, its where clause may be
+ * evaluated using its current row, so we return that.
+ */
+public Object getObject(int index) {
+    return loading ? source.getObject(index) : super.getObject(index);
+}
+
+public double getDouble(int index) {
+    return loading ? source.getDouble(index) : super.getDouble(index);
+}
+
+/**
+ * Returns <code>true</code> if the wrapped cursor can read ahead. All of
+ * its rows are read by the first call to {@link #readRowData}.
+ */
+public boolean canReadAhead() { return source.canReadAhead(); }
+
+/**
+ * Closes the wrapped cursor and deletes the spill files.
+ */
+public void close() {
+    runs = null;
+    if (spillFiles != null) {
+	for (SpillFile f : spillFiles)
+	    f.delete();
+	spillFiles = null;
+    }
+    rows = null;
+    source.close();
+}
+
+/**
+ * Compares rows using the sort keys.
+ */
+protected class RowComparator implements Comparator<List<Object>> {
+public int compare(List<Object> a, List<Object> b) {
+    for (int i = 0; i < keys.length; ++i) {
+	int cmp = compareValues(a.get(keys[i]), b.get(keys[i]));
+	if (cmp != 0)
+	    return descending[i] ? -cmp : cmp;
+    }
+    return 0;
+}
+}
+
+/**
+ * Compares two column values. <code>null</code> comes first. Numbers are
+ * compared by value whatever their class; other values that can't be
+ * compared with each other are compared as strings.
+ */
+protected static int compareValues(Object a, Object b) {
+    if (a == b)
+	return 0;
+    if (a == null)
+	return -1;
+    if (b == null)
+	return 1;
+    if (a instanceof Number && b instanceof Number) {
+	if (isIntegral(a) && isIntegral(b)) {
+	    long x = ((Number)a).longValue(), y = ((Number)b).longValue();
+	    return x < y ? -1 : (x > y ? 1 : 0);
+	}
+	return Double.compare(((Number)a).doubleValue(),
+			      ((Number)b).doubleValue());
+    }
+    if (a instanceof Comparable && a.getClass().isInstance(b)) {
+	@SuppressWarnings("unchecked")
+	Comparable<Object> c = (Comparable<Object>)a;
+	return c.compareTo(b);
+    }
+    return a.toString().compareTo(b.toString());
+}
+
+protected static boolean isIntegral(Object n) {
+    return n instanceof Long || n instanceof Integer || n instanceof Short
+	|| n instanceof Byte;
+}
+
+}
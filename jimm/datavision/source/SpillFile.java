@@ -0,0 +1,123 @@
+package jimm.datavision.source;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A spill file is a temporary file that holds rows that don't fit in
+ * memory. Rows are written one after another, then the file is read back
+ * from the beginning. Values must be serializable.
+ * <p>
+ * Call {@link #delete} when done with the file.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class SpillFile {
+
+/** The output stream is reset this often so it doesn't remember every row. */
+protected static final int RESET_INTERVAL = 1000;
+
+protected File file;
+protected ObjectOutputStream out;
+protected ObjectInputStream in;
+protected int numRows;
+protected boolean atEnd;
+
+/**
+ * Returns a rough guess at the number of bytes <var>row</var> uses in
+ * memory. Used to decide when rows need to be spilled.
+ *
+ * @param row a list of column values
+ * @return an estimated size in bytes
+ */
+public static long estimatedSize(List<Object> row) {
+    long size = 32 + 8 * row.size();
+    for (Object val : row) {
+	if (val instanceof String)
+	    size += 40 + 2 * ((String)val).length();
+	else if (val != null)
+	    size += 24;
+    }
+    return size;
+}
+
+/**
+ * Constructor. Creates the temporary file and opens it for writing.
+ */
+public SpillFile() throws IOException {
+    file = File.createTempFile("datavision", ".spill");
+    file.deleteOnExit();
+    out = new ObjectOutputStream(new BufferedOutputStream(
+	new FileOutputStream(file)));
+}
+
+/**
+ * Returns the number of rows written.
+ *
+ * @return the number of rows written
+ */
+public int getNumRows() { return numRows; }
+
+/**
+ * Writes a row.
+ *
+ * @param row a list of column values
+ */
+public void write(List<Object> row) throws IOException {
+    out.writeInt(row.size());
+    for (Object val : row)
+	out.writeObject(val);
+    if (++numRows % RESET_INTERVAL == 0)
+	out.reset();
+}
+
+/**
+ * Reads the next row. The first call finishes writing the file.
+ *
+ * @return a list of column values, or <code>null</code> if there are no
+ * more rows
+ */
+public List<Object> read() throws IOException {
+    if (in == null) {
+	if (out != null) {
+	    out.writeInt(-1);
+	    out.close();
+	    out = null;
+	}
+	in = new ObjectInputStream(new BufferedInputStream(
+	    new FileInputStream(file)));
+    }
+
+    if (atEnd)
+	return null;
+    int size = in.readInt();
+    if (size < 0) {
+	atEnd = true;
+	return null;
+    }
+    ArrayList<Object> row = new ArrayList<Object>(size);
+    try {
+	for (int i = 0; i < size; ++i)
+	    row.add(in.readObject());
+    }
+    catch (ClassNotFoundException cnfe) {
+	throw new IOException(cnfe.toString());
+    }
+    return row;
+}
+
+/**
+ * Closes the file and deletes it.
+ */
+public void delete() {
+    try {
+	if (out != null) out.close();
+	if (in != null) in.close();
+    }
+    catch (IOException ioe) {}
+    out = null;
+    in = null;
+    file.delete();
+}
+
+}
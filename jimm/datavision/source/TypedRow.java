@@ -0,0 +1,204 @@
+package jimm.datavision.source;
+import java.util.AbstractList;
+
+/**
+ * A typed row holds one row of data in slots specialized by column type.
+ * Integer and boolean values are stored in an array of <code>long</code>s,
+ * floating point values in an array of <code>double</code>s, and everything
+ * else (strings, dates, decimals) in an array of objects. Values are only
+ * boxed when somebody asks for one as an object, and {@link #getDouble}
+ * never boxes at all.
+ * <p>
+ * A typed row can be reused: a data cursor fills the same few rows over
+ * and over instead of creating a new list for each row it reads.
+ * <p>
+ * The object returned by {@link #get} is the same type JDBC's
+ * <code>getObject</code> returns for the column's type, except that a
+ * value in an integer slot that doesn't fit in an <code>int</code> is
+ * returned as a <code>Long</code>.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class TypedRow extends AbstractList<Object> {
+
+public static final int OBJECT = 0;
+public static final int BOOLEAN = 1;
+public static final int INTEGER = 2;
+public static final int LONG = 3;
+public static final int FLOAT = 4;
+public static final int DOUBLE = 5;
+
+protected int[] kinds;
+protected long[] longs;
+protected double[] doubles;
+protected Object[] objects;
+protected boolean[] nulls;
+
+/**
+ * Returns the kind of slot used to store values of the given
+ * <code>java.sql.Types</code> type. <code>BIT</code> columns may hold more
+ * than one bit, so they are stored as objects.
+ *
+ * @param sqlType a <code>java.sql.Types</code> constant
+ * @return one of the slot kind constants
+ */
+public static int kindOf(int sqlType) {
+    switch (sqlType) {
+    case java.sql.Types.BOOLEAN:
+	return BOOLEAN;
+    case java.sql.Types.TINYINT:
+    case java.sql.Types.SMALLINT:
+    case java.sql.Types.INTEGER:
+	return INTEGER;
+    case java.sql.Types.BIGINT:
+	return LONG;
+    case java.sql.Types.REAL:
+	return FLOAT;
+    case java.sql.Types.FLOAT:
+    case java.sql.Types.DOUBLE:
+	return DOUBLE;
+    default:
+	return OBJECT;
+    }
+}
+
+/**
+ * Returns the kind of slot used to store values whose class, as reported
+ * by <code>ResultSetMetaData.getColumnClassName</code>, is
+ * <var>className</var>. Unknown classes are stored as objects.
+ *
+ * @param className a Java class name; may be <code>null</code>
+ * @return one of the slot kind constants
+ */
+public static int kindOf(String className) {
+    if ("java.lang.Boolean".equals(className))
+	return BOOLEAN;
+    if ("java.lang.Integer".equals(className))
+	return INTEGER;
+    if ("java.lang.Long".equals(className))
+	return LONG;
+    if ("java.lang.Float".equals(className))
+	return FLOAT;
+    if ("java.lang.Double".equals(className))
+	return DOUBLE;
+    return OBJECT;
+}
+
+/**
+ * Converts <var>obj</var> to a <code>double</code> the way aggregates
+ * always have: <code>null</code> is 0, numbers are converted, and anything
+ * else is parsed.
+ *
+ * @param obj any object
+ * @return a double
+ * @throws NumberFormatException if <var>obj</var> isn't a number
+ */
+public static double toDouble(Object obj) {
+    if (obj == null)
+	return 0;
+    if (obj instanceof Number)
+	return ((Number)obj).doubleValue();
+    return Double.parseDouble(obj.toString());
+}
+
+/**
+ * Constructor.
+ *
+ * @param kinds the kind of each column's slot
+ */
+public TypedRow(int[] kinds) {
+    this.kinds = kinds;
+    longs = new long[kinds.length];
+    doubles = new double[kinds.length];
+    objects = new Object[kinds.length];
+    nulls = new boolean[kinds.length];
+}
+
+public int size() { return kinds.length; }
+
+/**
+ * Returns the kind of slot used by the <var>index</var>'th column.
+ *
+ * @param index a column index, starting at 0
+ * @return a slot kind constant
+ */
+public int kindAt(int index) { return kinds[index]; }
+
+/**
+ * Returns the <var>index</var>'th value as an object, boxing it if
+ * necessary.
+ *
+ * @param index a column index, starting at 0
+ * @return a possibly <code>null</code> value
+ */
+public Object get(int index) {
+    if (nulls[index])
+	return null;
+    switch (kinds[index]) {
+    case BOOLEAN: return Boolean.valueOf(longs[index] != 0);
+    case INTEGER:
+	if (longs[index] != (int)longs[index]) // Unsigned, perhaps
+	    return new Long(longs[index]);
+	return new Integer((int)longs[index]);
+    case LONG: return new Long(longs[index]);
+    case FLOAT: return new Float((float)doubles[index]);
+    case DOUBLE: return new Double(doubles[index]);
+    default: return objects[index];
+    }
+}
+
+/**
+ * Returns the <var>index</var>'th value as a <code>double</code> without
+ * boxing numeric values. See {@link #toDouble}.
+ *
+ * @param index a column index, starting at 0
+ * @return a double
+ * @throws NumberFormatException if the value isn't a number
+ */
+public double getDouble(int index) {
+    if (nulls[index])
+	return 0;
+    switch (kinds[index]) {
+    case INTEGER:
+    case LONG:
+	return longs[index];
+    case FLOAT:
+    case DOUBLE:
+	return doubles[index];
+    default:
+	return toDouble(get(index));
+    }
+}
+
+/**
+ * Returns <code>true</code> if the <var>index</var>'th value is
+ * <code>null</code>.
+ *
+ * @param index a column index, starting at 0
+ * @return <code>true</code> if the value is <code>null</code>
+ */
+public boolean isNull(int index) { return nulls[index]; }
+
+public void setLong(int index, long value) {
+    longs[index] = value;
+    objects[index] = null;
+    nulls[index] = false;
+}
+
+public void setDouble(int index, double value) {
+    doubles[index] = value;
+    objects[index] = null;
+    nulls[index] = false;
+}
+
+public void setObject(int index, Object value) {
+    objects[index] = value;
+    nulls[index] = value == null;
+}
+
+public void setNull(int index) {
+    objects[index] = null;
+    nulls[index] = true;
+}
+
+}
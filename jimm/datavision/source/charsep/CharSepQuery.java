@@ -2,7 +2,9 @@ package jimm.datavision.source.charsep;
 import jimm.datavision.*;
 import jimm.datavision.source.Query;
 import jimm.datavision.source.Column;
+import jimm.datavision.source.Join;
 import java.util.ArrayList;
+import java.util.HashSet;
 
 /**
  * A query used in character-separated file queries.
@@ -13,6 +15,7 @@ import java.util.ArrayList;
 public class CharSepQuery extends Query {
 
 protected ArrayList<Column> charSepCols;
+protected HashSet<Column> usedCols;
 
 public CharSepQuery(Report r) {
     super(r);
@@ -23,10 +26,46 @@ void addColumn(Column col) {
     charSepCols.add(col);
 }
 
+/**
+ * Every column is a selectable, because rows always contain every column.
+ * We also remember which columns the report really uses: those used by
+ * fields, groups, sorts, and joins, plus those used by any formula,
+ * including suppression formulas.
+ */
 public void findSelectablesUsed() {
     super.findSelectablesUsed();
+
+    usedCols = new HashSet<Column>();
+    for (Selectable s : selectables)
+	if (s instanceof Column) usedCols.add((Column)s);
+    for (Formula f : report.formulas())
+	usedCols.addAll(f.columnsUsed());
+    for (Join j : joins()) {
+	usedCols.add(j.getFrom());
+	usedCols.add(j.getTo());
+    }
+    report.withSectionsDo(new SectionWalker() {
+	public void step(Section s) {
+	    if (s.getSuppressionProc().hasFormula())
+		usedCols.addAll(s.getSuppressionProc().getFormula()
+				.columnsUsed());
+	}
+	});
+
     for (Column col : charSepCols)
 	if (!selectables.contains(col)) selectables.add(col);
 }
 
+/**
+ * Returns <code>true</code> if the report uses <var>col</var>'s value.
+ * The values of other columns don't need to be read. Only valid after
+ * {@link #findSelectablesUsed} has been called.
+ *
+ * @param col a column
+ * @return <code>true</code> if the report uses the column's value
+ */
+boolean isUsed(Column col) {
+    return usedCols == null || usedCols.contains(col);
+}
+
 }
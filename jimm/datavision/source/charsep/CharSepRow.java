@@ -1,16 +1,32 @@
 package jimm.datavision.source.charsep;
-import jimm.datavision.Formula;
 import jimm.datavision.ErrorHandler;
 import jimm.datavision.source.DataCursor;
 import jimm.datavision.source.Column;
 import jimm.datavision.source.Query;
+import jimm.datavision.source.RowFilter;
+import jimm.datavision.expr.Range;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.io.File;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.text.ParseException;
+import java.nio.charset.Charset;
 
 /**
  * A concrete subclass of <code>DataCursor</code> that wraps a delimited file parser.
+ * <p>
+ * When the data source's parallelism is more than one and its input is a
+ * file that can be split (see {@link CharSepSource#setParallelism}), the
+ * file is split into chunks of whole lines that are parsed and converted
+ * by a fork/join pool. We keep a window of chunks in progress and return
+ * their rows in file order.
+ * <p>
+ * When the data source has index columns (see {@link
+ * CharSepSource#setIndexColumns}), the chunks are made of the blocks of a
+ * {@link SourceIndex} instead. Blocks that can't contain rows accepted by
+ * the where clause are skipped.
  *
  * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
  */
@@ -18,141 +34,278 @@ public class CharSepRow extends DataCursor {
 
 protected CharSepSource source;
 protected Query query;
-protected Formula whereClauseFormula;
+protected RowFilter filter;
 protected boolean noMoreData;
 protected DelimParser parser;
-protected HashMap<String, SimpleDateFormat> dateParsers;
-protected boolean dateParseErrorReported;
+protected LineConverter converter;
+protected File file;
+protected ChunkSplitter splitter;
+protected SourceIndex index;
+protected List<Range> blockRanges;
+protected int nextBlock;
+protected ForkJoinPool pool;
+protected LinkedList<Future<Chunk>> chunks;
+protected Chunk chunk;
+protected int chunkRowIndex;
 
-CharSepRow(CharSepSource source, Query query) {
+/**
+ * Constructor. The query's selectables must already have been found.
+ *
+ * @param source the data source
+ * @param query the data source's query
+ * @param filter the where clause filter; <code>null</code> if there is no
+ * where clause or if it is evaluated after this cursor's rows are joined
+ * with other tables' rows
+ */
+CharSepRow(CharSepSource source, Query query, RowFilter filter) {
     this.source = source;
     this.query = query;
-    this.query.findSelectablesUsed();	// Needed so we can find columns later
-
-    String script = query.getWhereClause();
-    if (script != null && script.length() > 0)
-	whereClauseFormula = new Formula(null, source.getReport(), "", script);
+    this.filter = filter;
 }
 
 /**
  * Returns the next row of data. If there is a where clause, use that to
  * determine which rows we accept or reject.
+ * <p>
+ * Lines are only split into fields; a field's string is created and
+ * converted when its value is needed. When the where clause is compiled,
+ * only the columns it uses are converted before it is evaluated. Columns
+ * that the report doesn't use are never converted; their values are
+ * <code>null</code>.
  */
 public List<Object> readRowData() {
     if (noMoreData)
 	return null;
+    if (converter == null)
+	open();
+
+    List<Object> data = file != null ? nextChunkRow() : nextParsedRow();
+    if (data == null)
+	noMoreData = true;
+    return data;
+}
 
-    List<Object> data = null;
-
-    boolean acceptRow;
-    do {
-	data = retrieveNextRow();
-	if (whereClauseFormula != null && data != null) {
-	    // Run the Ruby script and retrive its boolean value. If true,
-	    // accept the line. Else, reject it and move on to the next
-	    // line.
-
-	    // First, save the existing current row and make the new data
-	    // the current row. We need to do this because the formula we
-	    // are about to evaluate may make use of data in the new
-	    // current row.
-	    List<Object> origCurrRowData = currRowData;
-	    currRowData = data;	// Need data available to formula
-
-	    // Evaulate the script and retrieve a boolean.
-	    Object obj = whereClauseFormula.eval();
-	    acceptRow = ((Boolean)obj).booleanValue();
-
-	    // Replace the original current row data (acutally the previous
-	    // row, but we don't care).
-	    currRowData = origCurrRowData;
+/**
+ * Returns <code>true</code> if there is no where clause. Where clauses are
+ * formulas, and formulas may only be evaluated by the report thread.
+ */
+public boolean canReadAhead() { return filter == null; }
+
+/**
+ * Decides which columns' values we need (those the report uses and those
+ * the where clause uses) and gets ready to read the input.
+ */
+protected void open() {
+    List<Column> columns = source.sourceFileColumns();
+
+    // If the where clause is evaluated later, we don't know which of our
+    // columns it will use.
+    String where = query.getWhereClause();
+    boolean filterUsesAll = filter != null ? !filter.isCompiled()
+	: where != null && where.length() > 0;
+    boolean[] used = new boolean[columns.size()];
+    for (int i = 0; i < used.length; ++i)
+	used[i] = filterUsesAll || !(query instanceof CharSepQuery)
+	    || ((CharSepQuery)query).isUsed(columns.get(i));
+    if (filter != null && filter.isCompiled())
+	for (int i : filter.getColumnIndices())
+	    used[i] = true;
+    converter = new LineConverter(columns, used, filter);
+
+    if ((file = source.splittableFile()) != null) {
+	try {
+	    openIndex(columns);
+	    if (index == null)
+		splitter = new ChunkSplitter(file, source.getSepChar());
+	    if (source.getParallelism() > 1)
+		pool = new ForkJoinPool(source.getParallelism());
+	    chunks = new LinkedList<Future<Chunk>>();
+	    return;
+	}
+	catch (IOException ioe) {
+	    ErrorHandler.error(ioe);
+	    file = null;	// Read it the usual way
+	    index = null;
 	}
-	else
-	    acceptRow = true;
-    } while (!acceptRow);
+    }
+    parser = new DelimParser(source.getReader(), source.getSepChar());
+}
 
-    return data;
+/**
+ * Opens the source index if the data source has index columns, and finds
+ * the ranges of indexed column values that the where clause accepts.
+ *
+ * @param columns the data source's columns
+ */
+protected void openIndex(List<Column> columns) throws IOException {
+    ArrayList<Integer> indexed = new ArrayList<Integer>();
+    for (String id : source.getIndexColumns()) {
+	int i = columns.indexOf(source.findColumn(id));
+	if (i >= 0 && !indexed.contains(i))
+	    indexed.add(i);
+    }
+    source.blocksRead = 0;
+    if (indexed.isEmpty())
+	return;
+
+    int[] indices = new int[indexed.size()];
+    for (int i = 0; i < indices.length; ++i)
+	indices[i] = indexed.get(i).intValue();
+    index = SourceIndex.open(file, source.getSepChar(),
+			     Charset.defaultCharset(),
+			     source.getIndexBlockSize(), columns, indices);
+
+    blockRanges = new ArrayList<Range>();
+    if (filter != null)
+	for (Range r : filter.columnRanges())
+	    if (indexed.contains(r.getIndex()))
+		blockRanges.add(r.withIndex(indexed.indexOf(r.getIndex())));
 }
 
 /**
- * Retrieve the next row of data and return it as a list of column values.
+ * Parses lines until one is accepted and returns its row, or returns
+ * <code>null</code> if there is no more data.
  *
  * @return a list of column values
  */
-protected List<Object> retrieveNextRow() {
-    if (parser == null)
-	parser = new DelimParser(source.getReader(), source.getSepChar());
-
-    List<String> parsed = null;
+protected List<Object> nextParsedRow() {
     try {
-	parsed = parser.parse();
+	while (parser.next()) {
+	    int result = converter.filter(parser);
+	    if (result == LineConverter.REJECTED)
+		continue;
+
+	    List<Object> data = converter.rowData(parser);
+	    if (result == LineConverter.ACCEPTED || filter.accept(this, data))
+		return data;
+	}
     }
     catch (IOException ioe) {
 	ErrorHandler.error(ioe);
-	noMoreData = true;
-	return null;
-    }
-    if (parsed == null) {
-	noMoreData = true;
-	return null;
     }
+    return null;
+}
 
-    int numColumnsInData = parsed.size();
-    List<Object> data = new ArrayList<Object>();
-    int i = 0;
-    for (Column col : source.columns()) {
-	if (i >= numColumnsInData) {
-	    data.add(null);
+/**
+ * Returns the next accepted row from the chunks, or <code>null</code> if
+ * there is no more data.
+ *
+ * @return a list of column values
+ */
+protected List<Object> nextChunkRow() {
+    while (true) {
+	if (chunk != null && chunkRowIndex < chunk.rows.size()) {
+	    int i = chunkRowIndex++;
+	    List<Object> data = chunk.rows.get(i);
+	    chunk.rows.set(i, null); // The chunk doesn't need it any more
+	    if (!chunk.undecided.get(i) || filter.accept(this, data))
+		return data;
 	    continue;
 	}
 
-	String str = parsed.get(i);
-	if (col.isNumeric()) {
-	    if (str == null || str.length() == 0)
-		data.add(new Integer(0));
-	    else if (str.indexOf('.') == -1)
-		data.add(new Integer(str));
-	    else
-		data.add(new Double(str));
+	chunk = null;
+	submitChunks();
+	Future<Chunk> future = chunks.poll();
+	if (future == null)
+	    return null;
+	try {
+	    chunk = future.get();
+	    chunkRowIndex = 0;
+	}
+	catch (ExecutionException ee) {
+	    ErrorHandler.error(ee.getCause());
+	    return null;
+	}
+	catch (InterruptedException ie) {
+	    Thread.currentThread().interrupt();
+	    return null;
 	}
-	else if (col.isDate())
-	    data.add(parseDate(col, str));
-	else
-	    data.add(str);
-	// else, it's a string; there is nothing to modify
-
-        ++i;
     }
-
-    return data;
 }
 
-protected Date parseDate(Column col, String dateString) {
-    String formatString = col.getDateParseFormat();
+/**
+ * Submits more chunks until there are twice as many in progress as there
+ * are threads, so the threads always have work and we never hold more
+ * than a few chunks' rows at once. Without threads, one chunk at a time
+ * is read right here.
+ */
+protected void submitChunks() {
+    Charset charset = Charset.defaultCharset();
+    int window = pool == null ? 1 : 2 * pool.getParallelism();
+    try {
+	long[] range;
+	while (chunks.size() < window && (range = nextChunkRange()) != null) {
+	    Chunk next = new Chunk(file, range[0], range[1], charset,
+				   source.getSepChar(), converter.copy());
+	    if (pool != null)
+		chunks.add(pool.submit(next));
+	    else {
+		FutureTask<Chunk> task = new FutureTask<Chunk>(next);
+		task.run();
+		chunks.add(task);
+	    }
+	}
+    }
+    catch (IOException ioe) {
+	ErrorHandler.error(ioe);
+	if (splitter != null) {
+	    splitter.close();
+	    splitter = null;
+	}
+    }
+}
 
-    // Find existing parser, if any
-    if (dateParsers == null)
-	dateParsers = new HashMap<String, SimpleDateFormat>();
-    SimpleDateFormat parser = dateParsers.get(formatString);
+/**
+ * Returns the start and end of the next chunk, or <code>null</code> if
+ * there are no more. Chunks are split off by the splitter or are runs of
+ * index blocks that may contain accepted rows.
+ *
+ * @return a two-element array holding the start and end offsets, or
+ * <code>null</code>
+ */
+protected long[] nextChunkRange() throws IOException {
+    if (index != null) {
+	while (nextBlock < index.numBlocks()
+	       && !index.mayMatch(nextBlock, blockRanges))
+	    ++nextBlock;
+	if (nextBlock == index.numBlocks())
+	    return null;
 
-    if (parser == null) {
-	parser = new SimpleDateFormat(formatString);
-	dateParsers.put(formatString, parser);
+	long start = index.blockStart(nextBlock);
+	long end = index.blockEnd(nextBlock++);
+	++source.blocksRead;
+	while (nextBlock < index.numBlocks()
+	       && end - start < source.getChunkSize()
+	       && index.mayMatch(nextBlock, blockRanges)) {
+	    end = index.blockEnd(nextBlock++);
+	    ++source.blocksRead;
+	}
+	return new long[] { start, end };
     }
 
-    try {
-	return parser.parse(dateString);
-    }
-    catch (ParseException ex) {
-	if (!dateParseErrorReported) {
-	    ErrorHandler.error("Parse format string = " + formatString, ex);
-	    dateParseErrorReported = true;
-	}
+    if (splitter == null)
+	return null;
+    long start = splitter.position();
+    long end = splitter.nextChunkEnd(source.getChunkSize());
+    if (end == -1) {
+	splitter.close();
+	splitter = null;
 	return null;
     }
+    return new long[] { start, end };
 }
 
 public void close() {
+    if (pool != null) {
+	for (Future<Chunk> future : chunks)
+	    future.cancel(true);
+	pool.shutdownNow();
+	pool = null;
+    }
+    if (splitter != null) {
+	splitter.close();
+	splitter = null;
+    }
     source.closeReader();
 }
 
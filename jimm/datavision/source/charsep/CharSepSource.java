@@ -3,6 +3,7 @@ import jimm.datavision.*;
 import jimm.datavision.source.*;
 import jimm.util.XMLWriter;
 import java.io.*;
+import java.nio.charset.Charset;
 import java.util.*;
 
 /**
@@ -14,24 +15,41 @@ import java.util.*;
 public class CharSepSource extends DataSource {
 
 protected static final char DEFAULT_SEP_CHAR = ',';
+public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+public static final int DEFAULT_INDEX_BLOCK_SIZE = 64 * 1024;
+public static final long DEFAULT_JOIN_MEMORY = 32L * 1024 * 1024;
 
 protected ArrayList<Column> columns;
 protected char sepChar;
 protected BufferedReader reader;
 protected String sourceFilePath;
+protected boolean readingSourceFile;
+protected int parallelism;
+protected int chunkSize;
+protected List<String> indexColumns;
+protected int indexBlockSize;
+/** Set by the last data cursor that used a source index. */
+protected int blocksRead;
+protected ArrayList<CharSepTable> tables;
+protected long joinMemory;
 
 public CharSepSource(Report report) {
     super(report, new CharSepQuery(report));
     columns = new ArrayList<Column>();
     sepChar = DEFAULT_SEP_CHAR;
+    chunkSize = DEFAULT_CHUNK_SIZE;
+    indexColumns = new ArrayList<String>();
+    indexBlockSize = DEFAULT_INDEX_BLOCK_SIZE;
+    tables = new ArrayList<CharSepTable>();
+    joinMemory = DEFAULT_JOIN_MEMORY;
 }
 
 public boolean canJoinTables() { return true; }
 public boolean isSQLGenerated() { return false; }
 public boolean isConnectionEditable() { return false; }
 public boolean areRecordsSelectable() { return true; }
-public boolean areRecordsSortable() { return false; }
-public boolean canGroupRecords() { return false; }
+public boolean areRecordsSortable() { return true; }
+public boolean canGroupRecords() { return true; }
 
 public boolean usesSourceFile() { return true; }
 public boolean needsSourceFile() { return reader == null; }
@@ -48,6 +66,7 @@ public void setSourceFile(String filePath) throws FileNotFoundException {
 
 public void reuseSourceFile() throws FileNotFoundException {
     setInput(new FileReader(sourceFilePath));
+    readingSourceFile = true;
 }
 
 public void setInput(Reader reader) {
@@ -55,10 +74,12 @@ public void setInput(Reader reader) {
 	this.reader = (BufferedReader)reader;
     else
 	this.reader = new BufferedReader(reader);
+    readingSourceFile = false;
 }
 
 public void setInput(InputStreamReader inputStreamReader) {
     reader = new BufferedReader(inputStreamReader);
+    readingSourceFile = false;
 }
 
 public void setInput(String fileName) throws FileNotFoundException {
@@ -68,6 +89,156 @@ public void setInput(String fileName) throws FileNotFoundException {
 public char getSepChar() { return sepChar; }
 public void setSepChar(char c) { sepChar = c; }
 
+/**
+ * Returns the number of threads used to parse the source file.
+ *
+ * @return the number of threads; 0 or 1 means the file is read by the
+ * report thread
+ * @see #setParallelism
+ */
+public int getParallelism() { return parallelism; }
+
+/**
+ * Sets the number of threads used to parse the source file. When it is
+ * more than one, the file is split into chunks of lines that are parsed
+ * and converted in parallel, and the report still sees the rows in file
+ * order. This is only done when the input is a file given to {@link
+ * #setSourceFile} (not a reader) whose character set is a single-byte one
+ * or UTF-8.
+ *
+ * @param threads the number of threads; 0 or 1 means the file is read by
+ * the report thread
+ */
+public void setParallelism(int threads) { parallelism = threads; }
+
+/**
+ * Returns the minimum number of bytes in each chunk of a file that is read
+ * in parallel.
+ *
+ * @return the chunk size in bytes
+ * @see #setParallelism
+ */
+public int getChunkSize() { return chunkSize; }
+
+/**
+ * Sets the minimum number of bytes in each chunk of a file that is read
+ * in parallel. Chunks are longer when they have to be to end with a whole
+ * line.
+ *
+ * @param bytes the chunk size in bytes
+ * @see #setParallelism
+ */
+public void setChunkSize(int bytes) { chunkSize = bytes < 1 ? 1 : bytes; }
+
+/**
+ * Returns the ids of the columns whose values are indexed.
+ *
+ * @return a possibly empty list of column ids
+ * @see #setIndexColumns
+ */
+public List<String> getIndexColumns() { return indexColumns; }
+
+/**
+ * Sets the ids of the columns whose values are indexed. When there are
+ * any, the source file is memory-mapped and a source index is kept in a
+ * file next to it whose name ends with ".dvidx". The index is built the
+ * first time the file is read and again whenever the file's length or
+ * modification time changes.
+ * <p>
+ * The index divides the file into blocks and remembers the smallest and
+ * largest value of each index column in each block. When the where clause
+ * compares an index column with a number or string (for example
+ * "{jobs.ID} &gt;= 100 &amp;&amp; {jobs.ID} &lt; 200"), the blocks that
+ * can't contain matching rows aren't read at all.
+ * <p>
+ * Like parallel reading, the index is only used for a file given to
+ * {@link #setSourceFile} whose character set is a single-byte one or
+ * UTF-8.
+ *
+ * @param ids column ids; may be empty
+ */
+public void setIndexColumns(List<String> ids) {
+    indexColumns = ids == null ? new ArrayList<String>() : ids;
+}
+
+/**
+ * Returns the minimum number of bytes in each block of a source index.
+ *
+ * @return the block size in bytes
+ * @see #setIndexColumns
+ */
+public int getIndexBlockSize() { return indexBlockSize; }
+
+/**
+ * Sets the minimum number of bytes in each block of a source index.
+ * Smaller blocks let more of the file be skipped but make the index
+ * bigger. Changing the block size rebuilds the index.
+ *
+ * @param bytes the block size in bytes
+ * @see #setIndexColumns
+ */
+public void setIndexBlockSize(int bytes) {
+    indexBlockSize = bytes < 1 ? 1 : bytes;
+}
+
+/**
+ * Returns the number of source index blocks the last data cursor read.
+ * Blocks that were skipped because of the where clause aren't counted.
+ *
+ * @return the number of blocks read
+ * @see #setIndexColumns
+ */
+public int getBlocksRead() { return blocksRead; }
+
+/**
+ * Adds a table whose file's rows are joined with the source file's rows.
+ * Add the table before adding its columns.
+ *
+ * @param table a table
+ * @see #joinTables
+ */
+public void addTable(CharSepTable table) { tables.add(table); }
+
+/**
+ * Returns the tables whose rows are joined with the source file's rows.
+ *
+ * @return a possibly empty list of tables
+ */
+public List<CharSepTable> getTables() { return tables; }
+
+/**
+ * Returns the number of bytes of each joined table's rows that are held in
+ * memory.
+ *
+ * @return the memory budget in bytes
+ * @see #setJoinMemory
+ */
+public long getJoinMemory() { return joinMemory; }
+
+/**
+ * Sets the number of bytes of each joined table's rows that are held in
+ * memory. When a table's rows take more, the table and the rows it is
+ * joined with are split into partitions that are written to temporary
+ * files and joined one at a time.
+ *
+ * @param bytes the memory budget in bytes
+ */
+public void setJoinMemory(long bytes) { joinMemory = bytes < 1 ? 1 : bytes; }
+
+/**
+ * Returns the source file if it will be read in chunks (in parallel or
+ * using a source index), or <code>null</code> if it won't.
+ *
+ * @return a file or <code>null</code>
+ */
+File splittableFile() {
+    if ((parallelism <= 1 && indexColumns.isEmpty())
+	|| !readingSourceFile || sourceFilePath == null
+	|| !ChunkSplitter.canSplit(Charset.defaultCharset(), sepChar))
+	return null;
+    return new File(sourceFilePath);
+}
+
 /**
  * This override not only remembers the column but also hands it to the
  * query for cacheing.
@@ -90,24 +261,150 @@ public void addColumn(Column col) {
  * @see Table#findColumn
  */
 public Column findColumn(Object id) {
-    for (Iterator<Column> iter = columns.iterator(); iter.hasNext(); ) {
-	Column col = (Column)iter.next();
+    for (Column col : columns())
 	if (col.getId().equals(id))
 	    return col;
-    }
     return null;
 }
 
-public int indexOfSelectable(Selectable sel) { return columns.indexOf(sel); }
+/**
+ * Returns the index of <var>sel</var> in a row. The source file's columns
+ * come first, followed by each table's columns.
+ *
+ * @param sel a selectable
+ */
+public int indexOfSelectable(Selectable sel) {
+    int index = columns.indexOf(sel);
+    if (index >= 0 || tables.isEmpty())
+	return index;
+
+    int offset = columns.size();
+    for (CharSepTable t : tables) {
+	if ((index = t.fileColumns().indexOf(sel)) >= 0)
+	    return offset + index;
+	offset += t.fileColumns().size();
+    }
+    return -1;
+}
 
 public Iterable<Table> tables() { return null; }
 
 public Iterable<Table> tablesUsedInReport() { return null; }
 
-public Iterable<Column> columns() { return columns; }
+/**
+ * Returns the columns of the source file followed by the columns of each
+ * table.
+ *
+ * @return an iterable over all columns
+ */
+public Iterable<Column> columns() {
+    if (tables.isEmpty())
+	return columns;
+    ArrayList<Column> all = new ArrayList<Column>(columns);
+    for (CharSepTable t : tables)
+	all.addAll(t.fileColumns());
+    return all;
+}
+
+/**
+ * Returns the columns of the source file.
+ *
+ * @return a list of columns
+ */
+List<Column> sourceFileColumns() { return columns; }
 
+/**
+ * Returns a cursor over the rows of the source file, joined with the rows
+ * of any tables and sorted by the groups and sorts. When there are tables,
+ * the where clause is evaluated after the rows are joined.
+ */
 public DataCursor execute() {
-    return new CharSepRow(this, query);
+    query.findSelectablesUsed();	// Needed so we can find columns later
+    RowFilter filter = RowFilter.create(this, query);
+    if (tables.isEmpty())
+	return SortCursor.wrap(new CharSepRow(this, query, filter), this);
+
+    DataCursor cursor = new CharSepRow(this, query, null);
+    return SortCursor.wrap(joinTables(cursor, filter), this);
+}
+
+/**
+ * Returns the query text, including the files of any tables.
+ *
+ * @return the query text
+ */
+public String getQueryText() {
+    StringBuilder buf = new StringBuilder(super.getQueryText());
+    for (CharSepTable table : tables)
+	buf.append(" table ").append(table.getFilePath());
+    return buf.toString();
+}
+
+/**
+ * Returns a cursor that joins the rows of <var>cursor</var> with the rows
+ * of each table in turn. A table is joined using the query's "=" joins
+ * between its columns and the columns of the source file or of a table
+ * added before it. Other joins, like "&lt;" or "like", can't be hashed;
+ * they are checked against each joined row once both of their columns
+ * have been joined. The table is the build side of the hash join, so it
+ * should be smaller than the source file.
+ *
+ * @param cursor a cursor that reads the source file
+ * @param filter the where clause filter; may be <code>null</code>
+ * @return a data cursor
+ */
+protected DataCursor joinTables(DataCursor cursor, RowFilter filter) {
+    int width = columns.size();
+    for (int t = 0; t < tables.size(); ++t) {
+	CharSepTable table = tables.get(t);
+	List<Column> tableCols = table.fileColumns();
+	int tableEnd = width + tableCols.size();
+	ArrayList<Integer> probeList = new ArrayList<Integer>();
+	ArrayList<Integer> buildList = new ArrayList<Integer>();
+	ArrayList<HashJoinCursor.Condition> conditions =
+	    new ArrayList<HashJoinCursor.Condition>();
+	for (Join j : query.joins()) {
+	    int fromIndex = indexOfSelectable(j.getFrom());
+	    int toIndex = indexOfSelectable(j.getTo());
+	    if (fromIndex < 0 || toIndex < 0)
+		continue;
+	    // Each join is checked by the first join that has both of its
+	    // columns.
+	    int last = Math.max(fromIndex, toIndex);
+	    if (last >= tableEnd || (t > 0 && last < width))
+		continue;
+
+	    int first = Math.min(fromIndex, toIndex);
+	    if ("=".equals(j.getRelation()) && first < width
+		&& last >= width)
+	    {
+		buildList.add(last - width);
+		probeList.add(first);
+	    }
+	    else
+		conditions.add(new HashJoinCursor.Condition(fromIndex,
+							    j.getRelation(),
+							    toIndex));
+	}
+
+	int[] probeKeys = new int[probeList.size()];
+	int[] buildKeys = new int[buildList.size()];
+	for (int i = 0; i < probeKeys.length; ++i) {
+	    probeKeys[i] = probeList.get(i).intValue();
+	    buildKeys[i] = buildList.get(i).intValue();
+	}
+
+	// Rows take up a few times as much memory as they do in the file
+	long partitions = new File(table.getFilePath()).length() * 4
+	    / joinMemory + 1;
+	cursor = new HashJoinCursor(cursor, new CharSepTableRow(table),
+				    probeKeys, buildKeys, conditions,
+				    t == tables.size() - 1 ? filter : null,
+				    joinMemory,
+				    (int)Math.min(partitions, 256));
+	width = tableEnd;
+    }
+    return cursor;
 }
 
 BufferedReader getReader() {
@@ -140,6 +437,8 @@ protected void doWriteXML(XMLWriter out) {
     else
 	for (Column col : columns)
 	    col.writeXML(out);
+    for (CharSepTable t : tables)
+	t.writeXML(out);
     out.endElement();
 }
 
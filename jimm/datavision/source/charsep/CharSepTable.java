@@ -0,0 +1,81 @@
+package jimm.datavision.source.charsep;
+import jimm.datavision.Writeable;
+import jimm.datavision.source.Column;
+import jimm.datavision.source.Table;
+import jimm.util.XMLWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A character-separated table is another file whose rows are joined with
+ * the rows of a {@link CharSepSource}'s source file. The query's joins say
+ * which columns must match. Its columns come after the source file's
+ * columns (and those of the tables added before it) in each row.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ * @see jimm.datavision.source.HashJoinCursor
+ */
+public class CharSepTable extends Table implements Writeable {
+
+protected String filePath;
+protected char sepChar;
+protected ArrayList<Column> fileColumns;
+
+/**
+ * Constructor. The table still needs to be added to the data source; see
+ * {@link CharSepSource#addTable}.
+ *
+ * @param source the data source
+ * @param name the table name
+ * @param filePath the path to the table's file
+ */
+public CharSepTable(CharSepSource source, String name, String filePath) {
+    super(source, name);
+    this.filePath = filePath;
+    sepChar = source.getSepChar();
+    fileColumns = new ArrayList<Column>();
+}
+
+public String getFilePath() { return filePath; }
+
+public void setFilePath(String path) { filePath = path; }
+
+public char getSepChar() { return sepChar; }
+
+public void setSepChar(char c) { sepChar = c; }
+
+/**
+ * Adds a column. Columns must be added in the order in which they appear
+ * in the file.
+ *
+ * @param col a column
+ */
+public void addColumn(Column col) {
+    super.addColumn(col);
+    fileColumns.add(col);
+    ((CharSepQuery)dataSource.getQuery()).addColumn(col);
+}
+
+/**
+ * Returns the columns in the order in which they appear in the file.
+ *
+ * @return a list of columns
+ */
+public List<Column> fileColumns() { return fileColumns; }
+
+/**
+ * Writes this table and its columns as an XML tag.
+ *
+ * @param out a writer that knows how to write XML
+ */
+public void writeXML(XMLWriter out) {
+    out.startElement("table");
+    out.attr("name", name);
+    out.attr("file", filePath);
+    out.attr("sep-char", sepChar);
+    for (Column col : fileColumns)
+	col.writeXML(out);
+    out.endElement();
+}
+
+}
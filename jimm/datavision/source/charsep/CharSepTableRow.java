@@ -0,0 +1,62 @@
+package jimm.datavision.source.charsep;
+import jimm.datavision.ErrorHandler;
+import jimm.datavision.source.DataCursor;
+import java.io.*;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A data cursor that reads every row of a {@link CharSepTable}'s file. The
+ * rows are joined with the source file's rows by a {@link
+ * jimm.datavision.source.HashJoinCursor}.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class CharSepTableRow extends DataCursor {
+
+protected CharSepTable table;
+protected Reader reader;
+protected DelimParser parser;
+protected LineConverter converter;
+protected boolean noMoreData;
+
+CharSepTableRow(CharSepTable table) {
+    this.table = table;
+}
+
+/**
+ * Returns the next row of the table's file, or <code>null</code> if there
+ * are no more.
+ */
+public List<Object> readRowData() {
+    if (noMoreData)
+	return null;
+    try {
+	if (parser == null) {
+	    reader = new BufferedReader(new FileReader(table.getFilePath()));
+	    parser = new DelimParser(reader, table.getSepChar());
+	    boolean[] used = new boolean[table.fileColumns().size()];
+	    Arrays.fill(used, true);
+	    converter = new LineConverter(table.fileColumns(), used, null);
+	}
+	if (parser.next())
+	    return converter.rowData(parser);
+    }
+    catch (IOException ioe) {
+	ErrorHandler.error(ioe);
+    }
+    noMoreData = true;
+    return null;
+}
+
+public boolean canReadAhead() { return true; }
+
+public void close() {
+    noMoreData = true;
+    if (reader != null) {
+	try { reader.close(); } catch (IOException ioe) {}
+	reader = null;
+    }
+}
+
+}
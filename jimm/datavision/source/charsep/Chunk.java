@@ -0,0 +1,81 @@
+package jimm.datavision.source.charsep;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * A chunk is a range of whole lines of a delimited file that is read,
+ * parsed, converted, and filtered by a compiled where clause, usually by a
+ * thread of its own. The file is memory-mapped. See {@link ChunkSplitter} and {@link
+ * SourceIndex}.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+class Chunk implements Callable<Chunk> {
+
+protected File file;
+protected long start;
+protected long end;
+protected Charset charset;
+protected char delimiter;
+protected LineConverter converter;
+/** The rows of the lines that weren't rejected. */
+protected ArrayList<List<Object>> rows;
+/** The indices of the rows the where clause formula must decide. */
+protected BitSet undecided;
+
+/**
+ * Constructor.
+ *
+ * @param file the file
+ * @param start the offset of the chunk's first byte
+ * @param end the offset just after the chunk's last byte
+ * @param charset the file's character set
+ * @param delimiter the delimiter character
+ * @param converter a converter used only by this chunk
+ */
+Chunk(File file, long start, long end, Charset charset, char delimiter,
+      LineConverter converter)
+{
+    this.file = file;
+    this.start = start;
+    this.end = end;
+    this.charset = charset;
+    this.delimiter = delimiter;
+    this.converter = converter;
+}
+
+/**
+ * Reads and converts the lines in this chunk.
+ *
+ * @return this chunk
+ */
+public Chunk call() throws IOException {
+    DelimParser parser;
+    FileInputStream in = new FileInputStream(file);
+    try {
+	parser = new DelimParser(SourceIndex.reader(in.getChannel(), start, end,
+						    charset),
+				 delimiter);
+    }
+    finally {
+	in.close();
+    }
+
+    rows = new ArrayList<List<Object>>();
+    undecided = new BitSet();
+    while (parser.next()) {
+	int result = converter.filter(parser);
+	if (result == LineConverter.REJECTED)
+	    continue;
+	if (result == LineConverter.UNDECIDED)
+	    undecided.set(rows.size());
+	rows.add(converter.rowData(parser));
+    }
+    return this;
+}
+
+}
@@ -0,0 +1,145 @@
+package jimm.datavision.source.charsep;
+import java.io.*;
+import java.nio.charset.Charset;
+
+/**
+ * Splits a delimited file into chunks of whole lines so the chunks can be
+ * parsed separately. A chunk never ends inside a quoted field, even one
+ * that contains newlines: the splitter follows quotes the same way
+ * {@link DelimParser} does. It only looks at bytes, which is why the file's
+ * character set must encode quotes, line endings, and the delimiter as
+ * single bytes that never appear inside other characters; see {@link
+ * #canSplit}.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+class ChunkSplitter {
+
+protected InputStream in;
+protected byte[] buf;
+protected int bufPos;
+protected int bufLimit;
+protected int delimiter;
+protected long pos;
+protected long lineStart;
+protected boolean insideQuotes;
+protected int numQuotesSeen;
+
+/**
+ * Returns <code>true</code> if files using <var>charset</var> and
+ * <var>delimiter</var> can be split.
+ *
+ * @param charset a character set
+ * @param delimiter the delimiter character
+ * @return <code>true</code> if files can be split
+ */
+static boolean canSplit(Charset charset, char delimiter) {
+    String name = charset.name();
+    return delimiter < 128
+	&& (name.equals("UTF-8") || name.equals("US-ASCII")
+	    || name.startsWith("ISO-8859-") || name.startsWith("windows-125"));
+}
+
+/**
+ * Constructor. Call {@link #close} when done.
+ *
+ * @param file the file to split
+ * @param delimiter the delimiter character
+ */
+ChunkSplitter(File file, char delimiter) throws FileNotFoundException {
+    in = new FileInputStream(file);
+    buf = new byte[65536];
+    this.delimiter = delimiter;
+}
+
+/**
+ * Returns the position at which the next chunk starts.
+ *
+ * @return a byte offset
+ */
+long position() { return pos; }
+
+/**
+ * Returns the position at which the next chunk ends, or -1 if there is no
+ * more data. The chunk is at least <var>minSize</var> bytes long unless
+ * the file ends first. A chunk never ends with an empty line, because
+ * an empty line at the end of the input is ignored by the parser.
+ *
+ * @param minSize the minimum chunk size in bytes
+ * @return the offset just after the last line in the chunk, or -1
+ */
+long nextChunkEnd(long minSize) throws IOException {
+    long start = pos;
+    long target = start + minSize;
+    int b;
+    while ((b = nextByte()) != -1) {
+	++pos;
+	switch (b) {
+	case '"':
+	    if (!insideQuotes) {
+		insideQuotes = true;
+		numQuotesSeen = 0;
+	    }
+	    else if (numQuotesSeen == 1)
+		numQuotesSeen = 0;
+	    else
+		numQuotesSeen = 1;
+	    break;
+	case '\n':
+	case '\r':
+	    if (insideQuotes && numQuotesSeen != 1) // Newline inside quotes
+		break;
+
+	    boolean emptyLine = pos - 1 == lineStart;
+	    if (b == '\r' && peekByte() == '\n') { // Handle DOS line endings
+		nextByte();
+		++pos;
+	    }
+	    insideQuotes = false;
+	    numQuotesSeen = 0;
+	    lineStart = pos;
+	    if (!emptyLine && pos >= target)
+		return pos;
+	    break;
+	default:
+	    if (b == delimiter) {
+		if (!insideQuotes || numQuotesSeen == 1)
+		    insideQuotes = false;
+	    }
+	    else
+		numQuotesSeen = 0;
+	    break;
+	}
+    }
+    return pos > start ? pos : -1;
+}
+
+protected int nextByte() throws IOException {
+    if (bufPos == bufLimit && !fill())
+	return -1;
+    return buf[bufPos++] & 0xff;
+}
+
+protected int peekByte() throws IOException {
+    if (bufPos == bufLimit && !fill())
+	return -1;
+    return buf[bufPos] & 0xff;
+}
+
+protected boolean fill() throws IOException {
+    int numRead = in.read(buf);
+    if (numRead <= 0)
+	return false;
+    bufPos = 0;
+    bufLimit = numRead;
+    return true;
+}
+
+void close() {
+    try {
+	in.close();
+    }
+    catch (IOException ioe) {}
+}
+
+}
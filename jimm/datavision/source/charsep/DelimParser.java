@@ -1,21 +1,42 @@
 package jimm.datavision.source.charsep;
 import java.io.Reader;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
 
 /**
  * Parses delimited data. Handles quotes and embedded delimiters.
+ * <p>
+ * The parser reads its input a buffer at a time and scans the buffer
+ * directly. {@link #next} finds the next line and remembers where each of
+ * its fields starts and ends within the buffer; no strings are created.
+ * {@link #field} creates the string for a field when it is asked for, so
+ * callers that only need a few of a line's fields never pay for the others.
+ * {@link #parse} returns all of a line's fields at once.
  *
  * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
  */
 public class DelimParser {
 
 public static final int EOF = -1;
+public static final int DEFAULT_BUFFER_SIZE = 8192;
 
 protected char delimiter;
 protected Reader in;
-protected int pushbackChar;
+protected char[] buf;
+/** The position of the next character to scan. */
+protected int pos;
+/** The end of the characters read into the buffer. */
+protected int limit;
+/** The start of the current line. Field offsets are relative to this. */
+protected int lineStart;
+protected boolean eof;
+protected int numFields;
+protected int[] fieldStarts;
+protected int[] fieldEnds;
+/** True for fields containing quotes, which must be unquoted. */
+protected boolean[] fieldQuoted;
 
 /**
  * Constructor, using ',' as the delimiter. The caller must close
@@ -34,9 +55,24 @@ public DelimParser(Reader in) {
  * @param delimiter delimiter character
  */
 public DelimParser(Reader in, char delimiter) {
+    this(in, delimiter, DEFAULT_BUFFER_SIZE);
+}
+
+/**
+ * Constructor. The caller must close <var>in</var>. The buffer grows when
+ * a line doesn't fit in it.
+ *
+ * @param in input reader
+ * @param delimiter delimiter character
+ * @param bufferSize the initial size of the input buffer
+ */
+public DelimParser(Reader in, char delimiter, int bufferSize) {
     this.delimiter = delimiter;
     this.in = in;
-    pushbackChar = EOF;
+    buf = new char[bufferSize < 1 ? 1 : bufferSize];
+    fieldStarts = new int[16];
+    fieldEnds = new int[16];
+    fieldQuoted = new boolean[16];
 }
 
 /**
@@ -48,86 +84,79 @@ public DelimParser(Reader in, char delimiter) {
  * there is no more data.
  */
 public List<String> parse() throws IOException {
-    ArrayList<String> columns = null;
+    if (!next())
+	return null;
+
+    ArrayList<String> columns = new ArrayList<String>(numFields);
+    for (int i = 0; i < numFields; ++i)
+	columns.add(field(i));
+    return columns;
+}
+
+/**
+ * Finds the next line and the fields within it. Returns <code>false</code>
+ * if there is no more data. The fields of the previous line are no longer
+ * available once this is called.
+ *
+ * @return <code>true</code> if there is another line
+ */
+public boolean next() throws IOException {
+    lineStart = pos;
+    numFields = 0;
+
     boolean insideQuotes = false;
+    boolean quoted = false;	// True if the field contains a quote
+    boolean hasChars = false;	// True if the unquoted field isn't empty
     int numQuotesSeen = 0;
-    StringBuilder buf = new StringBuilder();
-
-    int charAsInt;
+    int fieldStart = 0;
     char c;
     char prevChar = '\0';
-    while ((charAsInt = nextChar()) != EOF) {
-	c = (char)charAsInt;
+    while (pos < limit || fill()) {
+	c = buf[pos++];
 
 	switch (c) {
 	case '"':		// Quote character
+	    quoted = true;
 	    if (!insideQuotes) { // Start of quoted column
 		insideQuotes = true;
 		numQuotesSeen = 0;
 	    }
-	    else if (insideQuotes) { // Inside quoted column
-		if (numQuotesSeen == 1) { // This is second of doubled quotes
-		    buf.append(c);
-		    numQuotesSeen = 0;
-		}
-		else
-		    numQuotesSeen = 1;
+	    else if (numQuotesSeen == 1) { // This is second of doubled quotes
+		hasChars = true;
+		numQuotesSeen = 0;
 	    }
+	    else
+		numQuotesSeen = 1;
 	    break;
 	case '\n':		// Linefeed/newline
 	case '\r':
-	    if (insideQuotes) {
-		if (numQuotesSeen == 1) { // Closing quote at end of line
-		    if (columns == null) columns = new ArrayList<String>();
-		    columns.add(buf.toString());
-		    return columns;
-		}
-		else
-		    buf.append(c);
+	    if (insideQuotes && numQuotesSeen != 1) { // Newline inside quotes
+		hasChars = true;
+		break;
 	    }
-	    else {		// End of line; return columns
-		// Handle DOS line endings
-		if (c == '\r')	{ // Check for following '\n
-		    charAsInt = nextChar();
-		    c = (char)charAsInt;
-		    if (c != '\n')	// Eat following '\n' if it exists
-			pushback(charAsInt); // Else put it back
-		}
 
-		charAsInt = nextChar();
-		c = (char)charAsInt;
-		if (columns == null && buf.length() == 0 && charAsInt == EOF)
-		    return null; // Empty line at end of file
-
-		pushback(charAsInt);
-		if (columns == null) columns = new ArrayList<String>();
-		columns.add(buf.toString());
-		return columns;
-	    }
-	    break;
+	    // End of line; return columns
+	    int fieldEnd = pos - 1 - lineStart;
+	    if (c == '\r' && (pos < limit || fill()) && buf[pos] == '\n')
+		++pos;		// Handle DOS line endings
+	    if (!insideQuotes && numFields == 0 && fieldEnd == fieldStart
+		&& pos == limit && !fill())
+		return false;	// Empty line at end of file
+	    addField(fieldStart, fieldEnd, quoted);
+	    return true;
 	default:
-	    if (c == delimiter) { // Normal delimiter
-		if (!insideQuotes) {
-		    if (columns == null) columns = new ArrayList<String>();
-		    columns.add(buf.toString());
-		    buf = new StringBuilder();
-		}
-		else {		// Inside quoted column
-		    // Delimiter at end of quoted column data
-		    if (numQuotesSeen == 1) {
-			insideQuotes = false;
-			if (columns == null) columns = new ArrayList<String>();
-			columns.add(buf.toString());
-			buf = new StringBuilder();
-		    }
-		    // Delimiter inside quoted column
-		    else
-			buf.append(delimiter);
+	    if (c == delimiter) {
+		if (insideQuotes && numQuotesSeen != 1) // Delimiter inside quotes
+		    hasChars = true;
+		else {		// Normal delimiter or end of quoted column data
+		    addField(fieldStart, pos - 1 - lineStart, quoted);
+		    fieldStart = pos - lineStart;
+		    insideQuotes = quoted = hasChars = false;
 		}
 	    }
 	    else {		// Everything else
 		numQuotesSeen = 0;
-		buf.append(c);
+		hasChars = true;
 	    }
 	    break;
 	}
@@ -136,28 +165,94 @@ public List<String> parse() throws IOException {
     }
 
     // We've reached EOF
-    if (columns == null && buf.length() == 0) // Empty line at end of file
-	return null;
+    if (numFields == 0 && !hasChars) // Empty line at end of file
+	return false;
+
+    if (hasChars || prevChar == delimiter)
+	addField(fieldStart, pos - lineStart, quoted);
+    return true;
+}
+
+/**
+ * Returns the number of fields in the current line.
+ *
+ * @return the number of fields found by {@link #next}
+ */
+public int fieldCount() { return numFields; }
+
+/**
+ * Returns the <var>index</var>'th field of the current line, with any
+ * quotes removed.
+ *
+ * @param index a field index, starting at 0
+ * @return the field's string
+ */
+public String field(int index) {
+    int start = lineStart + fieldStarts[index];
+    int end = lineStart + fieldEnds[index];
+    if (!fieldQuoted[index])
+	return new String(buf, start, end - start);
 
-    if (buf.length() > 0 || prevChar == delimiter) {
-	if (columns == null) columns = new ArrayList<String>();
-	columns.add(buf.toString());
+    StringBuilder str = new StringBuilder(end - start);
+    boolean insideQuotes = false;
+    int numQuotesSeen = 0;
+    for (int i = start; i < end; ++i) {
+	char c = buf[i];
+	if (c != '"') {
+	    numQuotesSeen = 0;
+	    str.append(c);
+	}
+	else if (!insideQuotes)
+	    insideQuotes = true;
+	else if (numQuotesSeen == 1) {
+	    str.append(c);
+	    numQuotesSeen = 0;
+	}
+	else
+	    numQuotesSeen = 1;
     }
-    return columns;
+    return str.toString();
 }
 
-protected int nextChar() throws IOException {
-    if (pushbackChar == EOF)
-	return in.read();
-    else {
-	int c = pushbackChar;
-	pushbackChar = EOF;
-	return c;
+protected void addField(int start, int end, boolean quoted) {
+    if (numFields == fieldStarts.length) {
+	int newLength = numFields * 2;
+	fieldStarts = Arrays.copyOf(fieldStarts, newLength);
+	fieldEnds = Arrays.copyOf(fieldEnds, newLength);
+	fieldQuoted = Arrays.copyOf(fieldQuoted, newLength);
     }
+    fieldStarts[numFields] = start;
+    fieldEnds[numFields] = end;
+    fieldQuoted[numFields] = quoted;
+    ++numFields;
 }
 
-protected void pushback(int charAsInt) {
-    pushbackChar = charAsInt;
+/**
+ * Reads more input into the buffer. The current line is moved to the
+ * start of the buffer first, and the buffer grows if the line fills it.
+ *
+ * @return <code>false</code> if there is no more input
+ */
+protected boolean fill() throws IOException {
+    if (eof)
+	return false;
+
+    if (lineStart > 0) {
+	System.arraycopy(buf, lineStart, buf, 0, limit - lineStart);
+	pos -= lineStart;
+	limit -= lineStart;
+	lineStart = 0;
+    }
+    else if (limit == buf.length)
+	buf = Arrays.copyOf(buf, buf.length * 2);
+
+    int numRead = in.read(buf, limit, buf.length - limit);
+    if (numRead == EOF) {
+	eof = true;
+	return false;
+    }
+    limit += numRead;
+    return true;
 }
 
 }
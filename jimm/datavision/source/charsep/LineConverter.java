@@ -0,0 +1,143 @@
+package jimm.datavision.source.charsep;
+import jimm.datavision.ErrorHandler;
+import jimm.datavision.source.Column;
+import jimm.datavision.source.RowFilter;
+import java.util.*;
+import java.text.SimpleDateFormat;
+import java.text.ParseException;
+
+/**
+ * Turns the fields of a parsed line into a row of column values and
+ * decides whether a compiled where clause accepts the line. A converter
+ * keeps its own date parsers, so each thread needs its own converter;
+ * see {@link #copy}.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+class LineConverter {
+
+static final int REJECTED = 0;
+static final int ACCEPTED = 1;
+/** The where clause formula must decide; see {@link RowFilter#accept}. */
+static final int UNDECIDED = 2;
+
+protected List<Column> columns;
+protected boolean[] used;
+protected RowFilter filter;
+protected HashMap<String, SimpleDateFormat> dateParsers;
+protected boolean dateParseErrorReported;
+
+/**
+ * Constructor.
+ *
+ * @param columns the data source's columns
+ * @param used for each column, <code>true</code> if its value is needed
+ * @param filter a where clause filter; may be <code>null</code>
+ */
+LineConverter(List<Column> columns, boolean[] used, RowFilter filter) {
+    this.columns = columns;
+    this.used = used;
+    this.filter = filter;
+}
+
+/**
+ * Returns a new converter that shares this one's columns and filter.
+ *
+ * @return a new converter
+ */
+LineConverter copy() {
+    return new LineConverter(columns, used, filter);
+}
+
+/**
+ * Tests the parser's current line using the compiled where clause, if
+ * any. Only the columns the where clause uses are converted.
+ *
+ * @param parser a parser
+ * @return one of <code>REJECTED</code>, <code>ACCEPTED</code>, or
+ * <code>UNDECIDED</code>
+ */
+int filter(DelimParser parser) {
+    if (filter == null)
+	return ACCEPTED;
+    if (!filter.isCompiled())
+	return UNDECIDED;
+
+    int[] indices = filter.getColumnIndices();
+    Object[] values = new Object[indices.length];
+    for (int i = 0; i < indices.length; ++i)
+	values[i] = columnValue(parser, indices[i]);
+    Boolean accepted = filter.test(values);
+    if (accepted == null)
+	return UNDECIDED;
+    return accepted.booleanValue() ? ACCEPTED : REJECTED;
+}
+
+/**
+ * Returns the parser's current line's column values. The values of
+ * columns that aren't used are <code>null</code>.
+ *
+ * @param parser a parser
+ * @return a list of column values
+ */
+List<Object> rowData(DelimParser parser) {
+    List<Object> data = new ArrayList<Object>(columns.size());
+    for (int i = 0; i < columns.size(); ++i)
+	data.add(used[i] ? columnValue(parser, i) : null);
+    return data;
+}
+
+/**
+ * Converts one field of the parser's current line to its column's type.
+ * Returns <code>null</code> if the line doesn't have that many fields.
+ *
+ * @param parser a parser
+ * @param index a column index
+ * @return the column value
+ */
+Object columnValue(DelimParser parser, int index) {
+    if (index >= parser.fieldCount())
+	return null;
+
+    Column col = columns.get(index);
+    String str = parser.field(index);
+    if (col.isNumeric()) {
+	if (str.length() == 0)
+	    return new Integer(0);
+	else if (str.indexOf('.') == -1)
+	    return new Integer(str);
+	else
+	    return new Double(str);
+    }
+    else if (col.isDate())
+	return parseDate(col, str);
+    else
+	return str;		// It's a string; there is nothing to modify
+}
+
+protected Date parseDate(Column col, String dateString) {
+    String formatString = col.getDateParseFormat();
+
+    // Find existing parser, if any
+    if (dateParsers == null)
+	dateParsers = new HashMap<String, SimpleDateFormat>();
+    SimpleDateFormat parser = dateParsers.get(formatString);
+
+    if (parser == null) {
+	parser = new SimpleDateFormat(formatString);
+	dateParsers.put(formatString, parser);
+    }
+
+    try {
+	return parser.parse(dateString);
+    }
+    catch (ParseException ex) {
+	if (!dateParseErrorReported) {
+	    ErrorHandler.error("Parse format string = " + formatString, ex);
+	    dateParseErrorReported = true;
+	}
+	return null;
+    }
+}
+
+}
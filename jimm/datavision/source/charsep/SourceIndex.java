@@ -0,0 +1,408 @@
+package jimm.datavision.source.charsep;
+import jimm.datavision.expr.Range;
+import jimm.datavision.source.Column;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A source index divides a delimited file into blocks of whole lines and
+ * remembers where each block starts and ends and the smallest and largest
+ * values each indexed column has within it. Data cursors use it to skip
+ * the blocks that can't contain rows accepted by a where clause and to
+ * read the rest of the file without looking for line breaks first.
+ * <p>
+ * The index is stored in a file next to the source file whose name ends
+ * with {@link #SUFFIX}. It is rebuilt when the source file's length or
+ * modification time changes or when different columns are indexed.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+class SourceIndex {
+
+static final String SUFFIX = ".dvidx";
+
+protected static final int MAGIC = 0x44564958; // "DVIX"
+protected static final int VERSION = 1;
+
+/** The column has no values in the block; nothing can match. */
+protected static final byte NO_VALUES = 0;
+protected static final byte NUMBERS = 1;
+protected static final byte STRINGS = 2;
+/** We don't know the values' range; anything can match. */
+protected static final byte UNKNOWN = 3;
+
+protected long fileLength;
+protected long lastModified;
+protected char delimiter;
+protected String charsetName;
+protected int blockSize;
+protected String[] columnIds;
+protected long[] blockStarts;
+protected long[] blockEnds;
+/** Indexed by block, then by indexed column. */
+protected byte[][] kinds;
+protected Object[][] mins;
+protected Object[][] maxes;
+
+/**
+ * Returns the index for <var>file</var>, reading it from its index file if
+ * that is up to date and building it (and trying to write the index file)
+ * if not.
+ *
+ * @param file the source file
+ * @param delimiter the delimiter character
+ * @param charset the source file's character set
+ * @param blockSize the minimum block size in bytes
+ * @param columns the data source's columns
+ * @param indexed the row indices of the columns to index
+ * @return an index
+ */
+static SourceIndex open(File file, char delimiter, Charset charset,
+			int blockSize, List<Column> columns, int[] indexed)
+    throws IOException
+{
+    SourceIndex index = new SourceIndex();
+    index.fileLength = file.length();
+    index.lastModified = file.lastModified();
+    index.delimiter = delimiter;
+    index.charsetName = charset.name();
+    index.blockSize = blockSize;
+    index.columnIds = new String[indexed.length];
+    for (int i = 0; i < indexed.length; ++i)
+	index.columnIds[i] = columns.get(indexed[i]).getId().toString();
+
+    File indexFile = new File(file.getPath() + SUFFIX);
+    if (indexFile.exists() && index.read(indexFile))
+	return index;
+
+    index.build(file, charset, columns, indexed);
+    index.write(indexFile);
+    return index;
+}
+
+/**
+ * Returns the number of blocks.
+ *
+ * @return the number of blocks
+ */
+int numBlocks() { return blockStarts.length; }
+
+long blockStart(int block) { return blockStarts[block]; }
+
+long blockEnd(int block) { return blockEnds[block]; }
+
+/**
+ * Returns <code>false</code> if no row in <var>block</var> can have values
+ * within all of <var>ranges</var>.
+ *
+ * @param block a block number
+ * @param ranges ranges whose indices are indexed column numbers (not row
+ * indices)
+ * @return <code>false</code> if the block can be skipped
+ */
+boolean mayMatch(int block, List<Range> ranges) {
+    for (Range r : ranges) {
+	int col = r.getIndex();
+	switch (kinds[block][col]) {
+	case NO_VALUES:
+	    return false;
+	case UNKNOWN:
+	    break;
+	default:
+	    if (!r.overlaps(mins[block][col], maxes[block][col]))
+		return false;
+	    break;
+	}
+    }
+    return true;
+}
+
+/**
+ * Finds the blocks and parses them to find each indexed column's smallest
+ * and largest values.
+ */
+protected void build(File file, Charset charset, List<Column> columns,
+		     int[] indexed)
+    throws IOException
+{
+    ArrayList<long[]> blocks = new ArrayList<long[]>();
+    ChunkSplitter splitter = new ChunkSplitter(file, delimiter);
+    try {
+	long start = 0, end;
+	while ((end = splitter.nextChunkEnd(blockSize)) != -1) {
+	    blocks.add(new long[] { start, end });
+	    start = end;
+	}
+    }
+    finally {
+	splitter.close();
+    }
+
+    int numBlocks = blocks.size();
+    blockStarts = new long[numBlocks];
+    blockEnds = new long[numBlocks];
+    kinds = new byte[numBlocks][indexed.length];
+    mins = new Object[numBlocks][indexed.length];
+    maxes = new Object[numBlocks][indexed.length];
+
+    boolean[] used = new boolean[columns.size()];
+    LineConverter converter = new LineConverter(columns, used, null);
+    FileInputStream in = new FileInputStream(file);
+    try {
+	FileChannel channel = in.getChannel();
+	for (int b = 0; b < numBlocks; ++b) {
+	    blockStarts[b] = blocks.get(b)[0];
+	    blockEnds[b] = blocks.get(b)[1];
+	    DelimParser parser = new DelimParser(
+		reader(channel, blockStarts[b], blockEnds[b], charset),
+		delimiter);
+	    while (parser.next())
+		for (int i = 0; i < indexed.length; ++i)
+		    addValue(b, i, converter.columnValue(parser, indexed[i]));
+	}
+    }
+    finally {
+	in.close();
+    }
+}
+
+/**
+ * Returns a reader for the bytes from <var>start</var> up to
+ * <var>end</var> of a memory-mapped file. The bytes are decoded a buffer
+ * at a time as they are read, so the range is never copied onto the heap.
+ *
+ * @param channel a file channel
+ * @param start the first byte to read
+ * @param end the byte after the last one to read
+ * @param charset the file's character set
+ * @return a reader
+ */
+static Reader reader(FileChannel channel, long start, long end,
+		     Charset charset)
+    throws IOException
+{
+    return new MappedReader(channel.map(FileChannel.MapMode.READ_ONLY, start,
+					end - start),
+			    charset);
+}
+
+/**
+ * Decodes a byte buffer a few thousand characters at a time. Like {@link
+ * Charset#decode}, bad input is replaced instead of causing an error.
+ */
+static class MappedReader extends Reader {
+
+protected static final int BUFFER_SIZE = 8192;
+
+protected ByteBuffer bytes;
+protected CharsetDecoder decoder;
+protected CharBuffer chars;
+protected boolean flushed;
+
+MappedReader(ByteBuffer bytes, Charset charset) {
+    this.bytes = bytes;
+    decoder = charset.newDecoder()
+	.onMalformedInput(CodingErrorAction.REPLACE)
+	.onUnmappableCharacter(CodingErrorAction.REPLACE);
+    chars = CharBuffer.allocate(BUFFER_SIZE);
+    chars.flip();
+}
+
+public int read(char[] buf, int off, int len) throws IOException {
+    if (len == 0)
+	return 0;
+    while (!chars.hasRemaining()) {
+	if (flushed)
+	    return -1;
+	chars.clear();
+	CoderResult result = bytes.hasRemaining()
+	    ? decoder.decode(bytes, chars, true) : CoderResult.UNDERFLOW;
+	if (result.isError())
+	    result.throwException();
+	if (!bytes.hasRemaining() && decoder.flush(chars).isUnderflow())
+	    flushed = true;
+	chars.flip();
+    }
+    int n = Math.min(len, chars.remaining());
+    chars.get(buf, off, n);
+    return n;
+}
+
+public void close() {
+    bytes = null;
+    chars = CharBuffer.allocate(0);
+    flushed = true;
+}
+
+}
+
+/**
+ * Widens the range of the <var>col</var>'th indexed column in
+ * <var>block</var> to include <var>val</var>. Non-ASCII strings make the
+ * range unknown because Ruby doesn't compare them the way Java does.
+ */
+protected void addValue(int block, int col, Object val) {
+    if (val == null || kinds[block][col] == UNKNOWN)
+	return;
+
+    byte kind;
+    if (val instanceof Number) {
+	double d = ((Number)val).doubleValue();
+	if (Double.isNaN(d)) {
+	    kinds[block][col] = UNKNOWN;
+	    return;
+	}
+	val = new Double(d);
+	kind = NUMBERS;
+    }
+    else if (val instanceof String && isAscii((String)val))
+	kind = STRINGS;
+    else {
+	kinds[block][col] = UNKNOWN;
+	return;
+    }
+
+    if (kinds[block][col] == NO_VALUES) {
+	kinds[block][col] = kind;
+	mins[block][col] = maxes[block][col] = val;
+    }
+    else if (kinds[block][col] != kind)
+	kinds[block][col] = UNKNOWN;
+    else {
+	@SuppressWarnings("unchecked")
+	Comparable<Object> c = (Comparable<Object>)val;
+	if (c.compareTo(mins[block][col]) < 0) mins[block][col] = val;
+	if (c.compareTo(maxes[block][col]) > 0) maxes[block][col] = val;
+    }
+}
+
+protected static boolean isAscii(String str) {
+    for (int i = 0; i < str.length(); ++i)
+	if (str.charAt(i) > 127)
+	    return false;
+    return true;
+}
+
+/**
+ * Reads the index file. Returns <code>false</code> if it can't be read or
+ * doesn't describe the current source file and columns.
+ */
+protected boolean read(File indexFile) {
+    DataInputStream in = null;
+    try {
+	in = new DataInputStream(new BufferedInputStream(
+	    new FileInputStream(indexFile)));
+	if (in.readInt() != MAGIC || in.readInt() != VERSION
+	    || in.readLong() != fileLength || in.readLong() != lastModified
+	    || in.readChar() != delimiter
+	    || !in.readUTF().equals(charsetName)
+	    || in.readInt() != blockSize
+	    || in.readInt() != columnIds.length)
+	    return false;
+	for (String id : columnIds)
+	    if (!in.readUTF().equals(id))
+		return false;
+
+	int numBlocks = in.readInt();
+	blockStarts = new long[numBlocks];
+	blockEnds = new long[numBlocks];
+	kinds = new byte[numBlocks][columnIds.length];
+	mins = new Object[numBlocks][columnIds.length];
+	maxes = new Object[numBlocks][columnIds.length];
+	for (int b = 0; b < numBlocks; ++b) {
+	    blockStarts[b] = in.readLong();
+	    blockEnds[b] = in.readLong();
+	    for (int i = 0; i < columnIds.length; ++i) {
+		switch (kinds[b][i] = in.readByte()) {
+		case NUMBERS:
+		    mins[b][i] = new Double(in.readDouble());
+		    maxes[b][i] = new Double(in.readDouble());
+		    break;
+		case STRINGS:
+		    mins[b][i] = in.readUTF();
+		    maxes[b][i] = in.readUTF();
+		    break;
+		}
+	    }
+	}
+	return true;
+    }
+    catch (IOException ioe) {
+	return false;
+    }
+    finally {
+	if (in != null) {
+	    try { in.close(); } catch (IOException ioe2) {}
+	}
+    }
+}
+
+/**
+ * Writes the index file. It is written to a temporary file first so other
+ * readers never see part of it. If it can't be written, we quietly do
+ * without; the index is rebuilt next time.
+ */
+protected void write(File indexFile) {
+    File tmp = new File(indexFile.getPath() + ".tmp");
+    DataOutputStream out = null;
+    try {
+	out = new DataOutputStream(new BufferedOutputStream(
+	    new FileOutputStream(tmp)));
+	out.writeInt(MAGIC);
+	out.writeInt(VERSION);
+	out.writeLong(fileLength);
+	out.writeLong(lastModified);
+	out.writeChar(delimiter);
+	out.writeUTF(charsetName);
+	out.writeInt(blockSize);
+	out.writeInt(columnIds.length);
+	for (String id : columnIds)
+	    out.writeUTF(id);
+
+	out.writeInt(blockStarts.length);
+	for (int b = 0; b < blockStarts.length; ++b) {
+	    out.writeLong(blockStarts[b]);
+	    out.writeLong(blockEnds[b]);
+	    for (int i = 0; i < columnIds.length; ++i) {
+		byte kind = kinds[b][i];
+		if (kind == STRINGS
+		    && (((String)mins[b][i]).length() > 16000
+			|| ((String)maxes[b][i]).length() > 16000))
+		    kind = UNKNOWN; // Too long for writeUTF
+		out.writeByte(kind);
+		if (kind == NUMBERS) {
+		    out.writeDouble(((Double)mins[b][i]).doubleValue());
+		    out.writeDouble(((Double)maxes[b][i]).doubleValue());
+		}
+		else if (kind == STRINGS) {
+		    out.writeUTF((String)mins[b][i]);
+		    out.writeUTF((String)maxes[b][i]);
+		}
+	    }
+	}
+	out.close();
+	out = null;
+	indexFile.delete();
+	if (!tmp.renameTo(indexFile))
+	    tmp.delete();
+    }
+    catch (IOException ioe) {
+	tmp.delete();
+    }
+    finally {
+	if (out != null) {
+	    try { out.close(); } catch (IOException ioe2) {}
+	    tmp.delete();
+	}
+    }
+}
+
+}
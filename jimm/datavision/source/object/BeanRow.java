@@ -0,0 +1,178 @@
+package jimm.datavision.source.object;
+import jimm.datavision.source.Column;
+import jimm.datavision.source.DataCursor;
+import jimm.datavision.source.Query;
+import jimm.datavision.source.RowFilter;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+/**
+ * A concrete subclass of <code>DataCursor</code> that reads the objects of
+ * a {@link BeanSource} and turns each into a row of property values.
+ * <p>
+ * Each column's getter (or field) is looked up once per class and turned
+ * into a method handle. Reading a value is then a method handle call, not
+ * a reflective lookup. When the where clause is compiled, only the columns
+ * it uses are read until an object is accepted.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class BeanRow extends DataCursor {
+
+/** The type of every accessor: takes the object and returns the value. */
+protected static final MethodType ACCESSOR_TYPE =
+    MethodType.methodType(Object.class, Object.class);
+protected static final MethodHandle NO_PROPERTY =
+    MethodHandles.dropArguments(MethodHandles.constant(Object.class, null),
+				0, Object.class);
+
+protected BeanSource source;
+protected Query query;
+protected RowFilter filter;
+protected Iterator<?> beans;
+protected String[] properties;
+protected Class<?> lastClass;
+protected MethodHandle[] lastAccessors;
+protected HashMap<Class<?>, MethodHandle[]> accessors;
+
+BeanRow(BeanSource source, Query query) {
+    this.source = source;
+    this.query = query;
+    this.query.findSelectablesUsed();	// Needed so we can find columns later
+    filter = RowFilter.create(source, query);
+
+    ArrayList<String> props = new ArrayList<String>();
+    for (Column col : source.columns())
+	props.add(source.propertyOf(col));
+    properties = props.toArray(new String[props.size()]);
+    accessors = new HashMap<Class<?>, MethodHandle[]>();
+    beans = source.iterator();
+}
+
+/**
+ * Returns the next row of data. If there is a where clause, use that to
+ * determine which rows we accept or reject. <code>null</code> objects are
+ * skipped.
+ */
+public List<Object> readRowData() {
+    while (beans.hasNext()) {
+	Object bean = beans.next();
+	if (bean == null)
+	    continue;
+	MethodHandle[] getters = accessorsFor(bean.getClass());
+
+	Boolean accepted = null;
+	if (filter != null && filter.isCompiled()) {
+	    int[] indices = filter.getColumnIndices();
+	    Object[] values = new Object[indices.length];
+	    for (int i = 0; i < indices.length; ++i)
+		values[i] = value(getters[indices[i]], bean);
+	    accepted = filter.test(values);
+	    if (Boolean.FALSE.equals(accepted))
+		continue;
+	}
+
+	ArrayList<Object> row = new ArrayList<Object>(getters.length);
+	for (MethodHandle getter : getters)
+	    row.add(value(getter, bean));
+	if (filter == null || Boolean.TRUE.equals(accepted)
+	    || filter.accept(this, row))
+	    return row;
+    }
+    return null;
+}
+
+/**
+ * Returns <code>true</code> if there is no where clause. Where clauses are
+ * formulas, and formulas may only be evaluated by the report thread.
+ */
+public boolean canReadAhead() { return filter == null; }
+
+/**
+ * Returns the accessors for objects of class <var>c</var>, looking them up
+ * the first time we see the class.
+ */
+protected MethodHandle[] accessorsFor(Class<?> c) {
+    if (c == lastClass)
+	return lastAccessors;
+
+    MethodHandle[] handles = accessors.get(c);
+    if (handles == null) {
+	handles = new MethodHandle[properties.length];
+	for (int i = 0; i < properties.length; ++i)
+	    handles[i] = accessor(c, properties[i]);
+	accessors.put(c, handles);
+    }
+    lastClass = c;
+    return lastAccessors = handles;
+}
+
+/**
+ * Returns a method handle that reads <var>property</var> from an object
+ * of class <var>c</var>, or one that returns <code>null</code> if there is
+ * no such property.
+ */
+protected static MethodHandle accessor(Class<?> c, String property) {
+    if (property == null || property.length() == 0)
+	return NO_PROPERTY;
+
+    String capitalized =
+	Character.toUpperCase(property.charAt(0)) + property.substring(1);
+    String[] names = {
+	"get" + capitalized, "is" + capitalized, property
+    };
+    for (String name : names) {
+	try {
+	    Method m = c.getMethod(name);
+	    if (m.getReturnType() == void.class
+		|| Modifier.isStatic(m.getModifiers()))
+		continue;
+	    m.setAccessible(true); // The class itself may not be public
+	    return MethodHandles.lookup().unreflect(m).asType(ACCESSOR_TYPE);
+	}
+	catch (NoSuchMethodException nsme) {}
+	catch (RuntimeException re) {}
+	catch (IllegalAccessException iae) {}
+    }
+
+    try {
+	Field f = c.getField(property);
+	if (!Modifier.isStatic(f.getModifiers())) {
+	    f.setAccessible(true);
+	    return MethodHandles.lookup().unreflectGetter(f)
+		.asType(ACCESSOR_TYPE);
+	}
+    }
+    catch (NoSuchFieldException nsfe) {}
+    catch (RuntimeException re) {}
+    catch (IllegalAccessException iae) {}
+
+    return NO_PROPERTY;
+}
+
+/**
+ * Calls <var>getter</var> on <var>bean</var>. Exceptions thrown by the
+ * getter are rethrown, wrapped in a <code>RuntimeException</code> if they
+ * are checked.
+ */
+protected static Object value(MethodHandle getter, Object bean) {
+    try {
+	return (Object)getter.invokeExact(bean);
+    }
+    catch (RuntimeException re) {
+	throw re;
+    }
+    catch (Error e) {
+	throw e;
+    }
+    catch (Throwable t) {
+	throw new RuntimeException(t);
+    }
+}
+
+}
@@ -0,0 +1,156 @@
+package jimm.datavision.source.object;
+import jimm.datavision.*;
+import jimm.datavision.source.*;
+import jimm.util.XMLWriter;
+import java.util.*;
+
+/**
+ * A data source whose rows are arbitrary objects (JavaBeans, records, or
+ * anything else with getters or public fields) read from an
+ * <code>Iterable</code> or <code>Iterator</code>. Objects are read one at
+ * a time as the report needs them, so they don't need to be copied into
+ * lists first and don't all need to be in memory.
+ * <p>
+ * Each column's value is read from the object's property whose name is
+ * given when the column is added. For a property named "hourlyRate", that
+ * is the public <code>getHourlyRate()</code> or <code>isHourlyRate()</code>
+ * method, the <code>hourlyRate()</code> method (as records have), or the
+ * <code>hourlyRate</code> field, in that order. Objects that don't have the
+ * property have a <code>null</code> value. See {@link BeanRow}.
+ * <p>
+ * To read from a stream or spliterator, pass its iterator. A source made
+ * from an iterator can only be run once; one made from an iterable gets a
+ * new iterator each time it is run.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class BeanSource extends DataSource {
+
+protected ArrayList<Column> columns;
+protected HashMap<Column, String> properties;
+protected Iterable<?> beans;
+protected Iterator<?> beanIterator;
+
+/**
+ * Constructor.
+ *
+ * @param report the report that uses this data source
+ * @param beans the objects to report on
+ */
+public BeanSource(Report report, Iterable<?> beans) {
+    super(report, new ObjectQuery(report));
+    columns = new ArrayList<Column>();
+    properties = new HashMap<Column, String>();
+    this.beans = beans;
+}
+
+/**
+ * Constructor. The report can only be run once.
+ *
+ * @param report the report that uses this data source
+ * @param beans the objects to report on
+ */
+public BeanSource(Report report, Iterator<?> beans) {
+    this(report, (Iterable<?>)null);
+    beanIterator = beans;
+}
+
+public boolean canJoinTables() { return false; }
+public boolean isSQLGenerated() { return false; }
+public boolean isConnectionEditable() { return false; }
+public boolean areRecordsSelectable() { return true; }
+public boolean areRecordsSortable() { return true; }
+public boolean canGroupRecords() { return true; }
+public boolean usesSourceFile() { return false; }
+
+/**
+ * Adds a column whose property name is the last part of the column's name
+ * (the part after the last '.'). For example, the property of the column
+ * "jobs.title" is "title".
+ *
+ * @param col a column
+ */
+public void addColumn(Column col) {
+    String name = col.getName();
+    addColumn(col, name.substring(name.lastIndexOf('.') + 1));
+}
+
+/**
+ * Adds a column whose values are read from the named property.
+ *
+ * @param col a column
+ * @param property a property name
+ */
+public void addColumn(Column col, String property) {
+    columns.add(col);
+    properties.put(col, property);
+    ((ObjectQuery)query).addColumn(col);
+}
+
+/**
+ * Returns the name of the property from which a column's values are read.
+ *
+ * @param col a column
+ * @return a property name
+ */
+public String propertyOf(Column col) { return properties.get(col); }
+
+/**
+ * Returns the iterator to read the objects from. An iterator given to the
+ * constructor is only returned once; after that, this returns an empty
+ * iterator.
+ *
+ * @return an iterator
+ */
+Iterator<?> iterator() {
+    if (beans != null)
+	return beans.iterator();
+    Iterator<?> iter = beanIterator;
+    beanIterator = null;
+    return iter != null ? iter : Collections.emptyList().iterator();
+}
+
+/**
+ * Given an id (a column name), returns the column that has that id. If no
+ * column with the specified id exists, returns <code>null</code>.
+ *
+ * @param id a column id
+ * @return a column, or <code>null</code> if no column with the specified
+ * id exists
+ */
+public Column findColumn(Object id) {
+    for (Column col : columns)
+	if (col.getId().equals(id))
+	    return col;
+    return null;
+}
+
+public int indexOfSelectable(Selectable sel) { return columns.indexOf(sel); }
+
+public Iterable<Table> tables() { return null; }
+
+public Iterable<Table> tablesUsedInReport() { return null; }
+
+public Iterable<Column> columns() { return columns; }
+
+public DataCursor execute() {
+    return SortCursor.wrap(new BeanRow(this, query), this);
+}
+
+/**
+ * Writes this data source's columns as an XML tag. The objects and
+ * property names aren't written.
+ *
+ * @param out a writer that knows how to write XML
+ */
+protected void doWriteXML(XMLWriter out) {
+    out.startElement("object");
+    if (metadataURL != null)
+	out.textElement("metadata-url", metadataURL);
+    else
+	for (Column col : columns)
+	    col.writeXML(out);
+    out.endElement();
+}
+
+}
@@ -1,7 +1,7 @@
 package jimm.datavision.source.object;
-import jimm.datavision.Formula;
 import jimm.datavision.source.DataCursor;
 import jimm.datavision.source.Query;
+import jimm.datavision.source.RowFilter;
 import java.util.*;
 
 /**
@@ -13,7 +13,7 @@ public class ObjectRow extends DataCursor {
 
 protected ObjectSource source;
 protected Query query;
-protected Formula whereClauseFormula;
+protected RowFilter filter;
 protected boolean noMoreData;
 
 private ArrayList<Object> data;
@@ -23,10 +23,7 @@ ObjectRow(ObjectSource source, Query query) {
     this.query = query;
     this.data = source.getData();
     this.query.findSelectablesUsed();	// Needed so we can find columns later
-
-    String script = query.getWhereClause();
-    if (script != null && script.length() > 0)
-	whereClauseFormula = new Formula(null, source.getReport(), "", script);
+    filter = RowFilter.create(source, query);
 }
 
 /**
@@ -37,38 +34,21 @@ public List<Object> readRowData() {
     if (noMoreData)
 	return null;
 
-    List<Object> rowData = null;
-
-    boolean acceptRow;
+    List<Object> rowData;
     do {
 	rowData = retrieveNextRow();
-	if (whereClauseFormula != null && rowData != null) {
-	    // Run the Ruby script and retrive its boolean value. If true,
-	    // accept the line. Else, reject it and move on to the next
-	    // line.
-
-	    // First, save the existing current row and make the new data
-	    // the current row. We need to do this because the formula we
-	    // are about to evaluate may make use of data in the new
-	    // current row.
-	    List<Object> origCurrRowData = currRowData;
-	    currRowData = rowData;	// Need data available to formula
-
-	    // Evaulate the script and retrieve a boolean.
-	    Object obj = whereClauseFormula.eval();
-	    acceptRow = ((Boolean)obj).booleanValue();
-
-	    // Replace the original current row data (acutally the previous
-	    // row, but we don't care).
-	    currRowData = origCurrRowData;
-	}
-	else
-	    acceptRow = true;
-    } while (!acceptRow);
+    } while (rowData != null && filter != null
+	     && !filter.accept(this, rowData));
 
     return rowData;
 }
 
+/**
+ * Returns <code>true</code> if there is no where clause. Where clauses are
+ * formulas, and formulas may only be evaluated by the report thread.
+ */
+public boolean canReadAhead() { return filter == null; }
+
 /**
  * Retrieve the next row of data and return it as a list of column values.
  *
@@ -33,8 +33,8 @@ public boolean canJoinTables() { return false; }
 public boolean isSQLGenerated() { return false; }
 public boolean isConnectionEditable() { return false; }
 public boolean areRecordsSelectable() { return false; }
-public boolean areRecordsSortable() { return false; }
-public boolean canGroupRecords() { return false; }
+public boolean areRecordsSortable() { return true; }
+public boolean canGroupRecords() { return true; }
 public boolean usesSourceFile() { return false; }
 
 /**
@@ -84,7 +84,7 @@ public Iterable<Table> tablesUsedInReport() { return null; }
 public Iterable<Column> columns() { return columns; }
 
 public DataCursor execute() {
-    return new ObjectRow(this, query);
+    return SortCursor.wrap(new ObjectRow(this, query), this);
 }
 
 /**
@@ -3,6 +3,7 @@ import jimm.datavision.*;
 import jimm.datavision.source.*;
 import jimm.util.XMLWriter;
 import jimm.util.I18N;
+import java.io.UnsupportedEncodingException;
 import java.sql.*;
 import java.util.*;
 
@@ -14,6 +15,12 @@ import java.util.*;
 public class Database extends DataSource {
 
 protected static final String[] DB_OBJECT_TYPES = { "TABLE", "VIEW" };
+/**
+ * Maps each connection on which we turned auto-commit off to the number of
+ * queries still relying on that. Databases may share a connection.
+ */
+protected static final Map<Connection, int[]> autoCommitHolds =
+    new WeakHashMap<Connection, int[]>();
 
 protected String driverClassName;
 protected String connInfo;
@@ -29,6 +36,13 @@ protected boolean connectionOwnedByMe;
 protected boolean storesLowerCaseIdentifiers;
 protected boolean storesUpperCaseIdentifiers;
 protected String quoteString;
+protected int fetchSize;
+/** The number of this database's queries holding auto-commit off. */
+protected int autoCommitOffQueries;
+protected long cacheTTL;
+protected ResultCache resultCache;
+/** Prepared statements kept for reuse, keyed by SQL; may be null. */
+protected HashMap<String, PreparedStatement> statements;
 
 public Database(Connection conn, Report report) throws SQLException {
     super(report, new SQLQuery(report));
@@ -242,8 +256,267 @@ public Iterable<Column> columns() {
     return new ColumnIterator(tables.values());
 }
 
+/**
+ * Runs the query. If results may be cached (see {@link #setCacheTTL}) and
+ * the cache holds a recent enough result for the same SQL and parameter
+ * values, the cached rows are returned instead.
+ */
 public DataCursor execute() throws SQLException {
-    return new ResultSetRow(conn, (SQLQuery)query);
+    SQLQuery sqlQuery = (SQLQuery)query;
+    if (cacheTTL <= 0)
+	return new ResultSetRow(this, sqlQuery);
+
+    String sql = sqlQuery.toPreparedStatementString();
+    ArrayList<Object> key = new ArrayList<Object>();
+    key.add(connectionHash());
+    key.add(sql);
+    key.addAll(sqlQuery.getPreparedStmtValues());
+
+    ResultCache cache = getResultCache();
+    DataCursor cursor = cache.get(key, cacheTTL);
+    if (cursor != null)
+	return cursor;
+    return cache.cache(key, new ResultSetRow(this, sqlQuery, sql));
+}
+
+/**
+ * Returns the number of milliseconds for which query results are cached.
+ * Zero, the default, means results aren't cached.
+ *
+ * @return the cache time to live in milliseconds
+ */
+public long getCacheTTL() { return cacheTTL; }
+
+/**
+ * Sets the number of milliseconds for which query results are cached.
+ * When the report runs the same SQL with the same parameter values within
+ * that time, the rows are read from the result cache instead of the
+ * database. Changes made to the database in the meantime aren't seen.
+ *
+ * @param millis the cache time to live in milliseconds; zero or less
+ * turns off caching
+ * @see #setResultCache
+ */
+public void setCacheTTL(long millis) { cacheTTL = millis < 0 ? 0 : millis; }
+
+/**
+ * Returns the result cache used when caching is turned on. Unless another
+ * is set, this is the cache shared by all reports.
+ *
+ * @return a result cache
+ * @see ResultCache#getDefault
+ */
+public ResultCache getResultCache() {
+    return resultCache != null ? resultCache : ResultCache.getDefault();
+}
+
+/**
+ * Sets the result cache used when caching is turned on.
+ *
+ * @param cache a result cache; <code>null</code> means use the cache
+ * shared by all reports
+ */
+public void setResultCache(ResultCache cache) { resultCache = cache; }
+
+/**
+ * Returns a hash of the connection info string and the user name followed
+ * by the query's SQL. The connection info isn't included as is because it
+ * may hold a password, and the query text is written to snapshot files.
+ *
+ * @return the query text
+ */
+public String getQueryText() {
+    return connectionHash() + "\n" + super.getQueryText();
+}
+
+/**
+ * Returns the SHA-1 hash of the connection info string and the user name.
+ * Query text and result cache keys use it to tell databases apart without
+ * holding credentials that the connection info may contain. A database
+ * that was handed its connection has no connection info, so the
+ * connection's URL and user name are used instead; that way reports given
+ * different connections to the same database, for example from a pool,
+ * share cached results.
+ *
+ * @return a hash string
+ */
+protected String connectionHash() {
+    String str = connInfo + "\n" + username;
+    if ((connInfo == null || connInfo.length() == 0) && conn != null) {
+	try {
+	    DatabaseMetaData dbmd = conn.getMetaData();
+	    str = dbmd.getURL() + "\n" + dbmd.getUserName();
+	}
+	catch (SQLException sqle) { // Keep this connection to itself
+	    str = "\n\n" + System.identityHashCode(conn);
+	}
+    }
+    try {
+	return CompiledReport.hash(str.getBytes("UTF-8"));
+    }
+    catch (UnsupportedEncodingException uee) { // Can't happen
+	return CompiledReport.hash(str.getBytes());
+    }
+}
+
+/**
+ * Returns the number of rows the JDBC driver should fetch at a time. Zero
+ * (the default) means let the driver decide, which for some drivers means
+ * reading the entire result into memory before returning the first row.
+ *
+ * @return the fetch size
+ */
+public int getFetchSize() { return fetchSize; }
+
+/**
+ * Sets the number of rows the JDBC driver should fetch at a time. Any
+ * number greater than zero turns on streaming; see {@link #prepareQuery}.
+ *
+ * @param newFetchSize the new fetch size; negative numbers are treated as
+ * zero
+ */
+public void setFetchSize(int newFetchSize) {
+    fetchSize = newFetchSize < 0 ? 0 : newFetchSize;
+}
+
+/**
+ * Returns <code>true</code> if prepared statements are kept and reused.
+ *
+ * @return <code>true</code> if prepared statements are reused
+ */
+public boolean getReuseStatements() { return statements != null; }
+
+/**
+ * Tells this database whether to keep the prepared statements of report
+ * queries and reuse them the next time the same SQL is run, as happens
+ * when a report is run many times with different parameter values (see
+ * {@link BatchRun}). Turning reuse off closes the kept statements.
+ *
+ * @param reuse if <code>true</code>, keep prepared statements
+ */
+public void setReuseStatements(boolean reuse) {
+    if (reuse) {
+	if (statements == null)
+	    statements = new HashMap<String, PreparedStatement>();
+	return;
+    }
+    if (statements == null)
+	return;
+    try {
+	for (PreparedStatement stmt : statements.values())
+	    stmt.close();
+    }
+    catch (SQLException sqle) {
+	ErrorHandler.error(sqle);
+    }
+    finally {
+	statements = null;
+    }
+}
+
+/**
+ * Returns a prepared statement for a report query. If statements are
+ * being reused (see {@link #setReuseStatements}), returns the kept
+ * statement for the same SQL if there is one.
+ * <p>
+ * If the fetch size is greater than zero, the statement is forward-only and
+ * read-only and we do whatever the driver needs so rows are streamed
+ * instead of read all at once:
+ * <ul>
+ * <li>PostgreSQL only uses a cursor when auto-commit is off, so we turn it
+ * off until {@link #queryClosed} is called. If other databases share the
+ * connection, it is turned back on when the last of their streaming
+ * queries is closed.</li>
+ * <li>MySQL streams one row at a time when the fetch size is
+ * <code>Integer.MIN_VALUE</code>, unless the connection uses
+ * <code>useCursorFetch=true</code>, in which case the fetch size is used
+ * as-is. A streaming MySQL result set blocks all other queries on the same
+ * connection, so we don't stream reports that have subreports.</li>
+ * </ul>
+ *
+ * @param sql the prepared statement string
+ * @return a prepared statement
+ */
+PreparedStatement prepareQuery(String sql) throws SQLException {
+    PreparedStatement stmt = statements == null ? null : statements.get(sql);
+    if (stmt != null)
+	stmt.clearParameters();
+    else {
+	stmt = newStatement(sql);
+	if (statements != null)
+	    statements.put(sql, stmt);
+    }
+
+    if (fetchSize > 0) {
+	synchronized (autoCommitHolds) {
+	    int[] holds = autoCommitHolds.get(conn);
+	    if (holds != null) {
+		++holds[0];
+		++autoCommitOffQueries;
+	    }
+	    else if (conn.getAutoCommit()) {
+		String driver = conn.getMetaData().getDriverName();
+		if (driver != null
+		    && driver.toLowerCase().indexOf("postgres") != -1)
+		{
+		    conn.setAutoCommit(false);
+		    autoCommitHolds.put(conn, new int[] { 1 });
+		    ++autoCommitOffQueries;
+		}
+	    }
+	}
+    }
+    return stmt;
+}
+
+/**
+ * Creates a prepared statement for a report query, setting its fetch size
+ * as described in {@link #prepareQuery}.
+ */
+protected PreparedStatement newStatement(String sql) throws SQLException {
+    if (fetchSize == 0)
+	return conn.prepareStatement(sql);
+
+    PreparedStatement stmt =
+	conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+			      ResultSet.CONCUR_READ_ONLY);
+    DatabaseMetaData dbmd = conn.getMetaData();
+    String driver = dbmd.getDriverName();
+    driver = driver == null ? "" : driver.toLowerCase();
+
+    if (driver.indexOf("mysql") != -1) {
+	String url = dbmd.getURL();
+	if (url != null && url.indexOf("useCursorFetch=true") != -1)
+	    stmt.setFetchSize(fetchSize);
+	else if (!report.subreports().iterator().hasNext())
+	    stmt.setFetchSize(Integer.MIN_VALUE);
+    }
+    else
+	stmt.setFetchSize(fetchSize);
+    return stmt;
+}
+
+/**
+ * Called when the caller is done with a statement returned by {@link
+ * #prepareQuery}. Closes the statement unless it is being kept for reuse
+ * and turns auto-commit back on if we turned it off and no other query on
+ * the connection still needs it off.
+ *
+ * @param stmt the statement
+ */
+void queryClosed(PreparedStatement stmt) throws SQLException {
+    if (statements == null || !statements.containsValue(stmt))
+	stmt.close();
+    if (autoCommitOffQueries == 0)
+	return;
+    --autoCommitOffQueries;
+    synchronized (autoCommitHolds) {
+	int[] holds = autoCommitHolds.get(conn);
+	if (holds != null && --holds[0] == 0) {
+	    autoCommitHolds.remove(conn);
+	    conn.setAutoCommit(true);
+	}
+    }
 }
 
 public boolean storesLowerCaseIdentifiers() {
@@ -351,16 +624,40 @@ public void reset(String driverClassName, String connInfo, String dbName,
     report.reloadColumns();
 }
 
+/**
+ * Returns the schema that remembers the tables and columns read from
+ * database metadata for our report, or <code>null</code> if there is
+ * none.
+ *
+ * @return a database schema or <code>null</code>
+ * @see Report#setDatabaseSchema
+ */
+public DatabaseSchema getSchema() { return report.getDatabaseSchema(); }
+
+/**
+ * Returns the key under which a {@link DatabaseSchema} remembers our
+ * tables: the connection hash and the database name.
+ */
+String schemaKey() {
+    return connectionHash() + "\n" + name;
+}
+
 /**
  * Loads information about all tables in the database. If no tables are
  * found when using the database schema name, try again with a
- * <code>null</code> schema name.
+ * <code>null</code> schema name. If our report has a {@link
+ * DatabaseSchema} that already knows the tables, they come from there
+ * instead; either way, columns aren't loaded until they are needed.
  */
 protected void loadAllTables() throws SQLException {
     tables = new TreeMap<String, Table>();
     tableCacheMap = new HashMap<String, Table>();
     schemaName = null;
 
+    DatabaseSchema schema = getSchema();
+    if (schema != null && schema.restoreTables(this))
+	return;
+
     DatabaseMetaData dbmd = getConnection().getMetaData();
     storesLowerCaseIdentifiers = dbmd.storesLowerCaseIdentifiers();
     storesUpperCaseIdentifiers = dbmd.storesUpperCaseIdentifiers();
@@ -388,6 +685,9 @@ protected void loadAllTables() throws SQLException {
     // throw an exception if there is a problem.
     if (tables.isEmpty())	// No schema name, no types
 	loadTablesUsingSchemaNameAndTypes(dbmd, null, null);
+
+    if (schema != null)
+	schema.saveTables(this);
 }
 
 /**
@@ -515,6 +815,8 @@ protected void doWriteXML(XMLWriter out) {
     out.attr("connInfo", connInfo);
     out.attr("name", name);
     out.attr("username", username);
+    if (fetchSize != 0)
+	out.attr("fetch-size", fetchSize);
     out.endElement();
 }
 
@@ -0,0 +1,147 @@
+package jimm.datavision.source.sql;
+import jimm.datavision.source.Column;
+import jimm.datavision.source.Table;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Remembers the tables and columns that databases read from their
+ * connections' metadata, so that other databases connected to the same
+ * database don't have to read them again. A {@link
+ * jimm.datavision.ReportTemplate} hands one to every report it creates;
+ * reading the metadata of every table in the schema is often the most
+ * expensive part of loading a report.
+ * <p>
+ * Entries are keyed by {@link Database#schemaKey}, which is made from a
+ * hash of the connection info or URL and the user name, and the database
+ * name. Each table's columns are remembered the first time a database
+ * loads them. Tables and columns added to the database later aren't seen
+ * until a new schema is used.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class DatabaseSchema {
+
+/**
+ * What one database's metadata said.
+ */
+static class Entry {
+boolean storesLowerCaseIdentifiers;
+boolean storesUpperCaseIdentifiers;
+String quoteString;
+String schemaName;
+List<String> tableNames;
+/** Maps table names to their columns. */
+HashMap<String, Columns> columns = new HashMap<String, Columns>();
+}
+
+/**
+ * The names and types of a table's columns.
+ */
+static class Columns {
+String[] names;
+int[] types;
+}
+
+protected HashMap<String, Entry> entries;
+
+public DatabaseSchema() {
+    entries = new HashMap<String, Entry>();
+}
+
+/**
+ * Gives <var>db</var> the tables remembered for its connection, without
+ * their columns. Returns <code>false</code> if there are none.
+ *
+ * @param db a database
+ * @return <code>true</code> if the tables were restored
+ */
+synchronized boolean restoreTables(Database db) throws SQLException {
+    Entry entry = entries.get(db.schemaKey());
+    if (entry == null)
+	return false;
+
+    db.storesLowerCaseIdentifiers = entry.storesLowerCaseIdentifiers;
+    db.storesUpperCaseIdentifiers = entry.storesUpperCaseIdentifiers;
+    db.quoteString = entry.quoteString;
+    db.schemaName = entry.schemaName;
+    DatabaseMetaData dbmd = db.getConnection().getMetaData();
+    for (String name : entry.tableNames) {
+	SQLTable t = new SQLTable(db, name, dbmd);
+	db.tables.put(t.getId().toString(), t);
+    }
+    return true;
+}
+
+/**
+ * Remembers the tables <var>db</var> has just loaded.
+ *
+ * @param db a database
+ */
+synchronized void saveTables(Database db) {
+    Entry entry = new Entry();
+    entry.storesLowerCaseIdentifiers = db.storesLowerCaseIdentifiers;
+    entry.storesUpperCaseIdentifiers = db.storesUpperCaseIdentifiers;
+    entry.quoteString = db.quoteString;
+    entry.schemaName = db.schemaName;
+    entry.tableNames = new ArrayList<String>();
+    for (Table t : db.tables.values())
+	entry.tableNames.add(t.getName());
+    entries.put(db.schemaKey(), entry);
+}
+
+/**
+ * Adds the columns remembered for <var>table</var> to it. Returns
+ * <code>false</code> if there are none.
+ *
+ * @param db the table's database
+ * @param table a table
+ * @return <code>true</code> if the columns were restored
+ */
+synchronized boolean restoreColumns(Database db, SQLTable table)
+    throws SQLException
+{
+    Entry entry = entries.get(db.schemaKey());
+    Columns cols = entry == null ? null : entry.columns.get(table.getName());
+    if (cols == null)
+	return false;
+
+    for (int i = 0; i < cols.names.length; ++i)
+	table.addColumn(new SQLColumn(table, cols.names[i], cols.types[i]));
+    return true;
+}
+
+/**
+ * Remembers the columns <var>table</var> has just loaded.
+ *
+ * @param db the table's database
+ * @param table a table
+ * @param loaded the table's columns
+ */
+synchronized void saveColumns(Database db, SQLTable table,
+			      Collection<Column> loaded)
+{
+    Entry entry = entries.get(db.schemaKey());
+    if (entry == null)
+	return;
+
+    Columns cols = new Columns();
+    cols.names = new String[loaded.size()];
+    cols.types = new int[cols.names.length];
+    int i = 0;
+    for (Column col : loaded) {
+	cols.names[i] = col.getName();
+	cols.types[i++] = col.getType();
+    }
+    entry.columns.put(table.getName(), cols);
+}
+
+/**
+ * Forgets everything.
+ */
+public synchronized void clear() {
+    entries.clear();
+}
+
+}
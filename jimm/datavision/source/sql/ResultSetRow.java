@@ -1,36 +1,67 @@
 package jimm.datavision.source.sql;
 import jimm.datavision.ErrorHandler;
 import jimm.datavision.source.DataCursor;
+import jimm.datavision.source.TypedRow;
 import java.util.List;
-import java.util.ArrayList;
 import java.sql.*;
 
 /**
  * A concrete subclass of <code>DataCursor</code> that wraps a JDBC result set.
+ * <p>
+ * Rows are read into {@link TypedRow}s. Numeric and boolean columns are
+ * read using <code>getLong</code>, <code>getDouble</code>, and
+ * <code>getBoolean</code> so their values aren't boxed. Which columns
+ * those are is decided by the result set's metadata, not by the column
+ * types the report was given, so a wrong type in a report can't change a
+ * value. The rows come from
+ * a small ring and are reused; <code>DataCursor</code> never holds on to
+ * more than {@link #RING_SIZE} - 1 of them. When rows are read ahead (see
+ * {@link #setReadAhead}), the ring is made bigger.
  *
  * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
  */
 public class ResultSetRow extends DataCursor {
 
+/** The number of rows we reuse. Previous, current, and next rows are in use
+    while the next one is being read. */
+protected static final int RING_SIZE = 4;
+
+protected Database db;
 protected PreparedStatement stmt;
 protected ResultSet rset;
 protected int numSelectables;
 protected boolean noMoreData;
+protected int[] kinds;
+protected TypedRow[] ring;
+protected int ringIndex;
 
-ResultSetRow(Connection conn, SQLQuery query) throws SQLException {
-    // Suggested by Konstantin. Though it works for his Oracle driver,
-    // it doesn't work for my PostgreSQL driver. These args are also
-    // legal for prepared statements.
-    //  	stmt = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE,
-    //  				    ResultSet.CONCUR_READ_ONLY);
+ResultSetRow(Database db, SQLQuery query) throws SQLException {
+    this(db, query, query.toPreparedStatementString());
+}
 
-    String preparedStmtString = query.toPreparedStatementString();
+/**
+ * Constructor used when the caller has already asked the query for its
+ * prepared statement string.
+ */
+ResultSetRow(Database db, SQLQuery query, String preparedStmtString)
+    throws SQLException
+{
+    this.db = db;
     if (preparedStmtString != null && preparedStmtString.length() > 0) {
-	stmt = conn.prepareStatement(preparedStmtString);
-	query.setParameters(stmt);
-	rset = stmt.executeQuery();
+	stmt = db.prepareQuery(preparedStmtString);
+	try {
+	    query.setParameters(stmt);
+	    rset = stmt.executeQuery();
+	}
+	catch (SQLException sqle) {
+	    close();
+	    throw sqle;
+	}
 	numSelectables = query.getNumSelectables();
 	noMoreData = false;
+
+	kinds = kinds(rset.getMetaData());
+	ring = new TypedRow[RING_SIZE];
     }
     else {
 	numSelectables = 0;
@@ -38,6 +69,27 @@ ResultSetRow(Connection conn, SQLQuery query) throws SQLException {
     }
 }
 
+/**
+ * Returns the kind of {@link TypedRow} slot for each column: the kind that
+ * matches the class <code>getObject</code> returns for it. Unsigned
+ * integers are read as <code>long</code>s. A column the metadata can't
+ * tell us about is read as an object.
+ */
+protected int[] kinds(ResultSetMetaData meta) {
+    int[] kinds = new int[numSelectables];
+    for (int i = 0; i < numSelectables; ++i) {
+	try {
+	    kinds[i] = TypedRow.kindOf(meta.getColumnClassName(i + 1));
+	    if (kinds[i] == TypedRow.INTEGER && !meta.isSigned(i + 1))
+		kinds[i] = TypedRow.LONG;
+	}
+	catch (SQLException sqle) {
+	    kinds[i] = TypedRow.OBJECT;
+	}
+    }
+    return kinds;
+}
+
 public List<Object> readRowData() {
     // Avoid calling rset.next() if it has already returned false. Doing so
     // appears harmless in most cases but seems to be causing a problem
@@ -56,21 +108,67 @@ public List<Object> readRowData() {
 	return null;
     }
 
-    ArrayList<Object> list = new ArrayList<Object>();
+    ringIndex = (ringIndex + 1) % ring.length;
+    TypedRow row = ring[ringIndex];
+    if (row == null)
+	row = ring[ringIndex] = new TypedRow(kinds);
+
     try {
-	for (int i = 1; i <= numSelectables; ++i)
-	    list.add(rset.getObject(i));
+	for (int i = 0; i < numSelectables; ++i)
+	    readValue(row, i);
     }
     catch (SQLException sqle) {
 	ErrorHandler.error(sqle);
     }
-    return list;
+    return row;
+}
+
+/**
+ * Reads the <var>i</var>'th column's value into <var>row</var>, using the
+ * result set getter that matches the slot's kind.
+ */
+protected void readValue(TypedRow row, int i) throws SQLException {
+    int col = i + 1;
+    switch (kinds[i]) {
+    case TypedRow.BOOLEAN:
+	row.setLong(i, rset.getBoolean(col) ? 1 : 0);
+	break;
+    case TypedRow.INTEGER:
+    case TypedRow.LONG:
+	row.setLong(i, rset.getLong(col));
+	break;
+    case TypedRow.FLOAT:
+    case TypedRow.DOUBLE:
+	row.setDouble(i, rset.getDouble(col));
+	break;
+    default:
+	row.setObject(i, rset.getObject(col));
+	return;
+    }
+    if (rset.wasNull())
+	row.setNull(i);
+}
+
+/**
+ * Returns <code>true</code>: reading rows only uses the result set, so it
+ * may be done in the background. Reports with subreports are the
+ * exception, because subreports run their queries on the same connection
+ * and not all JDBC drivers let two threads share a connection.
+ */
+public boolean canReadAhead() {
+    return !db.getReport().subreports().iterator().hasNext();
+}
+
+public void setReadAhead(int rows) {
+    if (ring != null && rows > 0)
+	ring = new TypedRow[ring.length + rows];
 }
 
 public void close() {
     try {
 	if (rset != null) rset.close();
-	if (stmt != null) stmt.close();
+	if (stmt != null)
+	    db.queryClosed(stmt);
     }
     catch (SQLException sqle) {
 	ErrorHandler.error(sqle);
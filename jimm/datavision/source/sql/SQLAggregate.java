@@ -0,0 +1,88 @@
+package jimm.datavision.source.sql;
+import jimm.datavision.Report;
+import jimm.datavision.Selectable;
+import jimm.datavision.source.Column;
+import jimm.datavision.source.DataSource;
+import jimm.datavision.source.Table;
+
+/**
+ * A SQL aggregate is a selectable that applies a SQL aggregate function
+ * ("sum", "min", or "max") to a column, or counts rows. Summary queries
+ * (see {@link SQLQuery#setSummarizing}) select them along with the group
+ * selectables. <code>null</code> column values are treated as zero, the
+ * same way aggregate fields treat them.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class SQLAggregate implements Selectable {
+
+protected String function;
+protected Column column;
+
+/**
+ * Constructor.
+ *
+ * @param function a SQL aggregate function name; "count" counts rows
+ * @param column the column to aggregate; ignored when counting rows
+ */
+public SQLAggregate(String function, Column column) {
+    this.function = function;
+    this.column = "count".equals(function) ? null : column;
+}
+
+public String getFunction() { return function; }
+
+public Column getColumn() { return column; }
+
+public Object getId() {
+    return function + "(" + (column == null ? "*" : column.getId()) + ")";
+}
+
+public Object getValue(Report report) {
+    return report.columnValue(this);
+}
+
+public String getSelectString(SQLQuery query) {
+    if (column == null)
+	return "count(*)";
+    return function + "(coalesce(" + column.getSelectString(query) + ", 0))";
+}
+
+public String getSortString(SQLQuery query) {
+    return getSelectString(query);
+}
+
+public Table getTable() { return column == null ? null : column.getTable(); }
+
+public String fieldTypeString() { return "column"; }
+
+public Selectable reloadInstance(DataSource dataSource) {
+    return new SQLAggregate(function, column == null ? null
+			    : (Column)column.reloadInstance(dataSource));
+}
+
+public String getDisplayName() { return getId().toString(); }
+
+public boolean equals(Object obj) {
+    if (!(obj instanceof SQLAggregate))
+	return false;
+    SQLAggregate other = (SQLAggregate)obj;
+    return function.equals(other.function)
+	&& (column == null ? other.column == null : column == other.column);
+}
+
+public int hashCode() {
+    return function.hashCode() ^ (column == null ? 0 : column.hashCode());
+}
+
+/**
+ * Returns the string used in a select list. Like columns, the column
+ * name isn't quoted.
+ */
+public String toString() {
+    if (column == null)
+	return "count(*)";
+    return function + "(coalesce(" + column.fullName() + ", 0))";
+}
+
+}
@@ -1,5 +1,8 @@
 package jimm.datavision.source.sql;
 import jimm.datavision.*;
+import jimm.datavision.field.AggregateField;
+import jimm.datavision.field.ColumnField;
+import jimm.datavision.field.Field;
 import jimm.datavision.source.*;
 import jimm.util.StringUtils;
 import java.util.*;
@@ -288,6 +291,61 @@ public void findSelectablesUsed() {
 	    addTable(col.getTable());
 	}
     }
+
+    // A summary query uses the same tables so that it summarizes the same
+    // rows.
+    if (summarizing)
+	findSummarySelectablesUsed();
+}
+
+/**
+ * Replaces the selectables with those used by a summary query: the groups'
+ * selectables, each aggregate field's summary selectable, and the row
+ * count.
+ *
+ * @see #setSummarizing
+ */
+protected void findSummarySelectablesUsed() {
+    selectables.clear();
+    for (Group g : report.groups()) {
+	Selectable s = g.getSelectable();
+	if (!selectables.contains(s)) selectables.add(s);
+    }
+    report.withFieldsDo(new FieldWalker() {
+	public void step(Field f) {
+	    if (f instanceof AggregateField) {
+		Selectable s = summarySelectable((AggregateField)f);
+		if (!selectables.contains(s)) selectables.add(s);
+	    }
+	}
+	});
+    Selectable count = rowCountSelectable();
+    if (!selectables.contains(count)) selectables.add(count);
+}
+
+/**
+ * Returns <code>true</code>: SQL queries can summarize using "group by".
+ *
+ * @return <code>true</code>
+ */
+public boolean canSummarize() { return true; }
+
+/**
+ * Returns a {@link SQLAggregate} that applies <var>af</var>'s query
+ * function to the column it aggregates.
+ *
+ * @param af an aggregate field that aggregates a column
+ * @return a selectable
+ */
+public Selectable summarySelectable(AggregateField af) {
+    Field f = af.getField();
+    return new SQLAggregate(af.getQueryFunction(),
+			    f instanceof ColumnField
+			    ? ((ColumnField)f).getColumn() : null);
+}
+
+public Selectable rowCountSelectable() {
+    return new SQLAggregate("count", null);
 }
 
 /**
@@ -443,6 +501,8 @@ protected String queryAsString(boolean forDisplay) {
     buildSelect(str);
     buildFrom(str);
     buildWhereClause(str, forDisplay);
+    if (summarizing)
+	buildGroupBy(str);
     buildOrderBy(str);
     return str.toString();
 }
@@ -512,8 +572,23 @@ protected void buildUserWhereClause(StringBuilder str, boolean forDisplay) {
     str.append(")");
 }
 
+protected void buildGroupBy(StringBuilder str) {
+    ArrayList<String> groupBys = new ArrayList<String>();
+    for (Group g : report.groups())
+	groupBys.add(g.getSelectable().getSortString(this));
+    if (!groupBys.isEmpty()) {
+	str.append(" group by ");
+	str.append(StringUtils.join(groupBys, ", "));
+    }
+}
+
+/**
+ * Appends the order by clause. Summary queries are only sorted by the
+ * groups; their rows don't have the other sort columns.
+ */
 protected void buildOrderBy(StringBuilder str) {
-    if (report.hasGroups() || !sortSelectables.isEmpty()) {
+    boolean useSorts = !summarizing && !sortSelectables.isEmpty();
+    if (report.hasGroups() || useSorts) {
 	str.append(" order by ");
 	ArrayList<String> orders = new ArrayList<String>();
 	for (Group g : report.groups()) {
@@ -524,17 +599,28 @@ protected void buildOrderBy(StringBuilder str) {
 			    ? "desc" : "asc");
 	    orders.add(buf.toString());
 	}
-	for (Selectable s : sortedSelectables()) {
-	    StringBuilder buf = new StringBuilder(s.getSortString(this));
-	    buf.append(' ');
-	    buf.append(sortOrderOf(s) == Query.SORT_DESCENDING ? "desc" : "asc");
-	    orders.add(buf.toString());
+	if (useSorts) {
+	    for (Selectable s : sortedSelectables()) {
+		StringBuilder buf = new StringBuilder(s.getSortString(this));
+		buf.append(' ');
+		buf.append(sortOrderOf(s) == Query.SORT_DESCENDING
+			   ? "desc" : "asc");
+		orders.add(buf.toString());
+	    }
 	}
 
 	str.append(StringUtils.join(orders, ", "));
     }
 }
 
+/**
+ * Returns the values bound to the placeholders of the SQL string last
+ * returned by {@link #toPreparedStatementString}.
+ *
+ * @return a list of values
+ */
+public List<Object> getPreparedStmtValues() { return preparedStmtValues; }
+
 /**
  * Given a prepared statement created with the text returned by
  * <code>toPreparedStatementString</code>, plug in all the parameter
@@ -552,6 +638,7 @@ public void setParameters(PreparedStatement stmt) throws SQLException {
 			 new java.sql.Date(((java.util.Date)val).getTime()));
 	else
 	    stmt.setObject(i, val);
+	++i;
     }
 }
 
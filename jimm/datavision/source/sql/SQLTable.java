@@ -121,6 +121,16 @@ public Collection<Column> columns() {
 protected void loadColumns() {
     colCacheMap = new HashMap<String, Column>();
 
+    Database db = (Database)dataSource;
+    DatabaseSchema schema = db.getSchema();
+    try {
+	if (schema != null && schema.restoreColumns(db, this)) {
+	    dbmd = null;
+	    return;
+	}
+    }
+    catch (SQLException sqle) {} // Load them ourselves
+
     String schemaName = null;
     String tableName = name;
     int pos = name.indexOf('.');
@@ -135,6 +145,8 @@ protected void loadColumns() {
     if (columns.isEmpty())
 	loadColumnsUsing(null, tableName);
 
+    if (schema != null)
+	schema.saveColumns(db, this, columns.values());
     dbmd = null;
 }
 
@@ -1,6 +1,7 @@
 package jimm.datavision.source.sql;
 import jimm.datavision.*;
 import jimm.datavision.source.*;
+import jimm.util.StringUtils;
 import jimm.util.XMLWriter;
 import java.util.*;
 import java.sql.PreparedStatement;
@@ -17,6 +18,7 @@ public class SubreportQuery extends SQLQuery {
 
 protected Subreport subreport;
 protected ArrayList<Join> subreportJoins;
+protected List<Object[]> batchKeys;
 
 /**
  * Constructor.
@@ -51,6 +53,70 @@ public Iterable<Column> parentColumns() {
     return list;
 }
 
+/**
+ * Returns <code>true</code> if this query can fetch the rows for many
+ * parent rows at once; see {@link #setBatchKeys}. That is only possible
+ * when all of the subreport joins test for equality.
+ *
+ * @return <code>true</code> if batch queries are possible
+ */
+public boolean canBatch() {
+    if (subreportJoins.isEmpty())
+	return false;
+    for (Join j : subreportJoins)
+	if (!"=".equals(j.getRelation().trim()))
+	    return false;
+    return true;
+}
+
+/**
+ * Turns this query into a batch query that fetches the rows for all of
+ * the given parent column values, or back into a normal query if
+ * <var>keys</var> is <code>null</code>. Each key holds one value for each
+ * subreport join, in the same order as {@link #parentColumns}; no value
+ * may be <code>null</code>.
+ * <p>
+ * A batch query also selects the columns on the subreport side of the
+ * joins, after all the others, so the caller can tell which rows belong
+ * to which key.
+ *
+ * @param keys a list of parent column values; may be <code>null</code>
+ * @see #canBatch
+ */
+public void setBatchKeys(List<Object[]> keys) {
+    batchKeys = keys;
+}
+
+/**
+ * Returns the columns on the subreport side of the joins.
+ *
+ * @return a list of columns
+ */
+public List<Column> joinedColumns() {
+    ArrayList<Column> list = new ArrayList<Column>();
+    for (Join j : subreportJoins)
+	list.add(j.getTo());
+    return list;
+}
+
+/**
+ * Returns <code>false</code>: subreport queries return rows for the parent
+ * report's current row.
+ *
+ * @return <code>false</code>
+ */
+public boolean canSummarize() { return false; }
+
+public void findSelectablesUsed() {
+    super.findSelectablesUsed();
+    if (batchKeys != null) {
+	for (Column col : joinedColumns()) {
+	    if (!selectables.contains(col)) selectables.add(col);
+	    addTable(col.getTable());
+	}
+    }
+}
+
 protected void buildWhereClause(StringBuilder str, boolean forDisplay) {
     // We always have a where clauses, even if the user didn't specify one
     str.append(" where ");
@@ -92,41 +158,87 @@ public String getWhereClauseForPreparedStatement() {
 	buf.append(super.getWhereClauseForPreparedStatement());
 	buf.append(") and (");
     }
-    boolean hasJoin = false;
-    for (Join j : subreportJoins) {
-	if (hasJoin)
-	    buf.append(" and ");
-	else
-	    hasJoin = true;
-	buf.append("? ");
-	buf.append(j.getRelation());
-	buf.append(' ');
-	buf.append(quoted(((Column)j.getTo()).fullName()));
+    if (batchKeys != null)
+	buildBatchCondition(buf);
+    else {
+	boolean hasJoin = false;
+	for (Join j : subreportJoins) {
+	    if (hasJoin)
+		buf.append(" and ");
+	    else
+		hasJoin = true;
+	    buf.append("? ");
+	    buf.append(j.getRelation());
+	    buf.append(' ');
+	    buf.append(quoted(((Column)j.getTo()).fullName()));
+	}
     }
     if (whereClause != null && whereClause.length() > 0)
 	buf.append(')');
     return buf.toString();
 }
 
+/**
+ * Appends the condition that selects the rows for all batch keys. With
+ * one join that is "col in (?,?,...)"; with more than one it is
+ * "(col1 = ? and col2 = ?) or (...)".
+ */
+protected void buildBatchCondition(StringBuilder buf) {
+    ArrayList<String> names = new ArrayList<String>();
+    for (Column col : joinedColumns())
+	names.add(quoted(col.fullName()));
+
+    if (names.size() == 1) {
+	buf.append(names.get(0));
+	buf.append(" in (");
+	for (int i = 0; i < batchKeys.size(); ++i) {
+	    if (i > 0) buf.append(',');
+	    buf.append('?');
+	}
+	buf.append(')');
+	return;
+    }
+
+    ArrayList<String> terms = new ArrayList<String>();
+    for (int i = 0; i < batchKeys.size(); ++i) {
+	ArrayList<String> tests = new ArrayList<String>();
+	for (String name : names)
+	    tests.add(name + " = ?");
+	terms.add("(" + StringUtils.join(tests, " and ") + ")");
+    }
+    buf.append(StringUtils.join(terms, " or "));
+}
+
 public void setParameters(PreparedStatement stmt) throws SQLException {
     super.setParameters(stmt);
 
     // Continue with parameters after those filled in by superclass.
     // Remember that param indices start at 1.
     int i = preparedStmtValues.size() + 1;
+    if (batchKeys != null) {
+	for (Object[] key : batchKeys)
+	    for (Object val : key)
+		setParameter(stmt, i++, val);
+	return;
+    }
+
     for (Join j : subreportJoins) {
-	// In Oracle, Java Dates are turned into timestamps, or something
-	// like that. This is an attempt to fix this problem.
 	Column from = j.getFrom();
-	Object val = subreport.getParentReport().columnValue(from);
-	if (val instanceof java.util.Date)
-	    stmt.setDate(i,
-			 new java.sql.Date(((java.util.Date)val).getTime()));
-	else
-	    stmt.setObject(i, val);
+	setParameter(stmt, i++, subreport.getParentReport().columnValue(from));
     }
 }
 
+protected void setParameter(PreparedStatement stmt, int i, Object val)
+    throws SQLException
+{
+    // In Oracle, Java Dates are turned into timestamps, or something
+    // like that. This is an attempt to fix this problem.
+    if (val instanceof java.util.Date)
+	stmt.setDate(i, new java.sql.Date(((java.util.Date)val).getTime()));
+    else
+	stmt.setObject(i, val);
+}
+
 protected void writeExtras(XMLWriter out) {
     out.startElement("subreport-joins");
     for (Join j : subreportJoins)
@@ -126,6 +126,39 @@ public void testStddev() throws IOException, FileNotFoundException {
     runTest("stddev", expected);
 }
 
+public void testDistinct() throws IOException, FileNotFoundException {
+    String[] expected = {"A", "B", "D",
+			 "2", "24", "3",
+			 "3", "3",
+			 "C", "D",
+			 "12", "42",
+			 "2", "2", "5",
+			 "5"};
+    runTest("distinct", expected);
+}
+
+public void testMedian() throws IOException, FileNotFoundException {
+    String[] expected = {"A", "B", "D",
+			 "2", "24", "3",
+			 "3", "3",
+			 "C", "D",
+			 "12", "42",
+			 "27", "27", "12",
+			 "12"};
+    runTest("median", expected);
+}
+
+public void testPercentile() throws IOException, FileNotFoundException {
+    String[] expected = {"A", "B", "D",
+			 "2", "24", "3",
+			 "19.8", "19.8",
+			 "C", "D",
+			 "12", "42",
+			 "39", "39", "34.8",
+			 "34.8"};
+    runTest("p90", expected);
+}
+
 public void runTest(String funcName, String[] expected)
     throws IOException, FileNotFoundException
 {
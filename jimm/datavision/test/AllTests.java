@@ -26,14 +26,23 @@ public static Test suite(boolean runJdbcTests, boolean skipNonJdbcTests) {
     TestSuite suite = new TestSuite();
     if (!skipNonJdbcTests) {
 	suite.addTest(StringUtilsTest.suite());
+	suite.addTest(LRUCacheTest.suite());
+	suite.addTest(SketchTest.suite());
+	suite.addTest(TypedRowTest.suite());
+	suite.addTest(FetchSizeTest.suite());
+	suite.addTest(SummaryQueryTest.suite());
 	suite.addTest(ColumnIteratorTest.suite());
 	suite.addTest(DelimParserTest.suite());
 	suite.addTest(XMLWriterTest.suite());
 	suite.addTest(FormulaTest.suite());
 	suite.addTest(FormulaEvalTest.suite());
+	suite.addTest(NativeExpressionTest.suite());
 	suite.addTest(SectionAreaTest.suite());
 	suite.addTest(SuppressionProcTest.suite());
 	suite.addTest(GroupFormulaTest.suite());
+	suite.addTest(DependencyGraphTest.suite());
+	suite.addTest(DataCursorTest.suite());
+	suite.addTest(PrefetchCursorTest.suite());
 	suite.addTest(GetoptsTest.suite());
 	suite.addTest(ParserHelperTest.suite());
 	suite.addTest(PDFLETest.suite());
@@ -41,6 +50,15 @@ public static Test suite(boolean runJdbcTests, boolean skipNonJdbcTests) {
 	suite.addTest(ReportRunTest.suite());
 	suite.addTest(ScriptingTest.suite());
 	suite.addTest(CharSepTest.suite());
+	suite.addTest(BeanSourceTest.suite());
+	suite.addTest(SnapshotTest.suite());
+	suite.addTest(ResultCacheTest.suite());
+	suite.addTest(ReportTemplateTest.suite());
+	suite.addTest(PartitionedRunTest.suite());
+	suite.addTest(BatchRunTest.suite());
+	suite.addTest(BurstRunTest.suite());
+	suite.addTest(SubreportBatchTest.suite());
+	suite.addTest(SubreportCacheTest.suite());
 	suite.addTest(AggregateTest.suite());
     }
     if (runJdbcTests) {
@@ -0,0 +1,170 @@
+package jimm.datavision.test;
+import jimm.datavision.BatchRun;
+import jimm.datavision.Parameter;
+import jimm.datavision.Report;
+import jimm.datavision.layout.CharSepLE;
+import jimm.datavision.layout.LayoutEngine;
+import jimm.datavision.source.charsep.CharSepSource;
+import java.io.*;
+import java.util.HashMap;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests {@link BatchRun} by running a report once for each office and
+ * comparing the output with that of running it by hand.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class BatchRunTest extends TestCase {
+
+protected static final File REPORT_FILE =
+    new File(AllTests.testDataFile("charsep.xml"));
+protected static final String DATA_FILE =
+    AllTests.testDataFile("charsep_data.csv");
+protected static final Long PARAM_ID = new Long(1);
+protected static final String[] OFFICES = {
+    "Chicago", "New York", "New Jersey", "Chicago"
+};
+
+public static Test suite() {
+    return new TestSuite(BatchRunTest.class);
+}
+
+public BatchRunTest(String name) {
+    super(name);
+}
+
+/**
+ * Returns charsep.xml with an office parameter used by the where clause.
+ */
+protected Report readReport() throws Exception {
+    Report report = new Report();
+    report.read(REPORT_FILE);
+    CharSepSource dataSource = (CharSepSource)report.getDataSource();
+    dataSource.setSepChar(',');
+    dataSource.setInput(DATA_FILE);
+    Parameter p = new Parameter(PARAM_ID, report, "string", "Office",
+				"Which office?", "single");
+    p.addDefaultValue("Chicago");
+    report.addParameter(p);
+    report.getDataSource().getQuery()
+	.setWhereClause("{office.name} == '{?" + PARAM_ID + "}'");
+    return report;
+}
+
+protected String runOffice(String office) throws Exception {
+    Report report = readReport();
+    report.findParameter(PARAM_ID).setValue(0, office);
+    report.parametersSetManually(true);
+    StringWriter out = new StringWriter();
+    report.setLayoutEngine(new CharSepLE(new PrintWriter(out), '\t'));
+    report.runReport();
+    return out.toString();
+}
+
+/**
+ * Runs a batch and returns the output of each run, keyed by output name.
+ */
+protected HashMap<String, String> runBatch(final BatchRun batch)
+    throws Exception
+{
+    final HashMap<String, StringWriter> outputs =
+	new HashMap<String, StringWriter>();
+    batch.setOutputFactory(new BatchRun.OutputFactory() {
+	public LayoutEngine createLayoutEngine(BatchRun.Run run) {
+	    StringWriter out = new StringWriter();
+	    synchronized (outputs) {
+		outputs.put(batch.outputName("{Office}_{#}.tab", run), out);
+	    }
+	    return new CharSepLE(new PrintWriter(out), '\t');
+	}
+	});
+    assertEquals(0, batch.run());
+
+    HashMap<String, String> strings = new HashMap<String, String>();
+    for (String name : outputs.keySet())
+	strings.put(name, outputs.get(name).toString());
+    return strings;
+}
+
+protected void checkOutputs(HashMap<String, String> outputs)
+    throws Exception
+{
+    assertEquals(OFFICES.length, outputs.size());
+    for (int i = 0; i < OFFICES.length; ++i) {
+	String expected = runOffice(OFFICES[i]);
+	assertTrue(expected.indexOf(OFFICES[i]) >= 0);
+	assertEquals(expected, outputs.get(OFFICES[i] + '_' + (i + 1) + ".tab"));
+    }
+}
+
+protected String csvTable() {
+    StringBuilder buf = new StringBuilder("Office\n");
+    for (String office : OFFICES)
+	buf.append('"').append(office).append("\"\n");
+    return buf.toString();
+}
+
+public void testCSV() throws Exception {
+    for (int threads = 1; threads <= 3; ++threads) {
+	BatchRun batch = new BatchRun(readReport(), threads);
+	batch.readCSV(new StringReader(csvTable()), ',');
+	assertEquals(OFFICES.length, batch.runs().size());
+	checkOutputs(runBatch(batch));
+    }
+}
+
+public void testXML() throws Exception {
+    StringBuilder buf = new StringBuilder("<batch>");
+    for (String office : OFFICES)
+	buf.append("<parameters><parameter id=\"").append(PARAM_ID)
+	    .append("\"><value>").append(office)
+	    .append("</value></parameter></parameters>");
+    buf.append("</batch>");
+
+    BatchRun batch = new BatchRun(readReport(), 2);
+    batch.readXML(new ByteArrayInputStream(buf.toString().getBytes("UTF-8")));
+    checkOutputs(runBatch(batch));
+}
+
+public void testReportStillRuns() throws Exception {
+    Report report = readReport();
+    BatchRun batch = new BatchRun(report, 1);
+    batch.readCSV(new StringReader(csvTable()), ',');
+    runBatch(batch);
+
+    report.findParameter(PARAM_ID).setValue(0, "New York");
+    report.parametersSetManually(true);
+    ((CharSepSource)report.getDataSource()).reuseSourceFile();
+    StringWriter out = new StringWriter();
+    report.setLayoutEngine(new CharSepLE(new PrintWriter(out), '\t'));
+    report.runReport();
+    assertEquals(runOffice("New York"), out.toString());
+}
+
+public void testOutputName() throws Exception {
+    BatchRun batch = new BatchRun(readReport(), 1);
+    batch.readCSV(new StringReader("Office,output,Unknown\n"
+				   + "a/b,,x\n"
+				   + "Chicago,chicago.pdf,y\n"
+				   + ",,\n"), ',');
+    assertEquals(3, batch.runs().size());
+    assertEquals("a_b-1-{Unknown}.pdf",
+		 batch.outputName("{Office}-{#}-{Unknown}.pdf",
+				  batch.runs().get(0)));
+    assertEquals("chicago.pdf",
+		 batch.outputName("{Office}.pdf", batch.runs().get(1)));
+    // The parameter's own value is used when the run doesn't give one
+    assertEquals("Chicago_3.pdf",
+		 batch.outputName("{" + PARAM_ID + "}_{#}.pdf",
+				  batch.runs().get(2)));
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
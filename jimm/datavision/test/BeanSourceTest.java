@@ -0,0 +1,142 @@
+package jimm.datavision.test;
+import jimm.datavision.Report;
+import jimm.datavision.source.Column;
+import jimm.datavision.source.DataCursor;
+import jimm.datavision.source.Query;
+import jimm.datavision.source.object.BeanSource;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests the {@link BeanSource} data source.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class BeanSourceTest extends TestCase {
+
+public static class Job {
+protected int id;
+protected String title;
+public String office;
+Job(int id, String title, String office) {
+    this.id = id;
+    this.title = title;
+    this.office = office;
+}
+public int getId() { return id; }
+public String title() { return title; }
+public boolean isEven() { return id % 2 == 0; }
+}
+
+/** Not public, and has no "title" property. */
+static class OtherJob {
+public int getId() { return 100; }
+public String getOffice() { return "Elsewhere"; }
+}
+
+protected Report report;
+protected BeanSource source;
+protected ArrayList<Object> jobs;
+
+public static Test suite() {
+    return new TestSuite(BeanSourceTest.class);
+}
+
+public BeanSourceTest(String name) {
+    super(name);
+}
+
+public void setUp() {
+    jobs = new ArrayList<Object>();
+    String[] offices = { "Chicago", "New York", "New Jersey" };
+    for (int i = 0; i < 30; ++i)
+	jobs.add(new Job(i, "Job " + i, offices[i % 3]));
+
+    report = new Report();
+    source = new BeanSource(report, jobs);
+    source.addColumn(new Column("jobs.ID", "jobs.ID", Types.INTEGER), "id");
+    source.addColumn(new Column("jobs.title", "jobs.title", Types.VARCHAR));
+    source.addColumn(new Column("jobs.office", "jobs.office",
+				Types.VARCHAR));
+    source.addColumn(new Column("jobs.even", "jobs.even", Types.BIT));
+    report.setDataSource(source);
+}
+
+protected List<List<Object>> readRows() {
+    List<List<Object>> rows = new ArrayList<List<Object>>();
+    DataCursor cursor = source.execute();
+    while (cursor.next()) {
+	List<Object> row = new ArrayList<Object>();
+	for (int i = 1; i <= 4; ++i)
+	    row.add(cursor.getObject(i));
+	rows.add(row);
+    }
+    cursor.close();
+    return rows;
+}
+
+public void testProperties() {
+    List<List<Object>> rows = readRows();
+    assertEquals(30, rows.size());
+    List<Object> row = rows.get(7);
+    assertEquals(new Integer(7), row.get(0));
+    assertEquals("Job 7", row.get(1));
+    assertEquals("New York", row.get(2));
+    assertEquals(Boolean.FALSE, row.get(3));
+
+    // Running again gets a new iterator
+    assertEquals(rows, readRows());
+}
+
+public void testMixedClasses() {
+    jobs.add(new OtherJob());
+    jobs.add(null);
+    List<List<Object>> rows = readRows();
+    assertEquals(31, rows.size());
+    List<Object> row = rows.get(30);
+    assertEquals(new Integer(100), row.get(0));
+    assertNull(row.get(1));
+    assertEquals("Elsewhere", row.get(2));
+}
+
+public void testIterator() {
+    source = new BeanSource(report, jobs.iterator());
+    source.addColumn(new Column("jobs.ID", "jobs.ID", Types.INTEGER), "id");
+    report.setDataSource(source);
+    DataCursor cursor = source.execute();
+    int n = 0;
+    while (cursor.next())
+	++n;
+    assertEquals(30, n);
+    assertFalse(source.execute().next());
+}
+
+public void testWhereClause() {
+    source.getQuery()
+	.setWhereClause("{jobs.ID} >= 10 && {jobs.office} == 'Chicago'");
+    List<List<Object>> rows = readRows();
+    assertEquals(6, rows.size());
+    for (List<Object> row : rows) {
+	assertTrue(((Integer)row.get(0)).intValue() >= 10);
+	assertEquals("Chicago", row.get(2));
+    }
+}
+
+public void testSort() {
+    source.getQuery().addSort(source.findColumn("jobs.ID"),
+			      Query.SORT_DESCENDING);
+    List<List<Object>> rows = readRows();
+    assertEquals(new Integer(29), rows.get(0).get(0));
+    assertEquals(new Integer(0), rows.get(29).get(0));
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
@@ -0,0 +1,151 @@
+package jimm.datavision.test;
+import jimm.datavision.BurstRun;
+import jimm.datavision.Group;
+import jimm.datavision.Report;
+import jimm.datavision.layout.CharSepLE;
+import jimm.datavision.layout.LayoutEngine;
+import jimm.datavision.source.charsep.CharSepSource;
+import java.io.*;
+import java.util.*;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests {@link BurstRun} by bursting a report and comparing each output
+ * with the output of running the report over that burst's rows alone.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class BurstRunTest extends TestCase {
+
+protected static final File REPORT_FILE =
+    new File(AllTests.testDataFile("charsep.xml"));
+protected static final String DATA_FILE =
+    AllTests.testDataFile("charsep_data.csv");
+protected static final String[] OFFICES = {
+    "Chicago", "New Jersey", "New York"
+};
+
+public static Test suite() {
+    return new TestSuite(BurstRunTest.class);
+}
+
+public BurstRunTest(String name) {
+    super(name);
+}
+
+protected Report readReport(String dataFile, String where) throws Exception {
+    Report report = new Report();
+    report.read(REPORT_FILE);
+    CharSepSource dataSource = (CharSepSource)report.getDataSource();
+    dataSource.setSepChar(',');
+    dataSource.setInput(dataFile);
+    report.getDataSource().getQuery().setWhereClause(where);
+    return report;
+}
+
+protected Group group(Report report, int i) {
+    Iterator<Group> iter = report.groups().iterator();
+    while (i-- > 0)
+	iter.next();
+    return iter.next();
+}
+
+/**
+ * Bursts a report and returns the outputs, keyed by output name.
+ */
+protected Map<String, String> burst(final Report report, int groupIndex,
+				    final String template)
+{
+    final LinkedHashMap<String, StringWriter> outputs =
+	new LinkedHashMap<String, StringWriter>();
+    report.setBurstGroup(group(report, groupIndex),
+			 new BurstRun.OutputFactory() {
+	public LayoutEngine createLayoutEngine(List<Object> values, int n) {
+	    StringWriter out = new StringWriter();
+	    outputs.put(BurstRun.outputName(template, report, values, n), out);
+	    return new CharSepLE(new PrintWriter(out), '\t');
+	}
+	});
+    report.runReport();
+
+    LinkedHashMap<String, String> strings =
+	new LinkedHashMap<String, String>();
+    for (String name : outputs.keySet())
+	strings.put(name, outputs.get(name).toString());
+    return strings;
+}
+
+protected String runReport(Report report) {
+    StringWriter out = new StringWriter();
+    report.setLayoutEngine(new CharSepLE(new PrintWriter(out), '\t'));
+    report.runReport();
+    return out.toString();
+}
+
+public void testBurstByOffice() throws Exception {
+    Map<String, String> outputs =
+	burst(readReport(DATA_FILE, null), 0, "{value}");
+    assertEquals(Arrays.asList(OFFICES),
+		 new ArrayList<String>(outputs.keySet()));
+    for (String office : OFFICES) {
+	String expected = runReport(readReport(DATA_FILE,
+					       "{office.name} == '" + office
+					       + "'"));
+	assertTrue(expected.indexOf(office) >= 0);
+	assertEquals(office, expected, outputs.get(office));
+    }
+}
+
+// Each burst of an inner group also restarts its outer groups.
+public void testBurstByInnerGroup() throws Exception {
+    HashSet<String> keys = new HashSet<String>();
+    BufferedReader in = new BufferedReader(new FileReader(DATA_FILE));
+    String line;
+    while ((line = in.readLine()) != null) {
+	String[] cols = line.split(",");
+	keys.add(cols[0] + '_' + cols[cols.length - 1]);
+    }
+    in.close();
+
+    Report report = readReport(DATA_FILE, null);
+    Map<String, String> outputs =
+	burst(report, 1, BurstRun.placeholder(report, group(report, 1)));
+    assertEquals(keys.size(), outputs.size());
+    for (String name : outputs.keySet()) {
+	String office = name.substring(0, name.indexOf('_'));
+	String output = outputs.get(name);
+	assertTrue(name, output.startsWith("Example Report"));
+	assertTrue(name, output.indexOf(office) >= 0);
+    }
+}
+
+public void testPlaceholder() throws Exception {
+    Report report = readReport(DATA_FILE, null);
+    assertEquals("{value}", BurstRun.placeholder(report, group(report, 0)));
+    assertEquals("{office.name}_{value}",
+		 BurstRun.placeholder(report, group(report, 1)));
+}
+
+public void testOutputName() throws Exception {
+    Report report = readReport(DATA_FILE, null);
+    List<Object> values = new ArrayList<Object>();
+    values.add("New/York");
+    values.add("2002");
+    assertEquals("New_York-2002-2002-3.pdf",
+		 BurstRun.outputName("{office.name}-{jobs.post_date}-{value}-{#}.pdf",
+				     report, values, 3));
+}
+
+public void testNoRows() throws Exception {
+    Report report = readReport(AllTests.testDataFile("empty.csv"), null);
+    assertEquals(0, burst(report, 0, "{value}").size());
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
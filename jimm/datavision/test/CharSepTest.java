@@ -3,9 +3,20 @@ import jimm.datavision.*;
 import jimm.datavision.field.*;
 import jimm.datavision.layout.CharSepLE;
 import jimm.datavision.source.Column;
+import jimm.datavision.source.DataCursor;
+import jimm.datavision.source.Join;
+import jimm.datavision.source.Query;
+import jimm.datavision.source.RowFilter;
 import jimm.datavision.source.charsep.CharSepSource;
+import jimm.datavision.source.charsep.CharSepTable;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.List;
+import java.sql.Types;
 import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import junit.framework.TestCase;
@@ -102,7 +113,29 @@ public void testColumnInfo() {
 public void testReportRun() throws IOException, FileNotFoundException {
     assertEquals("{office.name} != 'Chicago'",
 		 report.getDataSource().getQuery().getWhereClause());
+    runAndCheckReport();
+}
+
+// Small chunks make sure rows are returned in order across many chunks.
+public void testParallelReportRun() throws IOException, FileNotFoundException
+{
+    dataSource.setParallelism(3);
+    dataSource.setChunkSize(200);
+    runAndCheckReport();
+}
+
+// Where clauses that aren't compiled are evaluated by the report thread.
+public void testParallelFormulaWhereClause()
+    throws IOException, FileNotFoundException
+{
+    report.getDataSource().getQuery().setWhereClause("{office.name} !~ /^Chi/");
+    dataSource.setParallelism(3);
+    dataSource.setChunkSize(200);
+    runAndCheckReport();
+}
 
+protected void runAndCheckReport() throws IOException, FileNotFoundException
+{
     // Run report in this thread, not a separate one. Running the
     // report closes the output stream.
     report.runReport();
@@ -309,8 +342,271 @@ public void testNoRecords() {
     }
 }
 
-// public void testWhereClause() {
-// }
+public void testWhereClause() {
+    Query query = report.getDataSource().getQuery();
+    RowFilter filter = RowFilter.create(dataSource, query);
+    assertTrue(filter.isCompiled());
+    assertEquals(1, filter.getColumnIndices().length);
+    assertEquals(0, filter.getColumnIndices()[0]);
+
+    query.setWhereClause("{office.name} =~ /^Chi/");
+    assertFalse(RowFilter.create(dataSource, query).isCompiled());
+
+    query.setWhereClause("{office.name} == 'Chicago' && {jobs.ID} < 20");
+    DataCursor cursor = dataSource.execute();
+    int numRows = 0;
+    while (cursor.next()) {
+	assertEquals("Chicago", cursor.getObject(1));
+	assertTrue(((Integer)cursor.getObject(2)).intValue() < 20);
+	++numRows;
+    }
+    cursor.close();
+    assertEquals(6, numRows);
+}
+
+public void testParallelRows() throws IOException {
+    String[] whereClauses = {
+	"", "{jobs.ID} % 3 == 1", "{office.name} == 'New York'"
+    };
+    for (String where : whereClauses) {
+	report.getDataSource().getQuery().setWhereClause(where);
+	dataSource.setParallelism(0);
+	dataSource.setInput(DATA_FILE);
+	List<List<Object>> expected = readRows();
+
+	dataSource.setParallelism(4);
+	dataSource.setChunkSize(1);
+	dataSource.setInput(DATA_FILE);
+	assertEquals(expected, readRows());
+    }
+}
+
+public void testSourceIndex() throws IOException {
+    File csv = File.createTempFile("datavision_index_test", ".csv");
+    File indexFile = new File(csv.getPath() + ".dvidx");
+    csv.deleteOnExit();
+    indexFile.deleteOnExit();
+    copyFile(new File(DATA_FILE), csv);
+
+    String[] whereClauses = {
+	"", "{jobs.ID} >= 40 && {jobs.ID} < 60", "{jobs.ID} == 3",
+	"70 < {jobs.ID}", "{office.name} == 'New York'", "{jobs.ID} > 1000",
+	"{jobs.ID} < 10 || {jobs.ID} > 90"
+    };
+    int numBlocks = 0;
+    for (String where : whereClauses) {
+	report.getDataSource().getQuery().setWhereClause(where);
+	dataSource.setIndexColumns(new ArrayList<String>());
+	dataSource.setInput(csv.getPath());
+	List<List<Object>> expected = readRows();
+
+	dataSource.setIndexColumns(Arrays.asList("jobs.ID", "office.name"));
+	dataSource.setIndexBlockSize(200);
+	dataSource.setInput(csv.getPath());
+	assertEquals(where, expected, readRows());
+	assertTrue(indexFile.exists());
+
+	// Without a where clause every block is read; with one, the blocks
+	// that can't hold accepted rows are skipped. No ranges are found for
+	// "||", so nothing can be skipped.
+	if (where.length() == 0) {
+	    numBlocks = dataSource.getBlocksRead();
+	    assertTrue(numBlocks > 1);
+	}
+	else if (where.indexOf("||") >= 0)
+	    assertEquals(where, numBlocks, dataSource.getBlocksRead());
+	else
+	    assertTrue(where + ": " + dataSource.getBlocksRead(),
+		       dataSource.getBlocksRead() < numBlocks);
+    }
+    report.getDataSource().getQuery().setWhereClause("{jobs.ID} > 1000");
+    readRows();
+    assertEquals(0, dataSource.getBlocksRead());
+
+    // Changing the file rebuilds the index
+    report.getDataSource().getQuery().setWhereClause("{jobs.ID} > 1000");
+    FileWriter out = new FileWriter(csv, true);
+    out.write("Chicago,1001,Appended,100100,2002-11-01\n");
+    out.close();
+    csv.setLastModified(csv.lastModified() + 2000);
+    dataSource.setInput(csv.getPath());
+    assertEquals(1, readRows().size());
+
+    csv.delete();
+    indexFile.delete();
+}
+
+public void testSort() throws FileNotFoundException {
+    List<List<Object>> expected = readRows();
+    // Groups are office and post date, then we sort by descending id
+    Collections.sort(expected, new Comparator<List<Object>>() {
+	public int compare(List<Object> a, List<Object> b) {
+	    int cmp = ((String)a.get(0)).compareTo((String)b.get(0));
+	    if (cmp == 0)
+		cmp = ((Date)a.get(4)).compareTo((Date)b.get(4));
+	    if (cmp == 0)
+		cmp = ((Number)b.get(1)).intValue()
+		    - ((Number)a.get(1)).intValue();
+	    return cmp;
+	}
+	});
+
+    Query query = report.getDataSource().getQuery();
+    query.addSort(dataSource.findColumn("jobs.ID"), Query.SORT_DESCENDING);
+
+    dataSource.setInput(DATA_FILE);
+    assertEquals(expected, readRows());
+
+    // Make it spill sorted runs to disk
+    dataSource.setSortMemory(2000);
+    dataSource.setInput(DATA_FILE);
+    assertEquals(expected, readRows());
+}
+
+public void testJoin() throws IOException {
+    File officeFile = File.createTempFile("datavision_join_test", ".csv");
+    officeFile.deleteOnExit();
+    PrintWriter out = new PrintWriter(new FileWriter(officeFile));
+    out.println("New York,212");
+    out.println("Chicago,312");
+    out.println("Chicago,773");
+    out.close();
+
+    CharSepTable table =
+	new CharSepTable(dataSource, "offices", officeFile.getPath());
+    dataSource.addTable(table);
+    table.addColumn(new Column("offices.name", "offices.name",
+			       Types.VARCHAR));
+    table.addColumn(new Column("offices.area_code", "offices.area_code",
+			       Types.NUMERIC));
+    Query query = report.getDataSource().getQuery();
+    query.addJoin(new Join(dataSource.findColumn("office.name"), "=",
+			   dataSource.findColumn("offices.name")));
+    assertEquals(6, dataSource.indexOfSelectable(
+		     dataSource.findColumn("offices.area_code")));
+
+    query.setWhereClause("{offices.area_code} != 773");
+    List<List<Object>> rows = readJoinedRows();
+    assertEquals(27 + 38, rows.size());
+    for (List<Object> row : rows) {
+	assertEquals(row.get(0), row.get(5));
+	assertEquals(row.get(0).equals("Chicago") ? 312 : 212,
+		     ((Number)row.get(6)).intValue());
+    }
+
+    // Partition both files and join the partitions
+    dataSource.setJoinMemory(1);
+    assertEquals(rows, readJoinedRows());
+
+    query.setWhereClause("{offices.area_code} == 212");
+    dataSource.setJoinMemory(CharSepSource.DEFAULT_JOIN_MEMORY);
+    assertEquals(27, readJoinedRows().size());
+
+    officeFile.delete();
+}
+
+// Joins that can't be hashed are checked against the joined rows.
+public void testNonEquiJoin() throws IOException {
+    File rangeFile = File.createTempFile("datavision_join_test", ".csv");
+    rangeFile.deleteOnExit();
+    PrintWriter out = new PrintWriter(new FileWriter(rangeFile));
+    out.println("New York,50");
+    out.println("New%,90");
+    out.println("Chicago,20");
+    out.close();
+
+    int expected = 0;
+    for (List<Object> row : readRows()) {
+	String office = (String)row.get(0);
+	int id = ((Number)row.get(1)).intValue();
+	if (office.equals("New York") && id >= 50) ++expected;
+	if (office.startsWith("New") && id >= 90) ++expected;
+	if (office.equals("Chicago") && id >= 20) ++expected;
+    }
+
+    CharSepTable table =
+	new CharSepTable(dataSource, "ranges", rangeFile.getPath());
+    dataSource.addTable(table);
+    table.addColumn(new Column("ranges.office", "ranges.office",
+			       Types.VARCHAR));
+    table.addColumn(new Column("ranges.low", "ranges.low", Types.NUMERIC));
+    Query query = report.getDataSource().getQuery();
+    query.addJoin(new Join(dataSource.findColumn("office.name"), "like",
+			   dataSource.findColumn("ranges.office")));
+    query.addJoin(new Join(dataSource.findColumn("jobs.ID"), ">=",
+			   dataSource.findColumn("ranges.low")));
+
+    List<List<Object>> rows = readJoinedRows();
+    assertEquals(expected, rows.size());
+    for (List<Object> row : rows)
+	assertTrue(row.toString(), ((Number)row.get(1)).intValue()
+		   >= ((Number)row.get(6)).intValue());
+
+    // With a hashed "=" join, the ">=" join still applies
+    Join like = query.joins().iterator().next();
+    like.setRelation("=");
+    expected = 0;
+    for (List<Object> row : rows)
+	if (row.get(0).equals(row.get(5)))
+	    ++expected;
+    rows = readJoinedRows();
+    assertEquals(expected, rows.size());
+    for (List<Object> row : rows) {
+	assertEquals(row.get(0), row.get(5));
+	assertTrue(row.toString(), ((Number)row.get(1)).intValue()
+		   >= ((Number)row.get(6)).intValue());
+    }
+
+    rangeFile.delete();
+}
+
+/**
+ * Returns all joined rows as strings, sorted so that rows joined in
+ * partitions can be compared with rows joined in memory.
+ */
+protected List<List<Object>> readJoinedRows() throws FileNotFoundException {
+    dataSource.setInput(DATA_FILE);
+    List<List<Object>> rows = new ArrayList<List<Object>>();
+    DataCursor cursor = dataSource.execute();
+    while (cursor.next()) {
+	List<Object> row = new ArrayList<Object>();
+	for (int i = 1; i <= 7; ++i)
+	    row.add(cursor.getObject(i));
+	rows.add(row);
+    }
+    cursor.close();
+    Collections.sort(rows, new Comparator<List<Object>>() {
+	public int compare(List<Object> a, List<Object> b) {
+	    return a.toString().compareTo(b.toString());
+	}
+	});
+    return rows;
+}
+
+protected void copyFile(File from, File to) throws IOException {
+    InputStream in = new FileInputStream(from);
+    OutputStream out = new FileOutputStream(to);
+    byte[] buf = new byte[4096];
+    int n;
+    while ((n = in.read(buf)) > 0)
+	out.write(buf, 0, n);
+    in.close();
+    out.close();
+}
+
+protected List<List<Object>> readRows() {
+    List<List<Object>> rows =
+	new ArrayList<List<Object>>();
+    DataCursor cursor = dataSource.execute();
+    while (cursor.next()) {
+	List<Object> row = new ArrayList<Object>();
+	for (int i = 1; i <= 5; ++i)
+	    row.add(cursor.getObject(i));
+	rows.add(row);
+    }
+    cursor.close();
+    return rows;
+}
 
 public void testEmptyFile() {
     try {
@@ -0,0 +1,97 @@
+package jimm.datavision.test;
+import jimm.datavision.source.DataCursor;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests reading rows ahead with {@link DataCursor#lookAhead}.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class DataCursorTest extends TestCase {
+
+/** Returns rows holding the numbers 1 through <var>numRows</var>. */
+static class CountingCursor extends DataCursor {
+int numRows;
+int rowsRead;
+CountingCursor(int numRows) { this.numRows = numRows; }
+protected List<Object> readRowData() {
+    if (rowsRead == numRows)
+	return null;
+    List<Object> row = new ArrayList<Object>();
+    row.add(new Integer(++rowsRead));
+    return row;
+}
+}
+
+protected CountingCursor cursor;
+
+public static Test suite() {
+    return new TestSuite(DataCursorTest.class);
+}
+
+public DataCursorTest(String name) {
+    super(name);
+}
+
+public void setUp() {
+    cursor = new CountingCursor(10);
+}
+
+protected void assertRows(int first, int count, List<List<Object>> rows) {
+    assertEquals(count, rows.size());
+    for (int i = 0; i < count; ++i)
+	assertEquals(new Integer(first + i), rows.get(i).get(0));
+}
+
+public void testLookAhead() {
+    assertTrue(cursor.next());
+    assertRows(2, 4, cursor.lookAhead(4));
+    assertEquals(5, cursor.rowsRead);
+    assertEquals(new Integer(1), cursor.getObject(1));
+
+    // Looking again doesn't read any more rows
+    assertRows(2, 2, cursor.lookAhead(2));
+    assertRows(2, 4, cursor.lookAhead(4));
+    assertEquals(5, cursor.rowsRead);
+
+    for (int i = 2; i <= 10; ++i) {
+	assertTrue(cursor.next());
+	assertEquals(new Integer(i), cursor.getObject(1));
+	assertEquals(i == 10, cursor.isLast());
+    }
+    assertFalse(cursor.next());
+}
+
+public void testLookAheadPastEnd() {
+    assertTrue(cursor.next());
+    assertRows(2, 9, cursor.lookAhead(20));
+    assertTrue(cursor.last());
+    assertEquals(new Integer(10), cursor.getObject(1));
+    assertRows(0, 0, cursor.lookAhead(5));
+}
+
+public void testLookAheadAndPrevious() {
+    assertTrue(cursor.next());
+    assertTrue(cursor.next());
+    cursor.lookAhead(3);
+    assertTrue(cursor.previous());
+    assertEquals(new Integer(1), cursor.getObject(1));
+    assertRows(2, 4, cursor.lookAhead(4));
+
+    for (int i = 2; i <= 10; ++i) {
+	assertTrue(cursor.next());
+	assertEquals(new Integer(i), cursor.getObject(1));
+    }
+    assertFalse(cursor.next());
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
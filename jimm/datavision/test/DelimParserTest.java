@@ -2,6 +2,7 @@ package jimm.datavision.test;
 import jimm.datavision.source.charsep.DelimParser;
 import jimm.util.StringUtils;
 import java.io.*;
+import java.util.Arrays;
 import java.util.List;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -41,11 +42,20 @@ protected void sepTest(List<String> answer, DelimParser parser) {
 }
 
 public void testParser() {
+    parserTest(DelimParser.DEFAULT_BUFFER_SIZE);
+}
+
+// Lines that don't fit in the buffer make it grow
+public void testSmallBuffer() {
+    parserTest(3);
+}
+
+protected void parserTest(int bufferSize) {
     BufferedReader in = null, answers = null;
     try {
 	in = new BufferedReader(new FileReader(TEST_INPUT));
 	answers = new BufferedReader(new FileReader(TEST_ANSWERS));
-	DelimParser parser = new DelimParser(in, ',');
+	DelimParser parser = new DelimParser(in, ',', bufferSize);
 
 	List<String> answer;
 	while ((answer = getNextAnswer(answers)) != null)
@@ -64,6 +74,30 @@ public void testParser() {
     }
 }
 
+public void testLineEndings() throws IOException {
+    DelimParser parser =
+	new DelimParser(new StringReader("a,\"b\"\r\n\r\nc\rd\n\n"), ',');
+    assertEquals(Arrays.asList("a", "b"), parser.parse());
+    assertEquals(Arrays.asList(""), parser.parse());
+    assertEquals(Arrays.asList("c"), parser.parse());
+    assertEquals(Arrays.asList("d"), parser.parse());
+    assertNull(parser.parse());
+}
+
+public void testFields() throws IOException {
+    DelimParser parser =
+	new DelimParser(new StringReader("one,\"t,w\"\"o\",\nthree"), ',');
+    assertTrue(parser.next());
+    assertEquals(3, parser.fieldCount());
+    assertEquals("t,w\"o", parser.field(1));
+    assertEquals("", parser.field(2));
+    assertEquals("one", parser.field(0));
+    assertTrue(parser.next());
+    assertEquals(1, parser.fieldCount());
+    assertEquals("three", parser.field(0));
+    assertFalse(parser.next());
+}
+
 protected List<String> getNextAnswer(BufferedReader in) throws IOException {
     String line = in.readLine();
     if (line == null)
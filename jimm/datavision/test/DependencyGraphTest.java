@@ -0,0 +1,140 @@
+package jimm.datavision.test;
+import jimm.datavision.*;
+import jimm.datavision.field.Field;
+import jimm.datavision.field.FormulaField;
+import jimm.datavision.layout.CharSepLE;
+import jimm.datavision.source.charsep.CharSepSource;
+import java.io.*;
+import java.util.Set;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests the {@link DependencyGraph} and makes sure formulas are only
+ * re-evaluated when their inputs change.
+ * <p>
+ * These tests use the <code>group_formulas_*</code> files.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class DependencyGraphTest extends TestCase {
+
+protected static final File OUT_FILE =
+    new File(System.getProperty("java.io.tmpdir"),
+	     "datavision_dependency_test_out.txt");
+protected static final File REPORT_FILE =
+    new File(AllTests.testDataFile("group_formulas.xml"));
+protected static final String DATA_FILE =
+    AllTests.testDataFile("group_formulas_data.csv");
+
+/** A formula that counts how many times it is evaluated. */
+static class CountingFormula extends Formula {
+int count;
+CountingFormula(Report report, String name, String evalString) {
+    super(null, report, name, evalString);
+}
+protected Object evaluate(Field formulaField) {
+    ++count;
+    return super.evaluate(formulaField);
+}
+}
+
+protected Report report;
+
+public static Test suite() {
+    return new TestSuite(DependencyGraphTest.class);
+}
+
+public DependencyGraphTest(String name) {
+    super(name);
+}
+
+public void setUp() throws Exception {
+    report = new Report();
+
+    OUT_FILE.deleteOnExit();
+    PrintWriter out = new PrintWriter(new FileWriter(OUT_FILE));
+    report.setLayoutEngine(new CharSepLE(out, ','));
+
+    report.read(REPORT_FILE);
+
+    CharSepSource dataSource = (CharSepSource)report.getDataSource();
+    dataSource.setSepChar(',');
+    dataSource.setInput(DATA_FILE);
+}
+
+public void tearDown() {
+    if (OUT_FILE.exists())
+	OUT_FILE.delete();
+}
+
+protected CountingFormula addFormula(String name, String evalString) {
+    CountingFormula f = new CountingFormula(report, name, evalString);
+    report.addFormula(f);
+    return f;
+}
+
+public void testInputs() {
+    Formula constant = addFormula("constant", "6 * 7");
+    Formula name = addFormula("name", "{name} + \":\"");
+    Formula both = addFormula("both",
+			      "{@" + name.getId() + "} + {problem}");
+    Formula row = addFormula("row", "{%report.row} + 1");
+    Formula usesRow = addFormula("uses_row", "{@" + row.getId() + "} * 2");
+    Formula title = addFormula("title", "{%report.title}.upcase");
+    Formula script = report.findFormula("1"); // Uses Ruby "case"
+
+    DependencyGraph graph = new DependencyGraph(report.formulas());
+    assertEquals(0, graph.inputsOf(constant).size());
+    assertEquals(0, graph.inputsOf(title).size());
+
+    Set<Selectable> inputs = graph.inputsOf(name);
+    assertEquals(1, inputs.size());
+    assertTrue(inputs.contains(report.findColumn("name")));
+
+    inputs = graph.inputsOf(both);
+    assertEquals(2, inputs.size());
+    assertTrue(inputs.contains(report.findColumn("name")));
+    assertTrue(inputs.contains(report.findColumn("problem")));
+
+    assertNull(graph.inputsOf(row));
+    assertNull(graph.inputsOf(usesRow));
+    assertNull(graph.inputsOf(script));
+}
+
+public void testCircularReference() {
+    Formula a = addFormula("a", "1");
+    Formula b = addFormula("b", "{@" + a.getId() + "} + 1");
+    a.setExpression("{@" + b.getId() + "} + 1");
+
+    DependencyGraph graph = new DependencyGraph(report.formulas());
+    assertNull(graph.inputsOf(a));
+    assertNull(graph.inputsOf(b));
+}
+
+public void testEvaluationCounts() {
+    CountingFormula constant = addFormula("constant", "6 * 7");
+    CountingFormula name = addFormula("name", "{name} + \":\"");
+    CountingFormula row = addFormula("row", "{%report.row} + 1");
+
+    Section detail = report.getFirstSectionByArea(SectionArea.DETAIL);
+    detail.getSuppressionProc().setHidden(false);
+    long id = 1000;
+    for (Formula f : new Formula[] { constant, name, row })
+	detail.addField(new FormulaField(new Long(id++), report, detail,
+					 f.getId(), true));
+
+    report.runReport();
+
+    assertEquals(1, constant.count);	// Once per run
+    assertEquals(2, name.count);	// Once per name: Bob and Mary
+    assertEquals(15, row.count);	// Once per row
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
@@ -0,0 +1,210 @@
+package jimm.datavision.test;
+import jimm.datavision.Report;
+import jimm.datavision.source.sql.Database;
+import java.io.File;
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates an embedded Derby database for the tests that need a real JDBC
+ * connection but not the dv_example database. The database lives in the
+ * temporary directory and its one table, <code>APP.JOBS</code>, is rebuilt
+ * each time {@link #connect} is called.
+ * <p>
+ * Every seventh job has no office and every fifth job has no rate, so
+ * tests see <code>null</code> group values and <code>null</code>
+ * aggregate values.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+class DerbyDatabase {
+
+static final String DRIVER_CLASS_NAME = "org.apache.derby.jdbc.EmbeddedDriver";
+static final File DB_DIR =
+    new File(System.getProperty("java.io.tmpdir"), "datavision_derby_test");
+static final String CONNECTION_INFO =
+    "jdbc:derby:" + DB_DIR.getAbsolutePath() + ";create=true";
+static final String[] OFFICES = { "Chicago", "New Jersey", "New York" };
+static final int NUM_JOBS = 60;
+
+/**
+ * Remembers every statement it prepares and its SQL. Also remembers each
+ * statement's result set type, concurrency, and fetch size, which can't be
+ * asked for once the statement is closed.
+ */
+static class StatementDatabase extends Database {
+List<PreparedStatement> prepared = new ArrayList<PreparedStatement>();
+List<String> sql = new ArrayList<String>();
+List<int[]> settings = new ArrayList<int[]>();
+StatementDatabase(Connection conn, Report report) throws SQLException {
+    super(conn, report);
+}
+protected PreparedStatement newStatement(String sql) throws SQLException {
+    PreparedStatement stmt = super.newStatement(sql);
+    prepared.add(stmt);
+    this.sql.add(sql);
+    settings.add(new int[] {
+	stmt.getResultSetType(), stmt.getResultSetConcurrency(),
+	stmt.getFetchSize()
+    });
+    return stmt;
+}
+}
+
+/**
+ * Returns a connection that passes every call on to <var>conn</var> but
+ * tells callers that its driver is PostgreSQL's, so {@link Database}
+ * turns auto-commit off while it streams rows.
+ *
+ * @param conn a connection to the test database
+ * @return a connection that claims to be a PostgreSQL connection
+ */
+static Connection pretendPostgres(final Connection conn) throws SQLException {
+    final DatabaseMetaData dbmd = conn.getMetaData();
+    final DatabaseMetaData postgresMetaData = (DatabaseMetaData)
+	Proxy.newProxyInstance(DatabaseMetaData.class.getClassLoader(),
+			       new Class<?>[] { DatabaseMetaData.class },
+			       new InvocationHandler() {
+	    public Object invoke(Object proxy, Method m, Object[] args)
+		throws Throwable
+	    {
+		if ("getDriverName".equals(m.getName()))
+		    return "PostgreSQL Native Driver";
+		return delegate(dbmd, m, args);
+	    }
+	    });
+    return (Connection)
+	Proxy.newProxyInstance(Connection.class.getClassLoader(),
+			       new Class<?>[] { Connection.class },
+			       new InvocationHandler() {
+	    public Object invoke(Object proxy, Method m, Object[] args)
+		throws Throwable
+	    {
+		if ("getMetaData".equals(m.getName()))
+		    return postgresMetaData;
+		return delegate(conn, m, args);
+	    }
+	    });
+}
+
+/**
+ * Returns a connection that passes every call on to <var>conn</var> and
+ * adds the SQL of every statement it prepares to <var>sql</var>. Unlike
+ * {@link StatementDatabase}, this sees the statements of subreports too.
+ *
+ * @param conn a connection to the test database
+ * @param sql a list to which SQL strings are added
+ * @return a connection that records SQL
+ */
+static Connection recordingSQL(final Connection conn, final List<String> sql) {
+    return (Connection)
+	Proxy.newProxyInstance(Connection.class.getClassLoader(),
+			       new Class<?>[] { Connection.class },
+			       new InvocationHandler() {
+	    public Object invoke(Object proxy, Method m, Object[] args)
+		throws Throwable
+	    {
+		if ("prepareStatement".equals(m.getName()))
+		    sql.add((String)args[0]);
+		return delegate(conn, m, args);
+	    }
+	    });
+}
+
+/**
+ * Returns a connection that passes every call on to <var>conn</var> and
+ * adds the name of every method called on its metadata to
+ * <var>calls</var>.
+ *
+ * @param conn a connection to the test database
+ * @param calls a list to which metadata method names are added
+ * @return a connection that records metadata calls
+ */
+static Connection recordingMetaData(final Connection conn,
+				    final List<String> calls)
+    throws SQLException
+{
+    final DatabaseMetaData dbmd = conn.getMetaData();
+    final DatabaseMetaData recordingMetaData = (DatabaseMetaData)
+	Proxy.newProxyInstance(DatabaseMetaData.class.getClassLoader(),
+			       new Class<?>[] { DatabaseMetaData.class },
+			       new InvocationHandler() {
+	    public Object invoke(Object proxy, Method m, Object[] args)
+		throws Throwable
+	    {
+		synchronized (calls) {
+		    calls.add(m.getName());
+		}
+		return delegate(dbmd, m, args);
+	    }
+	    });
+    return (Connection)
+	Proxy.newProxyInstance(Connection.class.getClassLoader(),
+			       new Class<?>[] { Connection.class },
+			       new InvocationHandler() {
+	    public Object invoke(Object proxy, Method m, Object[] args)
+		throws Throwable
+	    {
+		if ("getMetaData".equals(m.getName()))
+		    return recordingMetaData;
+		return delegate(conn, m, args);
+	    }
+	    });
+}
+
+static Object delegate(Object target, Method m, Object[] args)
+    throws Throwable
+{
+    try {
+	return m.invoke(target, args);
+    }
+    catch (InvocationTargetException ite) {
+	throw ite.getCause();
+    }
+}
+
+/**
+ * Returns a new connection to the test database, (re)creating the jobs
+ * table first.
+ *
+ * @return a database connection
+ */
+static Connection connect() throws Exception {
+    if (System.getProperty("derby.stream.error.file") == null)
+	System.setProperty("derby.stream.error.file",
+			   new File(System.getProperty("java.io.tmpdir"),
+				    "datavision_derby_test.log").getPath());
+    Class.forName(DRIVER_CLASS_NAME);
+    Connection conn = DriverManager.getConnection(CONNECTION_INFO);
+
+    Statement stmt = conn.createStatement();
+    try {
+	stmt.execute("drop table jobs");
+    }
+    catch (SQLException sqle) {}	// The first time, there is no table
+    stmt.execute("create table jobs (id int, office varchar(20),"
+		 + " post_date date, rate int)");
+    stmt.close();
+
+    PreparedStatement insert =
+	conn.prepareStatement("insert into jobs values (?, ?, ?, ?)");
+    for (int i = 1; i <= NUM_JOBS; ++i) {
+	insert.setInt(1, i);
+	if (i % 7 == 0)
+	    insert.setNull(2, Types.VARCHAR);
+	else
+	    insert.setString(2, OFFICES[i % OFFICES.length]);
+	insert.setDate(3, Date.valueOf("2008-03-0" + (1 + i % 4)));
+	if (i % 5 == 0)
+	    insert.setNull(4, Types.INTEGER);
+	else
+	    insert.setInt(4, i * 3);
+	insert.executeUpdate();
+    }
+    insert.close();
+    return conn;
+}
+
+}
@@ -0,0 +1,181 @@
+package jimm.datavision.test;
+import jimm.datavision.Report;
+import jimm.datavision.layout.CharSepLE;
+import jimm.datavision.layout.LayoutEngine;
+import jimm.datavision.source.sql.Database;
+import java.io.*;
+import java.sql.*;
+import java.util.concurrent.*;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests the statements {@link jimm.datavision.source.sql.Database} prepares
+ * for streaming and for reuse, using the embedded Derby database created by
+ * {@link DerbyDatabase}.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class FetchSizeTest extends TestCase {
+
+protected static final File REPORT_FILE =
+    new File(AllTests.testDataFile("derby_jobs.xml"));
+
+protected Connection conn;
+protected Report report;
+protected DerbyDatabase.StatementDatabase db;
+
+public static Test suite() {
+    return new TestSuite(FetchSizeTest.class);
+}
+
+public FetchSizeTest(String name) {
+    super(name);
+}
+
+public void setUp() throws Exception {
+    conn = DerbyDatabase.connect();
+    report = new Report();
+    db = new DerbyDatabase.StatementDatabase(conn, report);
+    report.setDataSource(db);
+    report.setDatabasePassword("");
+    report.read(REPORT_FILE);
+    report.setSummaryQueries(false);
+}
+
+public void tearDown() throws SQLException {
+    db.setReuseStatements(false);
+    conn.close();
+}
+
+protected String runReport() {
+    StringWriter out = new StringWriter();
+    report.setLayoutEngine(new CharSepLE(new PrintWriter(out), '\t'));
+    report.runReport();
+    return out.toString();
+}
+
+public void testStreaming() throws Exception {
+    String expected = runReport();
+    assertTrue(expected.indexOf(DerbyDatabase.OFFICES[0]) >= 0);
+    PreparedStatement stmt = db.prepared.get(0);
+    assertTrue(stmt.isClosed());
+
+    db.setFetchSize(7);
+    assertEquals(expected, runReport());
+    assertEquals(2, db.prepared.size());
+    int[] settings = db.settings.get(1);
+    assertEquals(ResultSet.TYPE_FORWARD_ONLY, settings[0]);
+    assertEquals(ResultSet.CONCUR_READ_ONLY, settings[1]);
+    assertEquals(7, settings[2]);
+    assertTrue(db.prepared.get(1).isClosed());
+    assertTrue(conn.getAutoCommit());
+}
+
+public void testNegativeFetchSize() {
+    db.setFetchSize(-1);
+    assertEquals(0, db.getFetchSize());
+}
+
+public void testReuseStatements() throws Exception {
+    db.setFetchSize(7);
+    db.setReuseStatements(true);
+    String expected = runReport();
+    assertEquals(expected, runReport());
+    assertEquals(1, db.prepared.size());
+    PreparedStatement stmt = db.prepared.get(0);
+    assertFalse(stmt.isClosed());
+    assertEquals(7, stmt.getFetchSize());
+
+    db.setReuseStatements(false);
+    assertTrue(stmt.isClosed());
+}
+
+/**
+ * Returns a report that reads from its own database on <var>c</var> and
+ * streams rows.
+ */
+protected Report streamingReport(Connection c) throws Exception {
+    Report r = new Report();
+    Database d = new Database(c, r);
+    r.setDataSource(d);
+    r.setDatabasePassword("");
+    r.read(REPORT_FILE);
+    r.setSummaryQueries(false);
+    d.setFetchSize(7);
+    return r;
+}
+
+/**
+ * Returns a layout engine that, when the first row is output, counts down
+ * <var>started</var> and then waits for <var>proceed</var>.
+ */
+protected LayoutEngine pausingLE(final CountDownLatch started,
+				 final CountDownLatch proceed)
+{
+    return new CharSepLE(new PrintWriter(new StringWriter()), '\t') {
+	public void groupHeaders(boolean isLastRow) {
+	    if (started.getCount() > 0) {
+		started.countDown();
+		try {
+		    proceed.await(10, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException ie) {}
+	    }
+	    super.groupHeaders(isLastRow);
+	}
+    };
+}
+
+// Two databases share a connection. Closing the first one's query must
+// not turn auto-commit back on under the second one's cursor.
+public void testSharedConnection() throws Exception {
+    final Connection postgres = DerbyDatabase.pretendPostgres(conn);
+    final Report first = streamingReport(postgres);
+    Report second = streamingReport(postgres);
+
+    final CountDownLatch firstStarted = new CountDownLatch(1);
+    final CountDownLatch secondStarted = new CountDownLatch(1);
+    final CountDownLatch firstDone = new CountDownLatch(1);
+    first.setLayoutEngine(pausingLE(firstStarted, secondStarted));
+    Thread t = new Thread() {
+	public void run() {
+	    first.runReport();
+	    firstDone.countDown();
+	}
+	};
+    t.start();
+    assertTrue(firstStarted.await(10, TimeUnit.SECONDS));
+    assertFalse(conn.getAutoCommit());
+
+    final boolean[] autoCommit = new boolean[1];
+    second.setLayoutEngine(new CharSepLE(new PrintWriter(new StringWriter()),
+					 '\t') {
+	public void groupHeaders(boolean isLastRow) {
+	    if (secondStarted.getCount() > 0) {
+		secondStarted.countDown();
+		try {
+		    firstDone.await(10, TimeUnit.SECONDS);
+		    autoCommit[0] = conn.getAutoCommit();
+		}
+		catch (Exception e) {
+		    autoCommit[0] = true;
+		}
+	    }
+	    super.groupHeaders(isLastRow);
+	}
+	});
+    second.runReport();
+    t.join();
+    assertEquals(0, firstDone.getCount());
+    assertFalse(autoCommit[0]);
+    assertTrue(conn.getAutoCommit());
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
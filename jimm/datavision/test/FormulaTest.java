@@ -151,6 +151,33 @@ public void testContainsColumns() throws Exception {
 	       q.indexOfSelectable(col) >= 0);
 }
 
+public void testCompiledFormulas() {
+    Parameter p = new Parameter(new Long(1), report, "numeric", "num",
+				"what number?", "single");
+    report.addParameter(p);
+    p.setValue(0, new Integer(21));
+    Formula f = new Formula(null, report, "compiled formula");
+
+    f.setExpression("{?1} * 2");
+    assertEquals(new Long(42), f.eval());
+
+    // Inside a string, the parameter's text gets pasted in
+    f.setExpression("\"{?1}\" + \"x\"");
+    assertEquals("21x", f.eval());
+
+    // Compiled formulas must see and modify variables created by others
+    f.setExpression("compiled_total = 0");
+    f.eval();
+    f.setExpression("compiled_total += {?1}");
+    f.eval();
+    assertEquals(new Long(42), f.eval());
+
+    // Turning off compilation must not change the results
+    report.getScripting().setCompileFormulas(false);
+    f.setExpression("{?1} * 2");
+    assertEquals(new Long(42), f.eval());
+}
+
 public void testIgnoreNonColumns() {
     Formula f = new Formula(new Long(0), report, "ignore non-columns");
     try {
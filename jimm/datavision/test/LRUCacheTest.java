@@ -0,0 +1,68 @@
+package jimm.datavision.test;
+import jimm.util.LRUCache;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests the {@link LRUCache} class.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class LRUCacheTest extends TestCase {
+
+public static Test suite() {
+    return new TestSuite(LRUCacheTest.class);
+}
+
+public LRUCacheTest(String name) {
+    super(name);
+}
+
+public void testEviction() {
+    LRUCache<String, String> cache = new LRUCache<String, String>(2);
+    cache.put("a", "1");
+    cache.put("b", "2");
+    assertEquals("1", cache.get("a")); // Now "b" is least recently used
+    cache.put("c", "3");
+
+    assertEquals(2, cache.size());
+    assertTrue(cache.containsKey("a"));
+    assertFalse(cache.containsKey("b"));
+    assertTrue(cache.containsKey("c"));
+
+    cache.setMaxSize(1);
+    assertEquals(1, cache.size());
+    assertTrue(cache.containsKey("c"));
+}
+
+public void testCounts() {
+    LRUCache<String, String> cache = new LRUCache<String, String>(10);
+    assertNull(cache.get("a"));
+    cache.put("a", "1");
+    assertEquals("1", cache.get("a"));
+    assertEquals("1", cache.get("a"));
+    assertNull(cache.get("b"));
+
+    assertEquals(2, cache.getHits());
+    assertEquals(2, cache.getMisses());
+
+    cache.resetCounts();
+    assertEquals(0, cache.getHits());
+    assertEquals(0, cache.getMisses());
+}
+
+public void testZeroSize() {
+    LRUCache<String, String> cache = new LRUCache<String, String>(0);
+    cache.put("a", "1");
+    assertTrue(cache.isEmpty());
+    assertNull(cache.get("a"));
+    assertEquals(1, cache.getMisses());
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
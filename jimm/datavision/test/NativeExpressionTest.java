@@ -0,0 +1,149 @@
+package jimm.datavision.test;
+import jimm.datavision.*;
+import jimm.datavision.expr.NativeExpression;
+import jimm.datavision.expr.UnsupportedExpressionException;
+import jimm.datavision.test.mock.source.MockDataSource;
+import java.util.*;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests {@link NativeExpression} by making sure it returns the same answers
+ * as the Ruby scripting language.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class NativeExpressionTest extends TestCase {
+
+protected static final List<String> VARS =
+    Arrays.asList(new String[] { "a", "b", "s", "n" });
+protected static final Object[] VALUES = {
+    new Long(7), new Double(-2.5), "Foo Bar", null
+};
+
+protected Scripting scripting;
+
+public static Test suite() {
+    return new TestSuite(NativeExpressionTest.class);
+}
+
+public NativeExpressionTest(String name) {
+    super(name);
+}
+
+public void setUp() {
+    Report report = new Report();
+    report.setDataSource(new MockDataSource(report));
+    scripting = report.getScripting();
+}
+
+/**
+ * Evaluates <var>source</var> natively and using Ruby and makes sure the
+ * results are equal.
+ */
+protected void assertSameAsRuby(String source) throws Exception {
+    NativeExpression expr = NativeExpression.parse(source, VARS);
+    assertNotNull("can't parse " + source, expr);
+
+    Object compiled = scripting.compile("Ruby", VARS, source, "test");
+    Object expected = scripting.call("Ruby", compiled, VALUES);
+    Object actual = expr.eval(VALUES);
+    assertEquals(source, expected, actual);
+    if (expected != null)
+	assertEquals(source, expected.getClass(), actual.getClass());
+}
+
+public void testLiterals() throws Exception {
+    String[] sources = {
+	"42", "-42", "1_000", "3.25", "-0.5", "1e3", "2.5E-2",
+	"\"foo\"", "'foo'", "\"a\\\"b\\\\c\\n\"", "'a\\'b\\c'",
+	"nil", "true", "false", "# comment only\n42", "42 # trailing"
+    };
+    for (int i = 0; i < sources.length; ++i)
+	assertSameAsRuby(sources[i]);
+}
+
+public void testArithmetic() throws Exception {
+    String[] sources = {
+	"a + 3", "a - 10", "a * b", "a / 2", "-a / 2", "a % 3", "-a % 3",
+	"a % -3", "b % 2", "b / 2", "a / 2.0", "1 + 2 * 3 - 4", "(1 + 2) * 3",
+	"a * -2", "-b", "- a", "s + \"!\"", "s * 2", "-2.abs", "- 2.abs",
+	"10 - 2 - 3", "100 / 10 / 5"
+    };
+    for (int i = 0; i < sources.length; ++i)
+	assertSameAsRuby(sources[i]);
+}
+
+public void testComparisons() throws Exception {
+    String[] sources = {
+	"a == 7", "a == 7.0", "a != 7", "a < b", "a >= 7", "b <= -2.5",
+	"s == \"Foo Bar\"", "s != 'x'", "s < 'Zzz'", "s > 'Foo'", "n == nil",
+	"n != nil", "a == s", "a == nil", "true == true", "1 + 1 == 2"
+    };
+    for (int i = 0; i < sources.length; ++i)
+	assertSameAsRuby(sources[i]);
+}
+
+public void testLogic() throws Exception {
+    String[] sources = {
+	"a > 0 && b > 0", "a > 0 || b > 0", "n && a", "n || a", "a && s",
+	"!n", "!a", "not a == 7", "a > 0 and n", "n or 'default'",
+	"a > 5 ? 'big' : 'small'", "n.nil? ? 0 : n", "a ? b ? 1 : 2 : 3",
+	"!(a == 7)", "!a.nil?"
+    };
+    for (int i = 0; i < sources.length; ++i)
+	assertSameAsRuby(sources[i]);
+}
+
+public void testMethods() throws Exception {
+    String[] sources = {
+	"n.nil?", "a.nil?", "a.zero?", "b.abs", "b.round", "b.floor", "b.ceil",
+	"b.to_i", "a.to_f", "a.to_s", "n.to_s", "n.to_i", "s.length",
+	"s.size", "s.upcase", "s.downcase", "'  x \\t'.strip", "s.empty?",
+	"2.5.round", "(a / 2.0).round", "s.upcase.length"
+    };
+    for (int i = 0; i < sources.length; ++i)
+	assertSameAsRuby(sources[i]);
+}
+
+public void testUnsupportedSyntax() {
+    String[] sources = {
+	"x = 1", "puts a", "a.foo", "[1, 2].max", "a ** 2", "\"#{a}\"",
+	"$report.title", "a; b", "a\n+ b", "0x1f", "a ?1:2", "Math.sqrt(a)",
+	"s =~ /Foo/", "a..b", "a == b == true", "s.strip()", "+s"
+    };
+    for (int i = 0; i < sources.length; ++i)
+	assertNull(sources[i], NativeExpression.parse(sources[i], VARS));
+}
+
+public void testUnsupportedValues() {
+    String[] sources = {
+	"n + 1", "a / 0", "s + a", "s < a", "n.abs", "9223372036854775807 + a",
+	"s.foo", "'\u00e9'.upcase"
+    };
+    for (int i = 0; i < sources.length; ++i) {
+	NativeExpression expr = NativeExpression.parse(sources[i], VARS);
+	if (expr == null)	// Unsupported syntax is fine, too
+	    continue;
+	try {
+	    expr.eval(VALUES);
+	    fail("should not be able to evaluate " + sources[i]);
+	}
+	catch (UnsupportedExpressionException e) {}
+    }
+
+    NativeExpression expr = NativeExpression.parse("a", VARS);
+    try {
+	expr.eval(new Object[] { new java.util.Date(), null, null, null });
+	fail("should not accept a date");
+    }
+    catch (UnsupportedExpressionException e) {}
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
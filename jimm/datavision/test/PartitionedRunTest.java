@@ -0,0 +1,114 @@
+package jimm.datavision.test;
+import jimm.datavision.PartitionedRun;
+import jimm.datavision.Report;
+import jimm.datavision.field.AggregateField;
+import jimm.datavision.layout.CharSepLE;
+import jimm.datavision.source.charsep.CharSepSource;
+import java.io.*;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests {@link PartitionedRun} by running reports both ways and comparing
+ * the output.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class PartitionedRunTest extends TestCase {
+
+protected static final File GROUP_FORMULAS_REPORT =
+    new File(AllTests.testDataFile("group_formulas.xml"));
+protected static final String GROUP_FORMULAS_DATA =
+    AllTests.testDataFile("group_formulas_data.csv");
+protected static final File CHARSEP_REPORT =
+    new File(AllTests.testDataFile("charsep.xml"));
+protected static final String CHARSEP_DATA =
+    AllTests.testDataFile("charsep_data.csv");
+// The office group's header in charsep.xml
+protected static final Long OFFICE_HEADER_FIELD_ID = new Long(7);
+// The report footer's grand total in charsep.xml
+protected static final Long GRAND_TOTAL_FIELD_ID = new Long(17);
+
+public static Test suite() {
+    return new TestSuite(PartitionedRunTest.class);
+}
+
+public PartitionedRunTest(String name) {
+    super(name);
+}
+
+protected Report readReport(File f, String dataFile) throws Exception {
+    Report report = new Report();
+    report.read(f);
+    CharSepSource dataSource = (CharSepSource)report.getDataSource();
+    dataSource.setSepChar(',');
+    dataSource.setInput(dataFile);
+    return report;
+}
+
+protected String runReport(Report report) {
+    StringWriter out = new StringWriter();
+    report.setLayoutEngine(new CharSepLE(new PrintWriter(out), '\t'));
+    report.runReport();
+    return out.toString();
+}
+
+/**
+ * Returns the output of a charsep.xml run. Each office starts a new page,
+ * as it does when run in parallel.
+ */
+protected String runCharSepReport(int threads, String function)
+    throws Exception
+{
+    Report report = readReport(CHARSEP_REPORT, CHARSEP_DATA);
+    report.findField(OFFICE_HEADER_FIELD_ID).getSection().setPageBreak(true);
+    if (function != null)
+	((AggregateField)report.findField(GRAND_TOTAL_FIELD_ID))
+	    .setFunction(function);
+    report.setPartitionThreads(threads);
+    return runReport(report);
+}
+
+public void testGroupFormulas() throws Exception {
+    String expected = runReport(readReport(GROUP_FORMULAS_REPORT,
+					   GROUP_FORMULAS_DATA));
+    for (int threads = 2; threads <= 3; ++threads) {
+	Report report = readReport(GROUP_FORMULAS_REPORT, GROUP_FORMULAS_DATA);
+	report.setPartitionThreads(threads);
+	assertEquals(expected, runReport(report));
+    }
+}
+
+// Page numbers, row numbers, and the grand total continue across
+// partitions.
+public void testPagesRowsAndTotals() throws Exception {
+    String expected = runCharSepReport(0, null);
+    assertTrue(expected.indexOf("Grand Total:") >= 0);
+    assertEquals(expected, runCharSepReport(2, null));
+    assertEquals(expected, runCharSepReport(3, null));
+}
+
+public void testMergedAggregates() throws Exception {
+    String[] functions = {
+	"count", "min", "max", "average", "stddev", "distinct", "median"
+    };
+    for (String function : functions)
+	assertEquals(function, runCharSepReport(0, function),
+		     runCharSepReport(2, function));
+}
+
+public void testNoRows() throws Exception {
+    String emptyFile = AllTests.testDataFile("empty.csv");
+    String expected = runReport(readReport(CHARSEP_REPORT, emptyFile));
+    Report report = readReport(CHARSEP_REPORT, emptyFile);
+    report.setPartitionThreads(2);
+    assertEquals(expected, runReport(report));
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
@@ -0,0 +1,146 @@
+package jimm.datavision.test;
+import jimm.datavision.Report;
+import jimm.datavision.layout.CharSepLE;
+import jimm.datavision.source.DataCursor;
+import jimm.datavision.source.PrefetchCursor;
+import jimm.datavision.source.charsep.CharSepSource;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests the {@link PrefetchCursor}.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class PrefetchCursorTest extends TestCase {
+
+protected static final File REPORT_FILE =
+    new File(AllTests.testDataFile("group_formulas.xml"));
+protected static final String DATA_FILE =
+    AllTests.testDataFile("group_formulas_data.csv");
+
+/** Returns rows holding the numbers 1 through <var>numRows</var>. */
+static class CountingCursor extends DataCursor {
+int numRows;
+int failAt;
+volatile int rowsRead;
+volatile boolean closed;
+CountingCursor(int numRows, int failAt) {
+    this.numRows = numRows;
+    this.failAt = failAt;
+}
+public boolean canReadAhead() { return true; }
+protected List<Object> readRowData() {
+    if (rowsRead == numRows)
+	return null;
+    if (++rowsRead == failAt)
+	throw new IllegalStateException("row " + rowsRead);
+    List<Object> row = new ArrayList<Object>();
+    row.add(new Integer(rowsRead));
+    return row;
+}
+public void close() { closed = true; }
+}
+
+public static Test suite() {
+    return new TestSuite(PrefetchCursorTest.class);
+}
+
+public PrefetchCursorTest(String name) {
+    super(name);
+}
+
+public void testWrap() {
+    CountingCursor cursor = new CountingCursor(10, 0);
+    assertSame(cursor, PrefetchCursor.wrap(cursor, 0));
+
+    DataCursor wrapped = PrefetchCursor.wrap(cursor, 2);
+    assertTrue(wrapped instanceof PrefetchCursor);
+    wrapped.close();
+
+    cursor = new CountingCursor(10, 0) {
+	public boolean canReadAhead() { return false; }
+    };
+    assertSame(cursor, PrefetchCursor.wrap(cursor, 2));
+}
+
+public void testRowsInOrder() {
+    CountingCursor source = new CountingCursor(50, 0);
+    DataCursor cursor = new PrefetchCursor(source, 3);
+
+    for (int i = 1; i <= 50; ++i) {
+	assertTrue(cursor.next());
+	assertEquals(new Integer(i), cursor.getObject(1));
+	assertEquals(i == 50, cursor.isLast());
+    }
+    assertFalse(cursor.next());
+
+    cursor.last();
+    assertEquals(new Integer(50), cursor.getObject(1));
+
+    cursor.close();
+    assertTrue(source.closed);
+}
+
+public void testErrorPropagation() {
+    DataCursor cursor = new PrefetchCursor(new CountingCursor(50, 5), 2);
+    for (int i = 1; i < 5; ++i) {
+	assertTrue(cursor.next());
+	assertEquals(new Integer(i), cursor.getObject(1));
+    }
+    try {
+	cursor.next();
+	fail("expected exception from the source cursor");
+    }
+    catch (IllegalStateException ise) {
+	assertEquals("row 5", ise.getMessage());
+    }
+    assertFalse(cursor.next());
+    cursor.close();
+}
+
+public void testCloseEarly() throws InterruptedException {
+    CountingCursor source = new CountingCursor(10000, 0);
+    DataCursor cursor = new PrefetchCursor(source, 2);
+    assertTrue(cursor.next());
+    assertTrue(cursor.next());
+
+    Thread.sleep(100);		// Let the reader fill the queue
+    int read = source.rowsRead;
+    assertTrue("read " + read + " rows", read <= 2 + 2 + 1);
+
+    cursor.close();
+    assertTrue(source.closed);
+    assertTrue(source.rowsRead < 10000);
+}
+
+/** Runs the same report with and without reading ahead. */
+public void testReportOutput() throws Exception {
+    assertEquals(runReport(0), runReport(2));
+}
+
+protected String runReport(int prefetchRows) throws Exception {
+    Report report = new Report();
+    StringWriter out = new StringWriter();
+    report.setLayoutEngine(new CharSepLE(new PrintWriter(out), ','));
+    report.read(REPORT_FILE);
+
+    CharSepSource dataSource = (CharSepSource)report.getDataSource();
+    dataSource.setSepChar(',');
+    dataSource.setInput(DATA_FILE);
+    report.setPrefetchRows(prefetchRows);
+
+    report.runReport();
+    return out.toString();
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
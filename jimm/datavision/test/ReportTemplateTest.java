@@ -0,0 +1,239 @@
+package jimm.datavision.test;
+import jimm.datavision.CompiledReport;
+import jimm.datavision.Report;
+import jimm.datavision.ReportTemplate;
+import jimm.datavision.layout.CharSepLE;
+import jimm.datavision.source.charsep.CharSepSource;
+import java.io.*;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests {@link CompiledReport}s and running reports created by one {@link
+ * ReportTemplate} in more than one thread at a time. Also checks that
+ * reports created by a template don't read the database's tables and
+ * columns again.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class ReportTemplateTest extends TestCase {
+
+protected static final File REPORT_FILE =
+    new File(AllTests.testDataFile("group_formulas.xml"));
+protected static final String DATA_FILE =
+    AllTests.testDataFile("group_formulas_data.csv");
+protected static final File DERBY_REPORT_FILE =
+    new File(AllTests.testDataFile("derby_jobs.xml"));
+protected static final int NUM_THREADS = 4;
+protected static final int RUNS_PER_THREAD = 3;
+
+public static Test suite() {
+    return new TestSuite(ReportTemplateTest.class);
+}
+
+public ReportTemplateTest(String name) {
+    super(name);
+}
+
+protected String runReport(Report report) throws Exception {
+    StringWriter out = new StringWriter();
+    report.setLayoutEngine(new CharSepLE(new PrintWriter(out), ','));
+    CharSepSource dataSource = (CharSepSource)report.getDataSource();
+    dataSource.setSepChar(',');
+    dataSource.setInput(DATA_FILE);
+    report.runReport();
+    return out.toString();
+}
+
+public void testSameAsReadReport() throws Exception {
+    Report report = new Report();
+    report.read(REPORT_FILE);
+    String expected = runReport(report);
+
+    ReportTemplate template = new ReportTemplate(REPORT_FILE);
+    assertEquals(expected, runReport(template.createReport()));
+    assertEquals(expected, runReport(template.createReport()));
+}
+
+public void testCompiledReport() throws Exception {
+    Report report = new Report();
+    report.read(REPORT_FILE);
+    String expected = runReport(report);
+
+    CompiledReport compiled = CompiledReport.compile(REPORT_FILE);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    compiled.write(out);
+    assertTrue(out.size() < REPORT_FILE.length());
+
+    compiled =
+	CompiledReport.read(new ByteArrayInputStream(out.toByteArray()));
+    report = new Report();
+    report.read(compiled);
+    assertEquals(expected, runReport(report));
+
+    try {
+	CompiledReport.read(new FileInputStream(REPORT_FILE));
+	fail("expected an exception reading XML as a compiled report");
+    }
+    catch (IOException ioe) {}
+}
+
+public void testTemplateCache() throws Exception {
+    byte[] xml = readFile(REPORT_FILE);
+    ReportTemplate template = ReportTemplate.forXML(xml);
+    assertSame(template, ReportTemplate.forXML(xml));
+    assertSame(template, ReportTemplate.forFile(REPORT_FILE));
+    assertEquals(CompiledReport.hash(xml),
+		 template.getCompiledReport().getHash());
+
+    byte[] changed = new String(xml, "UTF-8")
+	.replace("Example Report", "Changed Report").getBytes("UTF-8");
+    assertFalse(template == ReportTemplate.forXML(changed));
+}
+
+public void testXML() throws Exception {
+    Report report = new Report();
+    report.read(REPORT_FILE);
+    String expected = runReport(report);
+
+    byte[] xml = readFile(REPORT_FILE);
+    ReportTemplate template = new ReportTemplate(xml);
+    assertTrue(Arrays.equals(xml, template.getXML()));
+    assertEquals(expected, runReport(template.createReport()));
+
+    template = new ReportTemplate(new FileInputStream(REPORT_FILE),
+				  REPORT_FILE.toURI().toString());
+    assertTrue(Arrays.equals(xml, template.getXML()));
+    assertEquals(expected, runReport(template.createReport()));
+
+    assertNull(new ReportTemplate(template.getCompiledReport()).getXML());
+}
+
+// Formulas from before formula ids are converted when they are compiled.
+public void testOldFormulas() throws Exception {
+    // Take away the formula's id, then add a formula that refers to it
+    // by name and use that one instead.
+    String xml = new String(readFile(REPORT_FILE), "UTF-8")
+	.replace("dtd-version=\"1.2\"", "dtd-version=\"0.1\"")
+	.replace("<formula id=\"1\" name=\"decodetype\">",
+		 "<formula name=\"decodetype\">")
+	.replace("</formulas>",
+		 "<formula name=\"wrapper\">'{@decodetype}'</formula>\n"
+		 + "</formulas>")
+	.replace("type=\"formula\" value=\"1\"",
+		 "type=\"formula\" value=\"wrapper\"");
+    Report report = new Report();
+    report.read(new InputSource(new StringReader(xml)));
+    String expected = runReport(report);
+    assertTrue(expected.indexOf("PC Problem") >= 0);
+
+    CompiledReport compiled = CompiledReport.compile(xml.getBytes("UTF-8"));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    compiled.write(out);
+    String written = new String(out.toByteArray(), "UTF-8");
+    assertTrue(written.indexOf("{@1}") >= 0);
+    assertTrue(written.indexOf("{@decodetype}") < 0);
+
+    report = new Report();
+    report.read(compiled);
+    assertEquals("'{@1}'", report.findFormula("2").getExpression());
+    assertEquals(expected, runReport(report));
+
+    try {
+	CompiledReport.compile(xml.replace("{@decodetype}", "{@nosuch}")
+			       .getBytes("UTF-8"));
+	fail("expected an exception for an unknown formula name");
+    }
+    catch (SAXException se) {}
+}
+
+protected String runDerbyReport(Report report) {
+    StringWriter out = new StringWriter();
+    report.setLayoutEngine(new CharSepLE(new PrintWriter(out), ','));
+    report.runReport();
+    return out.toString();
+}
+
+// The second report takes the tables and columns the first one read.
+public void testSharedSchema() throws Exception {
+    List<String> calls = new ArrayList<String>();
+    Connection conn =
+	DerbyDatabase.recordingMetaData(DerbyDatabase.connect(), calls);
+    try {
+	ReportTemplate template = new ReportTemplate(DERBY_REPORT_FILE);
+	String expected = runDerbyReport(template.createReport(conn));
+	assertTrue(calls.contains("getTables"));
+	assertTrue(calls.contains("getColumns"));
+
+	calls.clear();
+	assertEquals(expected, runDerbyReport(template.createReport(conn)));
+	assertFalse(calls.contains("getTables"));
+	assertFalse(calls.contains("getColumns"));
+
+	template.getDatabaseSchema().clear();
+	assertEquals(expected, runDerbyReport(template.createReport(conn)));
+	assertTrue(calls.contains("getTables"));
+    }
+    finally {
+	conn.close();
+    }
+}
+
+protected byte[] readFile(File f) throws IOException {
+    InputStream in = new FileInputStream(f);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[4096];
+    int len;
+    while ((len = in.read(buf)) > 0)
+	out.write(buf, 0, len);
+    in.close();
+    return out.toByteArray();
+}
+
+public void testConcurrentRuns() throws Exception {
+    Report report = new Report();
+    report.read(REPORT_FILE);
+    final String expected = runReport(report);
+
+    final ReportTemplate template = new ReportTemplate(REPORT_FILE);
+    final List<String> failures = new ArrayList<String>();
+    Thread[] threads = new Thread[NUM_THREADS];
+    for (int i = 0; i < threads.length; ++i) {
+	threads[i] = new Thread() {
+	    public void run() {
+		try {
+		    for (int j = 0; j < RUNS_PER_THREAD; ++j) {
+			String output = runReport(template.createReport());
+			if (!expected.equals(output))
+			    synchronized (failures) {
+				failures.add(output);
+			    }
+		    }
+		}
+		catch (Exception e) {
+		    synchronized (failures) {
+			failures.add(e.toString());
+		    }
+		}
+	    }
+	};
+	threads[i].start();
+    }
+    for (Thread t : threads)
+	t.join();
+    assertEquals(new ArrayList<String>(), failures);
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
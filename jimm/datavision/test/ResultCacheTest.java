@@ -0,0 +1,226 @@
+package jimm.datavision.test;
+import jimm.datavision.Report;
+import jimm.datavision.layout.CharSepLE;
+import jimm.datavision.source.DataCursor;
+import jimm.datavision.source.ResultCache;
+import jimm.datavision.source.SnapshotCursor;
+import jimm.datavision.source.sql.Database;
+import java.io.*;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.*;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests the {@link ResultCache} class.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class ResultCacheTest extends TestCase {
+
+protected static final long HOUR = 60L * 60 * 1000;
+
+/** Returns rows holding a number and a string; counts the rows read. */
+static class CountingCursor extends DataCursor {
+int numRows;
+int rowsRead;
+CountingCursor(int numRows) { this.numRows = numRows; }
+protected List<Object> readRowData() {
+    if (rowsRead == numRows)
+	return null;
+    ++rowsRead;
+    List<Object> row = new ArrayList<Object>();
+    row.add(new Integer(rowsRead));
+    row.add("row " + rowsRead);
+    return row;
+}
+}
+
+protected ResultCache cache;
+
+public static Test suite() {
+    return new TestSuite(ResultCacheTest.class);
+}
+
+public ResultCacheTest(String name) {
+    super(name);
+}
+
+public void setUp() {
+    cache = new ResultCache();
+}
+
+public void tearDown() {
+    cache.clear();
+}
+
+protected List<List<Object>> readAll(DataCursor cursor) {
+    List<List<Object>> rows = new ArrayList<List<Object>>();
+    while (cursor.next())
+	rows.add(Arrays.asList(cursor.getObject(1), cursor.getObject(2)));
+    cursor.close();
+    return rows;
+}
+
+protected List<List<Object>> run(Object key, int numRows) {
+    DataCursor cursor = cache.get(key, HOUR);
+    if (cursor == null)
+	cursor = cache.cache(key, new CountingCursor(numRows));
+    return readAll(cursor);
+}
+
+public void testHitAndMiss() {
+    List<List<Object>> rows = run("a", 10);
+    assertEquals(10, rows.size());
+    assertEquals(1, cache.size());
+    assertEquals(0, cache.getHits());
+    assertEquals(1, cache.getMisses());
+
+    assertEquals(rows, run("a", 10));
+    assertEquals(1, cache.getHits());
+    assertTrue(cache.getMemoryUsed() > 0);
+    assertEquals(0, cache.getDiskUsed());
+
+    run("b", 5);
+    assertEquals(2, cache.size());
+    assertEquals(2, cache.getMisses());
+
+    cache.resetCounts();
+    assertEquals(0, cache.getHits());
+    assertEquals(0, cache.getMisses());
+}
+
+public void testExpiration() throws InterruptedException {
+    run("a", 10);
+    Thread.sleep(20);
+    assertNotNull(cache.get("a", HOUR));
+    assertNull(cache.get("a", 10));
+    assertEquals(1, cache.getExpirations());
+    assertEquals(0, cache.size());
+}
+
+public void testCloseEarly() {
+    DataCursor cursor = cache.cache("a", new CountingCursor(10));
+    assertTrue(cursor.next());
+    cursor.close();
+    assertEquals(0, cache.size());
+    assertNull(cache.get("a", HOUR));
+}
+
+public void testSpill() {
+    cache.setSpillSize(1000);
+    List<List<Object>> rows = run("a", 500);
+    assertEquals(0, cache.getMemoryUsed());
+    assertTrue(cache.getDiskUsed() > 0);
+
+    DataCursor cursor = cache.get("a", HOUR);
+    assertTrue(cursor instanceof SnapshotCursor);
+    assertEquals(rows, readAll(cursor));
+
+    cache.clear();
+    assertEquals(0, cache.getDiskUsed());
+}
+
+public void testEviction() {
+    run("a", 10);
+    long size = cache.getMemoryUsed();
+    cache.setMemory(size * 2);
+    run("b", 10);
+    run("a", 10);		// Now "b" is least recently used
+    run("c", 10);
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getEvictions());
+    assertNull(cache.get("b", HOUR));
+    assertNotNull(cache.get("a", HOUR));
+    assertNotNull(cache.get("c", HOUR));
+    assertTrue(cache.getMemoryUsed() <= size * 2);
+
+    cache.setMemory(0);
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getMemoryUsed());
+}
+
+// Connection info may hold a password, so it must not be part of the
+// query text written to snapshots or of the keys of spilled results.
+public void testConnectionInfo() throws Exception {
+    Connection conn = DerbyDatabase.connect();
+    Report report = new Report();
+    Database db = new Database(DerbyDatabase.DRIVER_CLASS_NAME,
+			       DerbyDatabase.CONNECTION_INFO
+			       + ";password=secret",
+			       report, "APP", "", "");
+    report.setDataSource(db);
+    report.read(new File(AllTests.testDataFile("derby_jobs.xml")));
+    report.setSummaryQueries(false);
+    assertTrue(db.getQueryText().indexOf("secret") < 0);
+
+    db.setResultCache(cache);
+    db.setCacheTTL(HOUR);
+    cache.setSpillSize(0);
+    String output = runReport(report);
+    assertTrue(cache.getDiskUsed() > 0);
+    assertEquals(output, runReport(report));
+    assertEquals(1, cache.getHits());
+
+    // Another password is another connection
+    Database other = new Database(DerbyDatabase.DRIVER_CLASS_NAME,
+				  DerbyDatabase.CONNECTION_INFO
+				  + ";password=other",
+				  new Report(), "APP", "", "");
+    String hash = db.getQueryText().split("\n")[0];
+    assertFalse(other.getQueryText().startsWith(hash));
+
+    other.getConnection().close();
+    db.getConnection().close();
+    conn.close();
+}
+
+// Reports handed different connections to the same database as the same
+// user share results; another user doesn't.
+public void testHandedConnections() throws Exception {
+    Connection conn = DerbyDatabase.connect();
+    Connection conn2 =
+	DriverManager.getConnection(DerbyDatabase.CONNECTION_INFO);
+    Connection otherUser =
+	DriverManager.getConnection(DerbyDatabase.CONNECTION_INFO, "other", "");
+    String output = runReport(handedReport(conn));
+    assertEquals(0, cache.getHits());
+    assertEquals(output, runReport(handedReport(conn2)));
+    assertEquals(1, cache.getHits());
+    runReport(handedReport(otherUser));
+    assertEquals(1, cache.getHits());
+
+    otherUser.close();
+    conn2.close();
+    conn.close();
+}
+
+/**
+ * Returns a report that uses <var>conn</var> and caches its results.
+ */
+protected Report handedReport(Connection conn) throws Exception {
+    Report report = new Report();
+    Database db = new Database(conn, report);
+    report.setDataSource(db);
+    report.read(new File(AllTests.testDataFile("derby_jobs.xml")));
+    report.setSummaryQueries(false);
+    db.setResultCache(cache);
+    db.setCacheTTL(HOUR);
+    return report;
+}
+
+protected String runReport(Report report) {
+    StringWriter out = new StringWriter();
+    report.setLayoutEngine(new CharSepLE(new PrintWriter(out), '\t'));
+    report.runReport();
+    return out.toString();
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
@@ -0,0 +1,96 @@
+package jimm.datavision.test;
+import jimm.util.HyperLogLog;
+import jimm.util.QuantileSketch;
+import java.util.Random;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests the {@link HyperLogLog} and {@link QuantileSketch} classes used by
+ * the distinct count, median, and percentile aggregates.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class SketchTest extends TestCase {
+
+protected static final int NUM_VALUES = 100000;
+
+public static Test suite() {
+    return new TestSuite(SketchTest.class);
+}
+
+public SketchTest(String name) {
+    super(name);
+}
+
+public void testDistinctEstimate() {
+    HyperLogLog hll = new HyperLogLog(1024);
+    for (int i = 0; i < NUM_VALUES; ++i) {
+	hll.add(HyperLogLog.hash("customer " + i));
+	hll.add(HyperLogLog.hash("customer " + i)); // Duplicates don't count
+    }
+    assertEquals(NUM_VALUES, hll.estimate(), NUM_VALUES * 0.05);
+}
+
+public void testDistinctSmallCounts() {
+    HyperLogLog hll = new HyperLogLog(1024);
+    assertEquals(0, hll.estimate());
+    for (int i = 0; i < 10; ++i)
+	hll.add(HyperLogLog.hash(new Integer(i)));
+    assertEquals(10, hll.estimate());
+}
+
+public void testNumbersHashTheSame() {
+    assertEquals(HyperLogLog.hash(new Integer(3)),
+		 HyperLogLog.hash(new Double(3)));
+    assertEquals(HyperLogLog.hash(new Double(0)),
+		 HyperLogLog.hash(new Double(-0.0)));
+    assertTrue(HyperLogLog.hash("3") != HyperLogLog.hash("4"));
+}
+
+public void testDistinctMerge() {
+    HyperLogLog a = new HyperLogLog(1024);
+    HyperLogLog b = new HyperLogLog(1024);
+    for (int i = 0; i < NUM_VALUES; ++i)
+	((i % 2 == 0) ? a : b).add(HyperLogLog.hash(new Integer(i)));
+    a.merge(b);
+    assertEquals(NUM_VALUES, a.estimate(), NUM_VALUES * 0.05);
+}
+
+public void testQuantiles() {
+    QuantileSketch sketch = new QuantileSketch(256);
+    Random random = new Random(42);
+    for (int i = 0; i < NUM_VALUES; ++i)	// A shuffled 0..99999
+	sketch.add(random.nextInt(NUM_VALUES));
+    assertEquals(NUM_VALUES, sketch.getCount());
+
+    double[] qs = { 0.5, 0.9, 0.95, 0.99 };
+    for (int i = 0; i < qs.length; ++i)
+	assertEquals("quantile " + qs[i], qs[i] * NUM_VALUES,
+		     sketch.quantile(qs[i]), NUM_VALUES * 0.02);
+
+    // Memory stays bounded
+    assertTrue(sketch.totalItems() < 256 * 4);
+}
+
+public void testQuantileMerge() {
+    QuantileSketch a = new QuantileSketch(256);
+    QuantileSketch b = new QuantileSketch(256);
+    for (int i = 0; i < NUM_VALUES; ++i)
+	((i % 2 == 0) ? a : b).add(i);
+    a.merge(b);
+    assertEquals(NUM_VALUES, a.getCount());
+    assertEquals(NUM_VALUES / 2, a.quantile(0.5), NUM_VALUES * 0.02);
+}
+
+public void testEmptyQuantile() {
+    assertEquals(0, new QuantileSketch(256).quantile(0.5), 0);
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
@@ -0,0 +1,209 @@
+package jimm.datavision.test;
+import jimm.datavision.Report;
+import jimm.datavision.layout.CharSepLE;
+import jimm.datavision.source.DataCursor;
+import jimm.datavision.source.Snapshot;
+import jimm.datavision.source.charsep.CharSepSource;
+import java.io.*;
+import java.math.BigDecimal;
+import java.util.*;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests writing and reading {@link Snapshot}s.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class SnapshotTest extends TestCase {
+
+protected static final File REPORT_FILE =
+    new File(AllTests.testDataFile("group_formulas.xml"));
+protected static final String DATA_FILE =
+    AllTests.testDataFile("group_formulas_data.csv");
+protected static final String QUERY = "select * from jobs";
+
+/** Returns the rows it is given. */
+static class ListCursor extends DataCursor {
+Iterator<List<Object>> rows;
+boolean closed;
+ListCursor(List<List<Object>> rows) { this.rows = rows.iterator(); }
+protected List<Object> readRowData() {
+    return rows.hasNext() ? rows.next() : null;
+}
+public void close() { closed = true; }
+}
+
+protected File file;
+
+public static Test suite() {
+    return new TestSuite(SnapshotTest.class);
+}
+
+public SnapshotTest(String name) {
+    super(name);
+}
+
+public void setUp() throws IOException {
+    file = File.createTempFile("datavision_snapshot_test", ".snapshot");
+    file.delete();
+    file.deleteOnExit();
+}
+
+public void tearDown() {
+    file.delete();
+}
+
+protected List<List<Object>> makeRows(int n) {
+    String[] titles = { "Manager", "Programmer", "Tester" };
+    List<List<Object>> rows = new ArrayList<List<Object>>();
+    for (int i = 0; i < n; ++i) {
+	List<Object> row = new ArrayList<Object>();
+	row.add(new Integer(i));
+	row.add(i % 7 == 0 ? null : titles[i % titles.length]);
+	row.add(new Double(i * 1.5));
+	row.add(new Long(i * 100000000000L));
+	row.add(new BigDecimal(i + ".25"));
+	row.add(new java.sql.Date(1000000000000L + i * 86400000L));
+	java.sql.Timestamp ts = new java.sql.Timestamp(1000000000000L + i);
+	ts.setNanos(123456789);
+	row.add(ts);
+	row.add(Boolean.valueOf(i % 2 == 0));
+	row.add(null);
+	row.add(i % 3 == 0 ? (Object)"mixed" : new Float(i)); // Serialized
+	row.add("unique " + i);	// Dictionary needs two-byte indices
+	rows.add(row);
+    }
+    return rows;
+}
+
+protected List<List<Object>> readAll(DataCursor cursor) {
+    List<List<Object>> rows = new ArrayList<List<Object>>();
+    while (cursor.next()) {
+	List<Object> row = new ArrayList<Object>();
+	for (int i = 1; i <= 11; ++i)
+	    row.add(cursor.getObject(i));
+	rows.add(row);
+    }
+    cursor.close();
+    return rows;
+}
+
+protected Snapshot snapshot(String query, String param) {
+    Snapshot snapshot =
+	new Snapshot(file, query, Collections.singletonList(param));
+    snapshot.setBlockRows(300);
+    return snapshot;
+}
+
+public void testRoundTrip() throws IOException {
+    List<List<Object>> rows = makeRows(1000);
+    Snapshot snapshot = snapshot(QUERY, "p=1");
+    assertNull(snapshot.open());
+
+    ListCursor source = new ListCursor(rows);
+    assertEquals(rows, readAll(snapshot.record(source)));
+    assertTrue(source.closed);
+    assertTrue(file.exists());
+
+    DataCursor cursor = snapshot.open();
+    assertNotNull(cursor);
+    List<List<Object>> read = readAll(cursor);
+    assertEquals(rows, read);
+    assertEquals(123456789,
+		 ((java.sql.Timestamp)read.get(5).get(6)).getNanos());
+    assertEquals(java.sql.Date.class, read.get(5).get(5).getClass());
+    assertEquals(Float.class, read.get(5).get(9).getClass());
+}
+
+public void testEmpty() throws IOException {
+    Snapshot snapshot = snapshot(QUERY, "p=1");
+    readAll(snapshot.record(new ListCursor(new ArrayList<List<Object>>())));
+    assertTrue(snapshot.isCurrent());
+    assertFalse(snapshot.open().next());
+}
+
+public void testStale() {
+    readAll(snapshot(QUERY, "p=1").record(new ListCursor(makeRows(10))));
+    assertTrue(snapshot(QUERY, "p=1").isCurrent());
+    assertFalse(snapshot(QUERY, "p=2").isCurrent());
+    assertFalse(snapshot(QUERY + " where id > 3", "p=1").isCurrent());
+}
+
+public void testCloseEarly() throws IOException {
+    DataCursor cursor =
+	snapshot(QUERY, "p=1").record(new ListCursor(makeRows(10)));
+    assertTrue(cursor.next());
+    cursor.close();
+    assertFalse(file.exists());
+
+    // A partial run leaves the old snapshot alone
+    readAll(snapshot(QUERY, "p=1").record(new ListCursor(makeRows(10))));
+    cursor = snapshot(QUERY, "p=2").record(new ListCursor(makeRows(10)));
+    assertTrue(cursor.next());
+    cursor.close();
+    assertTrue(snapshot(QUERY, "p=1").isCurrent());
+}
+
+public void testCorruptFile() throws IOException {
+    FileWriter out = new FileWriter(file);
+    out.write("this is not a snapshot");
+    out.close();
+    try {
+	snapshot(QUERY, "p=1").open();
+	fail("expected an exception");
+    }
+    catch (IOException ioe) {}
+    assertFalse(snapshot(QUERY, "p=1").isCurrent());
+}
+
+/** Runs a report again after its data file is emptied. */
+public void testReportReplay() throws Exception {
+    File csv = File.createTempFile("datavision_snapshot_test", ".csv");
+    csv.deleteOnExit();
+    copyFile(new File(DATA_FILE), csv);
+
+    String output = runReport(csv, null);
+    assertEquals(output, runReport(csv, file));
+    assertTrue(file.exists());
+
+    new FileWriter(csv).close(); // Empty the file
+    assertEquals(output, runReport(csv, file));
+    assertFalse(output.equals(runReport(csv, null)));
+
+    csv.delete();
+}
+
+protected String runReport(File csv, File snapshotFile) throws Exception {
+    Report report = new Report();
+    StringWriter out = new StringWriter();
+    report.setLayoutEngine(new CharSepLE(new PrintWriter(out), ','));
+    report.read(REPORT_FILE);
+
+    CharSepSource dataSource = (CharSepSource)report.getDataSource();
+    dataSource.setSepChar(',');
+    dataSource.setInput(csv.getPath());
+    report.setSnapshotFile(snapshotFile);
+
+    report.runReport();
+    return out.toString();
+}
+
+protected void copyFile(File from, File to) throws IOException {
+    InputStream in = new FileInputStream(from);
+    OutputStream out = new FileOutputStream(to);
+    byte[] buf = new byte[4096];
+    int len;
+    while ((len = in.read(buf)) > 0)
+	out.write(buf, 0, len);
+    in.close();
+    out.close();
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
@@ -0,0 +1,118 @@
+package jimm.datavision.test;
+import jimm.datavision.Report;
+import jimm.datavision.Subreport;
+import jimm.datavision.layout.CharSepLE;
+import jimm.datavision.source.sql.Database;
+import java.io.*;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests subreport batch queries (see {@link Report#setSubreportBatchSize})
+ * by running a report against the embedded Derby database created by
+ * {@link DerbyDatabase} with and without them and comparing the output.
+ * The subreports join on a date, which many jobs share, on a date and a
+ * rate, which is sometimes <code>null</code>, and on an office name,
+ * which is a string and so is never batched.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class SubreportBatchTest extends TestCase {
+
+protected static final File REPORT_FILE =
+    new File(AllTests.testDataFile("derby_subreport.xml"));
+
+protected Connection conn;
+protected List<String> sql;
+protected Report report;
+
+public static Test suite() {
+    return new TestSuite(SubreportBatchTest.class);
+}
+
+public SubreportBatchTest(String name) {
+    super(name);
+}
+
+public void setUp() throws Exception {
+    conn = DerbyDatabase.connect();
+    sql = new ArrayList<String>();
+}
+
+public void tearDown() throws SQLException {
+    conn.close();
+}
+
+/**
+ * Runs the report, reading up to <var>batchSize</var> parent rows at once,
+ * and returns its output.
+ */
+protected String runReport(int batchSize, int cacheSize) throws Exception {
+    report = new Report();
+    report.setDataSource(new Database(DerbyDatabase.recordingSQL(conn, sql),
+				      report));
+    report.setDatabasePassword("");
+    report.read(REPORT_FILE);
+    report.setSubreportBatchSize(batchSize);
+    for (Subreport sub : report.subreports())
+	sub.setCacheSize(cacheSize);
+
+    sql.clear();
+    StringWriter out = new StringWriter();
+    report.setLayoutEngine(new CharSepLE(new PrintWriter(out), '\t'));
+    report.runReport();
+    return out.toString();
+}
+
+protected int countSQL(String str) {
+    int n = 0;
+    for (String s : sql)
+	if (s.indexOf(str) >= 0)
+	    ++n;
+    return n;
+}
+
+public void testSameOutput() throws Exception {
+    String expected = runReport(0, 0);
+    int singleRowQueries = sql.size();
+    assertEquals(0, countSQL(" in ("));
+    // Jobs 1, 5, 9... share a date
+    assertTrue(expected.indexOf("1\n5\n9\n") >= 0);
+
+    int[] batchSizes = { 2, 10, DerbyDatabase.NUM_JOBS * 2 };
+    for (int batchSize : batchSizes) {
+	assertEquals("batch size " + batchSize, expected,
+		     runReport(batchSize, 0));
+	assertTrue(sql.size() < singleRowQueries);
+	assertTrue(countSQL(" in (") > 0);
+	assertTrue(countSQL(") or (") > 0);
+    }
+}
+
+// The office subreport joins on a string, so it always runs one query per
+// parent row.
+public void testStringsNotBatched() throws Exception {
+    runReport(DerbyDatabase.NUM_JOBS * 2, 0);
+    assertEquals(0, countSQL("OFFICE in ("));
+    // Parent rows without an office don't need a query
+    assertEquals(DerbyDatabase.NUM_JOBS - DerbyDatabase.NUM_JOBS / 7,
+		 countSQL("? = APP.JOBS.OFFICE"));
+}
+
+// With the cache, repeated keys aren't fetched again.
+public void testWithCache() throws Exception {
+    String expected = runReport(0, 0);
+    assertEquals(expected, runReport(10, Subreport.DEFAULT_CACHE_SIZE));
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
@@ -0,0 +1,122 @@
+package jimm.datavision.test;
+import jimm.datavision.Formula;
+import jimm.datavision.Report;
+import jimm.datavision.Subreport;
+import jimm.datavision.layout.CharSepLE;
+import jimm.datavision.source.sql.Database;
+import java.io.*;
+import java.sql.Connection;
+import java.sql.SQLException;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests the values subreports remember for parent column values they have
+ * already seen (see {@link Subreport#setCacheSize}) by running a report
+ * against the embedded Derby database created by {@link DerbyDatabase}.
+ * The first subreport joins on the posting date, which only has four
+ * values.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class SubreportCacheTest extends TestCase {
+
+protected static final File REPORT_FILE =
+    new File(AllTests.testDataFile("derby_subreport.xml"));
+protected static final Long DATE_SUBREPORT_ID = new Long(1);
+protected static final int NUM_DATES = 4;
+
+protected Connection conn;
+protected Report report;
+protected Subreport sub;
+
+public static Test suite() {
+    return new TestSuite(SubreportCacheTest.class);
+}
+
+public SubreportCacheTest(String name) {
+    super(name);
+}
+
+public void setUp() throws Exception {
+    conn = DerbyDatabase.connect();
+    readReport(REPORT_FILE);
+}
+
+public void tearDown() throws SQLException {
+    conn.close();
+}
+
+protected void readReport(File f) throws Exception {
+    report = new Report();
+    report.setDataSource(new Database(conn, report));
+    report.setDatabasePassword("");
+    report.read(f);
+    sub = report.findSubreport(DATE_SUBREPORT_ID);
+}
+
+protected String runReport() {
+    StringWriter out = new StringWriter();
+    report.setLayoutEngine(new CharSepLE(new PrintWriter(out), '\t'));
+    report.runReport();
+    return out.toString();
+}
+
+public void testHitsAndMisses() {
+    assertEquals(Subreport.DEFAULT_CACHE_SIZE, sub.getCacheSize());
+    runReport();
+    assertEquals(NUM_DATES, sub.getCacheMisses());
+    assertEquals(DerbyDatabase.NUM_JOBS - NUM_DATES, sub.getCacheHits());
+}
+
+// Each run starts with an empty cache, so the second run misses as often
+// as the first.
+public void testClearedBetweenRuns() {
+    String expected = runReport();
+    assertEquals(expected, runReport());
+    assertEquals(NUM_DATES * 2, sub.getCacheMisses());
+    assertEquals((DerbyDatabase.NUM_JOBS - NUM_DATES) * 2,
+		 sub.getCacheHits());
+}
+
+public void testTurnedOff() throws Exception {
+    String expected = runReport();
+    readReport(REPORT_FILE);
+    sub.setCacheSize(0);
+    assertEquals(expected, runReport());
+    assertEquals(0, sub.getCacheMisses());
+    assertEquals(0, sub.getCacheHits());
+}
+
+// A formula's value may change even when the parent columns' values don't.
+public void testFormulaBypassesCache() {
+    Formula f = new Formula(null, sub, "zero", "0");
+    sub.addFormula(f);
+    sub.getDataSource().getQuery()
+	.setWhereClause("{APP.JOBS.ID} > {@" + f.getId() + "}");
+    String output = runReport();
+    assertTrue(output.indexOf("1\n5\n9\n") >= 0);
+    assertEquals(0, sub.getCacheMisses());
+    assertEquals(0, sub.getCacheHits());
+}
+
+public void testXML() throws Exception {
+    File f = File.createTempFile("datavision", ".xml");
+    f.deleteOnExit();
+    sub.setCacheSize(7);
+    report.writeFile(f.getPath());
+
+    readReport(f);
+    assertEquals(7, sub.getCacheSize());
+    assertEquals(Subreport.DEFAULT_CACHE_SIZE,
+		 report.findSubreport(new Long(2)).getCacheSize());
+    f.delete();
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
@@ -0,0 +1,153 @@
+package jimm.datavision.test;
+import jimm.datavision.Report;
+import jimm.datavision.field.AggregateField;
+import jimm.datavision.layout.CharSepLE;
+import java.io.*;
+import java.sql.Connection;
+import java.sql.SQLException;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests summary queries by running reports against the embedded Derby
+ * database created by {@link DerbyDatabase} with and without them and
+ * comparing the output.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class SummaryQueryTest extends TestCase {
+
+protected static final File REPORT_FILE =
+    new File(AllTests.testDataFile("derby_jobs.xml"));
+protected static final String NOT_NULL_WHERE =
+    "{APP.JOBS.OFFICE} is not null";
+// The office group footer's sum
+protected static final Long OFFICE_SUM_FIELD_ID = new Long(21);
+// The hidden detail field
+protected static final Long DETAIL_FIELD_ID = new Long(1);
+
+protected Connection conn;
+protected Report report;
+protected DerbyDatabase.StatementDatabase db;
+
+public static Test suite() {
+    return new TestSuite(SummaryQueryTest.class);
+}
+
+public SummaryQueryTest(String name) {
+    super(name);
+}
+
+public void setUp() throws Exception {
+    conn = DerbyDatabase.connect();
+}
+
+public void tearDown() throws SQLException {
+    conn.close();
+}
+
+protected void readReport(File f, String where) throws Exception {
+    report = new Report();
+    db = new DerbyDatabase.StatementDatabase(conn, report);
+    report.setDataSource(db);
+    report.setDatabasePassword("");
+    report.read(f);
+    db.getQuery().setWhereClause(where);
+}
+
+protected String runReport() {
+    StringWriter out = new StringWriter();
+    report.setLayoutEngine(new CharSepLE(new PrintWriter(out), '\t'));
+    report.runReport();
+    return out.toString();
+}
+
+/**
+ * Runs the report and returns its output, making sure a summary query was
+ * or wasn't used.
+ */
+protected String runReport(boolean summarized) {
+    String output = runReport();
+    assertEquals(1, db.sql.size());
+    assertEquals(summarized, db.sql.get(0).indexOf(" group by ") >= 0);
+    return output;
+}
+
+protected String runReport(String where, boolean summaryQueries,
+			   String function)
+    throws Exception
+{
+    readReport(REPORT_FILE, where);
+    report.setSummaryQueries(summaryQueries);
+    if (function != null)
+	((AggregateField)report.findField(OFFICE_SUM_FIELD_ID))
+	    .setFunction(function);
+    return runReport(summaryQueries);
+}
+
+public void testSameOutput() throws Exception {
+    String expected = runReport(NOT_NULL_WHERE, false, null);
+    assertTrue(expected.indexOf(DerbyDatabase.OFFICES[0]) >= 0);
+    assertEquals(expected, runReport(NOT_NULL_WHERE, true, null));
+}
+
+public void testFunctions() throws Exception {
+    String[] functions = { "sum", "count", "min", "max", "average" };
+    for (String function : functions)
+	assertEquals(function, runReport(NOT_NULL_WHERE, false, function),
+		     runReport(NOT_NULL_WHERE, true, function));
+}
+
+// Functions the database can't compute read every row.
+public void testUnsupportedFunction() throws Exception {
+    readReport(REPORT_FILE, NOT_NULL_WHERE);
+    ((AggregateField)report.findField(OFFICE_SUM_FIELD_ID))
+	.setFunction("median");
+    runReport(false);
+}
+
+public void testVisibleDetails() throws Exception {
+    readReport(REPORT_FILE, NOT_NULL_WHERE);
+    report.findField(DETAIL_FIELD_ID).getSection().getSuppressionProc()
+	.setHidden(false);
+    runReport(false);
+}
+
+// Outside of summary queries, each row with a null group value starts a
+// new group. A summary query returns one row for all of them.
+public void testNullGroups() throws Exception {
+    int numNulls = DerbyDatabase.NUM_JOBS / 7;
+    assertEquals(numNulls, countLines(runReport(null, false, null), ""));
+    assertEquals(1, countLines(runReport(null, true, null), ""));
+}
+
+public void testTurnedOffInXML() throws Exception {
+    File f = File.createTempFile("datavision", ".xml");
+    f.deleteOnExit();
+    readReport(REPORT_FILE, NOT_NULL_WHERE);
+    report.setSummaryQueries(false);
+    report.writeFile(f.getPath());
+
+    readReport(f, NOT_NULL_WHERE);
+    assertFalse(report.summaryQueries());
+    runReport(false);
+    f.delete();
+}
+
+protected int countLines(String output, String line) throws IOException {
+    BufferedReader in = new BufferedReader(new StringReader(output));
+    int n = 0;
+    String str;
+    while ((str = in.readLine()) != null)
+	if (str.equals(line))
+	    ++n;
+    return n;
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
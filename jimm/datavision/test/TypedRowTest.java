@@ -0,0 +1,114 @@
+package jimm.datavision.test;
+import jimm.datavision.source.TypedRow;
+import java.sql.Types;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests {@link TypedRow}.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class TypedRowTest extends TestCase {
+
+protected TypedRow row;
+
+public static Test suite() {
+    return new TestSuite(TypedRowTest.class);
+}
+
+public TypedRowTest(String name) {
+    super(name);
+}
+
+public void setUp() {
+    int[] sqlTypes = {
+	Types.BOOLEAN, Types.INTEGER, Types.BIGINT, Types.REAL, Types.DOUBLE,
+	Types.VARCHAR
+    };
+    int[] kinds = new int[sqlTypes.length];
+    for (int i = 0; i < sqlTypes.length; ++i)
+	kinds[i] = TypedRow.kindOf(sqlTypes[i]);
+    row = new TypedRow(kinds);
+
+    row.setLong(0, 1);
+    row.setLong(1, 42);
+    row.setLong(2, 1234567890123L);
+    row.setDouble(3, 2.5);
+    row.setDouble(4, 3.25);
+    row.setObject(5, "7.5");
+}
+
+public void testKinds() {
+    assertEquals(TypedRow.BOOLEAN, TypedRow.kindOf(Types.BOOLEAN));
+    assertEquals(TypedRow.INTEGER, TypedRow.kindOf(Types.SMALLINT));
+    assertEquals(TypedRow.DOUBLE, TypedRow.kindOf(Types.FLOAT));
+    assertEquals(TypedRow.OBJECT, TypedRow.kindOf(Types.DECIMAL));
+    assertEquals(TypedRow.OBJECT, TypedRow.kindOf(Types.DATE));
+    // BIT(n) may hold more than one bit
+    assertEquals(TypedRow.OBJECT, TypedRow.kindOf(Types.BIT));
+}
+
+public void testClassNameKinds() {
+    assertEquals(TypedRow.BOOLEAN, TypedRow.kindOf("java.lang.Boolean"));
+    assertEquals(TypedRow.INTEGER, TypedRow.kindOf("java.lang.Integer"));
+    assertEquals(TypedRow.LONG, TypedRow.kindOf("java.lang.Long"));
+    assertEquals(TypedRow.FLOAT, TypedRow.kindOf("java.lang.Float"));
+    assertEquals(TypedRow.DOUBLE, TypedRow.kindOf("java.lang.Double"));
+    assertEquals(TypedRow.OBJECT, TypedRow.kindOf("java.lang.Short"));
+    assertEquals(TypedRow.OBJECT, TypedRow.kindOf("java.math.BigDecimal"));
+    assertEquals(TypedRow.OBJECT, TypedRow.kindOf("[B"));
+    assertEquals(TypedRow.OBJECT, TypedRow.kindOf(null));
+}
+
+// An INT UNSIGNED value may not fit in an int.
+public void testLargeInteger() {
+    long big = Integer.MAX_VALUE + 1L;
+    row.setLong(1, big);
+    assertEquals(new Long(big), row.get(1));
+    assertEquals(big, row.getDouble(1), 0);
+
+    row.setLong(1, Integer.MIN_VALUE);
+    assertEquals(new Integer(Integer.MIN_VALUE), row.get(1));
+}
+
+public void testBoxedValues() {
+    assertEquals(6, row.size());
+    assertEquals(Boolean.TRUE, row.get(0));
+    assertEquals(new Integer(42), row.get(1));
+    assertEquals(new Long(1234567890123L), row.get(2));
+    assertEquals(new Float(2.5), row.get(3));
+    assertEquals(new Double(3.25), row.get(4));
+    assertEquals("7.5", row.get(5));
+}
+
+public void testDoubles() {
+    assertEquals(42, row.getDouble(1), 0);
+    assertEquals(1234567890123.0, row.getDouble(2), 0);
+    assertEquals(2.5, row.getDouble(3), 0);
+    assertEquals(3.25, row.getDouble(4), 0);
+    assertEquals(7.5, row.getDouble(5), 0);
+}
+
+public void testNulls() {
+    row.setNull(1);
+    row.setObject(5, null);
+    assertTrue(row.isNull(1));
+    assertNull(row.get(1));
+    assertEquals(0, row.getDouble(1), 0);
+    assertTrue(row.isNull(5));
+    assertEquals(0, row.getDouble(5), 0);
+
+    // Reusing the row clears nulls
+    row.setLong(1, 3);
+    assertFalse(row.isNull(1));
+    assertEquals(new Integer(3), row.get(1));
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
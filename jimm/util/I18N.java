@@ -35,7 +35,7 @@ static {
  *
  * @param l the new locale
  */
-public static void setLanguage(Locale l) {
+public static synchronized void setLanguage(Locale l) {
     if (!l.equals(locale)) {
 	locale = l;
 	bundles = new HashMap<String, ResourceBundle>();
@@ -128,7 +128,7 @@ public static String getNullIfMissing(String prefix, String key) {
     return val;
 }
 
-protected static ResourceBundle getBundle(String prefix) {
+protected static synchronized ResourceBundle getBundle(String prefix) {
     ResourceBundle bundle = (ResourceBundle)bundles.get(prefix);
     if (bundle == null) {
 	bundle = ResourceBundle.getBundle(prefix, locale);
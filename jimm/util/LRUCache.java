@@ -0,0 +1,102 @@
+package jimm.util;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An LRU cache is a map that holds at most <var>maxSize</var> entries. When
+ * a new entry would make it bigger than that, the entry that was used least
+ * recently is removed. Both {@link #get} and {@link #put} count as using an
+ * entry.
+ * <p>
+ * The cache counts the lookups made with {@link #get} that found a value
+ * (hits) and those that didn't (misses).
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class LRUCache<K, V> extends LinkedHashMap<K, V> {
+
+private static final long serialVersionUID = 1L;
+
+protected int maxSize;
+protected long hits;
+protected long misses;
+
+/**
+ * Constructor.
+ *
+ * @param maxSize the maximum number of entries; zero or less means nothing
+ * is ever kept
+ */
+public LRUCache(int maxSize) {
+    super(16, 0.75f, true);	// Access order, not insertion order
+    setMaxSize(maxSize);
+}
+
+/**
+ * Returns the maximum number of entries.
+ *
+ * @return the maximum number of entries
+ */
+public int getMaxSize() { return maxSize; }
+
+/**
+ * Sets the maximum number of entries. If there are more than that, the
+ * least recently used ones are removed.
+ *
+ * @param newMaxSize the maximum number of entries; zero or less means
+ * nothing is ever kept
+ */
+public void setMaxSize(int newMaxSize) {
+    maxSize = newMaxSize < 0 ? 0 : newMaxSize;
+    while (size() > maxSize)
+	remove(keySet().iterator().next());
+}
+
+/**
+ * Returns the value for <var>key</var>, or <code>null</code> if there
+ * isn't one, and counts the lookup as a hit or a miss.
+ *
+ * @param key a key
+ * @return the value; may be <code>null</code>
+ */
+public V get(Object key) {
+    V val = super.get(key);
+    if (val != null || containsKey(key))
+	++hits;
+    else
+	++misses;
+    return val;
+}
+
+public V put(K key, V value) {
+    if (maxSize == 0)
+	return null;
+    return super.put(key, value);
+}
+
+protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+    return size() > maxSize;
+}
+
+/**
+ * Returns the number of lookups that found a value.
+ *
+ * @return the number of hits
+ */
+public long getHits() { return hits; }
+
+/**
+ * Returns the number of lookups that didn't find a value.
+ *
+ * @return the number of misses
+ */
+public long getMisses() { return misses; }
+
+/**
+ * Sets the hit and miss counts back to zero.
+ */
+public void resetCounts() {
+    hits = misses = 0;
+}
+
+}
@@ -0,0 +1,199 @@
+package jimm.util;
+import java.util.*;
+
+/**
+ * A quantile sketch estimates the median, percentiles, or any other
+ * quantile of the numbers it has seen using a bounded amount of memory. It
+ * is a KLL sketch (Karnin, Lang, and Liberty): numbers are kept in a stack
+ * of levels, and when a level gets full it is sorted and every other number
+ * is promoted to the next level, where each number stands for twice as many
+ * original values. The sketch holds about 3 * <var>k</var> numbers, and the
+ * rank of an answer is usually within about 1.7 / <var>k</var> of the rank
+ * requested.
+ * <p>
+ * The coin flips used when promoting numbers come from a generator with a
+ * fixed seed, so the same input always gives the same answers. Two sketches
+ * may be merged.
+ *
+ * @author Jim Menard, <a href="mailto:jim@jimmenard.com">jim@jimmenard.com</a>
+ */
+public class QuantileSketch {
+
+protected static final int MIN_K = 8;
+protected static final double CAPACITY_RATIO = 2.0 / 3.0;
+
+// ================================================================
+static class Level {
+double[] items = new double[4];
+int size;
+void add(double value) {
+    if (size == items.length) {
+	double[] newItems = new double[items.length * 2];
+	System.arraycopy(items, 0, newItems, 0, size);
+	items = newItems;
+    }
+    items[size++] = value;
+}
+}
+// ================================================================
+
+protected int k;
+protected ArrayList<Level> levels;
+protected long count;
+protected int numItems;
+protected Random random;
+
+/**
+ * Constructor.
+ *
+ * @param k the accuracy parameter; bigger is more accurate and uses more
+ * memory; values less than 8 are treated as 8
+ */
+public QuantileSketch(int k) {
+    this.k = Math.max(k, MIN_K);
+    random = new Random(this.k);
+    clear();
+}
+
+/**
+ * Adds a number.
+ *
+ * @param value a number
+ */
+public void add(double value) {
+    levels.get(0).add(value);
+    ++count;
+    ++numItems;
+    if (numItems > totalCapacity())
+	compact();
+}
+
+/**
+ * Adds all of the numbers seen by <var>other</var>.
+ *
+ * @param other another sketch
+ */
+public void merge(QuantileSketch other) {
+    for (int h = 0; h < other.levels.size(); ++h) {
+	while (levels.size() <= h)
+	    levels.add(new Level());
+	Level from = other.levels.get(h);
+	for (int i = 0; i < from.size; ++i)
+	    levels.get(h).add(from.items[i]);
+	numItems += from.size;
+    }
+    count += other.count;
+    while (numItems > totalCapacity())
+	compact();
+}
+
+/**
+ * Returns the number of numbers added so far.
+ *
+ * @return the count
+ */
+public long getCount() { return count; }
+
+/**
+ * Returns the number of numbers the sketch is holding right now.
+ *
+ * @return the number of numbers stored
+ */
+public int totalItems() { return numItems; }
+
+/**
+ * Returns an estimate of the <var>q</var>'th quantile: a number that is
+ * greater than or equal to about <var>q</var> of the numbers seen. Returns
+ * 0 if no numbers have been added.
+ *
+ * @param q a fraction from 0 to 1; 0.5 is the median
+ * @return an estimated quantile
+ */
+public double quantile(double q) {
+    if (count == 0)
+	return 0;
+
+    double[] values = new double[numItems];
+    long[] weights = new long[numItems];
+    int n = 0;
+    for (int h = 0; h < levels.size(); ++h) {
+	Level level = levels.get(h);
+	for (int i = 0; i < level.size; ++i) {
+	    values[n] = level.items[i];
+	    weights[n++] = 1L << h;
+	}
+    }
+
+    // Sort values and weights together
+    Integer[] order = new Integer[n];
+    for (int i = 0; i < n; ++i)
+	order[i] = new Integer(i);
+    final double[] v = values;
+    Arrays.sort(order, new Comparator<Integer>() {
+	public int compare(Integer a, Integer b) {
+	    return Double.compare(v[a.intValue()], v[b.intValue()]);
+	}
+	});
+
+    double target = q * count;
+    long cumulative = 0;
+    for (int i = 0; i < n; ++i) {
+	cumulative += weights[order[i].intValue()];
+	if (cumulative >= target)
+	    return values[order[i].intValue()];
+    }
+    return values[order[n - 1].intValue()];
+}
+
+/** Forgets all numbers seen so far. */
+public void clear() {
+    levels = new ArrayList<Level>();
+    levels.add(new Level());
+    count = 0;
+    numItems = 0;
+}
+
+/** Returns the number of numbers that level <var>h</var> may hold. */
+protected int capacity(int h) {
+    int depth = levels.size() - 1 - h;
+    return Math.max(2, (int)Math.ceil(k * Math.pow(CAPACITY_RATIO, depth)));
+}
+
+protected int totalCapacity() {
+    int total = 0;
+    for (int h = 0; h < levels.size(); ++h)
+	total += capacity(h);
+    return total;
+}
+
+/**
+ * Finds the lowest level that is full, sorts it, and promotes every other
+ * number in it to the next level up. If the level holds an odd number of
+ * numbers, the largest stays behind.
+ */
+protected void compact() {
+    for (int h = 0; h < levels.size(); ++h) {
+	Level level = levels.get(h);
+	if (level.size < capacity(h))
+	    continue;
+
+	if (h + 1 == levels.size())
+	    levels.add(new Level());
+	Level next = levels.get(h + 1);
+
+	Arrays.sort(level.items, 0, level.size);
+	int pairs = level.size / 2;
+	int offset = random.nextBoolean() ? 1 : 0;
+	for (int i = 0; i < pairs; ++i)
+	    next.add(level.items[2 * i + offset]);
+
+	boolean odd = (level.size & 1) != 0;
+	if (odd)
+	    level.items[0] = level.items[level.size - 1];
+	level.size = odd ? 1 : 0;
+	numItems -= pairs;
+	return;
+    }
+}
+
+}